@@ -0,0 +1,199 @@
+/*
+ * ===========================================================================
+ *  Copyright (C) 2002-2003  Tony Tang
+ *
+ *  This program is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation; either version 2 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program; if not, write to the Free Software
+ *  Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ * ===========================================================================
+ */
+
+/**
+ *
+ * $Id$
+ * $Author$
+ * $Name$
+ * $Revision$
+ * $State$
+ *
+ */
+
+package org.hn.sleek.jmml;
+
+import java.util.*;
+import java.util.concurrent.*;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.*;
+
+
+/**
+ * Benchmarks of the protocol codec: parsing the command lines servers send,
+ * reading their fields, encoding the commands the client sends, and the
+ * lookups and hashing done along the way.  Each parsing benchmark goes over
+ * the whole sample mix of IncomingMessage, so its score is per mix.
+ * <p>
+ * Run with <pre>mvn -Pjmh verify</pre>; <pre>-prof gc</pre> is on by default,
+ * for the allocation rate of each path.
+ */
+@BenchmarkMode( Mode.AverageTime )
+@OutputTimeUnit( TimeUnit.NANOSECONDS )
+@Warmup( iterations = 3, time = 1 )
+@Measurement( iterations = 5, time = 1 )
+@Fork( 1 )
+@State( Scope.Thread )
+public class CodecBenchmark {
+
+  /** The sample lines that parse, as text and as bytes. */
+  String[]        lines;
+  byte[][]        lineBytes;
+
+  /** Commands of the sample lines. */
+  String[]        commands;
+
+  /** Reused by the parsing benchmarks, as the decoder reuses its message. */
+  IncomingMessage message = new IncomingMessage();
+
+  OutgoingMessage usr;
+  OutgoingMessage msg;
+
+  String          challenge = "15570131571988941333" + NotificationServerConnector.MESSENGER_CHALLENGE_STRING;
+
+
+
+  @Setup
+  public void setUp() {
+    
+    ArrayList parsed = new ArrayList();
+    
+    for( int i = 0; i < IncomingMessage.SAMPLE_COMMANDS.length; i++ ) {
+      try {
+        IncomingMessage.parseMessage( IncomingMessage.SAMPLE_COMMANDS[i] );
+        parsed.add( IncomingMessage.SAMPLE_COMMANDS[i] );
+      } catch( Exception e ) {
+        /* Left out of the mix */
+      }
+    }
+    
+    lines     = ( String[] ) parsed.toArray( new String[parsed.size()] );
+    lineBytes = new byte[lines.length][];
+    commands  = new String[lines.length];
+    
+    for( int i = 0; i < lines.length; i++ ) {
+      lineBytes[i] = lines[i].getBytes( IncomingMessage.UTF8 );
+      commands[i]  = lines[i].substring( 0, 3 );
+    }
+    
+    usr = new OutgoingMessage( Message.USR, 12 );
+    usr.addArgument( "TWN" );
+    usr.addArgument( "I" );
+    usr.addArgument( "example@passport.com" );
+    
+    msg = new OutgoingMessage( Message.MSG, 13 );
+    msg.addArgument( SwitchboardSessionConnector.ACK_NONE );
+    msg.setBody( SwitchboardSessionConnector.MIME_HEADER_BYTES, "Hello there, how are you doing?" );
+  }
+
+  /**
+   * Parses each line from a String, as <pre>parseMessage()</pre> does.
+   */
+  @Benchmark
+  public void parseMessage( Blackhole blackhole ) throws Exception {
+    
+    for( int i = 0; i < lines.length; i++ ) {
+      blackhole.consume( IncomingMessage.parseMessage( lines[i] ) );
+    }
+  }
+
+  /**
+   * Parses each line from its bytes, as the frame decoder does.
+   */
+  @Benchmark
+  public void parse( Blackhole blackhole ) throws Exception {
+    
+    for( int i = 0; i < lineBytes.length; i++ ) {
+      message.parse( lineBytes[i], 0, lineBytes[i].length );
+      blackhole.consume( message.getType() );
+    }
+  }
+
+  /**
+   * Parses each line, and reads its record and every token, as the
+   * connectors would.
+   */
+  @Benchmark
+  public void parseAndRead( Blackhole blackhole ) throws Exception {
+    
+    for( int i = 0; i < lineBytes.length; i++ ) {
+      message.parse( lineBytes[i], 0, lineBytes[i].length );
+      blackhole.consume( message.getRecord() );
+      blackhole.consume( message.getTransactionID() );
+      
+      for( int t = 0; t < message.getTokenCount(); t++ ) {
+        blackhole.consume( message.getToken( t ) );
+        blackhole.consume( message.getIntToken( t, -1 ) );
+      }
+    }
+  }
+
+  @Benchmark
+  public String encodeCommand() {
+    
+    return usr.getMessageString();
+  }
+
+  @Benchmark
+  public String encodeMessage() {
+    
+    return msg.getMessageString();
+  }
+
+  @Benchmark
+  public void parseCommand( Blackhole blackhole ) throws Exception {
+    
+    for( int i = 0; i < commands.length; i++ ) {
+      blackhole.consume( Message.parseCommand( commands[i] ) );
+    }
+  }
+
+  @Benchmark
+  public void parseCommandBytes( Blackhole blackhole ) throws Exception {
+    
+    for( int i = 0; i < lineBytes.length; i++ ) {
+      blackhole.consume( Message.parseCommand( lineBytes[i], 0, 3 ) );
+    }
+  }
+
+  @Benchmark
+  public Object parseListMask() {
+    
+    return ContactList.parseListType( "11" );
+  }
+
+  @Benchmark
+  public Object parseListName() {
+    
+    return ContactList.parseListType( "FL" );
+  }
+
+  /**
+   * Hashes a CHL challenge, as the answer to it does.
+   */
+  @Benchmark
+  public String challenge() {
+    
+    return NotificationServerConnector.MD5sum( challenge );
+  }
+}
+
+// CodecBenchmark class
@@ -0,0 +1,155 @@
+/*
+ * ===========================================================================
+ *  Copyright (C) 2002-2003  Tony Tang
+ *
+ *  This program is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation; either version 2 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program; if not, write to the Free Software
+ *  Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ * ===========================================================================
+ */
+
+/**
+ *
+ * $Id$
+ * $Author$
+ * $Name$
+ * $Revision$
+ * $State$
+ *
+ */
+
+package org.hn.sleek.jmml;
+
+import java.nio.*;
+import java.util.concurrent.*;
+
+import org.openjdk.jmh.annotations.*;
+
+
+/**
+ * Benchmarks of the dispatch path: an instant message received by a
+ * switchboard session, through its MIME view and the payload router, and
+ * the events fired to 1, 10 and 100 listeners.  Each listener has a thread
+ * of its own, so with many listeners the score includes waiting for room
+ * on the event bus.
+ * <p>
+ * Run with <pre>mvn -Pjmh verify</pre>; <pre>-prof gc</pre> is on by default,
+ * for the allocation rate of each path.
+ */
+@BenchmarkMode( Mode.AverageTime )
+@OutputTimeUnit( TimeUnit.NANOSECONDS )
+@Warmup( iterations = 3, time = 1 )
+@Measurement( iterations = 5, time = 1 )
+@Fork( 1 )
+public class DispatchBenchmark {
+
+  /**
+   * A switchboard session, and the MSG packets it receives.
+   */
+  @State( Scope.Thread )
+  public static class Session {
+
+    SwitchboardSessionConnector ssc;
+    IncomingMessage             message = new IncomingMessage();
+    byte[]                      line;
+    byte[]                      text;
+    byte[]                      typing;
+
+    @Setup
+    public void setUp() {
+      
+      NotificationServerConnector ns = new NotificationServerConnector( "benchmark", new Integer( 1863 ) );
+      
+      ssc       = new SwitchboardSessionConnector( "benchmark@localhost", "buddy@localhost", ns );
+      ssc.state = SwitchboardSessionConnector.STATE_ACTIVE;
+      text      = WireReplay.SEED_PAYLOADS[1].getBytes( IncomingMessage.UTF8 );
+      typing    = WireReplay.SEED_PAYLOADS[0].getBytes( IncomingMessage.UTF8 );
+    }
+
+    void receive( byte[] payload ) throws Exception {
+      
+      byte[] header = ( "MSG buddy@localhost Buddy " + payload.length ).getBytes( IncomingMessage.UTF8 );
+      
+      message.parse( header, 0, header.length );
+      message.setBody( ByteBuffer.wrap( payload ) );
+      ssc.incomingMSNPMessage( message );
+    }
+  }
+
+  /**
+   * Listeners registered with the manager for the length of a trial.
+   */
+  @State( Scope.Benchmark )
+  public static class Listeners {
+
+    @Param( { "1", "10", "100" } )
+    int                       count;
+
+    MessengerClientListener[] listeners;
+    MessengerServerManager    manager;
+
+    @Setup
+    public void setUp() {
+      
+      manager   = MessengerServerManager.getInstance();
+      listeners = new MessengerClientListener[count];
+      
+      for( int i = 0; i < count; i++ ) {
+        listeners[i] = new MessengerClientAdapter();
+        manager.addMessengerClientListener( listeners[i] );
+      }
+    }
+
+    @TearDown
+    public void tearDown() {
+      
+      for( int i = 0; i < count; i++ ) {
+        manager.removeMessengerClientListener( listeners[i] );
+      }
+    }
+  }
+
+  /**
+   * A text message: MIME parsing, then an incoming message event with no
+   * listener.
+   */
+  @Benchmark
+  public void receiveText( Session session ) throws Exception {
+    
+    session.receive( session.text );
+  }
+
+  /**
+   * A typing notification: MIME parsing, then a typing event with no
+   * listener.
+   */
+  @Benchmark
+  public void receiveTyping( Session session ) throws Exception {
+    
+    session.receive( session.typing );
+  }
+
+  @Benchmark
+  public void fireIncomingMessage( Listeners listeners ) {
+    
+    listeners.manager.fireIncomingMessageEvent( "buddy@localhost", "Buddy", "Hello there" );
+  }
+
+  @Benchmark
+  public void fireContactChange( Listeners listeners ) {
+    
+    listeners.manager.fireContactChangeEvent( "buddy@localhost", Contact.STATUS, ContactStatus.AWAY, "NLN AWY buddy@localhost Buddy" );
+  }
+}
+
+// DispatchBenchmark class
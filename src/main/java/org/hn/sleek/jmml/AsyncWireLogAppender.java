@@ -0,0 +1,140 @@
+/*
+ * ===========================================================================
+ *  Copyright (C) 2002-2003  Tony Tang
+ *
+ *  This program is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation; either version 2 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program; if not, write to the Free Software
+ *  Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ * ===========================================================================
+ */
+
+/**
+ *
+ * $Id$
+ * $Author$
+ * $Name$
+ * $Revision$
+ * $State$
+ *
+ */
+
+package org.hn.sleek.jmml;
+
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+
+/**
+ * Hands the lines of the wire log to another appender on a thread of its
+ * own, so a slow console or file never holds up a connection.  Lines are
+ * queued up to a limit (system property jmml.wirelog.queue); beyond it,
+ * they are dropped and counted.
+ */
+public class AsyncWireLogAppender implements WireLogAppender {
+
+  /** Lines queued at most (system property jmml.wirelog.queue). */
+  final static int        DEFAULT_CAPACITY = Integer.getInteger( "jmml.wirelog.queue", 8192 ).intValue();
+
+  /** The appender writing the lines. */
+  WireLogAppender         target;
+
+  /** Lines waiting to be written. */
+  BlockingQueue           queue;
+
+  /** Lines dropped because the queue was full. */
+  AtomicLong              dropped = new AtomicLong();
+
+  
+  
+  /**
+   * Creates an asynchronous appender with the default capacity.
+   *
+   * @param target The appender writing the lines.
+   */
+  public AsyncWireLogAppender( WireLogAppender target ) {
+    
+    this( target, DEFAULT_CAPACITY );
+  }
+
+  /**
+   * Creates an asynchronous appender.
+   *
+   * @param target The appender writing the lines.
+   * @param capacity Lines queued at most.
+   */
+  public AsyncWireLogAppender( WireLogAppender target, int capacity ) {
+    
+    this.target = target;
+    this.queue  = new ArrayBlockingQueue( capacity );
+    
+    ExecutionSupport.newThread( "jmml-wirelog", new Runnable() {
+      
+      public void run() {
+        
+        while( true ) {
+          try {
+            Line line = ( Line ) queue.take();
+            
+            AsyncWireLogAppender.this.target.append( line.time, line.level, line.source, line.text );
+          } catch( InterruptedException e ) {
+            return;
+          } catch( RuntimeException e ) {
+            System.err.println( "AsyncWireLogAppender.run() - " + e );
+          }
+        }
+      }
+    }, false ).start();
+  }
+
+  /**
+   * Queues a line, or drops it when the queue is full.
+   */
+  public void append( long time, int level, String source, String text ) {
+    
+    if( !queue.offer( new Line( time, level, source, text ) ) )
+      dropped.incrementAndGet();
+  }
+
+  /**
+   * Returns the number of lines dropped because the queue was full.
+   *
+   * @return The number of dropped lines.
+   */
+  public long getDroppedCount() {
+    
+    return dropped.get();
+  }
+
+  /**
+   * A queued line.
+   */
+  final static class Line {
+
+    final long             time;
+    final int              level;
+    final String           source;
+    final String           text;
+
+    
+    
+    Line( long time, int level, String source, String text ) {
+      
+      this.time   = time;
+      this.level  = level;
+      this.source = source;
+      this.text   = text;
+    }
+  }
+}
+
+// AsyncWireLogAppender class
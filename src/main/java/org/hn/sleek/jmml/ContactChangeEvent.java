@@ -40,6 +40,9 @@ public class ContactChangeEvent {
   int          property;
   Object       newValue;
 
+  /** The packet the change comes from, formatted only when asked for; null when given as text. */
+  Message      source;
+
   
   public ContactChangeEvent( String userName, int property, Object newValue, String sourceCommand ) {
     
@@ -70,8 +73,22 @@ public class ContactChangeEvent {
     }
   }
 
+  /**
+   * Creates the event of a change reported by a packet, which is turned
+   * into the source command only if a listener asks for it.  The packet
+   * must be detached.
+   */
+  ContactChangeEvent( String userName, int property, Object newValue, Message source ) {
+    
+    this( userName, property, newValue, ( String ) null );
+    this.source = source;
+  }
+
   public String getSourceCommand() {
     
+    if( sourceCommand == null && source != null )
+      sourceCommand = source.toString();
+    
     return sourceCommand;
   }
 
@@ -31,6 +31,8 @@
 package org.hn.sleek.jmml;
 
 import java.util.*;
+import java.util.concurrent.*;
+import java.util.function.*;
 
 /**
  * Makes the first connection the Dispatch server.  Connecting to this server
@@ -43,62 +45,115 @@ public class DispatchServerConnector implements MSNPListener {
 
   final static String MESSENGER_DS_SERVER = "messenger.hotmail.com";
   final static int    MESSENGER_DS_PORT   = 1863;
+  /** Host of the Dispatch Server, read at each connect (system property jmml.ds.host). */
+  final static String DS_HOST_PROPERTY    = "jmml.ds.host";
+  /** Port of the Dispatch Server, read at each connect (system property jmml.ds.port). */
+  final static String DS_PORT_PROPERTY    = "jmml.ds.port";
+
+  /** Milliseconds the blocking lookup may take (system property jmml.timeout.dispatch). */
+  final static long   DEFAULT_TIMEOUT     = Long.getLong( "jmml.timeout.dispatch", 15000L ).longValue();
 
   ServerConnection    sc;
-  int                 transactionID       =  0;
+  /** Transaction IDs and pending requests on the Dispatch Server connection. */
+  TransactionTable    transactions        = new TransactionTable();
   int                 port                = -1;
   String              serverIP;
   String              userName;
+
+  /** Transport used for the connection to the server. */
+  int                 transport           = ServerConnection.getDefaultTransport();
 	
 
   /**
-   * Negotiates against a Dispatch server for a Notification Server.
+   * Negotiates against a Dispatch server for a Notification Server.  Blocks
+   * until the Dispatch Server answers, or the default deadline passes.
    *
    * @param userName User's Passport ID
    * @return An array list whose elements are [(String) NotificationServerIP, (int) NotificationServerPort]
    */
   public ArrayList getNSServer( String userName ) {
     
-    OutgoingMessage msg;
+    try {
+      return ( ArrayList ) getNSServerAsync( userName, DEFAULT_TIMEOUT ).get();
+    } catch( Exception e ) {
+      System.err.println( "DispatchServerConnector.getNSServer() - " + e );
+      return null;
+    }
+  }
 
+  /**
+   * Negotiates against a Dispatch server for a Notification Server without
+   * blocking the caller.  VER, CVR and USR are sent in turn, each after the
+   * reply to the previous one; the Dispatch Server answers the USR with the
+   * XFR that names the Notification Server.  The connection is closed once
+   * the lookup is over, whatever its outcome.
+   *
+   * @param userName User's Passport ID
+   * @param timeout Milliseconds the whole lookup may take.
+   * @return A future for [(String) NotificationServerIP, (Integer) NotificationServerPort].
+   */
+  public CompletableFuture getNSServerAsync( String userName, long timeout ) {
+    
     this.userName = userName;
-
-    /* Creates a new server connection */
-    sc = new ServerConnection( MESSENGER_DS_SERVER, MESSENGER_DS_PORT, this );
-
-    /**
-     * We need check if DS connection was OK to continue
-     * negotiating with NS server.
-     * If connection with DS could be stablished a null
-     * object is returned indicating fail to connect
-     * with DS Server.
-     */
-    if( !sc.isConnected() )
-      return null;
-                
-    // >>> VER MSNP8 support only
-    msg = new OutgoingMessage( Message.VER, getTransactionID() );
-    msg.addArgument( "MSNP8" );
-    msg.addArgument( "CVR0" );
-    sc.sendMSNPMessage( msg );
     
-    /* Wait until all asynchronous communication is complete */
-    try {
-      synchronized( this ) {
-        wait();
+    CompletableFuture lookup = connect().thenCompose( new Function() {
+      
+      public Object apply( Object result ) {
+        
+        // >>> VER MSNP8 support only
+        OutgoingMessage msg = new OutgoingMessage( Message.VER, getTransactionID() );
+        
+        msg.addArgument( "MSNP8" );
+        msg.addArgument( "CVR0" );
+        return sc.sendMSNPMessageAsync( msg );
       }
-    } catch( InterruptedException e ) { }
-      /* Create the return value [ServerIP, port] */
-      if( port != -1 )  {
-	ArrayList serverInfo = new ArrayList();
-                
-	serverInfo.add( serverIP );
-        serverInfo.add( new Integer( port ) );
+    } ).thenCompose( new Function() {
+      
+      public Object apply( Object result ) {
         
-        return serverInfo;
+        // New MSNP8 support
+        OutgoingMessage msg = new OutgoingMessage( Message.CVR, getTransactionID() );
+        
+        msg.addArgument( Message.CVR_STRING + DispatchServerConnector.this.userName );
+        return sc.sendMSNPMessageAsync( msg );
       }
-                
-      return null;
+    } ).thenCompose( new Function() {
+      
+      public Object apply( Object result ) {
+        
+        /* >>> USR [number] TWN I [userName] */
+        OutgoingMessage msg = new OutgoingMessage( Message.USR, getTransactionID() );
+        
+        msg.addArgument( Message.commandToString( Message.TWN ) );
+        msg.addArgument( "I" );
+        msg.addArgument( DispatchServerConnector.this.userName );
+        return sc.sendMSNPMessageAsync( msg );
+      }
+    } ).thenApply( new Function() {
+      
+      public Object apply( Object result ) {
+        return receivedXFR( ( IncomingMessage ) result );
+      }
+    } );
+    
+    return ExecutionSupport.within( lookup, timeout ).whenComplete( new BiConsumer() {
+      
+      public void accept( Object result, Object error ) {
+        if( sc != null && sc.isConnected() )
+          sc.disconnect();
+      }
+    } );
+  }
+
+  /**
+   * Selects the transport used for the connection to the Dispatch Server.
+   * Takes effect on the next connection.
+   *
+   * @param transport ServerConnection.TRANSPORT_BLOCKING or ServerConnection.TRANSPORT_NIO.
+   */
+  public void setTransport( int transport ) {
+    
+    this.transport = transport;
   }
 
   /**
@@ -106,8 +161,7 @@ public class DispatchServerConnector implements MSNPListener {
    * transaction ID.
    */
   private int getTransactionID() {
-    transactionID++;
-    return transactionID;
+    return transactions.nextTransactionID();
   }
 	
   /**
@@ -118,13 +172,7 @@ public class DispatchServerConnector implements MSNPListener {
    */
   public void incomingMSNPMessage( IncomingMessage incomingMessage ) {
     
-    switch( incomingMessage.getType() ) {
-      case Message.VER:  receivedVER( incomingMessage );  break;
-      // Not needed in MSNP8
-      //case Message.INF:  receivedINF (incomingMessage);  break;
-      case Message.XFR:  receivedXFR( incomingMessage );  break;
-      case Message.CVR:  receivedCVR( incomingMessage );  break;
-    }
+    /* Replies to VER, CVR and USR complete the requests of getNSServerAsync() */
   }
 
   /**
@@ -133,86 +181,62 @@ public class DispatchServerConnector implements MSNPListener {
    */
   public void serverDisconnected() {
           
-    System.out.println( "DispatchServerConnector.serverDisconnected() - Dispatch server has disconnected..." );
-          
-    MessengerServerManager.getInstance().fireLoginError();
-    MessengerServerManager.getInstance().fireServerDisconnected();
-          
-    synchronized( this )  {
-      notifyAll();
-    }
+    /* The server hangs up after the XFR; a lookup still waiting fails on its own */
+    if( WireLog.isEnabled( WireLog.INFO ) )
+      WireLog.log( WireLog.INFO, "ds", "DispatchServerConnector.serverDisconnected() - Dispatch server has disconnected..." );
   }
 
   /**
-   * Called when a VER message is 
-   * received for this object.  This implementation does no checking 
-   * to ensure proper form; instead, the message is used as a
-   * notification to send the INF command.
+   * Opens the connection to the Dispatch Server without blocking the caller.
    *
-   * @param incomingMessage The message that was received.
+   * @return A future for the connection, failed with an MSNException when
+   *         it could not be made.
    */
-  private void receivedVER( IncomingMessage incomingMessage ) {
-  
-    // New MSNP8 support
-    OutgoingMessage outgoingMsg = new OutgoingMessage( Message.CVR, getTransactionID() ); 
-    String          strArgument = Message.CVR_STRING + userName;
-                
-    outgoingMsg.addArgument( strArgument );
-    sc.sendMSNPMessage( outgoingMsg );
+  private CompletableFuture connect() {
+    
+    /* Creates a new server connection; a stand-in server may be named by properties */
+    String host = System.getProperty( DS_HOST_PROPERTY, MESSENGER_DS_SERVER );
+    int    port = Integer.getInteger( DS_PORT_PROPERTY, MESSENGER_DS_PORT ).intValue();
+    
+    return ServerConnection.openConnection( host, port, this, transport, ExecutionSupport.getBlockingExecutor() ).thenApply( new Function() {
+      
+      public Object apply( Object result ) {
+        
+        sc = ( ServerConnection ) result;
+        sc.setTransactionTable( transactions );
+        return sc;
+      }
+    } );
   }
 
-  // This package is not needed in the MSNP8 and now was changed by CVR response
-  /**
-   * Called when an INF message is
-   * received.  The implementation does not check the form of the
-   * message; instead, the message is used as a notification to send
-   * the USR command.
-   *
-   * @param incomingMessage The message that was received.
-   */
-  //private void receivedINF (IncomingMessage incomingMessage) {
-  /* >>> USR [number] MD5 I [userName] */
-  //  OutgoingMessage msg = new OutgoingMessage (Message.USR, getTransactionID());
-  //  msg.addArgument ("MD5"); msg.addArgument ("I"); msg.addArgument (userName);
-  //  sc.sendMSNPMessage (msg);
-  //}
-
   /**
-   * Called when an XFR message is
-   * received.  Implementation notifies the object that all the
-   * necessary information has been received from the Dispatch
-   * Server, and signals so.
+   * Called when the XFR reply to USR is
+   * received.  It carries the address of the Notification Server
+   * to sign in to.
    *
    * @param incomingMessage The message that was received.
+   * @return [(String) NotificationServerIP, (Integer) NotificationServerPort]
    */
-  private void receivedXFR( IncomingMessage incomingMessage ) {
+  private ArrayList receivedXFR( IncomingMessage incomingMessage ) {
     
-    try {
-      serverIP = incomingMessage.getServerIP();
-      port     = incomingMessage.getServerPort();
-    } catch( Exception e ) {
+    MessageRecord record = incomingMessage.getRecord();
+    
+    if( record instanceof MessageRecord.Xfr ) {
+      serverIP = ( ( MessageRecord.Xfr ) record ).getServerIP();
+      port     = ( ( MessageRecord.Xfr ) record ).getServerPort();
+    }
+    else {
       serverIP = "64.4.12.93";
       port     = 1863;
     }
-  }
-        
-  /**
-   * Called when an CVR message is
-   * received.  The implementation does not check the form of the
-   * message; instead, the message is used as a notification to send
-   * the USR command.
-   *
-   * @param incomingMessage The message that was received.
-   */
-  private void receivedCVR( IncomingMessage incomingMessage ) {
-          
-    /* >>> USR [number] TWN I [userName] */
-    OutgoingMessage outgoingMsg = new OutgoingMessage( Message.USR, getTransactionID() );
-                
-    outgoingMsg.addArgument( Message.commandToString( Message.TWN ) );
-    outgoingMsg.addArgument( "I" );
-    outgoingMsg.addArgument( userName );
-    sc.sendMSNPMessage( outgoingMsg );
+    
+    /* Create the return value [ServerIP, port] */
+    ArrayList serverInfo = new ArrayList();
+    
+    serverInfo.add( serverIP );
+    serverInfo.add( new Integer( port ) );
+    
+    return serverInfo;
   }
 
   /**
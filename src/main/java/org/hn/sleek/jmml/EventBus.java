@@ -0,0 +1,490 @@
+/*
+ * ===========================================================================
+ *  Copyright (C) 2002-2003  Tony Tang
+ *
+ *  This program is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation; either version 2 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program; if not, write to the Free Software
+ *  Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ * ===========================================================================
+ */
+
+/**
+ *
+ * $Id$
+ * $Author$
+ * $Name$
+ * $Revision$
+ * $State$
+ *
+ */
+
+package org.hn.sleek.jmml;
+
+import java.util.*;
+import java.util.concurrent.atomic.*;
+import java.util.concurrent.locks.*;
+
+
+/**
+ * Carries events from the threads handling the protocol to the client
+ * listeners, through a ring of preallocated slots.  Firing an event claims
+ * the next slot, fills it and returns; every listener has its own thread
+ * reading the ring in order, so a slow listener delays only itself, until
+ * the ring is full.
+ * <p>
+ * What happens when the ring is full depends on the overflow policy: the
+ * publisher waits for the slowest listener ("block"), the event is dropped
+ * ("drop"), or typing and contact property events are dropped while the
+ * others wait ("shed").  How an idle listener thread waits for the next
+ * event depends on the wait strategy: "blocking" waits on a lock and costs
+ * the publisher a signal; "sleeping", "yielding" and "spinning" keep the
+ * publisher out of it and trade CPU for latency, in that order.
+ * <p>
+ * Events are published only while a listener is subscribed.
+ */
+final class EventBus {
+
+  /** Wait strategies of the listener threads. */
+  final static int       WAIT_BLOCKING   = 0;
+  final static int       WAIT_SLEEPING   = 1;
+  final static int       WAIT_YIELDING   = 2;
+  final static int       WAIT_SPINNING   = 3;
+
+  /** Names of the wait strategies, as given in jmml.events.wait. */
+  final static String[]  WAIT_NAMES      = { "blocking", "sleeping", "yielding", "spinning" };
+
+  /** Overflow policies of the publishers. */
+  final static int       OVERFLOW_BLOCK  = 0;
+  final static int       OVERFLOW_DROP   = 1;
+  final static int       OVERFLOW_SHED   = 2;
+
+  /** Names of the overflow policies, as given in jmml.events.overflow. */
+  final static String[]  OVERFLOW_NAMES  = { "block", "drop", "shed" };
+
+  /** Slots in the ring, rounded up to a power of two (system property jmml.events.ring). */
+  final static int       DEFAULT_SIZE     = Integer.getInteger( "jmml.events.ring", 1024 ).intValue();
+
+  /** Wait strategy of the listener threads (system property jmml.events.wait). */
+  final static int       DEFAULT_WAIT     = indexOf( WAIT_NAMES, System.getProperty( "jmml.events.wait" ), WAIT_BLOCKING );
+
+  /** What publishers do when the ring is full (system property jmml.events.overflow). */
+  final static int       DEFAULT_OVERFLOW = indexOf( OVERFLOW_NAMES, System.getProperty( "jmml.events.overflow" ), OVERFLOW_BLOCK );
+
+  /** Times a sleeping or yielding listener spins before giving up the CPU. */
+  final static int       SPIN_TRIES      = 100;
+
+  /** How long a sleeping listener or a blocked publisher sleeps at a time, in nanoseconds. */
+  final static long      SLEEP_NANOS     = 100000L;
+
+  /** Types of events. */
+  final static int       INCOMING_MESSAGE    = 0;
+  final static int       TYPING              = 1;
+  final static int       CONTACT_CHANGED     = 2;
+  final static int       SERVER_DISCONNECTED = 3;
+  final static int       LOGIN_ERROR         = 4;
+  final static int       LOGIN_ACCEPTED      = 5;
+  final static int       GROUP_RECEIVED      = 6;
+  final static int       CONTACT_RECEIVED    = 7;
+  final static int       CONTACT_ADDED       = 8;
+  final static int       CONTACT_REMOVED     = 9;
+
+  /** Set on the listener threads, which must never wait for the ring. */
+  final static ThreadLocal listenerThread = new ThreadLocal();
+
+  /** The ring. */
+  final Slot[]           slots;
+
+  /** Index mask of the ring. */
+  final int              mask;
+
+  /** Sequence last published in each slot. */
+  final AtomicLongArray  published;
+
+  /** Last sequence claimed by a publisher. */
+  final AtomicLong       cursor          = new AtomicLong( -1 );
+
+  /** The listeners; replaced, never changed. */
+  volatile Consumer[]    consumers       = new Consumer[0];
+
+  /** Wait strategy of the listener threads. */
+  final int              waitStrategy;
+
+  /** What publishers do when the ring is full. */
+  final int              overflowPolicy;
+
+  /** Blocking listeners wait on this. */
+  final ReentrantLock    lock            = new ReentrantLock();
+  final Condition        publishedEvent  = lock.newCondition();
+
+  /** Number of blocking listeners waiting, so publishers signal only when needed. */
+  final AtomicInteger    waiters         = new AtomicInteger();
+
+  /** Number of events dropped because the ring was full. */
+  final AtomicLong       dropped         = new AtomicLong();
+
+  
+  
+  /**
+   * Creates a bus configured by the system properties.
+   */
+  EventBus() {
+    
+    this( DEFAULT_SIZE, DEFAULT_WAIT, DEFAULT_OVERFLOW );
+  }
+
+  /**
+   * Creates a bus.
+   *
+   * @param size Number of slots, rounded up to a power of two.
+   * @param waitStrategy One of the WAIT_ constants.
+   * @param overflowPolicy One of the OVERFLOW_ constants.
+   */
+  EventBus( int size, int waitStrategy, int overflowPolicy ) {
+    
+    int capacity = 1;
+    
+    while( capacity < size )
+      capacity <<= 1;
+    
+    slots               = new Slot[capacity];
+    mask                = capacity - 1;
+    published           = new AtomicLongArray( capacity );
+    this.waitStrategy   = waitStrategy;
+    this.overflowPolicy = overflowPolicy;
+    
+    for( int i = 0; i < capacity; i++ ) {
+      slots[i] = new Slot();
+      published.set( i, -1 );
+    }
+  }
+
+  /**
+   * Starts delivering events to a listener, from the next event published.
+   *
+   * @param listener A MessengerClientListener or a TypingListener.
+   * @param typing Whether the listener gets typing notifications, or all the others.
+   */
+  synchronized void subscribe( Object listener, boolean typing ) {
+    
+    Consumer consumer = new Consumer( listener, typing, cursor.get() );
+    Consumer[] more   = new Consumer[consumers.length + 1];
+    
+    System.arraycopy( consumers, 0, more, 0, consumers.length );
+    more[consumers.length] = consumer;
+    consumers = more;
+    
+    Metrics.register( consumer.metrics );
+    ExecutionSupport.newThread( "jmml-events", consumer, false ).start();
+  }
+
+  /**
+   * Stops delivering events to a listener.  Events not yet delivered to it
+   * are dropped.
+   *
+   * @param listener The listener.
+   * @param typing Whether it was subscribed to typing notifications.
+   */
+  synchronized void unsubscribe( Object listener, boolean typing ) {
+    
+    for( int i = 0; i < consumers.length; i++ ) {
+      if( consumers[i].listener == listener && consumers[i].typing == typing ) {
+        Consumer   consumer = consumers[i];
+        Consumer[] fewer    = new Consumer[consumers.length - 1];
+        
+        System.arraycopy( consumers, 0, fewer, 0, i );
+        System.arraycopy( consumers, i + 1, fewer, i, fewer.length - i );
+        consumers = fewer;
+        
+        consumer.stop();
+        return;
+      }
+    }
+  }
+
+  /**
+   * Publishes an event.  Returns once the event is in the ring, or dropped.
+   *
+   * @param type The type of the event.
+   * @param value What the event carries, or null.
+   */
+  void publish( int type, Object value ) {
+    
+    long sequence;
+    
+    while( true ) {
+      Consumer[] consumers = this.consumers;
+      
+      if( consumers.length == 0 )
+        return;
+      
+      long current = cursor.get();
+      
+      /* The slot is free once every listener is past its previous round */
+      if( current + 1 - slots.length > minimumSequence( consumers ) ) {
+        if( overflowPolicy == OVERFLOW_DROP || overflowPolicy == OVERFLOW_SHED && ( type == TYPING || type == CONTACT_CHANGED ) || listenerThread.get() != null ) {
+          dropped.incrementAndGet();
+          return;
+        }
+        
+        LockSupport.parkNanos( SLEEP_NANOS );
+        continue;
+      }
+      
+      if( cursor.compareAndSet( current, current + 1 ) ) {
+        sequence = current + 1;
+        break;
+      }
+    }
+    
+    Slot slot  = slots[( int ) sequence & mask];
+    
+    slot.type  = type;
+    slot.value = value;
+    published.set( ( int ) sequence & mask, sequence );
+    
+    if( waiters.get() > 0 ) {
+      lock.lock();
+      
+      try {
+        publishedEvent.signalAll();
+      } finally {
+        lock.unlock();
+      }
+    }
+  }
+
+  /**
+   * Returns the number of events dropped because the ring was full.
+   *
+   * @return The number of dropped events.
+   */
+  long getDroppedCount() {
+    
+    return dropped.get();
+  }
+
+  /**
+   * Returns the number of events published but not yet delivered to the
+   * slowest listener.
+   *
+   * @return The backlog.
+   */
+  long getBacklog() {
+    
+    Consumer[] consumers = this.consumers;
+    
+    return ( consumers.length == 0 ) ? 0 : cursor.get() - minimumSequence( consumers );
+  }
+
+  /**
+   * Returns the last sequence delivered to the slowest listener.
+   */
+  private static long minimumSequence( Consumer[] consumers ) {
+    
+    long minimum = Long.MAX_VALUE;
+    
+    for( int i = 0; i < consumers.length; i++ )
+      minimum = Math.min( minimum, consumers[i].sequence );
+    
+    return minimum;
+  }
+
+  /**
+   * Returns the index of a name, ignoring case.
+   */
+  private static int indexOf( String[] names, String name, int defaultIndex ) {
+    
+    for( int i = 0; i < names.length; i++ ) {
+      if( names[i].equalsIgnoreCase( name ) )
+        return i;
+    }
+    
+    return defaultIndex;
+  }
+
+  /**
+   * A slot of the ring.  Written by one publisher, then read by every
+   * listener, before it is written again.
+   */
+  final static class Slot {
+
+    /** The type of the event. */
+    int                    type;
+
+    /** What the event carries. */
+    Object                 value;
+  }
+
+  /**
+   * Reads the ring for one listener, on its own thread.
+   */
+  final class Consumer implements Runnable {
+
+    /** The listener. */
+    final Object           listener;
+
+    /** Whether the listener gets typing notifications, or all the others. */
+    final boolean          typing;
+
+    /** Last sequence delivered. */
+    volatile long          sequence;
+
+    /** Cleared when the listener is unsubscribed. */
+    volatile boolean       running       = true;
+
+    /** The thread reading for the listener. */
+    volatile Thread        thread;
+
+    /** Metrics of the listener. */
+    final MetricSet        metrics;
+
+    /** Time the listener takes to handle an event. */
+    final Histogram        dispatchTime;
+
+    
+    
+    Consumer( Object listener, boolean typing, long sequence ) {
+      
+      String name = listener.getClass().getName() + "@" + Integer.toHexString( System.identityHashCode( listener ) ) + ( typing ? " typing" : "" );
+      
+      this.listener = listener;
+      this.typing   = typing;
+      this.sequence = sequence;
+      
+      metrics      = new MetricSet( "Listener", name, new String[] { "listener", name } );
+      dispatchTime = metrics.histogram( "listener_dispatch_seconds", "Time the listener takes to handle an event." );
+      metrics.gauge( "listener_backlog", "Events published but not yet delivered to the listener.", new MetricSet.Gauge() {
+        
+        public long getValue() {
+          return cursor.get() - Consumer.this.sequence;
+        }
+      } );
+    }
+
+    /**
+     * Delivers the events in order until the listener is unsubscribed.
+     */
+    public void run() {
+      
+      thread = Thread.currentThread();
+      listenerThread.set( this );
+      
+      for( long next = sequence + 1; waitFor( next ); next++ ) {
+        Slot   slot  = slots[( int ) next & mask];
+        int    type  = slot.type;
+        Object value = slot.value;
+        
+        sequence = next;
+        
+        long started = System.nanoTime();
+        
+        try {
+          deliver( type, value );
+        } catch( Exception e ) {
+          System.err.println( "EventBus.deliver() - " + e );
+        }
+        
+        dispatchTime.record( System.nanoTime() - started );
+      }
+    }
+
+    /**
+     * Stops reading the ring, and wakes the thread up.
+     */
+    void stop() {
+      
+      running = false;
+      Metrics.unregister( metrics );
+      
+      lock.lock();
+      
+      try {
+        publishedEvent.signalAll();
+      } finally {
+        lock.unlock();
+      }
+      
+      if( thread != null )
+        LockSupport.unpark( thread );
+    }
+
+    /**
+     * Waits until an event is published.
+     *
+     * @param next The sequence of the event.
+     * @return Whether it was published; false when the listener is unsubscribed.
+     */
+    private boolean waitFor( long next ) {
+      
+      int index = ( int ) next & mask;
+      int tries = 0;
+      
+      while( published.get( index ) != next ) {
+        if( !running )
+          return false;
+        
+        if( waitStrategy == WAIT_BLOCKING ) {
+          lock.lock();
+          waiters.incrementAndGet();
+          
+          try {
+            while( published.get( index ) != next && running )
+              publishedEvent.await();
+          } catch( InterruptedException e ) {
+            running = false;
+          } finally {
+            waiters.decrementAndGet();
+            lock.unlock();
+          }
+        } else if( waitStrategy == WAIT_SPINNING || ++tries < SPIN_TRIES ) {
+          /* Spin */
+        } else if( waitStrategy == WAIT_YIELDING ) {
+          Thread.yield();
+        } else {
+          LockSupport.parkNanos( SLEEP_NANOS );
+        }
+      }
+      
+      return running;
+    }
+
+    /**
+     * Calls the listener back.
+     */
+    private void deliver( int type, Object value ) {
+      
+      if( typing ) {
+        if( type == TYPING )
+          ( ( TypingListener ) listener ).typingNotification( ( String ) value );
+        
+        return;
+      }
+      
+      MessengerClientListener client = ( MessengerClientListener ) listener;
+      
+      switch( type ) {
+        case INCOMING_MESSAGE:    client.incomingMessage( ( IncomingMessageEvent ) value ); break;
+        case CONTACT_CHANGED:     client.contactPropertyChanged( ( ContactChangeEvent ) value ); break;
+        case SERVER_DISCONNECTED: client.serverDisconnected(); break;
+        case LOGIN_ERROR:         client.loginError(); break;
+        case LOGIN_ACCEPTED:      client.loginAccepted(); break;
+        case GROUP_RECEIVED:      client.groupReceived( ( String ) value ); break;
+        case CONTACT_RECEIVED:    client.contactReceived( ( Contact ) value ); break;
+        case CONTACT_ADDED:       client.contactAdded( ( Contact ) value ); break;
+        case CONTACT_REMOVED:     client.contactRemoved( ( Contact ) value ); break;
+      }
+    }
+  }
+}
+
+// EventBus class
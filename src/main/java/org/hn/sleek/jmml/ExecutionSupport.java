@@ -0,0 +1,314 @@
+/*
+ * ===========================================================================
+ *  Copyright (C) 2002-2003  Tony Tang
+ *
+ *  This program is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation; either version 2 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program; if not, write to the Free Software
+ *  Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ * ===========================================================================
+ */
+
+/**
+ *
+ * $Id$
+ * $Author$
+ * $Name$
+ * $Revision$
+ * $State$
+ *
+ */
+
+package org.hn.sleek.jmml;
+
+import java.lang.reflect.*;
+import java.util.concurrent.*;
+
+
+/**
+ * Creates the threads that read from connections and call the listeners
+ * back.  When the virtual execution mode is selected and the running JVM
+ * has virtual threads (Java 21 and later), the threads are virtual; the
+ * library itself is compiled for Java 8, so virtual threads are reached
+ * through reflection, and platform threads are used on older JVMs.
+ */
+class ExecutionSupport {
+
+  /** Thread.ofVirtual(), or null when the JVM has no virtual threads. */
+  static Method   ofVirtual;
+
+  /** Thread.Builder.name(String). */
+  static Method   builderName;
+
+  /** Thread.Builder.unstarted(Runnable). */
+  static Method   builderUnstarted;
+
+  /** Runs each dispatch task on its own platform thread when there are no virtual threads. */
+  static Executor platformExecutor;
+
+  /** Shared timer for timeouts and periodic housekeeping. */
+  static ScheduledThreadPoolExecutor scheduler;
+
+  /** Threads opening switchboard connections and talking to Passport (system property jmml.connect.threads). */
+  final static int CONNECT_THREADS = Math.max( 1, Integer.getInteger( "jmml.connect.threads", 8 ).intValue() );
+
+  /** Runs connects and Passport requests, at most CONNECT_THREADS at a time. */
+  static ThreadPoolExecutor connectExecutor;
+
+  /** Signed in users keeping the JVM alive. */
+  static int      keepAliveCount = 0;
+
+  /** Non-daemon thread waiting while any user is signed in. */
+  static Thread   keepAliveThread;
+
+  static {
+    try {
+      Class builderClass = Class.forName( "java.lang.Thread$Builder" );
+      
+      ofVirtual        = Thread.class.getMethod( "ofVirtual", new Class[0] );
+      builderName      = builderClass.getMethod( "name", new Class[] { String.class } );
+      builderUnstarted = builderClass.getMethod( "unstarted", new Class[] { Runnable.class } );
+      
+      /* On Java 19 and 20 virtual threads are a preview feature, and may be disabled. */
+      newVirtualThread( "jmml-probe", new Runnable() { public void run() {} } );
+    } catch( Throwable e ) {
+      ofVirtual = null;
+    }
+  }
+
+  
+  
+  /**
+   * Returns whether the running JVM can create virtual threads.
+   *
+   * @return Whether virtual threads are available.
+   */
+  static boolean isVirtualThreadSupported() {
+    
+    return ofVirtual != null;
+  }
+
+  /**
+   * Creates an unstarted daemon thread, for the library's internal work.
+   *
+   * @param name Name of the thread.
+   * @param task What the thread runs.
+   * @param virtual Whether a virtual thread should be used, if available.
+   * @return The unstarted thread.
+   */
+  static Thread newThread( String name, Runnable task, boolean virtual ) {
+    
+    return newThread( name, task, virtual, true );
+  }
+
+  /**
+   * Creates an unstarted thread.  Virtual threads are always daemon threads.
+   *
+   * @param name Name of the thread.
+   * @param task What the thread runs.
+   * @param virtual Whether a virtual thread should be used, if available.
+   * @param daemon Whether a platform thread is a daemon thread.
+   * @return The unstarted thread.
+   */
+  static Thread newThread( String name, Runnable task, boolean virtual, boolean daemon ) {
+    
+    if( virtual && isVirtualThreadSupported() ) {
+      try {
+        return newVirtualThread( name, task );
+      } catch( Exception e ) {
+        /* Fall back to a platform thread */
+      }
+    }
+    
+    Thread thread = new Thread( task, name );
+    
+    thread.setDaemon( daemon );
+    return thread;
+  }
+
+  /**
+   * Keeps the JVM alive while a user is signed in, whatever threads serve
+   * the connections: a program that signs in and returns from main() keeps
+   * running until it signs out or the connection is gone for good.  One
+   * non-daemon thread waits for as long as there are users signed in.
+   *
+   * @param signedIn Whether a user signed in, or signed out.
+   */
+  static synchronized void keepAlive( boolean signedIn ) {
+    
+    keepAliveCount += signedIn ? 1 : -1;
+    
+    if( keepAliveCount > 0 && keepAliveThread == null ) {
+      keepAliveThread = newThread( "jmml-session", new Runnable() {
+        
+        public void run() {
+          awaitSignOut();
+        }
+      }, false, false );
+      keepAliveThread.start();
+    }
+    
+    ExecutionSupport.class.notifyAll();
+  }
+
+  /**
+   * Waits until no user is signed in.
+   */
+  private static synchronized void awaitSignOut() {
+    
+    try {
+      while( keepAliveCount > 0 )
+        ExecutionSupport.class.wait();
+    } catch( InterruptedException e ) {
+      /* Let the JVM exit */
+    }
+    
+    keepAliveThread = null;
+  }
+
+  /**
+   * Returns an executor that runs each task on a new thread, virtual if
+   * requested and available, and pooled platform threads otherwise.
+   *
+   * @param virtual Whether virtual threads should be used, if available.
+   * @return The executor.
+   */
+  static Executor newThreadExecutor( final boolean virtual ) {
+    
+    if( virtual && isVirtualThreadSupported() ) {
+      return new Executor() {
+        
+        public void execute( Runnable task ) {
+          newThread( "jmml-dispatch", task, true ).start();
+        }
+      };
+    }
+    
+    synchronized( ExecutionSupport.class ) {
+      if( platformExecutor == null ) {
+        platformExecutor = Executors.newCachedThreadPool( new ThreadFactory() {
+          
+          public Thread newThread( Runnable task ) {
+            return ExecutionSupport.newThread( "jmml-dispatch", task, false );
+          }
+        } );
+      }
+      
+      return platformExecutor;
+    }
+  }
+
+  /**
+   * Returns the executor for blocking work done on behalf of a caller that
+   * must not block, such as opening a connection or talking to Passport.
+   * It follows the default execution mode of new connections.
+   *
+   * @return The executor.
+   */
+  static Executor getBlockingExecutor() {
+    
+    return newThreadExecutor( ServerConnection.getDefaultExecutionMode() == ServerConnection.EXECUTION_VIRTUAL );
+  }
+
+  /**
+   * Returns the executor for network work a reading thread must not wait
+   * for: opening switchboard connections and requesting Passport tickets.
+   * At most CONNECT_THREADS tasks run at once, and the others wait their
+   * turn, so a burst of calls does not start a thread per call.  With the
+   * NIO transport, connections are made on the event loops, and none of
+   * these threads waits for one.
+   *
+   * @return The executor.
+   */
+  static synchronized Executor getConnectExecutor() {
+    
+    if( connectExecutor == null ) {
+      connectExecutor = new ThreadPoolExecutor( CONNECT_THREADS, CONNECT_THREADS, 60, TimeUnit.SECONDS, new LinkedBlockingQueue(), new ThreadFactory() {
+        
+        public Thread newThread( Runnable task ) {
+          return ExecutionSupport.newThread( "jmml-connect", task, false );
+        }
+      } );
+      connectExecutor.allowCoreThreadTimeOut( true );
+    }
+    
+    return connectExecutor;
+  }
+
+  /**
+   * Returns the shared timer used for request timeouts and periodic
+   * housekeeping.  Its single daemon thread must only run short tasks.
+   *
+   * @return The shared timer.
+   */
+  static synchronized ScheduledExecutorService getScheduler() {
+    
+    if( scheduler == null ) {
+      scheduler = new ScheduledThreadPoolExecutor( 1, new ThreadFactory() {
+        
+        public Thread newThread( Runnable task ) {
+          return ExecutionSupport.newThread( "jmml-timer", task, false );
+        }
+      } );
+      scheduler.setRemoveOnCancelPolicy( true );
+    }
+    
+    return scheduler;
+  }
+
+  /**
+   * Returns a future that completes like the given one, or fails with an
+   * MSNException of type MSN_EX_TIMEOUT if the given one is not done within
+   * the timeout.  The given future itself is left alone.
+   *
+   * @param future The future to wait for.
+   * @param timeout Milliseconds to wait.
+   * @return The future with a deadline.
+   */
+  static CompletableFuture within( CompletableFuture future, long timeout ) {
+    
+    final CompletableFuture deadline = new CompletableFuture();
+    
+    final ScheduledFuture timer = getScheduler().schedule( new Runnable() {
+      
+      public void run() {
+        deadline.completeExceptionally( new MSNException( MSNException.MSN_EX_TIMEOUT ) );
+      }
+    }, timeout, TimeUnit.MILLISECONDS );
+    
+    future.whenComplete( new java.util.function.BiConsumer() {
+      
+      public void accept( Object result, Object error ) {
+        timer.cancel( false );
+        
+        if( error != null )
+          deadline.completeExceptionally( ( Throwable ) error );
+        else
+          deadline.complete( result );
+      }
+    } );
+    
+    return deadline;
+  }
+
+  /**
+   * Creates an unstarted virtual thread through reflection.
+   */
+  private static Thread newVirtualThread( String name, Runnable task ) throws Exception {
+    
+    Object builder = ofVirtual.invoke( null, new Object[0] );
+    
+    builder = builderName.invoke( builder, new Object[] { name } );
+    return ( Thread ) builderUnstarted.invoke( builder, new Object[] { task } );
+  }
+}
+// ExecutionSupport class
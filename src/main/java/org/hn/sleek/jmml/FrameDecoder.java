@@ -0,0 +1,208 @@
+/*
+ * ===========================================================================
+ *  Copyright (C) 2002-2003  Tony Tang
+ *
+ *  This program is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation; either version 2 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program; if not, write to the Free Software
+ *  Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ * ===========================================================================
+ */
+
+/**
+ *
+ * $Id$
+ * $Author$
+ * $Name$
+ * $Revision$
+ * $State$
+ *
+ */
+
+package org.hn.sleek.jmml;
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.text.ParseException;
+
+
+/**
+ * FrameDecoder splits the byte stream coming from a server into MSNP
+ * packets.  Bytes are read into one reusable buffer; command lines are
+ * delimited by CRLF, and payload commands (MSG) are followed by exactly
+ * as many bytes as their command line gives, however many reads it takes
+ * to receive them.
+ * <p>
+ * Command lines are parsed in place, and the body of a payload command is
+ * handed out as a slice of the read buffer; neither is copied, and text is
+ * only decoded from UTF-8 when it is asked for.  Both are valid until the
+ * next call to <pre>receive()</pre>; a message that outlives its dispatch
+ * must be detached (see <pre>IncomingMessage.detach()</pre>).  A payload
+ * command whose body takes more reads is detached before the buffer is
+ * compacted, so only its command line is copied.
+ */
+class FrameDecoder {
+
+  /** Initial size of the read buffer. */
+  final static int   INITIAL_CAPACITY = 8192;
+
+  /** Largest command line or body the decoder accepts. */
+  final static int   MAX_FRAME_SIZE   = 1024 * 1024;
+
+  /** Bytes received and not yet decoded, kept in "read" mode. */
+  ByteBuffer         buffer;
+
+  /** A payload command whose body has not been completely received yet. */
+  IncomingMessage    pendingMessage;
+
+  /** Length in bytes of the body of the pending message. */
+  int                bodyLength;
+
+  /** Number of bytes after the buffer position already searched for a line end. */
+  int                scanned = 0;
+
+  
+  
+  /**
+   * Creates a decoder with an empty buffer.
+   */
+  FrameDecoder() {
+    
+    buffer = ByteBuffer.allocate( INITIAL_CAPACITY );
+    buffer.flip();
+  }
+
+  /**
+   * Reads whatever the channel has into the buffer.  Bodies of payloads
+   * handed out by previous calls to <pre>decode()</pre> become invalid.
+   * The buffer grows when a single line or body does not fit.
+   *
+   * @param channel The channel to read from.
+   * @return The number of bytes read, or -1 at the end of the stream.
+   * @throws IOException When reading fails, or a frame is too large.
+   */
+  int receive( ReadableByteChannel channel ) throws IOException {
+    
+    int needed = ( pendingMessage != null ) ? bodyLength : buffer.remaining() + 1;
+    
+    /* The command line of a message waiting for its body is moved over below */
+    if( pendingMessage != null )
+      pendingMessage.detach();
+
+    if( needed > buffer.capacity() || ( buffer.remaining() == buffer.capacity() ) ) {
+      if( needed > MAX_FRAME_SIZE )
+        throw new IOException( "MSNP frame larger than " + MAX_FRAME_SIZE + " bytes" );
+      
+      ByteBuffer larger = ByteBuffer.allocate( Math.min( MAX_FRAME_SIZE, Math.max( needed, buffer.capacity() * 2 ) ) );
+      
+      larger.put( buffer );
+      larger.flip();
+      buffer = larger;
+    }
+    
+    buffer.compact();
+    
+    int count = channel.read( buffer );
+    
+    buffer.flip();
+    return count;
+  }
+
+  /**
+   * Returns the next complete packet in the buffer.  A line that can not be
+   * parsed is consumed before the ParseException is thrown, so decoding can
+   * continue with the next packet.  A payload command without a readable
+   * length can not be skipped, as its body would be taken for command
+   * lines; the stream is given up with an IOException.
+   *
+   * @return The next packet, or null when more bytes have to be received.
+   * @throws ParseException When a command line is malformed.
+   * @throws IOException When the length of a payload is missing or malformed.
+   */
+  IncomingMessage decode() throws ParseException, IOException {
+    
+    if( pendingMessage == null ) {
+      IncomingMessage msg = decodeLine();
+      
+      if( msg == null )
+        return null;
+      
+      if( !msg.hasBody() )
+        return msg;
+      
+      MessageRecord record = msg.getRecord();
+      
+      /* A MSG without a readable length has no record */
+      if( !( record instanceof MessageRecord.Msg ) )
+        throw new IOException( "MSNP payload without a length: " + msg.getLine() );
+      
+      bodyLength     = ( ( MessageRecord.Msg ) record ).getBodyLength();
+      pendingMessage = msg;
+    }
+    
+    if( buffer.remaining() < bodyLength )
+      return null;
+    
+    /* Hand out the body as a view of the buffer, without copying it. */
+    ByteBuffer      body = buffer.slice();
+    IncomingMessage msg  = pendingMessage;
+    
+    body.limit( bodyLength );
+    buffer.position( buffer.position() + bodyLength );
+    msg.setBody( body );
+    pendingMessage = null;
+    bodyLength     = 0;
+    
+    return msg;
+  }
+
+  /**
+   * Parses the next CRLF-terminated command line.
+   *
+   * @return The parsed command, or null when the line is not complete yet.
+   * @throws ParseException When the command line is malformed.
+   */
+  private IncomingMessage decodeLine() throws ParseException {
+    
+    int start = buffer.position();
+    int limit = buffer.limit();
+    int end   = -1;
+    
+    for( int i = start + scanned; i < limit; i++ ) {
+      if( buffer.get( i ) == '\n' ) {
+        end = i;
+        break;
+      }
+    }
+    
+    if( end < 0 ) {
+      scanned = limit - start;
+      return null;
+    }
+    
+    int length = end - start;
+    
+    if( length > 0 && buffer.get( end - 1 ) == '\r' )
+      length--;
+    
+    IncomingMessage msg = new IncomingMessage();
+    
+    buffer.position( end + 1 );
+    scanned = 0;
+    
+    /* The line is parsed where it is in the buffer */
+    msg.parse( buffer.array(), buffer.arrayOffset() + start, length );
+    return msg;
+  }
+}
+// FrameDecoder class
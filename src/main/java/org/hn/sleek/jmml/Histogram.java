@@ -0,0 +1,163 @@
+/*
+ * ===========================================================================
+ *  Copyright (C) 2002-2003  Tony Tang
+ *
+ *  This program is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation; either version 2 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program; if not, write to the Free Software
+ *  Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ * ===========================================================================
+ */
+
+/**
+ *
+ * $Id$
+ * $Author$
+ * $Name$
+ * $Revision$
+ * $State$
+ *
+ */
+
+package org.hn.sleek.jmml;
+
+import java.util.concurrent.atomic.*;
+
+
+/**
+ * Histogram counts durations in buckets of powers of two nanoseconds.
+ * Recording a duration adds to its bucket and to the sum, two striped
+ * LongAdder increments, so any thread records without contending with the
+ * others.  Percentiles read from it are the upper bound of the bucket they
+ * fall in, which is within a factor of two of the actual value.
+ */
+final class Histogram {
+
+  /** Number of buckets; bucket i holds the durations below 2^i nanoseconds. */
+  final static int       BUCKETS = 64;
+
+  /** Durations recorded, by bucket. */
+  final LongAdder[]      buckets = new LongAdder[BUCKETS];
+
+  /** Sum of the durations recorded, in nanoseconds. */
+  final LongAdder        sum     = new LongAdder();
+
+  
+  
+  /**
+   * Creates an empty histogram.
+   */
+  Histogram() {
+    
+    for( int i = 0; i < BUCKETS; i++ )
+      buckets[i] = new LongAdder();
+  }
+
+  /**
+   * Records a duration.
+   *
+   * @param nanos The duration, in nanoseconds.
+   */
+  void record( long nanos ) {
+    
+    if( nanos <= 0 ) {
+      buckets[0].increment();
+      return;
+    }
+    
+    buckets[64 - Long.numberOfLeadingZeros( nanos )].increment();
+    sum.add( nanos );
+  }
+
+  /**
+   * Returns the number of durations recorded in each bucket.
+   *
+   * @return The counts, by bucket.
+   */
+  long[] getCounts() {
+    
+    long[] counts = new long[BUCKETS];
+    
+    for( int i = 0; i < BUCKETS; i++ )
+      counts[i] = buckets[i].sum();
+    
+    return counts;
+  }
+
+  /**
+   * Returns the number of durations recorded.
+   *
+   * @return The count.
+   */
+  long getCount() {
+    
+    long count = 0;
+    
+    for( int i = 0; i < BUCKETS; i++ )
+      count += buckets[i].sum();
+    
+    return count;
+  }
+
+  /**
+   * Returns the sum of the durations recorded.
+   *
+   * @return The sum, in nanoseconds.
+   */
+  long getSum() {
+    
+    return sum.sum();
+  }
+
+  /**
+   * Returns the upper bound of a bucket.
+   *
+   * @param bucket The bucket.
+   * @return The smallest duration above the bucket, in nanoseconds.
+   */
+  static long getUpperBound( int bucket ) {
+    
+    return ( bucket >= 63 ) ? Long.MAX_VALUE : 1L << bucket;
+  }
+
+  /**
+   * Returns a percentile of the durations recorded.
+   *
+   * @param fraction The percentile, between 0 and 1.
+   * @return The upper bound of the bucket holding the percentile, in
+   * nanoseconds, or 0 when nothing was recorded.
+   */
+  long getPercentile( double fraction ) {
+    
+    long[] counts = getCounts();
+    long   total  = 0;
+    
+    for( int i = 0; i < BUCKETS; i++ )
+      total += counts[i];
+    
+    if( total == 0 )
+      return 0;
+    
+    long rank = Math.max( 1, ( long ) Math.ceil( fraction * total ) );
+    
+    for( int i = 0; i < BUCKETS; i++ ) {
+      rank -= counts[i];
+      
+      if( rank <= 0 )
+        return getUpperBound( i );
+    }
+    
+    return Long.MAX_VALUE;
+  }
+}
+
+// Histogram class
@@ -0,0 +1,303 @@
+/*
+ * ===========================================================================
+ *  Copyright (C) 2002-2003  Tony Tang
+ *
+ *  This program is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation; either version 2 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program; if not, write to the Free Software
+ *  Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ * ===========================================================================
+ */
+
+/**
+ *
+ * $Id$
+ * $Author$
+ * $Name$
+ * $Revision$
+ * $State$
+ *
+ */
+
+package org.hn.sleek.jmml;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+
+/**
+ * Hands the packets of a connection to its listener, more urgent packets
+ * first.  Presence (ILN, NLN, FLN) and contact properties (BPR) wait in a
+ * lane of their own, behind chat, authentication and everything else; a
+ * presence update queued for a contact is replaced by the next one for the
+ * same contact, and a property by the next value of the same property, so
+ * a flood of presence costs one update per contact and never delays
+ * anything else.  Packets keep their wire order within their lane.
+ * <p>
+ * With an executor, packets are queued as they are read and handled on
+ * its threads, one at a time.  Without one, the reading thread queues the
+ * packets it has read, then handles them with <pre>flush()</pre> before it
+ * reads again.
+ */
+class InboundDispatcher {
+
+  /** Presence and properties queued at most; beyond, the oldest ones are shed (system property jmml.dispatch.deferred). */
+  final static int         MAX_DEFERRED = Integer.getInteger( "jmml.dispatch.deferred", 4096 ).intValue();
+
+  /** Packets handled ahead of presence, over all connections. */
+  static AtomicLong        urgentCount     = new AtomicLong();
+
+  /** Presence and property updates queued, over all connections. */
+  static AtomicLong        deferredCount   = new AtomicLong();
+
+  /** Presence and property updates replaced by a later one before they were handled. */
+  static AtomicLong        supersededCount = new AtomicLong();
+
+  /** Presence and property updates dropped because too many were queued. */
+  static AtomicLong        shedCount       = new AtomicLong();
+
+  /** The connection whose listener is called. */
+  ServerConnection         connection;
+
+  /** Executor providing the threads; null when the reading thread handles the packets. */
+  Executor                 executor;
+
+  /** Packets and tasks handled first, in order. */
+  ConcurrentLinkedQueue    urgent    = new ConcurrentLinkedQueue();
+
+  /** Presence and properties, by contact, in the order they were first queued. */
+  LinkedHashMap            deferred  = new LinkedHashMap();
+
+  /** Whether a drain of the lanes is scheduled or running. */
+  AtomicBoolean            scheduled = new AtomicBoolean( false );
+
+  /** Handles the queued packets until both lanes are empty. */
+  Runnable                 drainer   = new Runnable() {
+    
+    public void run() {
+      try {
+        drain();
+      } finally {
+        scheduled.set( false );
+        
+        /* A packet may have been queued after the last poll */
+        if( !isEmpty() )
+          schedule();
+      }
+    }
+  };
+
+  
+  
+  /**
+   * Creates a dispatcher for a connection.
+   *
+   * @param connection The connection whose listener is called.
+   * @param executor Executor providing the threads, or null to handle the
+   *        packets on the reading thread.
+   */
+  InboundDispatcher( ServerConnection connection, Executor executor ) {
+    
+    this.connection = connection;
+    this.executor   = executor;
+  }
+
+  /**
+   * Returns whether packets are handled on threads of their own.  If so,
+   * they outlive the read buffer, and must be detached.
+   *
+   * @return Whether there is an executor.
+   */
+  boolean isAsynchronous() {
+    
+    return executor != null;
+  }
+
+  /**
+   * Queues a packet in its lane.
+   *
+   * @param msg The packet.
+   */
+  void dispatch( IncomingMessage msg ) {
+    
+    Object key = getDeferralKey( msg );
+    
+    if( key == null ) {
+      urgent.add( msg );
+      urgentCount.incrementAndGet();
+    } else {
+      synchronized( deferred ) {
+        if( deferred.put( key, msg ) != null ) {
+          supersededCount.incrementAndGet();
+        } else {
+          deferredCount.incrementAndGet();
+          
+          /* The update that just arrived is the newest state; an older one makes room */
+          if( deferred.size() > MAX_DEFERRED && shedOldest() )
+            shedCount.incrementAndGet();
+        }
+      }
+    }
+    
+    schedule();
+  }
+
+  /**
+   * Queues a task after everything already queued, in both lanes.
+   *
+   * @param task The task.
+   */
+  void execute( Runnable task ) {
+    
+    synchronized( deferred ) {
+      deferred.put( task, task );
+    }
+    
+    schedule();
+  }
+
+  /**
+   * Handles the queued packets on the calling thread, when there is no
+   * executor to do it.
+   */
+  void flush() {
+    
+    if( executor == null )
+      drain();
+  }
+
+  /**
+   * Returns the counters of all dispatchers.
+   *
+   * @return The counters.
+   */
+  static String getStatistics() {
+    
+    return "urgent=" + urgentCount.get() + " deferred=" + deferredCount.get() + " superseded=" + supersededCount.get() + " shed=" + shedCount.get();
+  }
+
+  /**
+   * Drops the update queued the longest.  Tasks are never dropped.
+   *
+   * @return Whether an update was dropped.
+   */
+  private boolean shedOldest() {
+    
+    Iterator iterator = deferred.values().iterator();
+    
+    while( iterator.hasNext() ) {
+      if( iterator.next() instanceof IncomingMessage ) {
+        iterator.remove();
+        return true;
+      }
+    }
+    
+    return false;
+  }
+
+  /**
+   * Returns what identifies the contact, and property, a presence or
+   * property update is about.
+   *
+   * @param msg The packet.
+   * @return The key, or null when the packet is not deferred.
+   */
+  private static Object getDeferralKey( IncomingMessage msg ) {
+    
+    switch( msg.getType() ) {
+      case Message.ILN:
+      case Message.NLN:
+      case Message.FLN: {
+        MessageRecord.Presence presence = ( MessageRecord.Presence ) msg.getRecord();
+        
+        return ( presence != null ) ? presence.getUserName() : null;
+      }
+      case Message.BPR: {
+        MessageRecord.Bpr bpr = ( MessageRecord.Bpr ) msg.getRecord();
+        
+        return ( bpr != null ) ? bpr.getUserName() + ' ' + bpr.getProperty() : null;
+      }
+    }
+    
+    return null;
+  }
+
+  /**
+   * Handles queued packets and tasks, urgent ones first, until both lanes
+   * are empty.  Exceptions thrown by the listener are reported and dropped.
+   */
+  private void drain() {
+    
+    Object item;
+    
+    while( ( item = next() ) != null ) {
+      try {
+        if( item instanceof IncomingMessage )
+          connection.listener.incomingMSNPMessage( ( IncomingMessage ) item );
+        else
+          ( ( Runnable ) item ).run();
+      } catch( RuntimeException e ) {
+        System.err.println( "InboundDispatcher.drain() - " + e );
+      }
+    }
+  }
+
+  /**
+   * Takes the next packet or task.
+   *
+   * @return The next item, or null when both lanes are empty.
+   */
+  private Object next() {
+    
+    Object item = urgent.poll();
+    
+    if( item != null )
+      return item;
+    
+    synchronized( deferred ) {
+      Iterator iterator = deferred.values().iterator();
+      
+      if( !iterator.hasNext() )
+        return null;
+      
+      item = iterator.next();
+      iterator.remove();
+      
+      return item;
+    }
+  }
+
+  /**
+   * Returns whether both lanes are empty.
+   */
+  private boolean isEmpty() {
+    
+    if( !urgent.isEmpty() )
+      return false;
+    
+    synchronized( deferred ) {
+      return deferred.isEmpty();
+    }
+  }
+
+  /**
+   * Starts a drain on the executor unless one is already scheduled.
+   */
+  private void schedule() {
+    
+    if( executor != null && scheduled.compareAndSet( false, true ) )
+      executor.execute( drainer );
+  }
+}
+
+// InboundDispatcher class
@@ -30,25 +30,162 @@
 
 package org.hn.sleek.jmml;
 
+import java.io.*;
+import java.nio.*;
+import java.nio.charset.Charset;
 import java.text.ParseException;
-import java.util.*;
 
 /**
  * Represents an incoming message from the server.  Encapsulates all
- * operations on an incoming message.  Abstracted operations throw 
- * exceptions for unsupported property retrievals for a given type.
- * Methods are smart enough to parse for the correct argument given 
- * the command type.
+ * operations on an incoming message.  The fields of the commands the
+ * connectors handle are read through the message's record (see
+ * <pre>getRecord()</pre>), which knows where each field of its command is.
  * <p>
- * IncomingMessages are immutable.
+ * An IncomingMessage is a view over the bytes of the command line.  Parsing
+ * only resolves the command, records where each token starts and ends, and
+ * reads the transaction ID; the other fields are decoded from the bytes
+ * when they are asked for, and strings are decoded once.  The bytes
+ * belong to the connection's read buffer until <pre>detach()</pre> is
+ * called.  An IncomingMessage can be parsed again with another line, but
+ * is otherwise not changed.
  * <p>
- * Unimplemented methods (since servers don't do anything interesting
- * with them yet) include: getProtocols (from VER), getServerProtocol
- * (from INF), 
- * 
+ * Commands the connectors do not handle (VER, INF, BLP, GTC, PRP...) have
+ * no record; their tokens are read with <pre>getToken()</pre>.
  */
 class IncomingMessage extends Message {
 
+  /** Charset of command lines and bodies. */
+  final static Charset UTF8 = Charset.forName( "UTF-8" );
+
+  /** Tokens recorded without growing the offset arrays. */
+  final static int     INITIAL_TOKENS = 12;
+
+  /** What <pre>readInt()</pre> returns for bytes that are not an int. */
+  final static long    NOT_A_NUMBER   = Long.MIN_VALUE;
+
+  /** Command lines as servers send them; used by main() and as the seed corpus of WireReplay. */
+  final static String[] SAMPLE_COMMANDS = {
+    "ADD 0 RL 105 example@passport.com Mike",
+    "ADD 0 RL 105 example@passport.com Mike",
+    "BLP 54 12182 AL",
+    "BPR 12182 example@passport.com MOB N",
+    "BPR 12182 example@passport.com MOB N",
+    "BPR 12182 example@passport.com PHH",
+    "BPR 12182 example@passport.com PHH",
+    "BPR 12182 example@passport.com PHM I%20Dont%20Have%20One",
+    "BPR 12182 example@passport.com PHM I%20Dont%20Have%20One",
+    "BPR 12182 example@passport.com PHW 555%20555-1234",
+    "BPR 12182 example@passport.com PHW 555%20555-1234",
+    "BPR 12182 myname@msn.com MOB N",
+    "BPR 12182 myname@msn.com MOB Y",
+    "BPR 12182 myname@msn.com MOB Y",
+    "BPR 12182 myname@msn.com PHH",
+    "BPR 12182 myname@msn.com PHH 555%20555%204321",
+    "BPR 12182 myname@msn.com PHH 555%20555%204321",
+    "BPR 12182 myname@msn.com PHM",
+    "BPR 12182 myname@msn.com PHM",
+    "BPR 12182 myname@msn.com PHM",
+    "BPR 12182 myname@msn.com PHW",
+    "BPR 12182 myname@msn.com PHW I%20AM%20DUMB",
+    "BPR 12182 myname@msn.com PHW I%20AM%20DUMB",
+    "CHG 10 HDN",
+    "CHG 7 NLN",
+    "CHG 8 AWY",
+    "CHG 9 NLN",
+    "CHL 0 15570131571988941333",
+    "FLN name_123@hotmail.com",
+    "GTC 54 12182 A",
+    "ILN 7 AWY example@passport.com Mike",
+    "ILN 7 BSY myname@msn.com My%20Name",
+    "ILN 7 NLN name_123@hotmail.com Name_123",
+    "INF 1 MD5",
+    "INF 4 MD5",
+    "LSG 54 12182 1 3 0 Other%20Contacts 0",
+    "LSG 54 12182 1 3 0 Other%20Contacts 0",
+    "LSG 54 12182 2 3 2 Group1 0",
+    "LSG 54 12182 2 3 2 Group1 0",
+    "LSG 54 12182 3 3 5 Group2 0",
+    "LSG 54 12182 3 3 5 Group2 0",
+    "LST 10 FL 21 1 3 example@passport.com Mike 0",
+    "LST 10 FL 21 2 3 name_123@hotmail.com Name_123 2",
+    "LST 10 FL 21 2 3 name_123@hotmail.com Name_123 2",
+    "LST 10 FL 21 3 3 myname@msn.com My%20Name 0",
+    "LST 11 BL 3 0 0",
+    "LST 54 AL 12182 1 3 myname@msn.com My%20Name",
+    "LST 54 AL 12182 2 3 example@passport.com Mike",
+    "LST 54 AL 12182 3 3 name_123@hotmail.com Name_123",
+    "LST 54 BL 12182 0 0",
+    "LST 54 FL 12182 1 2 example@passport.com Mike 0",
+    "LST 54 FL 12182 1 2 example@passport.com Mike 0",
+    "LST 54 FL 12182 2 2 myname@msn.com My%20Name 2",
+    "LST 54 FL 12182 2 2 myname@msn.com Name_123 2",
+    "LST 54 RL 12182 1 2 myname@msn.com My%20Name",
+    "NLN AWY example@passport.com Mike",
+    "NLN NLN myname@msn.com My%20Name",
+    "OUT",
+    "OUT OTH",
+    "OUT SSD",
+    "PRP 54 12182 MBE N",
+    "PRP 54 12182 MBE N",
+    "PRP 54 12182 MOB Y",
+    "PRP 54 12182 MOB Y",
+    "PRP 54 12182 PHH 555%20555-0690",
+    "PRP 54 12182 PHH 555%20555-0690",
+    "PRP 54 12182 PHM",
+    "PRP 54 12182 PHM",
+    "PRP 54 12182 PHW",
+    "PRP 54 12182 PHW",
+    "PRP 55 12183 PHH 555%20555-0690",
+    "PRP 56 12184 PHW 555%20555-0691",
+    "QRY 10",
+    "REA 25 115 example@passport.com My%20New%20Name",
+    "REG 25 12066 15 New%20Name 0",
+    "REM 0 RL 106 example@passport.com",
+    "RMG 24 12065 15",
+    "RNG 11752099 64.4.12.193:1863 CKI 849102291.520491932 myname@msn.com My%20Name",
+    "SYN 54 12182",
+    "USR 5 MD5 S 1013928519.693957190",
+    "USR 6 OK example@passport.com My%20Screen%20Name 1",
+    "VER 0 MSNP7 MSNP6 MSNP5 MSNP4 CVR0",
+    "VER 3 MSNP7 MSNP6 MSNP5 MSNP4 CVR0",
+    "XFR 10 SB 64.4.12.193:1863 CKI 16925950.1016955577.17693",
+    "XFR 2 NS 64.4.12.132:1862 0",
+    "XFR 2 NS 64.4.12.133 0",
+    "911 It's over dude",
+    "220 Bad Call"
+  };
+
+  /** Bytes of the command line; a view of the read buffer until detached. */
+  byte[]     line;
+
+  /** Start of the command line in <pre>line</pre>. */
+  int        lineOffset;
+
+  /** Length of the command line, without its CRLF. */
+  int        lineLength;
+
+  /** Start of each token in <pre>line</pre>. */
+  int[]      tokenStart = new int[INITIAL_TOKENS];
+
+  /** End (exclusive) of each token in <pre>line</pre>. */
+  int[]      tokenEnd   = new int[INITIAL_TOKENS];
+
+  /** Number of tokens, the command included. */
+  int        tokenCount;
+
+  /** Tokens decoded so far, by index; null until one is asked for. */
+  String[]   tokens;
+
+  /** URL-decoded tokens decoded so far, by index; null until one is asked for. */
+  String[]   decodedTokens;
+
+  /** Undecoded body of a payload command, as received from the wire. */
+  ByteBuffer bodyBytes;
+
+  /** Typed fields of the command; null until asked for. */
+  MessageRecord record;
+
+
   /**
     * Parses the command string from the server, and returns an IncomingMessage
     * object ready for use.
@@ -60,850 +197,525 @@ class IncomingMessage extends Message {
     
     if( incomingMessage == null )
       throw new ParseException( "null message received" , 1 );
+    
+    IncomingMessage message = new IncomingMessage();
+    byte[]          bytes   = incomingMessage.getBytes( UTF8 );
+    
+    message.parse( bytes, 0, bytes.length );
+    return message;
+  }
+
+  /**
+   * Parses a command line held in a byte array, which is not copied.  Any
+   * earlier content of this message is forgotten.
+   *
+   * @param bytes The bytes holding the line.
+   * @param offset Start of the line.
+   * @param length Length of the line, without its CRLF.
+   * @throws ParseException When the parsing of the message breaks.
+   */
+  void parse( byte[] bytes, int offset, int length ) throws ParseException {
+    
+    int end = offset + length;
+    
+    line          = bytes;
+    lineOffset    = offset;
+    lineLength    = length;
+    tokenCount    = 0;
+    tokens        = null;
+    decodedTokens = null;
+    body          = null;
+    bodyBytes     = null;
+    record        = null;
+    transactionID = OutgoingMessage.NO_TRANSACTION_ID;
+    
+    /* Same delimiters as a StringTokenizer */
+    for( int i = offset; i < end; ) {
+      while( i < end && isDelimiter( bytes[i] ) )
+        i++;
+      
+      if( i == end )
+        break;
+      
+      int start = i;
+      
+      while( i < end && !isDelimiter( bytes[i] ) )
+        i++;
       
-    StringTokenizer   st      = new StringTokenizer( incomingMessage );
-    IncomingMessage   message = new IncomingMessage();
-    String            command, tid, argument;
+      addToken( start, i );
+    }
+    
+    if( tokenCount == 0 )
+      throw new ParseException( "Empty command", 0 );
     
-    command = st.nextToken();
-    message.arguments.add (command);
-    message.type = Message.parseCommand (command);
+    type = Message.parseCommand( bytes, tokenStart[0], tokenEnd[0] - tokenStart[0] );
 
     // Messages with transaction ID's must have that field filled in.
-    switch( message.type ) {
+    switch( type ) {
       
       case Message.ADD:
+      case Message.ANS:
       case Message.BLP: 
       case Message.BPR:
+      case Message.CAL:
       case Message.CHG:
       case Message.CHL:
+      case Message.CVR:
       case Message.GTC:
       case Message.ILN:
       case Message.LST:
       case Message.LSG:
+      case Message.QRY:
+      case Message.REA:
       case Message.REM:
       case Message.SYN:
       case Message.USR:
       case Message.VER:
       case Message.SDC:
       case Message.XFR:
-        tid = st.nextToken();
-        message.arguments.add( tid );
+        if( tokenCount < 2 )
+          throw new ParseException( "Missing transaction ID", 1 );
                                 
-        try {
-          message.transactionID = new Integer( tid );
-        } catch( NumberFormatException e ) {
-          // Commands like LST and BPR don't have a Transaction ID for SYN responses
-          if( ( message.type != Message.LST ) && ( message.type != Message.BPR ) )  {
-            throw new ParseException( "Invalid transaction ID", 1 );
-          }
-        } break;
+        transactionID = getIntToken( 1, OutgoingMessage.NO_TRANSACTION_ID );
+        
+        // Commands like LST and BPR don't have a Transaction ID for SYN responses
+        if( transactionID == OutgoingMessage.NO_TRANSACTION_ID && ( type != Message.LST ) && ( type != Message.BPR ) )
+          throw new ParseException( "Invalid transaction ID", 1 );
+        
+        break;
 
       /* 
        * Only some error message have transaction ID's; parse the ones
-       * that do, and continue for the ones that don't. 
+       * that do, and treat the token as an argument for the ones that don't. 
        */
       case Message.ERROR:
-        tid = st.nextToken();
-        message.arguments.add( tid );
+        if( tokenCount >= 2 )
+          transactionID = getIntToken( 1, OutgoingMessage.NO_TRANSACTION_ID );
         
-        try {
-          message.transactionID = new Integer( tid );
-        } catch( NumberFormatException e ) {
-          /* 
-           * If that error message didn't have a transaction ID, then
-           * treat the token we pulled out as an argument (since we
-           * can't put it back in the tokenizer. 
-           */
-          message.arguments.add( tid );
-        }  break;
-    }
-    
-    // All other tokens in the message are considered as arguments.
-    while( st.hasMoreTokens() ) {
-      argument = st.nextToken();
-      message.arguments.add( argument );
+        break;
     }
-    
-    return message;
   }
 
   /**
-    * Returns the Protocol fields in VER commands.
-    * <pre>VER TransactionID Protocol {, Protocol}* </pre>
-    *
-    * @return String of protocols (all of them concatenated).
-    * @throws NoSuchFieldException When the message type doesn't have
-    * a protocols field.
-    */
-  String getProtocols() throws NoSuchFieldException {
+   * Returns whether a byte separates tokens.
+   *
+   * @param b The byte.
+   * @return Whether it is white space.
+   */
+  private static boolean isDelimiter( byte b ) {
     
-    switch( type ) {
-      
-      case Message.VER:
-        
-        String protocolList = "";
-        
-        for( int i = 0; i < arguments.size(); i++ ) {
-          if( i < 2 ) 
-            continue;
-          else 
-            protocolList += ( String ) arguments.get( i ) + " ";
-        }
-        
-        return protocolList;
-
-      default: throw new NoSuchFieldException( commandToString( type ) + " message types don't have a protocol list." );
-    }
+    return b == ' ' || b == '\t' || b == '\n' || b == '\r' || b == '\f';
   }
 
   /**
-   * Returns the security protocol embedded in the INF and USR
-   * messages.
-   * <pre>INF TransactionID SecurityProtocol
-   * USR TransactionID SecurityProtocol S Hash</pre>
+   * Records the position of the next token.
    *
-   * @return String name of the security protocol.
-   * @throws NoSuchFieldException When the message type doesn't have
-   * a security protocol field.
+   * @param start Start of the token in <pre>line</pre>.
+   * @param end End (exclusive) of the token in <pre>line</pre>.
    */
-  String getSecurityProtocol() throws NoSuchFieldException {
+  private void addToken( int start, int end ) {
     
-    switch( type ) {
-      //case Message.INF:
-      case Message.USR: 
-        /* BUG: This breaks for USR commands that are "OK" */
-        return ( String ) arguments.get( 2 );
-        
-      default: throw new NoSuchFieldException( commandToString( type ) + " messages don't have security protocol." );
+    if( tokenCount == tokenStart.length ) {
+      int[] starts = new int[tokenCount * 2];
+      int[] ends   = new int[tokenCount * 2];
+      
+      System.arraycopy( tokenStart, 0, starts, 0, tokenCount );
+      System.arraycopy( tokenEnd, 0, ends, 0, tokenCount );
+      tokenStart = starts;
+      tokenEnd   = ends;
     }
+    
+    tokenStart[tokenCount] = start;
+    tokenEnd[tokenCount]   = end;
+    tokenCount++;
   }
 
-
   /**
-   * Returns the friendly name (screen name) from the message.  The
-   * friendly name that is returned is still UTF-8 encoded.
-   *
-   * <pre>NLN Status UserName FriendlyName
-   * USR TransactionID OK UserName FriendlyName
-   * ILN TransactionID Status UserName FriendlyName
-   * LST TransactionID List SerialNumber ItemNumber TotalItems UserName FriendlyName
-   * ADD TransactioNID List SerialNumber UserName FriendlyName
-   * REA TransactionID SerialNumber UserName FriendlyName
-   * RNG SessionID Server:Port CKI Hash UserName FriendlyName
-   * MSG UserName FriendlyName BodyLength</pre>
+   * Returns the number of tokens in the command line, the command included.
    *
-   * @return UTF-8-encoded friendly name.
-   * @throws NoSuchFieldException When the message type doesn't have a friendly
-   * name field.
+   * @return The number of tokens.
    */
-  String getFriendlyName() throws NoSuchFieldException {
+  int getTokenCount() {
     
-    switch( type ) {
-      
-      case Message.MSG:  return ( String ) arguments.get( 2 );
-      case Message.NLN:  return ( String ) arguments.get( 3 );
-      case Message.USR: 
-      case Message.ILN:
-      case Message.REA:  return ( String ) arguments.get( 4 ); /* BUG: when USR is in S mode and not OK yet */
-      case Message.ADD:  return ( String ) arguments.get( 5 );
-      case Message.RNG:  return ( String ) arguments.get( 6 );
-      case Message.LST:  {
-
-        Object     objValue;
-        
-        /*
-         * TODO: Microsoft is disabling (??) LST requests. Maybe in future
-         * the, objValue = arguments.get( 7 ), will be removed.
-         */
-        try  {
-          objValue = arguments.get( 7 );
-        }  catch( Exception e )  {
-          /*
-           * If a exception is caught, this message can be a SYN response.
-           * and then the order of argument is other.
-           */
-          objValue = arguments.get( 2 );
-        }
-
-        return ( objValue != null ? java.net.URLDecoder.decode( ( String ) objValue ) : "" );
-      }
-      
-      default: throw new NoSuchFieldException( commandToString( type ) + " messages don't have friendlyname." );
-    }
+    return tokenCount;
   }
 
   /**
-   * Returns the Passport username from the message.
-   * 
-   * <pre>FLN UserName
-   * NLN Status UserName FriendlyName
-   * BPR TransactionID UserName Property [Value]
-   * REA TransactionID SerialNumber UserName FriendlyName
-   * USR TransactionID OK UserName FriendlyName
-   * ILN TransactionID Status UserName FriendlyName
-   * ADD TransactioNID List SerialNumber UserName FriendlyName
-   * REM TransactionID List SerialNumber UserName
-   * RNG SessionID Server:Port CKI Hash UserName FriendlyName
-   * LST TransactionID List SerialNumber ItemNumber TotalItems UserName FriendlyName
-   * MSG UserName FriendlyName BodyLength</pre>
+   * Returns a token of the command line; token 0 is the command.  The token
+   * is decoded from UTF-8 the first time it is asked for.
    *
-   * @return Passport user name.
-   * @throws NoSuchFieldException When the message type doesn't have a
-   * username field.
+   * @param index Index of the token.
+   * @return The token.
+   * @throws IndexOutOfBoundsException When the line has no such token.
    */
-  String getUserName() throws NoSuchFieldException {
+  String getToken( int index ) {
     
-    switch( type ) {
-      case Message.FLN:
-      case Message.MSG:  return ( String ) arguments.get( 1 );
-      case Message.NLN:
-      case Message.BPR:  return ( String ) arguments.get( 2 );
-      case Message.USR: 
-      case Message.ILN:
-      case Message.REA:  return ( String ) arguments.get( 3 ); /* BUG: breaks when USR is in mode S */
-      case Message.ADD:
-      case Message.REM:  return ( String ) arguments.get( 4 );
-      case Message.RNG:  return ( String ) arguments.get( 5 );
-      case Message.LST:  {
-        
-        Object     objValue;
-        
-        /*
-         * TODO: Microsoft is disabling (??) LST requests. Maybe in future
-         * the, objValue = arguments.get( 6 ), will be removed.
-         */
-        try  {
-          objValue = arguments.get( 6 );
-        }  catch( Exception e )  {
-          /*
-           * If a exception is caught, this message can be a SYN response.
-           * and then the order of argument is other.
-           */
-          objValue = arguments.get( 1 );
-        }
-        
-        return ( objValue != null ? ( String ) objValue : "" );
-      }
-      
-      default : throw new NoSuchFieldException( commandToString( type ) + " messages don't have username." );
+    checkToken( index );
+    
+    if( tokens == null )
+      tokens = new String[tokenCount];
+    
+    String token = tokens[index];
+    
+    if( token == null ) {
+      token = new String( line, tokenStart[index], tokenEnd[index] - tokenStart[index], UTF8 );
+      tokens[index] = token;
     }
+    
+    return token;
   }
 
   /**
-   * Returns the property name that has a new value.
+   * Returns a URL-encoded token of the command line, decoded.  Tokens
+   * without escapes are returned as they are.
    *
-   * <pre>BPR TransactionID UserName Property [Value]
-   * PRP TransactionID UserName Property [Value]</pre>
-   *
-   * @return The property name.
-   * @throws NoSuchFieldException When the message type doesn't have a property
-   * name field.
+   * @param index Index of the token.
+   * @return The decoded token.
+   * @throws IndexOutOfBoundsException When the line has no such token.
    */
-
-   /* TODO: This needs to be renamed */
-  String getProperty() throws NoSuchFieldException {
+  String getDecodedToken( int index ) {
     
-    switch( type ) {
-      
-      case Message.BPR:
-      case Message.PRP:  return ( String ) arguments.get( 3 );
-      default:  throw new NoSuchFieldException( commandToString( type ) + " messages don't have properties." );
+    checkToken( index );
+    
+    if( decodedTokens == null )
+      decodedTokens = new String[tokenCount];
+    
+    String token = decodedTokens[index];
+    
+    if( token == null ) {
+      token = urlDecode( index );
+      decodedTokens[index] = token;
     }
+    
+    return token;
   }
 
   /**
-   * Returns the new value for the property.
+   * Returns a numeric token of the command line, read straight from the
+   * bytes.
    *
-   * <pre>BPR TransactionID UserName Property [Value]
-   * PRP TransactionID UserName Property [Value]</pre>
-   *
-   * @return The new value for the property.
-   * @throws NoSuchFieldException When the message type doesn't have a new value.
+   * @param index Index of the token.
+   * @return The number.
+   * @throws NumberFormatException When the token is not a number.
+   * @throws IndexOutOfBoundsException When the line has no such token.
    */
-  String getValue() throws NoSuchFieldException {
+  int getIntToken( int index ) {
     
-    switch( type ) {
-      case Message.BPR:
-      case Message.PRP:
-        try {
-          return ( String ) arguments.get( 4 );
-        } catch( IndexOutOfBoundsException e ) {
-          return null;
-        }
-        
-        default: throw new NoSuchFieldException( commandToString( type ) + " message don't have property values." );
-    }
+    checkToken( index );
+    
+    long value = readInt( tokenStart[index], tokenEnd[index] );
+    
+    if( value == NOT_A_NUMBER )
+      throw new NumberFormatException( "For input string: \"" + getToken( index ) + "\"" );
+    
+    return ( int ) value;
   }
 
   /**
-   * Gets the referral type for the XFR command.  Valid return
-   * strings are NB and SB.  NB stands for Notification Server;
-   * SB stands for switchboard server.
-   *
-   * <pre>XFR TransactionID ReferralType Address:PortNumber</pre>
+   * Returns a numeric token of the command line, or a default when the line
+   * has no such token or it is not a number.  Nothing is thrown, so this is
+   * the way to read fields that may be missing.
    *
-   * @return The referral type (SB or NB).
-   * @throws NoSuchFieldException When the message type doesn't have a
-   * referral type field.
+   * @param index Index of the token.
+   * @param defaultValue The value for a missing or malformed token.
+   * @return The number, or the default.
    */
-  String getReferralType() throws NoSuchFieldException {
+  int getIntToken( int index, int defaultValue ) {
     
-    switch( type ) {
-      case Message.XFR:  return( String ) arguments.get( 2 );
-      default:  throw new NoSuchFieldException( commandToString( type ) + " messages don't have referraltype." );
-    }
+    if( index < 0 || index >= tokenCount )
+      return defaultValue;
+    
+    long value = readInt( tokenStart[index], tokenEnd[index] );
+    
+    return ( value == NOT_A_NUMBER ) ? defaultValue : ( int ) value;
   }
 
   /**
-   * Returns the server IP address.
-   *
-   * <pre>RNG SessionID Server:Port CKI Hash UserName FriendlyName
-   * XFR TransactionID ReferralType Address[:PortNumber]</pre>
+   * Returns the typed fields of the command, checked against what the
+   * command requires.  The record is made the first time it is asked for.
    *
-   * @return The server's IP address.
-   * @throws NoSuchFieldException When the message type doesn't have a
-   * server IP field.
+   * @return The record, or null when the command has none or lacks one of
+   * its fields.
    */
-  String getServerIP() throws NoSuchFieldException {
+  MessageRecord getRecord() {
     
-    String serverIP;
+    if( record == null )
+      record = MessageRecord.of( this );
     
-    switch( type ) {
-      
-      case Message.RNG:
-        serverIP = ( String ) arguments.get( 2 );
-        return ( serverIP.indexOf( ":" ) > -1 ) ? serverIP.substring( 0, serverIP.indexOf( ":" ) ) : serverIP;
-        
-      case Message.XFR: 
-        serverIP = ( String ) arguments.get( 3 );
-	return ( serverIP.indexOf( ":" ) > -1 ) ? serverIP.substring( 0, serverIP.indexOf( ":" ) ) : serverIP;
-        
-      default: throw new NoSuchFieldException( commandToString( type ) + " messages don't have an IP address." );
-    }
+    return record;
   }
 
   /**
-   * Returns the port to connect to on the server (or defaults to 1863
-   * if there is a parse exception).
-   *
-   * <pre>RNG SessionID Server:Port CKI Hash UserName FriendlyName
-   * XFR TransactionID ReferralType Address[:PortNumber]</pre>
+   * Returns the command line as received.
    *
-   * @return The port to connect to on the server.
-   * @throws NoSuchFieldException When the message type doesn't have
-   * a server port field.
+   * @return The command line, without its CRLF.
    */
-  int getServerPort() throws NoSuchFieldException {
+  String getLine() {
     
-    String serverIP;
-
-    switch( type ) {
-      
-      case Message.RNG:
-        serverIP = ( String ) arguments.get( 2 );
-        
-        if( serverIP.indexOf( ":" ) > -1 ) {
-          try {
-            return Integer.parseInt( serverIP.substring( serverIP.indexOf( ":" ) + 1 ) );
-          } catch( NumberFormatException e ) {
-            return 1863;
-          }
-        }
-        else {
-          return 1863;
-        }
-        
-      case Message.XFR:
-        serverIP = ( String ) arguments.get( 3 );
-
-        if( serverIP.indexOf( ":" ) > -1 ) {
-          try {
-            return Integer.parseInt( serverIP.substring( serverIP.indexOf( ":" ) + 1 ) );
-          } catch( NumberFormatException e ) {
-            return 1863;
-          }
-        }
-        else {
-          return 1863;
-        }
-        
-      default: throw new NoSuchFieldException( commandToString( type ) + " messages don't have port numbers." );
-    }
+    return new String( line, lineOffset, lineLength, UTF8 );
   }
-  
+
   /**
-   * Returns the serial number from the message.  If there is some sort of
-   * parsing error, then -1 is returned.
+   * Throws an IndexOutOfBoundsException for a token the line does not have.
    *
-   * <pre>BLP TransactionID SerialNumber [AL|BL]
-   * GTC TransactionID SerialNumber [A|N]
-   * SYN TransactionID SerialNumber
-   * LSG TransactionID SerialNumber ItemNumber TotalItems GroupID GroupName 0
-   * BPR SerialNumber Property [Value]
-   * LST TransactionID List SerialNumber ItemNumber TotalItems UserName FriendlyName
-   * ADD TransactioNID List SerialNumber UserName FriendlyName
-   * REM TransactionID List SerialNumber UserName
-   * PRP TransactionID SerialNumber Property [Value]
-   * REA TransactionID SerialNUmber UserName FriendlyName
-   * REG TransactionID SerialNumber GroupID GroupName 0
-   * RMG TransactionID SerialNumber GroupID</pre>
-   * 
-   * @return The serial number.
-   * @throws NoSuchFieldException When the message type doesn't contain a
-   * serial number field.
+   * @param index Index of the token.
    */
-  int getSerialNumber() throws NoSuchFieldException {
+  private void checkToken( int index ) {
     
-    switch( type ) {
-      
-      case Message.BPR:
-        try {
-          return Integer.parseInt( ( String ) arguments.get( 1 ) );
-        } catch( NumberFormatException e ) {
-          return -1;
-        }
-        
-      case Message.BLP:
-      case Message.GTC:
-      case Message.SYN:
-      case Message.LSG:
-      case Message.PRP:
-      case Message.REA:
-      case Message.REG:
-      case Message.RMG:
-        try {
-          return Integer.parseInt( ( String ) arguments.get( 2 ) );
-        } catch( NumberFormatException e ) {
-          return -1;
-        }
-      
-      /*
-       * TODO: Microsoft is disabling (??) LST requests. Maybe in future
-       * the, case Message.LST:, will be removed.
-       */
-      case Message.LST:
-      case Message.ADD:
-      case Message.REM:
-        try {
-          return Integer.parseInt( ( String ) arguments.get( 3 ) );
-        } catch( NumberFormatException e ) {
-          return -1;
-        }
-        
-      default:  throw new NoSuchFieldException( commandToString( type ) + " messages don't have a serial number." );
-    }
+    if( index < 0 || index >= tokenCount )
+      throw new IndexOutOfBoundsException( "Index: " + index + ", Size: " + tokenCount );
   }
 
   /**
-   * Returns the contact status contained in the message.
-   * 
-   * <pre>ILN TransactionID Status UserName FriendlyName
-   * NLN Status UserName FriendlyName
-   * CHG TransactionID Status</pre>
+   * Reads a decimal int from the line.
    *
-   * @return A String representing the status in the message.
-   * @throws NoSuchFieldException When the message doesn't contain a
-   * status.
+   * @param start Start of the number in <pre>line</pre>.
+   * @param end End (exclusive) of the number in <pre>line</pre>.
+   * @return The number, or <pre>NOT_A_NUMBER</pre> when the bytes are not
+   * an int.
    */
-  String getStatus() throws NoSuchFieldException {
+  private long readInt( int start, int end ) {
     
-    String rawStatus = "";
+    boolean negative = ( start < end && line[start] == '-' );
+    long    value    = 0;
+    int     i        = negative ? start + 1 : start;
     
+    if( i == end )
+      return NOT_A_NUMBER;
     
-    switch( type ) {
+    for( ; i < end; i++ ) {
+      int digit = line[i] - '0';
       
-      case Message.FLN:
-        rawStatus = "FLN"; /* User is Offline */
-        break;
-        
-      case Message.NLN:
-        rawStatus = ( String ) arguments.get( 1 );
-        break;
-        
-      case Message.CHG:
-      case Message.ILN:
-        rawStatus = ( String ) arguments.get( 2 );
-        break;
-        
-      default:  throw new NoSuchFieldException( commandToString( type ) + " messages don't have a status." );
+      value = value * 10 + digit;
+      
+      if( digit < 0 || digit > 9 || value > ( negative ? -( long ) Integer.MIN_VALUE : Integer.MAX_VALUE ) )
+        return NOT_A_NUMBER;
     }
     
-    return rawStatus;
+    return negative ? -value : value;
   }
 
   /**
-   * Returns a Hashtable containing all types of contact list this message was referring
-   * to.
-   * 
-   * <pre>LST TransactionID List SerialNumber ItemNumber TotalItems UserName FriendlyName
-   * ADD TransactioNID List SerialNumber UserName FriendlyName
-   * REM TransactionID List SerialNumber UserName</pre>
+   * Returns the position of the first colon in a token, or -1.
    *
-   * @return A ContactList object representing the contact list type.
-   * @throws NoSuchFieldException When the message type doesn't contain a
-   * contact list type.
+   * @param index Index of the token.
+   * @return The position in <pre>line</pre>, or -1.
    */
-  Hashtable getListType() throws NoSuchFieldException {
+  private int indexOfColon( int index ) {
     
-    switch( type ) {
-
-      case Message.LST:  {
-        /*
-         * TODO: Microsoft is disabling (??) LST requests. Maybe in future
-         * the, try block, will be removed.
-         */
-        /*
-        try  {
-          Integer.parseInt( ( String ) arguments.get( 3 ) );
-        }  catch( NumberFormatException e )  {
-          return ContactList.parseListType( ( String ) arguments.get( 2 ) );
-        }
-        */
-        
-        // Is a SYN response !!
-        return ContactList.parseListType( ( String ) arguments.get( 3 ) );
-      }
-      case Message.ADD:
-      case Message.REM:  return ContactList.parseListType( ( String ) arguments.get( 2 ) );
-      default:  throw new NoSuchFieldException( commandToString( type ) + " messages don't have list type." );
+    checkToken( index );
+    
+    for( int i = tokenStart[index]; i < tokenEnd[index]; i++ ) {
+      if( line[i] == ':' )
+        return i;
     }
+    
+    return -1;
   }
-  
-  // << LSG TransactionID SerialNumber ItemNumber TotalItems GroupID GroupName 0
+
   /**
-   * Gets the item number from the message.
+   * Decodes a URL-encoded token the way <pre>URLDecoder</pre> does: plus
+   * signs become spaces, and %xx escapes are bytes of a UTF-8 sequence.
+   * Broken escapes are kept as they are.
    *
-   * <pre>LSG TransactionID SerialNumber ItemNumber TotalItems GroupID GroupName 0
-   * LST TransactionID List SerialNumber ItemNumber TotalItems UserName FriendlyName</pre>
-   *
-   * @return The item number.
-   * @throws NoSuchFieldException When the message type doesn't have an item number
-   * field.
+   * @param index Index of the token.
+   * @return The decoded token.
    */
-  int getItemNumber() throws NoSuchFieldException {
+  private String urlDecode( int index ) {
     
-    switch( type ) {
-      case Message.LSG:
-        try {
-          return Integer.parseInt( ( String ) arguments.get( 3 ) );
-        } catch( NumberFormatException e ) {
-          return -1;
-        }
-        
-      case Message.LST:
-        try {
-          return Integer.parseInt( ( String ) arguments.get( 4 ) );
-        } catch( NumberFormatException e ) {
-          return -1;
-        }
-        
-      default:  throw new NoSuchFieldException( commandToString( type ) + " messages don't have item number." );
+    int start = tokenStart[index];
+    int end   = tokenEnd[index];
+    int i     = start;
+    
+    while( i < end && line[i] != '%' && line[i] != '+' )
+      i++;
+    
+    if( i == end )
+      return getToken( index );
+    
+    byte[] decoded = new byte[end - start];
+    int    length  = i - start;
+    
+    System.arraycopy( line, start, decoded, 0, length );
+    
+    for( ; i < end; i++ ) {
+      byte b = line[i];
+      
+      if( b == '+' ) {
+        b = ' ';
+      }
+      else if( b == '%' && i + 2 < end && hexValue( line[i + 1] ) >= 0 && hexValue( line[i + 2] ) >= 0 ) {
+        b  = ( byte ) ( hexValue( line[i + 1] ) * 16 + hexValue( line[i + 2] ) );
+        i += 2;
+      }
+      
+      decoded[length++] = b;
     }
+    
+    return new String( decoded, 0, length, UTF8 );
   }
 
   /**
-   * Returns the total number of items in the list (in LSG and LST message types).
+   * Returns the value of a hexadecimal digit, or -1.
    *
-   * @return The total number of items in the list.
-   * @throws NoSuchFieldException When the message type doesn't contain a
-   * total items field.
+   * @param b The digit.
+   * @return Its value, or -1 if it is not a hexadecimal digit.
    */
-  int getTotalItems() throws NoSuchFieldException {
+  private static int hexValue( byte b ) {
     
-    switch( type ) {
-      case Message.LSG:
-        try {
-          return Integer.parseInt( ( String ) arguments.get( 4 ) );
-        } catch( NumberFormatException e ) {
-          return -1;
-        }
-
-      case Message.LST:
-        try {
-          return Integer.parseInt( ( String ) arguments.get( 5 ) );
-        } catch( NumberFormatException e ) {
-          return -1;
-        }
-        
-      default:  throw new NoSuchFieldException( commandToString( type ) + " messages don't have totalitems." );
-    }
-  }
-        
-  /**
-   * Get the group ID for LSG messages (for SYN and LSG messages)
-   */
-  ArrayList getGroups()  {
-
-    switch( type ) {
-
-      case Message.LST :  {
-
-        /*
-         * TODO: Microsoft is disabling (??) LST requests. Maybe in future
-         * the, try block, will be removed and only the catch block will remain.
-         */
-        try {
-          /*
-           * Only to know if we are in SYN response or is a LST response.
-           * LST don't have a group id parameter.
-           */
-          Integer.parseInt( ( String ) arguments.get( 5 ) );
-        } catch( Exception e ) {
-
-          /*
-           * If a exception is caught, this message can be a SYN response.
-           * and then the order of argument is other.
-           */
-          
-          if( arguments.size() < 4 )  {
-            
-            StringTokenizer   parser  = new StringTokenizer( ( String ) arguments.get( 4 ), "," );
-            ArrayList         aGroups = new ArrayList();
-            Integer           iValue;
-        
-            try  {
-              while( parser.hasMoreTokens() )  {
-                iValue = new Integer( Integer.parseInt( ( String ) parser.nextToken() ) );
-                aGroups.add( iValue );
-              }
-            } catch( java.util.NoSuchElementException ex )  {
-              System.err.println( "IncomingMessage.getGroups() - " + ex );
-            }
-          
-            return aGroups;
-          }
-          else
-            return null;
-        }
-      }
-
-      case Message.LSG :  {
-        
-        /*
-         * TODO: Microsoft is disabling (??) LSG requests. Maybe in future
-         * the, try block, will be removed and only the catch block will remain.
-         */
-        try {
-          ArrayList         aGroups = new ArrayList();
-          Integer           iValue  = new Integer( Integer.parseInt( ( String ) arguments.get( 5 ) ) );
-          
-          aGroups.add( iValue );
-          return aGroups;
-          
-        } catch( Exception e ) {
-            
-          /*
-           * If a exception is caught, this message can be a SYN response.
-           * and then the order of argument is other.
-           */
-          try  {
-            ArrayList         aGroups = new ArrayList();
-            Integer           iValue  = new Integer( Integer.parseInt( ( String ) arguments.get( 1 ) ) );
-          
-            aGroups.add( iValue );
-            return aGroups;
-          
-          } catch( Exception ex )  {
-            return null;
-          }
-        }
-      }
-            
-      default : return null;
-    }
+    if( b >= '0' && b <= '9' )
+      return b - '0';
+    
+    if( b >= 'a' && b <= 'f' )
+      return b - 'a' + 10;
+    
+    if( b >= 'A' && b <= 'F' )
+      return b - 'A' + 10;
+    
+    return -1;
   }
 
   /**
-   * Get the group name for LSG messages (for SYN and LSG messages)
+   * Returns the tokens after the command for <pre>toString()</pre>, in
+   * the same form as a list of strings.
+   *
+   * @return The tokens, as a list.
    */
-  String getGroupName()  {
-          
-    switch( type ) {
-
-      case Message.LSG:  {
-        /*
-         * TODO: Microsoft is disabling (??) LSG requests. Maybe in future
-         * the, try block, will be removed and only the catch block will remain.
-         */
-        try {
-          return java.net.URLDecoder.decode( arguments.get( 6 ).toString() );
-        } catch( Exception e ) {
-
-          /*
-           * If a exception is caught, this message can be a SYN response.
-           * and then the order of argument is other.
-           */
-          try  {
-            return java.net.URLDecoder.decode( arguments.get( 2 ).toString() );
-          } catch( Exception ex )  {
-            return "None";
-          }
-        }
-      }
-
-      default : return "None";
+  String argumentsToString() {
+    
+    StringBuffer buffer = new StringBuffer( "[" );
+    
+    for( int i = 0; i < tokenCount; i++ ) {
+      if( i > 0 )
+        buffer.append( ", " );
+      
+      buffer.append( getToken( i ) );
     }
+    
+    return buffer.append( ']' ).toString();
   }
 
   /**
-   * Gets the argument for the GTC message.
-   * 
-   * <pre>GTC TransactionID SerialNumber [A|N]</pre>
+   * Sets the body of the message to the given bytes.  The buffer is not
+   * copied; it is decoded from UTF-8 the first time the text of the body
+   * is asked for.
    *
-   * @return The argument to the GTC message.
-   * @throws NoSuchFieldException When the message type doesn't have a GTC argument.
+   * @param bodyBytes The raw body of the message.
    */
-  String getGTCArgument() throws NoSuchFieldException {
+  void setBody( ByteBuffer bodyBytes ) {
     
-    switch( type ) {
-      case Message.GTC:
-        return ( String ) arguments.get( 3 );
-        
-      default:  throw new NoSuchFieldException( commandToString( type ) + " messages don't have a GTC argument." );
-    }
+    this.bodyBytes = bodyBytes;
+    this.body      = null;
   }
 
   /**
-   * Gets the argument for the BLP message.
-   *
-   * <pre>BLP TransactionID SerialNumber [AL|BL]</pre>
+   * Returns the body of the message, decoding it from UTF-8 if it was
+   * received as bytes.
    *
-   * @return The argument to the BLP message.
-   * @throws NoSuchFieldException When the message type doesn't have a BLP argument.
+   * @return The body of the message.
    */
-  String getBLPArgument() throws NoSuchFieldException {
+  String getBody() {
     
-    switch( type ) {
+    if( body == null && bodyBytes != null ) {
+      ByteBuffer bytes = bodyBytes.duplicate();
       
-      case Message.BLP:  return ( String ) arguments.get( 3 );
-      
-      default:  throw new NoSuchFieldException( commandToString( type ) + " messages don't have a BLP argument." );
+      try {
+        body = new String( bytes.array(), bytes.arrayOffset() + bytes.position(), bytes.remaining(), "UTF-8" );
+      } catch( UnsupportedEncodingException e ) {
+        body = new String( bytes.array(), bytes.arrayOffset() + bytes.position(), bytes.remaining() );
+      }
     }
+    
+    return body;
   }
 
   /**
-   * Returns the hash challenge issued by the server.
-   * 
-   * <pre>CHL TransactionID Hash
-   * USR TransactionID SecurityProtocol S Hash
-   * RNG SessionID Server:Port CKI Hash UserName FriendlyName</pre>
-   * 
-   * @return The challenge hash.
-   * @throws NoSuchFieldException When the message type doesn't have a challenge hash.
+   * Returns the raw bytes of the body, or null if the message has no body.
+   * The returned buffer is a view; its content must not be changed.
+   *
+   * @return The undecoded body of the message.
    */
-  String getChallengeHash() throws NoSuchFieldException {
+  ByteBuffer getBodyBytes() {
     
-    switch( type ) {
-
-      case Message.CHL:  return ( String ) arguments.get( 2 );
-      case Message.USR:
-      case Message.RNG:  {
-        Object    objValue = arguments.get( 4 );
-
-        return ( String ) ( objValue != null ? ( String ) objValue : "" );
-      }
-      case Message.XFR:
-        try {
-          return ( String ) arguments.get( 5 );
-        } catch( IndexOutOfBoundsException e ) { 
-          /* TODO: This is ugly, but catchches XFR's without hash challenges */
-          return null;
-        }
-
-      default: throw new NoSuchFieldException( commandToString( type ) + " messages don't have a challenge hash." );
-    }
+    return ( bodyBytes != null ) ? bodyBytes.duplicate() : null;
   }
 
   /**
-   * Returns the session ID for the conversation.
+   * Returns the length of the packet as it was on the wire: the command
+   * line, its CRLF, and the body.
    *
-   * <pre>RNG SessionID ServerIP:Port "CKI" ChallengeHash UserName FriendlyName
-   * CAL TransactionID "RINGING" SessionID</pre>
-   *
-   * @return The sessionID as a string.
-   * @throws NoSuchFieldException When the message type doesn't have a
-   * session ID.
+   * @return The length of the packet, in bytes.
    */
-  String getSessionID() throws NoSuchFieldException {
+  int getFrameLength() {
     
-    switch( type ) {
-      
-      case Message.RNG:  return ( String ) arguments.get( 1 );
-      case Message.CAL:  return ( String ) arguments.get( 3 );
-      default:  throw new NoSuchFieldException( commandToString( type ) + " messages don't have a session id." );
-    }
+    return lineLength + 2 + ( ( bodyBytes != null ) ? bodyBytes.remaining() : 0 );
   }
 
   /**
-   * Returns the exit status code sent by the server.
-   *
-   * <pre>OUT StatusCode</pre>
-   *
-   * @return The exit status code.
-   * @throws NoSuchFieldException When the message type doesn't have an exit
-   * status.
+   * Copies the command line and the body out of the connection's read
+   * buffer, so the message stays valid after the connection receives more
+   * data.
    */
-  String getExitStatus() throws NoSuchFieldException {
+  void detach() {
     
-    switch( type ) {
-      case Message.OUT:
-        try {
-          return ( String ) arguments.get( 1 );
-        } catch( IndexOutOfBoundsException e ) { 
-          /* TODO: no exit status */
-          return "";
-        }
-        
-      default:  throw new NoSuchFieldException( commandToString( type ) + " messages don't have exit status." );
+    if( line != null && ( lineOffset != 0 || line.length != lineLength ) ) {
+      byte[] copy = new byte[lineLength];
+      
+      System.arraycopy( line, lineOffset, copy, 0, lineLength );
+      
+      for( int i = 0; i < tokenCount; i++ ) {
+        tokenStart[i] -= lineOffset;
+        tokenEnd[i]   -= lineOffset;
+      }
+      
+      line       = copy;
+      lineOffset = 0;
+    }
+    
+    if( bodyBytes != null ) {
+      ByteBuffer copy = ByteBuffer.allocate( bodyBytes.remaining() );
+      
+      copy.put( bodyBytes.duplicate() );
+      copy.flip();
+      bodyBytes = copy;
     }
   }
 
   /**
-   * Returns the error code.  If there's some sort of error, returns -1.
+   * Returns the address part of an Address[:PortNumber] token.
    *
-   * @return The error code for the message.
-   * @throws NoSuchFieldException When the message type doesn't have an error code.
+   * @param index Index of the token.
+   * @return The address.
    */
-  int getErrorCode() throws NoSuchFieldException {
+  String getHost( int index ) {
     
-    if( type != Message.ERROR ) 
-      throw new NoSuchFieldException( commandToString( type ) + " isn't an error code." );
+    int colon = indexOfColon( index );
     
-    try {
-      return Integer.parseInt( ( String ) arguments.get( 0 ) );
-    }  catch( NumberFormatException e ) {
-      return -1;
-    }
+    if( colon < 0 )
+      return getToken( index );
+    
+    return new String( line, tokenStart[index], colon - tokenStart[index], UTF8 );
   }
-	
+
   /**
-   * Returns the length of the body as reported in the command
-   * string.  Returns -1 if there's some sort of problem.
-   *
-   * <pre>MSG TransactionID AckType BodyLength
-   * MSG UserName FriendlyName BodyLength
-   * MSG ServiceType ServiceType BodyLength</pre>
+   * Returns the port of an Address[:PortNumber] token, or 1863 when there
+   * is none or it is not a number.
    *
-   * @return The length of the body.
-   * @throws NoSuchFieldException When the message type doesn't have
-   * a body length field.
+   * @param index Index of the token.
+   * @return The port.
    */
-  int getBodyLength() throws NoSuchFieldException {
+  int getPort( int index ) {
     
-    switch( type ) {
-      case Message.MSG:
-        try {
-          return Integer.parseInt( ( String ) arguments.get( 3 ) );
-        } catch( NumberFormatException e ) {
-          // if you get here, you're doomed.
-          return 0;
-        }
-        
-      default:  throw new NoSuchFieldException( commandToString( type ) + " messages don't have a body length." );
-    }
-  }
+    int colon = indexOfColon( index );
+    
+    if( colon < 0 )
+      return 1863;
     
+    long port = readInt( colon + 1, tokenEnd[index] );
+    
+    return ( port == NOT_A_NUMBER ) ? 1863 : ( int ) port;
+  }
+
   /**
    * Just a smattering of test cases.
    */
@@ -913,97 +725,8 @@ class IncomingMessage extends Message {
       System.out.println( "Test the arg for validity." );
     }
     
-    String[] cmds = {   "ADD 0 RL 105 example@passport.com Mike",
-                        "ADD 0 RL 105 example@passport.com Mike", 
-                        "BLP 54 12182 AL", 
-                        "BPR 12182 example@passport.com MOB N",
-                        "BPR 12182 example@passport.com MOB N", 
-                        "BPR 12182 example@passport.com PHH", 
-                        "BPR 12182 example@passport.com PHH", 
-                        "BPR 12182 example@passport.com PHM I%20Dont%20Have%20One", 
-                        "BPR 12182 example@passport.com PHM I%20Dont%20Have%20One", 
-                        "BPR 12182 example@passport.com PHW 555%20555-1234", 
-                        "BPR 12182 example@passport.com PHW 555%20555-1234", 
-                        "BPR 12182 myname@msn.com MOB N", 
-                        "BPR 12182 myname@msn.com MOB Y", 
-                        "BPR 12182 myname@msn.com MOB Y", 
-                        "BPR 12182 myname@msn.com PHH", 
-                        "BPR 12182 myname@msn.com PHH 555%20555%204321", 
-                        "BPR 12182 myname@msn.com PHH 555%20555%204321", 
-                        "BPR 12182 myname@msn.com PHM", 
-                        "BPR 12182 myname@msn.com PHM", 
-                        "BPR 12182 myname@msn.com PHM", 
-                        "BPR 12182 myname@msn.com PHW", 
-                        "BPR 12182 myname@msn.com PHW I%20AM%20DUMB", 
-                        "BPR 12182 myname@msn.com PHW I%20AM%20DUMB", 
-                        "CHG 10 HDN", 
-                        "CHG 7 NLN", 
-                        "CHG 8 AWY", 
-                        "CHG 9 NLN", 
-                        "CHL 0 15570131571988941333", 
-                        "FLN name_123@hotmail.com", 
-                        "GTC 54 12182 A", 
-                        "ILN 7 AWY example@passport.com Mike", 
-                        "ILN 7 BSY myname@msn.com My%20Name", 
-                        "ILN 7 NLN name_123@hotmail.com Name_123", 
-                        "INF 1 MD5", 
-                        "INF 4 MD5", 
-                        "LSG 54 12182 1 3 0 Other%20Contacts 0", 
-                        "LSG 54 12182 1 3 0 Other%20Contacts 0", 
-                        "LSG 54 12182 2 3 2 Group1 0", 
-                        "LSG 54 12182 2 3 2 Group1 0", 
-                        "LSG 54 12182 3 3 5 Group2 0", 
-                        "LSG 54 12182 3 3 5 Group2 0", 
-                        "LST 10 FL 21 1 3 example@passport.com Mike 0", 
-                        "LST 10 FL 21 2 3 name_123@hotmail.com Name_123 2", 
-                        "LST 10 FL 21 2 3 name_123@hotmail.com Name_123 2", 
-                        "LST 10 FL 21 3 3 myname@msn.com My%20Name 0", 
-                        "LST 11 BL 3 0 0", 
-                        "LST 54 AL 12182 1 3 myname@msn.com My%20Name", 
-                        "LST 54 AL 12182 2 3 example@passport.com Mike", 
-                        "LST 54 AL 12182 3 3 name_123@hotmail.com Name_123", 
-                        "LST 54 BL 12182 0 0", 
-                        "LST 54 FL 12182 1 2 example@passport.com Mike 0", 
-                        "LST 54 FL 12182 1 2 example@passport.com Mike 0", 
-                        "LST 54 FL 12182 2 2 myname@msn.com My%20Name 2", 
-                        "LST 54 FL 12182 2 2 myname@msn.com Name_123 2", 
-                        "LST 54 RL 12182 1 2 myname@msn.com My%20Name", 
-                        "NLN AWY example@passport.com Mike", 
-                        "NLN NLN myname@msn.com My%20Name", 
-                        "OUT",
-                        "OUT OTH",
-                        "OUT SSD",
-                        "PRP 54 12182 MBE N", 
-                        "PRP 54 12182 MBE N", 
-                        "PRP 54 12182 MOB Y", 
-                        "PRP 54 12182 MOB Y", 
-                        "PRP 54 12182 PHH 555%20555-0690", 
-                        "PRP 54 12182 PHH 555%20555-0690", 
-                        "PRP 54 12182 PHM", 
-                        "PRP 54 12182 PHM", 
-                        "PRP 54 12182 PHW", 
-                        "PRP 54 12182 PHW", 
-                        "PRP 55 12183 PHH 555%20555-0690", 
-                        "PRP 56 12184 PHW 555%20555-0691", 
-                        "QRY 10", 
-                        "REA 25 115 example@passport.com My%20New%20Name", 
-                        "REG 25 12066 15 New%20Name 0", 
-                        "REM 0 RL 106 example@passport.com", 
-                        "RMG 24 12065 15", 
-                        "RNG 11752099 64.4.12.193:1863 CKI 849102291.520491932 myname@msn.com My%20Name", 
-                        "SYN 54 12182", 
-                        "USR 5 MD5 S 1013928519.693957190", 
-                        "USR 6 OK example@passport.com My%20Screen%20Name 1", 
-                        "VER 0 MSNP7 MSNP6 MSNP5 MSNP4 CVR0", 
-                        "VER 3 MSNP7 MSNP6 MSNP5 MSNP4 CVR0", 
-                        "XFR 10 SB 64.4.12.193:1863 CKI 16925950.1016955577.17693", 
-                        "XFR 2 NS 64.4.12.132:1862 0",
-                        "XFR 2 NS 64.4.12.133 0",
-                        "911 It's over dude",
-                        "220 Bad Call"
-                    };
-                    
-                  
+    String[] cmds = SAMPLE_COMMANDS;
+    
     System.out.println( "*-*-*-*-*-*-*-*-*-*-*" );
     
     for( int i = 0; i < cmds.length; i++ ) {
@@ -1011,26 +734,20 @@ class IncomingMessage extends Message {
       
       try {
         System.out.println( "Original: " + cmds[i] );
-        IncomingMessage msg = IncomingMessage.parseMessage( cmds[i] );
+        IncomingMessage msg    = IncomingMessage.parseMessage( cmds[i] );
+        MessageRecord   record = msg.getRecord();
         
-        //System.out.println (">> getProtocols: " + msg.getProtocols());
-	//System.out.println (">> getSecurityProtocol: " + msg.getSecurityProtocol());
-	//System.out.println (">> getFriendlyName: " + msg.getFriendlyName());
-	//System.out.println (">> getUserName: " + msg.getUserName());
-	System.out.println( ">> getProperty: " + msg.getProperty() );
-        System.out.println( ">> getValue: " + msg.getValue() );
-        //System.out.println (">> getReferralType: " + msg.getReferralType());
-	//System.out.println (">> serverIP: " + msg.getServerIP());
-	//System.out.println (">> serverPort: " + msg.getServerPort());
-	//System.out.println (">> getSerialNumber: " + msg.getSerialNumber());
-	//System.out.println (">> getStatus: " + msg.getStatus());
-	//System.out.println (">> getListType: " + msg.getListType());
-	//System.out.println (">> getItemNumber: " + msg.getItemNumber());
-	//System.out.println (">> getTotalItems: " + msg.getTotalItems());
-	//System.out.println (">> getGTCArgument: " + msg.getGTCArgument());
-	//System.out.println (">> getBLPArgument: " + msg.getBLPArgument());
-	//System.out.println (">> getChallengeHash: " + msg.getChallengeHash());
-	//System.out.println (">> getExitStatus(): " + msg.getExitStatus());
+        System.out.println( ">> record: " + ( ( record != null ) ? record.getClass().getName() : "none" ) );
+        
+        /* Every field the record has, the inherited ones included */
+        for( Class c = ( record != null ) ? record.getClass() : null; c != null && c != Object.class; c = c.getSuperclass() ) {
+          java.lang.reflect.Method[] fields = c.getDeclaredMethods();
+          
+          for( int j = 0; j < fields.length; j++ ) {
+            if( fields[j].getParameterTypes().length == 0 && !java.lang.reflect.Modifier.isAbstract( fields[j].getModifiers() ) && ( fields[j].getName().startsWith( "get" ) || fields[j].getName().startsWith( "is" ) ) )
+              System.out.println( ">> " + fields[j].getName() + ": " + fields[j].invoke( record, new Object[0] ) );
+          }
+        }
       } catch( Exception e ) {
         System.out.println( "Error: " + e );
       }
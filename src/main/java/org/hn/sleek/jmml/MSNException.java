@@ -37,10 +37,15 @@ package org.hn.sleek.jmml;
 
 public class MSNException extends java.lang.Exception {
   
-  public static final int          MSN_EX_GENERIC    = 0;
-  public static final int          MSN_EX_LOGIN_FAIL = 1;
+  public static final int          MSN_EX_GENERIC       = 0;
+  public static final int          MSN_EX_LOGIN_FAIL    = 1;
+  public static final int          MSN_EX_SERVER_ERROR  = 2;
+  public static final int          MSN_EX_TIMEOUT       = 3;
+  public static final int          MSN_EX_DISCONNECTED  = 4;
   
   String                           strMessage;
+  int                              nExceptionType;
+  int                              nErrorCode = -1;
   
   
   
@@ -60,14 +65,52 @@ public class MSNException extends java.lang.Exception {
 
     super();
     
+    this.nExceptionType = nExceptionType;
+    
     switch( nExceptionType )  {
      
       case  MSN_EX_GENERIC    : strMessage = "MSN Exception"; break;
       
       case  MSN_EX_LOGIN_FAIL : strMessage = "Unable to login in MSN Network"; break;
+      
+      case  MSN_EX_SERVER_ERROR : strMessage = "MSN server returned an error"; break;
+      
+      case  MSN_EX_TIMEOUT    : strMessage = "MSN server did not answer in time"; break;
+      
+      case  MSN_EX_DISCONNECTED : strMessage = "Disconnected from MSN server"; break;
     }
   }
   
+  /** 
+   * Creates a new instance of JMMLException for a numeric error
+   * returned by the server.
+   * @param nErrorCode - The MSNP error code;
+   */
+  public MSNException( int nExceptionType, int nErrorCode ) {
+    
+    this( nExceptionType );
+    
+    this.nErrorCode = nErrorCode;
+    strMessage      = strMessage + " (" + nErrorCode + ")";
+  }
+  
+  /**
+   * Return the exception type
+   */
+  public int getExceptionType()  {
+  
+    return nExceptionType;
+  }
+  
+  /**
+   * Return the MSNP error code, or -1 if the server didn't
+   * send one.
+   */
+  public int getErrorCode()  {
+  
+    return nErrorCode;
+  }
+  
   /**
    * Return the exception message
    */
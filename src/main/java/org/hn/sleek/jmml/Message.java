@@ -50,7 +50,7 @@ abstract class Message {
   /** Body of the message. */
   String    body;
   int       type = 0;
-  Integer   transactionID = new Integer( -1 );
+  int       transactionID = -1;
 
   static final String    CVR_STRING = "0x0409 winnt 5.1 i386 MSNMSGR 5.0.0540 MSMSGS ";
 
@@ -93,45 +93,48 @@ abstract class Message {
   final static int SDC   = 35;
   final static int ERROR = 36;  // Server error
 
-  static HashMap commandMap;
+  /**
+   * Command types by packed command code; see <pre>commandIndex()</pre>.
+   * Zero for strings that are not commands.
+   */
+  static byte[] commandTable = new byte[26 * 26 * 26];
 
   static {
-    commandMap = new HashMap();
-    commandMap.put( "ACK", new Integer( Message.ACK ) );
-    commandMap.put( "ADD", new Integer( Message.ADD ) );
-    commandMap.put( "ADG", new Integer( Message.ADG ) );
-    commandMap.put( "ANS", new Integer( Message.ANS ) );
-    commandMap.put( "BLP", new Integer( Message.BLP ) );
-    commandMap.put( "BPR", new Integer( Message.BPR ) );
-    commandMap.put( "BYE", new Integer( Message.BYE ) );
-    commandMap.put( "CAL", new Integer( Message.CAL ) );
-    commandMap.put( "CHG", new Integer( Message.CHG ) );
-    commandMap.put( "CHL", new Integer( Message.CHL ) );
-    commandMap.put( "FLN", new Integer( Message.FLN ) );
-    commandMap.put( "GTC", new Integer( Message.GTC ) );
-    commandMap.put( "ILN", new Integer( Message.ILN ) );
-    commandMap.put( "TWN", new Integer( Message.TWN ) );
-    commandMap.put( "IRO", new Integer( Message.IRO ) );
-    commandMap.put( "JOI", new Integer( Message.JOI ) );
-    commandMap.put( "LSG", new Integer( Message.LSG ) );
-    commandMap.put( "LST", new Integer( Message.LST ) );
-    commandMap.put( "MSG", new Integer( Message.MSG ) );
-    commandMap.put( "NAK", new Integer( Message.NAK ) );
-    commandMap.put( "NLN", new Integer( Message.NLN ) );
-    commandMap.put( "OUT", new Integer( Message.OUT ) );
-    commandMap.put( "PRP", new Integer( Message.PRP ) );
-    commandMap.put( "QRY", new Integer( Message.QRY ) );
-    commandMap.put( "REA", new Integer( Message.REA ) );
-    commandMap.put( "REG", new Integer( Message.REG ) );
-    commandMap.put( "REM", new Integer( Message.REM ) );
-    commandMap.put( "RMG", new Integer( Message.RMG ) );
-    commandMap.put( "RNG", new Integer( Message.RNG ) );
-    commandMap.put( "SYN", new Integer( Message.SYN ) );
-    commandMap.put( "USR", new Integer( Message.USR ) );
-    commandMap.put( "VER", new Integer( Message.VER ) );
-    commandMap.put( "XFR", new Integer( Message.XFR ) );
-    commandMap.put( "CVR", new Integer( Message.CVR ) );
-    commandMap.put( "SDC", new Integer( Message.SDC ) );
+    addCommand( "ACK", Message.ACK );
+    addCommand( "ADD", Message.ADD );
+    addCommand( "ADG", Message.ADG );
+    addCommand( "ANS", Message.ANS );
+    addCommand( "BLP", Message.BLP );
+    addCommand( "BPR", Message.BPR );
+    addCommand( "BYE", Message.BYE );
+    addCommand( "CAL", Message.CAL );
+    addCommand( "CHG", Message.CHG );
+    addCommand( "CHL", Message.CHL );
+    addCommand( "FLN", Message.FLN );
+    addCommand( "GTC", Message.GTC );
+    addCommand( "ILN", Message.ILN );
+    addCommand( "TWN", Message.TWN );
+    addCommand( "IRO", Message.IRO );
+    addCommand( "JOI", Message.JOI );
+    addCommand( "LSG", Message.LSG );
+    addCommand( "LST", Message.LST );
+    addCommand( "MSG", Message.MSG );
+    addCommand( "NAK", Message.NAK );
+    addCommand( "NLN", Message.NLN );
+    addCommand( "OUT", Message.OUT );
+    addCommand( "PRP", Message.PRP );
+    addCommand( "QRY", Message.QRY );
+    addCommand( "REA", Message.REA );
+    addCommand( "REG", Message.REG );
+    addCommand( "REM", Message.REM );
+    addCommand( "RMG", Message.RMG );
+    addCommand( "RNG", Message.RNG );
+    addCommand( "SYN", Message.SYN );
+    addCommand( "USR", Message.USR );
+    addCommand( "VER", Message.VER );
+    addCommand( "XFR", Message.XFR );
+    addCommand( "CVR", Message.CVR );
+    addCommand( "SDC", Message.SDC );
   }
 
   
@@ -139,8 +142,35 @@ abstract class Message {
    * Constructs a Message Object
    */
   protected Message() {
+  }
+
+  /**
+   * Registers a command in the command table.
+   *
+   * @param command The three letter command.
+   * @param commandType Its message type.
+   */
+  private static void addCommand( String command, int commandType ) {
+    
+    commandTable[commandIndex( command.charAt( 0 ), command.charAt( 1 ), command.charAt( 2 ) )] = ( byte ) commandType;
+  }
+
+  /**
+   * Packs a three letter upper case command into an index of the command
+   * table, or returns -1 if one of the characters is not an upper case letter.
+   *
+   * @return The index, from 0 to 26 * 26 * 26 - 1, or -1.
+   */
+  private static int commandIndex( int c0, int c1, int c2 ) {
+    
+    c0 -= 'A';
+    c1 -= 'A';
+    c2 -= 'A';
+    
+    if( ( c0 | c1 | c2 ) < 0 || c0 >= 26 || c1 >= 26 || c2 >= 26 )
+      return -1;
     
-    arguments = new ArrayList();
+    return ( c0 * 26 + c1 ) * 26 + c2;
   }
 
   /**
@@ -184,7 +214,7 @@ abstract class Message {
    */
   int getTransactionID() {
     
-    return transactionID.intValue();
+    return transactionID;
   }
 
   /**
@@ -208,9 +238,12 @@ abstract class Message {
     
     String trimmedCommand = rawCommand.trim();
 
-    /* If it's a valid message type, then it's in the commandMap */
-    if( commandMap.containsKey( trimmedCommand ) ) {
-      return ( ( Integer ) commandMap.get( trimmedCommand ) ).intValue();
+    /* If it's a valid message type, then it's in the command table */
+    if( trimmedCommand.length() == 3 ) {
+      int index = commandIndex( trimmedCommand.charAt( 0 ), trimmedCommand.charAt( 1 ), trimmedCommand.charAt( 2 ) );
+      
+      if( index >= 0 && commandTable[index] != 0 )
+        return commandTable[index];
     }
 
     try {
@@ -223,6 +256,39 @@ abstract class Message {
     }
   }
 
+  /**
+   * Returns the message type of the command in the given bytes, without
+   * creating a string.  Commands are three upper case letters; error codes
+   * are numbers.
+   *
+   * @param bytes The bytes holding the command.
+   * @param offset Start of the command.
+   * @param length Length of the command.
+   * @return The command type.
+   * @throws ParseException When the command type is invalid.
+   */
+  static int parseCommand( byte[] bytes, int offset, int length ) throws ParseException {
+    
+    if( length == 3 ) {
+      int index = commandIndex( bytes[offset], bytes[offset + 1], bytes[offset + 2] );
+      
+      if( index >= 0 && commandTable[index] != 0 )
+        return commandTable[index];
+    }
+    
+    boolean digits = length > 0;
+    
+    for( int i = offset; i < offset + length && digits; i++ )
+      digits = bytes[i] >= '0' && bytes[i] <= '9';
+    
+    /* Error types */
+    if( digits )
+      return Message.ERROR;
+    
+    /* What IS this thing?! */
+    throw new ParseException( new String( bytes, offset, length ) + " is not a valid command.", 0 );
+  }
+
   /**
    * Returns the String representation of a command type.  If the command
    * type is invalid, returns "NOT_A_COMMAND" as a string.
@@ -295,25 +361,30 @@ abstract class Message {
       commandString = commandToString( type );
     }
 
-    if( transactionID.intValue() == -1 ) {
+    if( transactionID == -1 ) {
       transactionIDString = "[No Transaction ID] ";
     }
     else {
-      transactionIDString = transactionID.toString();
+      transactionIDString = Integer.toString( transactionID );
     }
 
-    if( arguments == null ) {
-      argumentsString = "[No Arguments] ";
-    }
-    else {
-      argumentsString = arguments.toString();
-    }
+    argumentsString = argumentsToString();
 
     if( hasBody() ) {
-      bodyString = body;
+      bodyString = getBody();
     }
     
     return commandString + transactionIDString  + argumentsString  + "\n" + bodyString;
   }
+
+  /**
+   * Returns the arguments for <pre>toString()</pre>.
+   *
+   * @return The arguments, as a list.
+   */
+  String argumentsToString() {
+    
+    return ( arguments == null ) ? "[No Arguments] " : arguments.toString();
+  }
 }
 // Message Class
\ No newline at end of file
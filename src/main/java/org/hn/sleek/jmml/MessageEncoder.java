@@ -0,0 +1,368 @@
+/*
+ * ===========================================================================
+ *  Copyright (C) 2002-2003  Tony Tang
+ *
+ *  This program is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation; either version 2 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program; if not, write to the Free Software
+ *  Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ * ===========================================================================
+ */
+
+/**
+ *
+ * $Id$
+ * $Author$
+ * $Name$
+ * $Revision$
+ * $State$
+ *
+ */
+
+package org.hn.sleek.jmml;
+
+import java.nio.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * MessageEncoder writes outgoing packets as the UTF-8 bytes that go on the
+ * wire, without building the packet as a String first.  The command, the
+ * transaction ID and the arguments are written straight into a buffer whose
+ * size is computed exactly beforehand.  Constant arguments and body headers
+ * can be handed over already encoded, see <pre>fragment()</pre>.
+ * <p>
+ * Payload commands (MSG and QRY) get the length of their body in bytes as
+ * their last argument, so the length is right whatever characters the body
+ * holds.
+ * <p>
+ * Buffers come from a small pool of direct buffers.  The outbound queue
+ * gives them back once they are written; packets too large for a pooled
+ * buffer get one of their own.
+ */
+final class MessageEncoder {
+
+  /** Capacity of a pooled buffer; larger packets are not pooled (system property jmml.encoder.buffer). */
+  final static int          BUFFER_SIZE = Integer.getInteger( "jmml.encoder.buffer", 2048 ).intValue();
+
+  /** Most buffers kept for reuse (system property jmml.encoder.pool). */
+  final static int          POOL_SIZE   = Integer.getInteger( "jmml.encoder.pool", 64 ).intValue();
+
+  /** Ends every command line. */
+  final static byte[]       CRLF        = { '\r', '\n' };
+
+  /** The encoded name of each command, by type. */
+  final static byte[][]     COMMANDS    = new byte[Message.ERROR + 1][];
+
+  /** Buffers that are free for the next packet. */
+  static ArrayBlockingQueue pool        = new ArrayBlockingQueue( Math.max( 1, POOL_SIZE ) );
+
+  /** Constants encoded so far, by their text. */
+  static HashMap            fragments   = new HashMap();
+
+
+  // Static initializations
+  static {
+    for( int type = 0; type < COMMANDS.length; type++ )
+      COMMANDS[type] = Message.commandToString( type ).getBytes( IncomingMessage.UTF8 );
+  }
+
+  
+  
+  private MessageEncoder() {
+  }
+
+  /**
+   * Returns the UTF-8 bytes of a constant, encoding it only the first time.
+   * Meant for the fixed words of the protocol (list names, statuses, product
+   * IDs, MIME headers); the bytes are kept for good.
+   *
+   * @param constant The text.
+   * @return Its UTF-8 bytes; they must not be changed.
+   */
+  static byte[] fragment( String constant ) {
+    
+    synchronized( fragments ) {
+      byte[] bytes = ( byte[] ) fragments.get( constant );
+      
+      if( bytes == null ) {
+        bytes = constant.getBytes( IncomingMessage.UTF8 );
+        fragments.put( constant, bytes );
+      }
+      
+      return bytes;
+    }
+  }
+
+  /**
+   * Encodes a packet into a buffer ready to be written.
+   *
+   * @param msg The packet.
+   * @return The bytes of the packet, between position and limit.
+   */
+  static ByteBuffer encode( OutgoingMessage msg ) {
+    
+    ByteBuffer buffer = acquire( encodedLength( msg ) );
+    
+    write( msg, buffer );
+    buffer.flip();
+    
+    return buffer;
+  }
+
+  /**
+   * Returns the packet as text, the way it is written on the wire.
+   *
+   * @param msg The packet.
+   * @return The decoded bytes of the packet.
+   */
+  static String toString( OutgoingMessage msg ) {
+    
+    ByteBuffer buffer = ByteBuffer.allocate( encodedLength( msg ) );
+    
+    write( msg, buffer );
+    
+    return new String( buffer.array(), 0, buffer.position(), IncomingMessage.UTF8 );
+  }
+
+  /**
+   * Gives back a written packet's buffer for reuse.  Buffers that did not
+   * come from the pool are left to the garbage collector.
+   *
+   * @param buffer The buffer, which is not used by the caller any more.
+   */
+  static void release( ByteBuffer buffer ) {
+    
+    if( buffer.isDirect() && buffer.capacity() == BUFFER_SIZE ) {
+      buffer.clear();
+      pool.offer( buffer );
+    }
+  }
+
+  /**
+   * Returns an empty buffer for a packet, taken from the pool when the packet
+   * fits in one.
+   *
+   * @param length Length of the packet in bytes.
+   * @return A buffer with at least that much room.
+   */
+  private static ByteBuffer acquire( int length ) {
+    
+    if( length > BUFFER_SIZE )
+      return ByteBuffer.allocate( length );
+    
+    ByteBuffer buffer = ( ByteBuffer ) pool.poll();
+    
+    return ( buffer != null ) ? buffer : ByteBuffer.allocateDirect( BUFFER_SIZE );
+  }
+
+  /**
+   * Returns the exact number of bytes of a packet.
+   *
+   * @param msg The packet.
+   * @return Its length in bytes.
+   */
+  static int encodedLength( OutgoingMessage msg ) {
+    
+    int length = COMMANDS[msg.getType()].length;
+    
+    if( msg.getTransactionID() != OutgoingMessage.NO_TRANSACTION_ID )
+      length += 1 + digits( msg.getTransactionID() );
+    
+    for( int i = 0; i < msg.arguments.size(); i++ )
+      length += 1 + argumentLength( msg.arguments.get( i ) );
+    
+    if( msg.hasPayload() ) {
+      int bodyLength = bodyLength( msg );
+      
+      length += 1 + digits( bodyLength ) + CRLF.length + bodyLength;
+    }
+    else
+      length += CRLF.length;
+    
+    return length;
+  }
+
+  /**
+   * Writes a packet into a buffer with enough room.
+   *
+   * @param msg The packet.
+   * @param buffer The buffer.
+   */
+  private static void write( OutgoingMessage msg, ByteBuffer buffer ) {
+    
+    buffer.put( COMMANDS[msg.getType()] );
+    
+    if( msg.getTransactionID() != OutgoingMessage.NO_TRANSACTION_ID ) {
+      buffer.put( ( byte ) ' ' );
+      putInt( buffer, msg.getTransactionID() );
+    }
+    
+    for( int i = 0; i < msg.arguments.size(); i++ ) {
+      Object argument = msg.arguments.get( i );
+      
+      buffer.put( ( byte ) ' ' );
+      
+      if( argument instanceof byte[] )
+        buffer.put( ( byte[] ) argument );
+      else
+        putUTF8( buffer, ( String ) argument );
+    }
+    
+    if( !msg.hasPayload() ) {
+      buffer.put( CRLF );
+      return;
+    }
+    
+    buffer.put( ( byte ) ' ' );
+    putInt( buffer, bodyLength( msg ) );
+    buffer.put( CRLF );
+    
+    if( msg.bodyHeader != null )
+      buffer.put( msg.bodyHeader );
+    
+    if( msg.body != null )
+      putUTF8( buffer, msg.body );
+  }
+
+  /**
+   * Returns the length in bytes of the body of a payload command.
+   *
+   * @param msg The packet.
+   * @return The length of its body.
+   */
+  private static int bodyLength( OutgoingMessage msg ) {
+    
+    return ( ( msg.bodyHeader != null ) ? msg.bodyHeader.length : 0 ) + ( ( msg.body != null ) ? utf8Length( msg.body ) : 0 );
+  }
+
+  /**
+   * Returns the length in bytes of an argument, either text or a fragment.
+   *
+   * @param argument The argument.
+   * @return Its encoded length.
+   */
+  private static int argumentLength( Object argument ) {
+    
+    return ( argument instanceof byte[] ) ? ( ( byte[] ) argument ).length : utf8Length( ( String ) argument );
+  }
+
+  /**
+   * Returns the number of decimal digits of a number that is not negative.
+   *
+   * @param n The number.
+   * @return Its number of digits.
+   */
+  private static int digits( int n ) {
+    
+    int digits = 1;
+    
+    while( n >= 10 ) {
+      n /= 10;
+      digits++;
+    }
+    
+    return digits;
+  }
+
+  /**
+   * Writes the decimal digits of a number that is not negative.
+   *
+   * @param buffer The buffer.
+   * @param n The number.
+   */
+  private static void putInt( ByteBuffer buffer, int n ) {
+    
+    int start = buffer.position();
+    int end   = start + digits( n );
+    
+    for( int i = end - 1; i >= start; i-- ) {
+      buffer.put( i, ( byte ) ( '0' + n % 10 ) );
+      n /= 10;
+    }
+    
+    buffer.position( end );
+  }
+
+  /**
+   * Returns the length in bytes of a string encoded as UTF-8.  An unpaired
+   * surrogate counts as the one '?' byte <pre>String.getBytes()</pre>
+   * writes for it.
+   *
+   * @param s The string.
+   * @return Its encoded length.
+   */
+  static int utf8Length( String s ) {
+    
+    int length = s.length();
+    int bytes  = length;
+    
+    for( int i = 0; i < length; i++ ) {
+      char c = s.charAt( i );
+      
+      if( c < 0x80 )
+        continue;
+      
+      if( c < 0x800 )
+        bytes += 1;
+      else if( Character.isHighSurrogate( c ) && i + 1 < length && Character.isLowSurrogate( s.charAt( i + 1 ) ) ) {
+        bytes += 2;
+        i++;
+      }
+      else if( !Character.isSurrogate( c ) )
+        bytes += 2;
+    }
+    
+    return bytes;
+  }
+
+  /**
+   * Writes a string as UTF-8, the way <pre>String.getBytes()</pre> does.
+   *
+   * @param buffer The buffer.
+   * @param s The string.
+   */
+  private static void putUTF8( ByteBuffer buffer, String s ) {
+    
+    int length = s.length();
+    
+    for( int i = 0; i < length; i++ ) {
+      char c = s.charAt( i );
+      
+      if( c < 0x80 ) {
+        buffer.put( ( byte ) c );
+      }
+      else if( c < 0x800 ) {
+        buffer.put( ( byte ) ( 0xC0 | ( c >> 6 ) ) );
+        buffer.put( ( byte ) ( 0x80 | ( c & 0x3F ) ) );
+      }
+      else if( Character.isHighSurrogate( c ) && i + 1 < length && Character.isLowSurrogate( s.charAt( i + 1 ) ) ) {
+        int codePoint = Character.toCodePoint( c, s.charAt( ++i ) );
+        
+        buffer.put( ( byte ) ( 0xF0 | ( codePoint >> 18 ) ) );
+        buffer.put( ( byte ) ( 0x80 | ( ( codePoint >> 12 ) & 0x3F ) ) );
+        buffer.put( ( byte ) ( 0x80 | ( ( codePoint >> 6 ) & 0x3F ) ) );
+        buffer.put( ( byte ) ( 0x80 | ( codePoint & 0x3F ) ) );
+      }
+      else if( Character.isSurrogate( c ) ) {
+        buffer.put( ( byte ) '?' );
+      }
+      else {
+        buffer.put( ( byte ) ( 0xE0 | ( c >> 12 ) ) );
+        buffer.put( ( byte ) ( 0x80 | ( ( c >> 6 ) & 0x3F ) ) );
+        buffer.put( ( byte ) ( 0x80 | ( c & 0x3F ) ) );
+      }
+    }
+  }
+}
+
+// MessageEncoder class
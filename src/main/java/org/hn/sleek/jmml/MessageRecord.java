@@ -0,0 +1,765 @@
+/*
+ * ===========================================================================
+ *  Copyright (C) 2002-2003  Tony Tang
+ *
+ *  This program is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation; either version 2 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program; if not, write to the Free Software
+ *  Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ * ===========================================================================
+ */
+
+/**
+ *
+ * $Id$
+ * $Author$
+ * $Name$
+ * $Revision$
+ * $State$
+ *
+ */
+
+package org.hn.sleek.jmml;
+
+import java.util.*;
+
+/**
+ * The typed fields of an incoming command.  Each command the connectors
+ * handle has a record class nested in this one, and records are only made
+ * by <pre>of()</pre>, which checks that the command has every field its
+ * record requires.  A handler given a record thus reads its fields without
+ * catching anything; a line that lacks a field has no record, and is
+ * dropped where it is dispatched.
+ * <p>
+ * The constructor is private, so the nested classes are the only kinds of
+ * record there are.  A record is a view over its message: strings are
+ * decoded from the message's bytes when they are asked for, and numbers
+ * are read when the record is made.
+ */
+abstract class MessageRecord {
+
+  /** The message whose fields the record reads. */
+  final IncomingMessage message;
+
+
+  /**
+   * Creates a record over a parsed message.
+   *
+   * @param message The message.
+   */
+  private MessageRecord( IncomingMessage message ) {
+    
+    this.message = message;
+  }
+
+  /**
+   * Returns the record for a parsed message.
+   *
+   * @param message The message.
+   * @return The record, or null when the command has no record, or lacks a
+   * field its record requires.
+   */
+  static MessageRecord of( IncomingMessage message ) {
+    
+    int count = message.getTokenCount();
+    
+    switch( message.getType() ) {
+      
+      case Message.USR:   return ( count >= 3 ) ? new Usr( message ) : null;
+      case Message.CHL:   return ( count >= 3 ) ? new Chl( message ) : null;
+      case Message.XFR:   return ( count >= 4 ) ? new Xfr( message ) : null;
+      case Message.RNG:   return ( count >= 6 ) ? new Rng( message ) : null;
+      case Message.CAL:   return ( count >= 4 ) ? new Cal( message ) : null;
+      case Message.REA:   return ( count >= 5 ) ? new Rea( message ) : null;
+      case Message.ILN:   return ( count >= 5 ) ? new Iln( message ) : null;
+      case Message.NLN:   return ( count >= 4 ) ? new Nln( message ) : null;
+      case Message.FLN:   return ( count >= 2 ) ? new Fln( message ) : null;
+      case Message.BPR:   return ( count >= 4 ) ? new Bpr( message ) : null;
+      case Message.ADD:   return ( count >= 6 && isListName( message, 2 ) ) ? new Add( message ) : null;
+      case Message.REM:   return ( count >= 5 && isListName( message, 2 ) ) ? new Rem( message ) : null;
+      case Message.SYN:   return ( count >= 3 ) ? new Syn( message ) : null;
+      case Message.LST:   return Lst.from( message );
+      case Message.LSG:   return Lsg.from( message );
+      case Message.MSG:   return ( count >= 4 && message.getIntToken( 3, -1 ) >= 0 ) ? new Msg( message ) : null;
+      case Message.ERROR: return new ServerError( message );
+      
+      default: return null;
+    }
+  }
+
+  /**
+   * Returns whether a command has a record, i.e. whether a message of that
+   * type without a record lacks a field.
+   *
+   * @param type The command.
+   * @return Whether <pre>of()</pre> makes records for the command.
+   */
+  static boolean hasRecord( int type ) {
+    
+    switch( type ) {
+      
+      case Message.USR:
+      case Message.CHL:
+      case Message.XFR:
+      case Message.RNG:
+      case Message.CAL:
+      case Message.REA:
+      case Message.ILN:
+      case Message.NLN:
+      case Message.FLN:
+      case Message.BPR:
+      case Message.ADD:
+      case Message.REM:
+      case Message.SYN:
+      case Message.LST:
+      case Message.LSG:
+      case Message.MSG:
+      case Message.ERROR: return true;
+      
+      default: return false;
+    }
+  }
+
+  /**
+   * Returns whether a token names a single contact list (FL, AL, BL or RL).
+   *
+   * @param message The message.
+   * @param index Index of the token.
+   * @return Whether the token is a list name.
+   */
+  private static boolean isListName( IncomingMessage message, int index ) {
+    
+    return ContactList.hContactListMap.containsKey( message.getToken( index ) );
+  }
+
+  /**
+   * Returns the numbers of a comma separated list of group IDs, skipping
+   * anything that is not a number.
+   *
+   * @param groupIDs The list, e.g. "0,2".
+   * @return The group IDs, as Integers.
+   */
+  private static ArrayList parseGroups( String groupIDs ) {
+    
+    ArrayList groups = new ArrayList();
+    int       value  = 0;
+    int       digits = 0;
+    
+    for( int i = 0; i <= groupIDs.length(); i++ ) {
+      char c = ( i < groupIDs.length() ) ? groupIDs.charAt( i ) : ',';
+      
+      if( c == ',' ) {
+        if( digits > 0 && digits < 10 )
+          groups.add( Integer.valueOf( value ) );
+        
+        value  = 0;
+        digits = 0;
+      }
+      else if( c >= '0' && c <= '9' && digits >= 0 ) {
+        value = value * 10 + ( c - '0' );
+        digits++;
+      }
+      else
+        digits = -1;
+    }
+    
+    return groups;
+  }
+
+  /**
+   * Returns the type of the command.
+   *
+   * @return The command, one of the <pre>Message</pre> constants.
+   */
+  int getType() {
+    
+    return message.getType();
+  }
+
+  /**
+   * The presence of a contact: an ILN, NLN or FLN.
+   */
+  static abstract class Presence extends MessageRecord {
+
+    private Presence( IncomingMessage message ) {
+      
+      super( message );
+    }
+
+    /** @return The raw status, e.g. NLN or AWY; FLN for a contact gone offline. */
+    abstract String getStatus();
+
+    /** @return The Passport user name of the contact. */
+    abstract String getUserName();
+
+    /** @return The friendly name, still URL-encoded, or null for an FLN. */
+    abstract String getFriendlyName();
+
+    /** @return The friendly name, URL-decoded, or null for an FLN. */
+    abstract String getDecodedFriendlyName();
+  }
+
+  /**
+   * <pre>ILN TransactionID Status UserName FriendlyName</pre>
+   */
+  final static class Iln extends Presence {
+
+    private Iln( IncomingMessage message ) {
+      
+      super( message );
+    }
+
+    String getStatus() {
+      
+      return message.getToken( 2 );
+    }
+
+    String getUserName() {
+      
+      return message.getToken( 3 );
+    }
+
+    String getFriendlyName() {
+      
+      return message.getToken( 4 );
+    }
+
+    String getDecodedFriendlyName() {
+      
+      return message.getDecodedToken( 4 );
+    }
+  }
+
+  /**
+   * <pre>NLN Status UserName FriendlyName</pre>
+   */
+  final static class Nln extends Presence {
+
+    private Nln( IncomingMessage message ) {
+      
+      super( message );
+    }
+
+    String getStatus() {
+      
+      return message.getToken( 1 );
+    }
+
+    String getUserName() {
+      
+      return message.getToken( 2 );
+    }
+
+    String getFriendlyName() {
+      
+      return message.getToken( 3 );
+    }
+
+    String getDecodedFriendlyName() {
+      
+      return message.getDecodedToken( 3 );
+    }
+  }
+
+  /**
+   * <pre>FLN UserName</pre>
+   */
+  final static class Fln extends Presence {
+
+    private Fln( IncomingMessage message ) {
+      
+      super( message );
+    }
+
+    String getStatus() {
+      
+      return "FLN";
+    }
+
+    String getUserName() {
+      
+      return message.getToken( 1 );
+    }
+
+    String getFriendlyName() {
+      
+      return null;
+    }
+
+    String getDecodedFriendlyName() {
+      
+      return null;
+    }
+  }
+
+  /**
+   * <pre>USR TransactionID OK UserName FriendlyName
+   * USR TransactionID TWN S Challenge</pre>
+   */
+  final static class Usr extends MessageRecord {
+
+    private Usr( IncomingMessage message ) {
+      
+      super( message );
+    }
+
+    /** @return The security protocol, or OK once the user is signed in. */
+    String getSecurityProtocol() {
+      
+      return message.getToken( 2 );
+    }
+
+    /** @return Whether the user is signed in. */
+    boolean isOK() {
+      
+      return "OK".equals( getSecurityProtocol() );
+    }
+
+    /** @return The challenge to answer with a Passport ticket, or null. */
+    String getChallenge() {
+      
+      return ( !isOK() && message.getTokenCount() > 4 ) ? message.getToken( 4 ) : null;
+    }
+  }
+
+  /**
+   * <pre>CHL TransactionID Hash</pre>
+   */
+  final static class Chl extends MessageRecord {
+
+    private Chl( IncomingMessage message ) {
+      
+      super( message );
+    }
+
+    /** @return The challenge to answer with a QRY. */
+    String getChallengeHash() {
+      
+      return message.getToken( 2 );
+    }
+  }
+
+  /**
+   * <pre>XFR TransactionID ReferralType Address[:PortNumber] [CKI Hash]</pre>
+   */
+  final static class Xfr extends MessageRecord {
+
+    private Xfr( IncomingMessage message ) {
+      
+      super( message );
+    }
+
+    /** @return SB for a switchboard server, NS for a notification server. */
+    String getReferralType() {
+      
+      return message.getToken( 2 );
+    }
+
+    /** @return Whether the referral is to a switchboard server. */
+    boolean isSwitchboard() {
+      
+      return "SB".equals( getReferralType() );
+    }
+
+    /** @return The address of the server. */
+    String getServerIP() {
+      
+      return message.getHost( 3 );
+    }
+
+    /** @return The port of the server; 1863 when there is none. */
+    int getServerPort() {
+      
+      return message.getPort( 3 );
+    }
+
+    /** @return The hash to authenticate with at a switchboard server, or null. */
+    String getChallengeHash() {
+      
+      return ( message.getTokenCount() > 5 ) ? message.getToken( 5 ) : null;
+    }
+  }
+
+  /**
+   * <pre>RNG SessionID Address:Port CKI Hash UserName FriendlyName</pre>
+   */
+  final static class Rng extends MessageRecord {
+
+    private Rng( IncomingMessage message ) {
+      
+      super( message );
+    }
+
+    String getSessionID() {
+      
+      return message.getToken( 1 );
+    }
+
+    String getServerIP() {
+      
+      return message.getHost( 2 );
+    }
+
+    int getServerPort() {
+      
+      return message.getPort( 2 );
+    }
+
+    String getChallengeHash() {
+      
+      return message.getToken( 4 );
+    }
+
+    String getUserName() {
+      
+      return message.getToken( 5 );
+    }
+  }
+
+  /**
+   * <pre>CAL TransactionID RINGING SessionID</pre>
+   */
+  final static class Cal extends MessageRecord {
+
+    private Cal( IncomingMessage message ) {
+      
+      super( message );
+    }
+
+    String getSessionID() {
+      
+      return message.getToken( 3 );
+    }
+  }
+
+  /**
+   * <pre>REA TransactionID SerialNumber UserName FriendlyName</pre>
+   */
+  final static class Rea extends MessageRecord {
+
+    private Rea( IncomingMessage message ) {
+      
+      super( message );
+    }
+
+    String getUserName() {
+      
+      return message.getToken( 3 );
+    }
+
+    String getFriendlyName() {
+      
+      return message.getToken( 4 );
+    }
+  }
+
+  /**
+   * <pre>BPR [SerialNumber] UserName Property [Value]</pre>
+   */
+  final static class Bpr extends MessageRecord {
+
+    private Bpr( IncomingMessage message ) {
+      
+      super( message );
+    }
+
+    String getUserName() {
+      
+      return message.getToken( 2 );
+    }
+
+    String getProperty() {
+      
+      return message.getToken( 3 );
+    }
+
+    /** @return The new value of the property, or null when it was cleared. */
+    String getValue() {
+      
+      return ( message.getTokenCount() > 4 ) ? message.getToken( 4 ) : null;
+    }
+  }
+
+  /**
+   * <pre>ADD TransactionID List SerialNumber UserName FriendlyName</pre>
+   */
+  final static class Add extends MessageRecord {
+
+    /** Version of the contact list, or -1. */
+    final int serialNumber;
+
+    private Add( IncomingMessage message ) {
+      
+      super( message );
+      serialNumber = message.getIntToken( 3, -1 );
+    }
+
+    Hashtable getListType() {
+      
+      return ContactList.parseListType( message.getToken( 2 ) );
+    }
+
+    int getSerialNumber() {
+      
+      return serialNumber;
+    }
+
+    String getUserName() {
+      
+      return message.getToken( 4 );
+    }
+
+    String getFriendlyName() {
+      
+      return message.getToken( 5 );
+    }
+  }
+
+  /**
+   * <pre>REM TransactionID List SerialNumber UserName</pre>
+   */
+  final static class Rem extends MessageRecord {
+
+    /** Version of the contact list, or -1. */
+    final int serialNumber;
+
+    private Rem( IncomingMessage message ) {
+      
+      super( message );
+      serialNumber = message.getIntToken( 3, -1 );
+    }
+
+    Hashtable getListType() {
+      
+      return ContactList.parseListType( message.getToken( 2 ) );
+    }
+
+    int getSerialNumber() {
+      
+      return serialNumber;
+    }
+
+    String getUserName() {
+      
+      return message.getToken( 4 );
+    }
+  }
+
+  /**
+   * <pre>SYN TransactionID Version [Contacts Groups]</pre>
+   */
+  final static class Syn extends MessageRecord {
+
+    /** Version of the server's contact list, or -1. */
+    final int version;
+
+    /** Number of contacts sent next, or -1 when the list is up to date. */
+    final int contacts;
+
+    /** Number of groups sent next, or -1 when the list is up to date. */
+    final int groups;
+
+    private Syn( IncomingMessage message ) {
+      
+      super( message );
+      version = message.getIntToken( 2, -1 );
+      
+      int contactCount = message.getIntToken( 3, -1 );
+      int groupCount   = message.getIntToken( 4, -1 );
+      
+      /* Both or neither */
+      contacts = ( contactCount >= 0 && groupCount >= 0 ) ? contactCount : -1;
+      groups   = ( contactCount >= 0 && groupCount >= 0 ) ? groupCount : -1;
+    }
+
+    int getVersion() {
+      
+      return version;
+    }
+
+    int getContactCount() {
+      
+      return contacts;
+    }
+
+    int getGroupCount() {
+      
+      return groups;
+    }
+  }
+
+  /**
+   * A contact sent by a SYN, in either form:
+   * <pre>LST UserName FriendlyName Lists [GroupIDs]
+   * LST TransactionID List SerialNumber ItemNumber TotalItems UserName FriendlyName [GroupIDs]</pre>
+   * The lists of the first form are a bit mask; the second names one list.
+   */
+  final static class Lst extends MessageRecord {
+
+    /** Index of the user name; the friendly name follows it. */
+    final int userIndex;
+
+    /** Index of the list or lists the contact is on. */
+    final int listIndex;
+
+    private Lst( IncomingMessage message, int userIndex, int listIndex ) {
+      
+      super( message );
+      this.userIndex = userIndex;
+      this.listIndex = listIndex;
+    }
+
+    /**
+     * Returns the record of an LST in either form.
+     *
+     * @param message The message.
+     * @return The record, or null for an empty list, or a malformed line.
+     */
+    private static Lst from( IncomingMessage message ) {
+      
+      int count = message.getTokenCount();
+      
+      if( ( count == 4 || count == 5 ) && message.getIntToken( 3, -1 ) >= 0 )
+        return new Lst( message, 1, 3 );
+      
+      if( count >= 8 && isListName( message, 2 ) )
+        return new Lst( message, 6, 2 );
+      
+      return null;
+    }
+
+    String getUserName() {
+      
+      return message.getToken( userIndex );
+    }
+
+    String getFriendlyName() {
+      
+      return message.getDecodedToken( userIndex + 1 );
+    }
+
+    Hashtable getListType() {
+      
+      return ContactList.parseListType( message.getToken( listIndex ) );
+    }
+
+    /** @return The IDs of the contact's groups, as Integers, or null when it has none. */
+    ArrayList getGroups() {
+      
+      int index = ( listIndex == 3 ) ? 4 : 8;
+      
+      return ( message.getTokenCount() > index ) ? parseGroups( message.getToken( index ) ) : null;
+    }
+  }
+
+  /**
+   * A group sent by a SYN, in either form:
+   * <pre>LSG GroupID GroupName 0
+   * LSG TransactionID SerialNumber ItemNumber TotalItems GroupID GroupName 0</pre>
+   */
+  final static class Lsg extends MessageRecord {
+
+    /** ID of the group. */
+    final int groupID;
+
+    /** Index of the group name. */
+    final int nameIndex;
+
+    private Lsg( IncomingMessage message, int groupID, int nameIndex ) {
+      
+      super( message );
+      this.groupID   = groupID;
+      this.nameIndex = nameIndex;
+    }
+
+    /**
+     * Returns the record of an LSG in either form.
+     *
+     * @param message The message.
+     * @return The record, or null for a malformed line.
+     */
+    private static Lsg from( IncomingMessage message ) {
+      
+      int count = message.getTokenCount();
+      
+      if( count >= 7 && message.getIntToken( 5, -1 ) >= 0 )
+        return new Lsg( message, message.getIntToken( 5, -1 ), 6 );
+      
+      if( count >= 3 && message.getIntToken( 1, -1 ) >= 0 )
+        return new Lsg( message, message.getIntToken( 1, -1 ), 2 );
+      
+      return null;
+    }
+
+    int getGroupID() {
+      
+      return groupID;
+    }
+
+    String getGroupName() {
+      
+      return message.getDecodedToken( nameIndex );
+    }
+  }
+
+  /**
+   * <pre>MSG UserName FriendlyName BodyLength</pre>
+   */
+  final static class Msg extends MessageRecord {
+
+    /** Length of the body in bytes. */
+    final int bodyLength;
+
+    private Msg( IncomingMessage message ) {
+      
+      super( message );
+      bodyLength = message.getIntToken( 3, -1 );
+    }
+
+    String getUserName() {
+      
+      return message.getToken( 1 );
+    }
+
+    String getFriendlyName() {
+      
+      return message.getToken( 2 );
+    }
+
+    int getBodyLength() {
+      
+      return bodyLength;
+    }
+  }
+
+  /**
+   * <pre>ErrorCode [TransactionID]</pre>
+   */
+  final static class ServerError extends MessageRecord {
+
+    /** The error code, or -1. */
+    final int errorCode;
+
+    private ServerError( IncomingMessage message ) {
+      
+      super( message );
+      errorCode = message.getIntToken( 0, -1 );
+    }
+
+    int getErrorCode() {
+      
+      return errorCode;
+    }
+  }
+}
+
+// MessageRecord class
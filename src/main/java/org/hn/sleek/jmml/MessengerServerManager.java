@@ -32,6 +32,8 @@ package org.hn.sleek.jmml;
 
 import java.io.*;
 import java.util.*;
+import java.util.concurrent.*;
+import java.util.function.*;
 import java.security.*;
 import com.sun.net.ssl.*;
 
@@ -49,6 +51,26 @@ public class MessengerServerManager {
   Vector                         clientListeners;
   NotificationServerConnector    notificationServer;
 
+  /** Carries events to the listeners, each on its own thread. */
+  EventBus                       eventBus = new EventBus();
+
+  /** Handlers of the payloads of instant messages, by content type. */
+  PayloadRouter                  payloadRouter;
+
+  /** Notification Servers named by the Dispatch Server, by account. */
+  NotificationServerCache        nsCache = new NotificationServerCache();
+
+  /** Whether dropped connections are brought back automatically. */
+  boolean                        autoReconnect = Boolean.getBoolean( "jmml.reconnect" );
+
+  /** Switchboard sessions kept ready, and how long they may stay unused. */
+  int                            switchboardPoolSize        = SwitchboardPool.DEFAULT_SIZE;
+  long                           switchboardPoolIdleTimeout = SwitchboardPool.DEFAULT_IDLE;
+
+  /** Switchboard sessions kept connected at most, and how long they may stay unused. */
+  int                            switchboardMaxOpen         = SwitchboardRegistry.DEFAULT_MAX;
+  long                           switchboardIdleTimeout     = SwitchboardRegistry.DEFAULT_IDLE;
+
         
   /**
    * Initializes all class data.
@@ -60,6 +82,7 @@ public class MessengerServerManager {
   private MessengerServerManager() {
   
     clientListeners = new Vector();
+    payloadRouter   = new PayloadRouter( this );
           
     if( Security.getProvider( "SunJSSE" ) == null )  {
       Security.addProvider( new com.sun.net.ssl.internal.ssl.Provider() );
@@ -146,22 +169,296 @@ public class MessengerServerManager {
    */
   public void signIn( String userName, String password, String strStatus, boolean blocking ) {
 
-    DispatchServerConnector ds         = new DispatchServerConnector();
-    ArrayList               serverInfo = ds.getNSServer( userName );
+    CompletableFuture signIn = signInAsync( userName, password, strStatus );
     
-    
-    /**
-     * We need check if NS is available.
-     * If a list of NS Servers is null (for any reason)
-     * DS server could be connected.
-     */
-    if( serverInfo == null )  {
-      fireLoginError();
-      return;
+    if( blocking ) {
+      try {
+        signIn.get();
+      } catch( InterruptedException e ) {
+        
+      } catch( ExecutionException e ) {
+        /* Already reported through fireLoginError() */
+      }
     }
-                
-    notificationServer = new NotificationServerConnector( ( String ) serverInfo.get( 0 ), ( Integer ) serverInfo.get( 1 ) );
-    notificationServer.signIn( userName, password, strStatus, blocking );
+  }
+
+  /**
+   * Signs the user into the service without blocking the caller.  The
+   * Dispatch Server lookup, the Notification Server handshake, the Passport
+   * ticket request and the final authentication each have their own
+   * deadline (system properties jmml.timeout.dispatch, jmml.timeout.handshake,
+   * jmml.timeout.passport and jmml.timeout.authentication).  Listeners still
+   * receive loginAccepted or loginError.  The Dispatch Server lookup is
+   * skipped while the Notification Server it named for this account is
+   * cached (see setNotificationServerCacheTTL()).
+   *
+   * @param userName - User's sign in name
+   * @param password - User's password
+   * @param strStatus - The initial user status
+   * @return A future completed when the user is signed in, or failed with an MSNException.
+   */
+  public CompletableFuture signInAsync( String userName, String password, String strStatus ) {
+    
+    return signInAsync( userName, password, strStatus,
+                        DispatchServerConnector.DEFAULT_TIMEOUT,
+                        NotificationServerConnector.HANDSHAKE_TIMEOUT,
+                        NotificationServerConnector.PASSPORT_TIMEOUT,
+                        NotificationServerConnector.AUTHENTICATION_TIMEOUT );
+  }
+
+  /**
+   * Signs the user into the service without blocking the caller, with the
+   * given deadline for each phase of the sign in.
+   *
+   * @param userName - User's sign in name
+   * @param password - User's password
+   * @param strStatus - The initial user status
+   * @param dispatchTimeout - Milliseconds for the Dispatch Server lookup
+   * @param handshakeTimeout - Milliseconds for the Notification Server handshake
+   * @param passportTimeout - Milliseconds for the Passport ticket request
+   * @param authenticationTimeout - Milliseconds for the final authentication
+   * @return A future completed when the user is signed in, or failed with an MSNException.
+   */
+  public CompletableFuture signInAsync( final String userName, final String password, final String strStatus,
+                                        long dispatchTimeout, final long handshakeTimeout,
+                                        final long passportTimeout, final long authenticationTimeout ) {
+    
+    CompletableFuture connection = connectNotificationServer( userName, dispatchTimeout, handshakeTimeout );
+    
+    CompletableFuture signIn = connection.thenCompose( new Function() {
+      
+      public Object apply( Object result ) {
+        
+        notificationServer = ( NotificationServerConnector ) result;
+        notificationServer.setAutoReconnect( autoReconnect );
+        notificationServer.setSwitchboardPool( switchboardPoolSize, switchboardPoolIdleTimeout );
+        notificationServer.setSwitchboardLimits( switchboardMaxOpen, switchboardIdleTimeout );
+        return notificationServer.authenticateAsync( userName, password, strStatus, handshakeTimeout, passportTimeout, authenticationTimeout );
+      }
+    } );
+    
+    return signIn.whenComplete( new BiConsumer() {
+      
+      public void accept( Object result, Object error ) {
+        if( error != null ) {
+          System.err.println( "MessengerServerManager.signInAsync() - " + error );
+          fireLoginError();
+        }
+      }
+    } );
+  }
+
+  /**
+   * Connects to the user's Notification Server.  The server the Dispatch
+   * Server named last time is tried first, if it is still in the cache;
+   * when it refuses the connection, the Dispatch Server is asked again.
+   *
+   * @param userName - User's sign in name
+   * @param dispatchTimeout - Milliseconds for the Dispatch Server lookup
+   * @param connectTimeout - Milliseconds for connecting to the Notification Server
+   * @return A future for the connected NotificationServerConnector.
+   */
+  private CompletableFuture connectNotificationServer( final String userName, final long dispatchTimeout, final long connectTimeout ) {
+    
+    ArrayList serverInfo = nsCache.get( userName );
+    
+    if( serverInfo == null )
+      return connectThroughDispatch( userName, dispatchTimeout, connectTimeout );
+    
+    final NotificationServerConnector ns = new NotificationServerConnector( ( String ) serverInfo.get( 0 ), ( Integer ) serverInfo.get( 1 ) );
+    
+    return ns.connectAsync( connectTimeout ).handle( new BiFunction() {
+      
+      public Object apply( Object result, Object error ) {
+        
+        if( error == null )
+          return CompletableFuture.completedFuture( ns );
+        
+        System.err.println( "MessengerServerManager.connectNotificationServer() - Cached server failed, asking the Dispatch Server: " + error );
+        nsCache.remove( userName );
+        
+        return connectThroughDispatch( userName, dispatchTimeout, connectTimeout );
+      }
+    } ).thenCompose( new Function() {
+      
+      public Object apply( Object result ) {
+        return result;
+      }
+    } );
+  }
+
+  /**
+   * Asks the Dispatch Server for the user's Notification Server, remembers
+   * it, and connects to it.
+   *
+   * @param userName - User's sign in name
+   * @param dispatchTimeout - Milliseconds for the Dispatch Server lookup
+   * @param connectTimeout - Milliseconds for connecting to the Notification Server
+   * @return A future for the connected NotificationServerConnector.
+   */
+  private CompletableFuture connectThroughDispatch( final String userName, long dispatchTimeout, final long connectTimeout ) {
+    
+    DispatchServerConnector ds = new DispatchServerConnector();
+    
+    return ds.getNSServerAsync( userName, dispatchTimeout ).thenCompose( new Function() {
+      
+      public Object apply( Object result ) {
+        
+        ArrayList serverInfo = ( ArrayList ) result;
+        
+        nsCache.put( userName, serverInfo );
+        
+        final NotificationServerConnector ns = new NotificationServerConnector( ( String ) serverInfo.get( 0 ), ( Integer ) serverInfo.get( 1 ) );
+        
+        return ns.connectAsync( connectTimeout ).thenApply( new Function() {
+          
+          public Object apply( Object result ) {
+            return ns;
+          }
+        } );
+      }
+    } );
+  }
+
+  /**
+   * Brings the connection back automatically when it drops without the user
+   * signing out, with a growing, randomized delay between attempts.  The
+   * contact list, groups and status are kept, and listeners only hear about
+   * what changed meanwhile; serverDisconnected is fired only if reconnecting
+   * is given up (system property jmml.reconnect.attempts).
+   *
+   * @param autoReconnect Whether to reconnect automatically.
+   */
+  public void setAutoReconnect( boolean autoReconnect ) {
+    
+    this.autoReconnect = autoReconnect;
+    
+    if( notificationServer != null )
+      notificationServer.setAutoReconnect( autoReconnect );
+  }
+
+  /**
+   * Keeps switchboard sessions connected and authenticated ahead of time, so
+   * that the first message to a buddy only has to call the buddy.  Contacts
+   * messaged often (system property jmml.sbpool.hot) also get a session as
+   * soon as they come online.
+   *
+   * @param size Number of sessions kept ready; 0 disables the pool.
+   * @param idleTimeout Milliseconds a ready session may stay unused before it is closed.
+   */
+  public void setSwitchboardPool( int size, long idleTimeout ) {
+    
+    switchboardPoolSize        = size;
+    switchboardPoolIdleTimeout = idleTimeout;
+    
+    if( notificationServer != null )
+      notificationServer.setSwitchboardPool( size, idleTimeout );
+  }
+
+  /**
+   * Sets how long a switchboard session may stay unused before it is closed
+   * (system property jmml.sb.idle), and how many sessions may stay connected
+   * at once (jmml.sb.max).  When another session connects, the least recently
+   * used one is closed.
+   *
+   * @param maxOpen Number of connected sessions; 0 means no limit.
+   * @param idleTimeout Milliseconds a session may stay unused.
+   */
+  public void setSwitchboardLimits( int maxOpen, long idleTimeout ) {
+    
+    switchboardMaxOpen     = maxOpen;
+    switchboardIdleTimeout = idleTimeout;
+    
+    if( notificationServer != null )
+      notificationServer.setSwitchboardLimits( maxOpen, idleTimeout );
+  }
+
+  /**
+   * Returns the number of switchboard sessions in each state, the sessions
+   * closed for being idle or to make room, and the sockets and threads in use.
+   *
+   * @return The counters, or null when not signed in.
+   */
+  public String getSwitchboardStatistics() {
+    
+    if( notificationServer != null )
+      return notificationServer.getSwitchboardStatistics();
+    
+    return null;
+  }
+
+  /**
+   * Returns the counters of the switchboard session pool: ready and opening
+   * sessions, hits, misses, expired and speculative sessions.
+   *
+   * @return The counters, or null when not signed in.
+   */
+  public String getSwitchboardPoolStatistics() {
+    
+    if( notificationServer != null )
+      return notificationServer.getSwitchboardPoolStatistics();
+    
+    return null;
+  }
+
+  /**
+   * Returns the counters of inbound dispatch: packets handled ahead of
+   * presence, presence and property updates queued, superseded by a later
+   * update for the same contact, and shed when too many were queued; and
+   * the events the listeners never got because the event ring was full.
+   *
+   * @return The counters.
+   */
+  public String getDispatchStatistics() {
+    
+    return InboundDispatcher.getStatistics() + " events-dropped=" + eventBus.getDroppedCount();
+  }
+
+  /**
+   * Sets how long the Notification Server the Dispatch Server named for an
+   * account is reused for later sign ins, skipping the Dispatch Server.
+   *
+   * @param ttl Milliseconds; zero or less always asks the Dispatch Server.
+   */
+  public void setNotificationServerCacheTTL( long ttl ) {
+    
+    nsCache.setTTL( ttl );
+  }
+
+  /**
+   * Keeps the Notification Server cache in a properties file, so that it
+   * survives restarts of the application.
+   *
+   * @param file The file, or null to keep the cache in memory only.
+   */
+  public void setNotificationServerCacheFile( File file ) {
+    
+    nsCache.setStore( file );
+  }
+
+  /**
+   * Selects the transport used by new connections to the MSN servers.
+   * ServerConnection.TRANSPORT_NIO multiplexes all connections over a few
+   * selector threads instead of using one reading thread per connection.
+   *
+   * @param transport ServerConnection.TRANSPORT_BLOCKING or ServerConnection.TRANSPORT_NIO.
+   */
+  public void setTransport( int transport ) {
+    
+    ServerConnection.setDefaultTransport( transport );
+  }
+
+  /**
+   * Selects how new connections use threads.  ServerConnection.EXECUTION_VIRTUAL
+   * reads connections and calls the listeners back on virtual threads (on
+   * JVMs that have them), so that a slow listener does not stall a socket
+   * and thousands of sessions stay cheap.
+   *
+   * @param execution ServerConnection.EXECUTION_PLATFORM or ServerConnection.EXECUTION_VIRTUAL.
+   */
+  public void setExecutionMode( int execution ) {
+    
+    ServerConnection.setDefaultExecutionMode( execution );
   }
 
   /**
@@ -321,6 +618,18 @@ public class MessengerServerManager {
     notificationServer.sendMessage( msg );
   }
 
+  /**
+   * Sends an MSNP packet to the notification server, and returns a future
+   * for its reply instead of waiting for a listener callback.
+   *
+   * @param msg The MSNP packet to send.
+   * @return A future completed with the reply, or with an MSNException.
+   */
+  public CompletableFuture sendMessageAsync( OutgoingMessage msg ) {
+    
+    return notificationServer.sendMessageAsync( msg );
+  }
+
   /**
    * Add a MSN event listener to MessengerServerMaager 
    * created instance.
@@ -329,6 +638,7 @@ public class MessengerServerManager {
   public synchronized void addMessengerClientListener( MessengerClientListener newListener ) {
     
     clientListeners.add( newListener );
+    eventBus.subscribe( newListener, false );
   }
 
   /**
@@ -338,53 +648,78 @@ public class MessengerServerManager {
    */
   public synchronized void removeMessengerClientListener( MessengerClientListener listener ) {
     
-    clientListeners.remove( listener );
+    if( clientListeners.remove( listener ) )
+      eventBus.unsubscribe( listener, false );
   }
 
   /**
-   * Event fire things -- if any of these fail, the listener is removed from the listener 
-   * list -- will also dump a debug message
+   * Add a typing listener to MessengerServerMaager created instance.
+   * @param newListener The listener to add;
    */
-  protected void fireIncomingMessageEvent( String userName, String friendlyName, String message ) {
-  
-    Vector         cloneListener;
+  public synchronized void addTypingListener( TypingListener newListener ) {
     
-    synchronized( this )  {
-      cloneListener = ( Vector ) clientListeners.clone();
-    }
-    
-    IncomingMessageEvent   event     = new IncomingMessageEvent( userName, friendlyName, message );
-    ListIterator           listeners = cloneListener.listIterator();
+    eventBus.subscribe( newListener, true );
+  }
+
+  /**
+   * Remove a typing listener from MessengerServerMaager created instance.
+   * @param listener The listener to remove;
+   */
+  public synchronized void removeTypingListener( TypingListener listener ) {
     
-    while( listeners.hasNext() ) {
-      try {
-        MessengerClientListener listener = ( MessengerClientListener ) listeners.next();
-        listener.incomingMessage( event );
-      } catch( Exception e ) {
-        System.err.println( "MessengerServerManager.fireIncomingMessageEvent() - " + e );
-      }
-    }
+    eventBus.unsubscribe( listener, true );
   }
 
-  protected void fireContactChangeEvent( String userName, int property, Object newValue, String sourceCommand ) {
+  /**
+   * Sets the handler of the instant message payloads of a content type,
+   * e.g. "text/x-msmsgsinvite".  Instant messages ("text/plain") and typing
+   * notifications ("text/x-msmsgscontrol") are handled by default, and fire
+   * <pre>incomingMessage</pre> and <pre>typingNotification</pre>; setting
+   * their handler replaces that.
+   *
+   * @param contentType The content type, without parameters.
+   * @param handler The handler, or null to drop payloads of that type.
+   */
+  public void setPayloadHandler( String contentType, PayloadHandler handler ) {
     
-    Vector         cloneListener;
+    payloadRouter.setHandler( contentType, handler );
+  }
+
+  /**
+   * Event fire things -- events are put on the event bus and delivered to
+   * each listener on its own thread, in the order they were fired; a
+   * listener that throws gets the next events all the same.
+   */
+  protected void fireIncomingMessageEvent( String userName, String friendlyName, String message ) {
+  
+    eventBus.publish( EventBus.INCOMING_MESSAGE, new IncomingMessageEvent( userName, friendlyName, message ) );
+  }
+
+  /**
+   * Tells the typing listeners that a buddy is typing.
+   */
+  protected void fireTypingNotification( String userName ) {
     
-    synchronized( this )  {
-      cloneListener = ( Vector ) clientListeners.clone();
-    }
+    eventBus.publish( EventBus.TYPING, userName );
+  }
+
+  protected void fireContactChangeEvent( String userName, int property, Object newValue, String sourceCommand ) {
     
-    ContactChangeEvent  event     = new ContactChangeEvent( userName, property, newValue, sourceCommand );
-    ListIterator        listeners = cloneListener.listIterator();
+    eventBus.publish( EventBus.CONTACT_CHANGED, new ContactChangeEvent( userName, property, newValue, sourceCommand ) );
+  }
+
+  /**
+   * Fires a contact change reported by a packet, which listeners format
+   * only if they ask for the source command.
+   *
+   * @param userName The contact.
+   * @param property The property that changed, e.g. Contact.STATUS.
+   * @param newValue The new value.
+   * @param source The packet, detached.
+   */
+  void fireContactChangeEvent( String userName, int property, Object newValue, Message source ) {
     
-    while( listeners.hasNext() ) {
-      try {
-        MessengerClientListener listener = ( MessengerClientListener ) listeners.next();
-        listener.contactPropertyChanged( event );
-      } catch( Exception e ) {
-        System.err.println( "MessengerServerManager.fireContactChangeEvent() - " + e );
-      }
-    }
+    eventBus.publish( EventBus.CONTACT_CHANGED, new ContactChangeEvent( userName, property, newValue, source ) );
   }
   
   protected void fireReverseListChangedEvent( String userName ) {
@@ -396,22 +731,7 @@ public class MessengerServerManager {
    */
   protected void fireServerDisconnected() {
 
-    Vector         cloneListener;
-    
-    synchronized( this )  {
-      cloneListener = ( Vector ) clientListeners.clone();
-    }
-    
-    ListIterator listeners = cloneListener.listIterator();
-                
-    while( listeners.hasNext() ) {
-      try {
-        MessengerClientListener listener = ( MessengerClientListener ) listeners.next();
-        listener.serverDisconnected();
-      } catch( Exception e ) {
-        System.err.println( "MessengerServerManager.fireServerDisconnected() - " + e );
-      }
-    }
+    eventBus.publish( EventBus.SERVER_DISCONNECTED, null );
   }
         
   /**
@@ -419,22 +739,7 @@ public class MessengerServerManager {
    */
   protected void fireLoginError() {
 
-    Vector         cloneListener;
-    
-    synchronized( this )  {
-      cloneListener = ( Vector ) clientListeners.clone();
-    }
-    
-    ListIterator listeners = cloneListener.listIterator();
-                
-    while( listeners.hasNext() ) {
-      try {
-        MessengerClientListener listener = ( MessengerClientListener ) listeners.next();
-        listener.loginError();
-      } catch( Exception e ) {
-        System.err.println( "MessengerServerManager.fireLoginError() - " + e );
-      }
-    }
+    eventBus.publish( EventBus.LOGIN_ERROR, null );
   }
         
   /**
@@ -442,22 +747,7 @@ public class MessengerServerManager {
    */
   protected void fireLoginAccepted() {
 
-    Vector         cloneListener;
-    
-    synchronized( this )  {
-      cloneListener = ( Vector ) clientListeners.clone();
-    }
-    
-    ListIterator listeners = cloneListener.listIterator();
-                
-    while( listeners.hasNext() ) {
-      try {
-        MessengerClientListener listener = ( MessengerClientListener ) listeners.next();
-        listener.loginAccepted();
-      } catch( Exception e ) {
-        System.err.println( "MessengerServerManager.fireLoginAccepted() - " + e );
-      }
-    }
+    eventBus.publish( EventBus.LOGIN_ACCEPTED, null );
   }
         
   /**
@@ -467,22 +757,7 @@ public class MessengerServerManager {
    */
   protected void fireGroupReceived( String strGroupName ) {
 
-    Vector         cloneListener;
-    
-    synchronized( this )  {
-      cloneListener = ( Vector ) clientListeners.clone();
-    }
-    
-    ListIterator listeners = cloneListener.listIterator();
-                
-    while( listeners.hasNext() ) {
-      try {
-        MessengerClientListener listener = ( MessengerClientListener ) listeners.next();
-        listener.groupReceived( strGroupName );
-      } catch( Exception e ) {
-        System.err.println( "MessengerServerManager.fireGroupReceived() - " + e );
-      }
-    }
+    eventBus.publish( EventBus.GROUP_RECEIVED, strGroupName );
   }
         
   /**
@@ -491,22 +766,7 @@ public class MessengerServerManager {
    */
   protected void fireContactReceived( Contact contact ) {
 
-    Vector         cloneListener;
-    
-    synchronized( this )  {
-      cloneListener = ( Vector ) clientListeners.clone();
-    }
-    
-    ListIterator listeners = cloneListener.listIterator();
-                
-    while( listeners.hasNext() ) {
-      try {
-        MessengerClientListener listener = ( MessengerClientListener ) listeners.next();
-        listener.contactReceived( contact );
-      } catch( Exception e ) {
-        System.err.println( "MessengerServerManager.fireContactReceived() - " + e );
-      }
-    }
+    eventBus.publish( EventBus.CONTACT_RECEIVED, contact );
   }
   
   /**
@@ -515,22 +775,7 @@ public class MessengerServerManager {
    */
   protected void fireContactAdded( Contact contact ) {
 
-    Vector         cloneListener;
-    
-    synchronized( this )  {
-      cloneListener = ( Vector ) clientListeners.clone();
-    }
-    
-    ListIterator listeners = cloneListener.listIterator();
-                
-    while( listeners.hasNext() ) {
-      try {
-        MessengerClientListener listener = ( MessengerClientListener ) listeners.next();
-        listener.contactAdded( contact );
-      } catch( Exception e ) {
-        System.err.println( "MessengerServerManager.fireContactAdded() - " + e );
-      }
-    }
+    eventBus.publish( EventBus.CONTACT_ADDED, contact );
   }
   
   /**
@@ -539,22 +784,7 @@ public class MessengerServerManager {
    */
   protected void fireContactRemoved( Contact contact ) {
 
-    Vector         cloneListener;
-    
-    synchronized( this )  {
-      cloneListener = ( Vector ) clientListeners.clone();
-    }
-    
-    ListIterator listeners = cloneListener.listIterator();
-                
-    while( listeners.hasNext() ) {
-      try {
-        MessengerClientListener listener = ( MessengerClientListener ) listeners.next();
-        listener.contactRemoved( contact );
-      } catch( Exception e ) {
-        System.err.println( "MessengerServerManager.fireContactRemoved() - " + e );
-      }
-    }
+    eventBus.publish( EventBus.CONTACT_REMOVED, contact );
   }
 
   
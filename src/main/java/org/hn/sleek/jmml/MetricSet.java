@@ -0,0 +1,392 @@
+/*
+ * ===========================================================================
+ *  Copyright (C) 2002-2003  Tony Tang
+ *
+ *  This program is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation; either version 2 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program; if not, write to the Free Software
+ *  Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ * ===========================================================================
+ */
+
+/**
+ *
+ * $Id$
+ * $Author$
+ * $Name$
+ * $Revision$
+ * $State$
+ *
+ */
+
+package org.hn.sleek.jmml;
+
+import java.util.*;
+import java.util.concurrent.atomic.*;
+import javax.management.*;
+
+
+/**
+ * A set of metrics about one object of the library: a connection, a
+ * signed in user or a listener.  Counters are LongAdders the owner
+ * increments itself, gauges are read from the owner only when asked for,
+ * and histograms count durations; so keeping a metric up to date costs the
+ * owner a striped increment, and nothing is computed until the set is read.
+ * <p>
+ * The set is a platform MBean once registered with <pre>Metrics</pre>; each
+ * metric is a read-only attribute, and a histogram is shown as its count,
+ * sum and percentiles.  In the Prometheus dump, the labels of the set are
+ * added to every sample of its metrics.
+ */
+class MetricSet implements DynamicMBean {
+
+  /** Kinds of metrics. */
+  final static int       COUNTER    = 0;
+  final static int       GAUGE      = 1;
+  final static int       HISTOGRAM  = 2;
+
+  /** Names of the kinds, as in the Prometheus dump. */
+  final static String[]  KIND_NAMES = { "counter", "gauge", "histogram" };
+
+  /** Attributes shown for each histogram, after its own name. */
+  final static String[]  HISTOGRAM_ATTRIBUTES = { "Count", "Sum", "P50", "P99", "P999" };
+
+  /** Name of the MBean. */
+  final ObjectName       objectName;
+
+  /** Labels of the set, as name and value pairs. */
+  final String[]         labels;
+
+  /** The metrics, in the order they were added. */
+  final ArrayList        metrics    = new ArrayList();
+
+  
+  
+  /**
+   * Creates an empty set.
+   *
+   * @param type Type of the MBean, e.g. "Connection".
+   * @param name Name of the MBean, or null for a set of which there is only one.
+   * @param labels Labels of the set in the Prometheus dump, as name and value pairs.
+   */
+  MetricSet( String type, String name, String[] labels ) {
+    
+    String objectName = Metrics.DOMAIN + ":type=" + type;
+    
+    if( name != null )
+      objectName += ",name=" + ObjectName.quote( name );
+    
+    try {
+      this.objectName = new ObjectName( objectName );
+    } catch( MalformedObjectNameException e ) {
+      throw new IllegalArgumentException( e.toString() );
+    }
+    
+    this.labels = labels;
+  }
+
+  /**
+   * Adds a counter.
+   *
+   * @param family Name of the metric, in lower case words joined by underscores.
+   * @param help What the metric counts.
+   * @return The counter.
+   */
+  LongAdder counter( String family, String help ) {
+    
+    LongAdder counter = new LongAdder();
+    
+    add( new Metric( COUNTER, family, null, null, help, counter ) );
+    return counter;
+  }
+
+  /**
+   * Adds a counter of one value of a label, e.g. of one command type.
+   *
+   * @param family Name of the metric.
+   * @param label Name of the label.
+   * @param value Value of the label.
+   * @param help What the metric counts.
+   * @return The counter.
+   */
+  LongAdder counter( String family, String label, String value, String help ) {
+    
+    LongAdder counter = new LongAdder();
+    
+    add( new Metric( COUNTER, family, label, value, help, counter ) );
+    return counter;
+  }
+
+  /**
+   * Adds a counter the owner already keeps.
+   *
+   * @param family Name of the metric.
+   * @param help What the metric counts.
+   * @param counter The counter.
+   */
+  void counter( String family, String help, LongAdder counter ) {
+    
+    add( new Metric( COUNTER, family, null, null, help, counter ) );
+  }
+
+  /**
+   * Adds a gauge.
+   *
+   * @param family Name of the metric.
+   * @param help What the metric measures.
+   * @param gauge Reads the value.
+   */
+  void gauge( String family, String help, Gauge gauge ) {
+    
+    add( new Metric( GAUGE, family, null, null, help, gauge ) );
+  }
+
+  /**
+   * Adds a histogram of durations.
+   *
+   * @param family Name of the metric; it ends in "_seconds", the unit of the Prometheus dump.
+   * @param help What the durations are.
+   * @return The histogram.
+   */
+  Histogram histogram( String family, String help ) {
+    
+    Histogram histogram = new Histogram();
+    
+    add( new Metric( HISTOGRAM, family, null, null, help, histogram ) );
+    return histogram;
+  }
+
+  /**
+   * Adds a metric.
+   */
+  private synchronized void add( Metric metric ) {
+    
+    metrics.add( metric );
+  }
+
+  /**
+   * Returns the metrics.
+   *
+   * @return A copy of the list of metrics.
+   */
+  synchronized Metric[] getMetrics() {
+    
+    return ( Metric[] ) metrics.toArray( new Metric[metrics.size()] );
+  }
+
+  /**
+   * Returns the value of an attribute.
+   *
+   * @param attribute Name of the attribute.
+   * @return Its value, as a Long.
+   * @throws AttributeNotFoundException When the set has no such attribute.
+   */
+  public Object getAttribute( String attribute ) throws AttributeNotFoundException {
+    
+    Metric[] metrics = getMetrics();
+    
+    for( int i = 0; i < metrics.length; i++ ) {
+      Metric metric = metrics[i];
+      
+      if( metric.kind != HISTOGRAM ) {
+        if( metric.attribute.equals( attribute ) )
+          return Long.valueOf( metric.getValue() );
+        
+        continue;
+      }
+      
+      if( !attribute.startsWith( metric.attribute ) )
+        continue;
+      
+      Histogram histogram = ( Histogram ) metric.value;
+      String    suffix    = attribute.substring( metric.attribute.length() );
+      
+      if( suffix.equals( "Count" ) ) return Long.valueOf( histogram.getCount() );
+      if( suffix.equals( "Sum" ) )   return Long.valueOf( histogram.getSum() );
+      if( suffix.equals( "P50" ) )   return Long.valueOf( histogram.getPercentile( 0.5 ) );
+      if( suffix.equals( "P99" ) )   return Long.valueOf( histogram.getPercentile( 0.99 ) );
+      if( suffix.equals( "P999" ) )  return Long.valueOf( histogram.getPercentile( 0.999 ) );
+    }
+    
+    throw new AttributeNotFoundException( attribute );
+  }
+
+  /**
+   * Returns the values of several attributes; those the set does not have
+   * are left out.
+   *
+   * @param attributes Names of the attributes.
+   * @return Their values.
+   */
+  public AttributeList getAttributes( String[] attributes ) {
+    
+    AttributeList list = new AttributeList();
+    
+    for( int i = 0; i < attributes.length; i++ ) {
+      try {
+        list.add( new Attribute( attributes[i], getAttribute( attributes[i] ) ) );
+      } catch( AttributeNotFoundException e ) {
+        /* Left out */
+      }
+    }
+    
+    return list;
+  }
+
+  /**
+   * Metrics are read-only.
+   */
+  public void setAttribute( Attribute attribute ) throws AttributeNotFoundException {
+    
+    throw new AttributeNotFoundException( attribute.getName() + " is read-only" );
+  }
+
+  /**
+   * Metrics are read-only.
+   */
+  public AttributeList setAttributes( AttributeList attributes ) {
+    
+    return new AttributeList();
+  }
+
+  /**
+   * Answers the "toPrometheus" operation with the dump of every metric.
+   */
+  public Object invoke( String actionName, Object[] params, String[] signature ) throws MBeanException, ReflectionException {
+    
+    if( "toPrometheus".equals( actionName ) && ( params == null || params.length == 0 ) )
+      return Metrics.toPrometheus();
+    
+    throw new ReflectionException( new NoSuchMethodException( actionName ) );
+  }
+
+  /**
+   * Describes the attributes, one per counter and gauge, and several per
+   * histogram; durations are in nanoseconds.
+   */
+  public MBeanInfo getMBeanInfo() {
+    
+    Metric[]  metrics    = getMetrics();
+    ArrayList attributes = new ArrayList();
+    
+    for( int i = 0; i < metrics.length; i++ ) {
+      Metric metric = metrics[i];
+      
+      if( metric.kind != HISTOGRAM ) {
+        attributes.add( new MBeanAttributeInfo( metric.attribute, "long", metric.help, true, false, false ) );
+        continue;
+      }
+      
+      for( int j = 0; j < HISTOGRAM_ATTRIBUTES.length; j++ )
+        attributes.add( new MBeanAttributeInfo( metric.attribute + HISTOGRAM_ATTRIBUTES[j], "long", metric.help + " (" + HISTOGRAM_ATTRIBUTES[j] + ", nanoseconds)", true, false, false ) );
+    }
+    
+    MBeanOperationInfo[] operations = {
+      new MBeanOperationInfo( "toPrometheus", "Every metric of the library, in the Prometheus text format.", new MBeanParameterInfo[0], "java.lang.String", MBeanOperationInfo.INFO )
+    };
+    
+    return new MBeanInfo( getClass().getName(), "Metrics of " + objectName, ( MBeanAttributeInfo[] ) attributes.toArray( new MBeanAttributeInfo[attributes.size()] ), null, operations, null );
+  }
+
+  /**
+   * Returns the name of an attribute: the name of the metric in camel case,
+   * and the value of its label, e.g. "FramesIn.MSG".
+   */
+  static String toAttributeName( String family, String value ) {
+    
+    StringBuffer buffer = new StringBuffer();
+    boolean      upper  = true;
+    
+    for( int i = 0; i < family.length(); i++ ) {
+      char c = family.charAt( i );
+      
+      if( c == '_' ) {
+        upper = true;
+        continue;
+      }
+      
+      buffer.append( upper ? Character.toUpperCase( c ) : c );
+      upper = false;
+    }
+    
+    if( value != null )
+      buffer.append( '.' ).append( value );
+    
+    return buffer.toString();
+  }
+
+  /**
+   * Reads the value of a gauge.
+   */
+  interface Gauge {
+
+    /**
+     * Returns the current value.
+     *
+     * @return The value of the gauge.
+     */
+    long getValue();
+  }
+
+  /**
+   * A metric of the set.
+   */
+  final static class Metric {
+
+    /** COUNTER, GAUGE or HISTOGRAM. */
+    final int            kind;
+
+    /** Name of the metric. */
+    final String         family;
+
+    /** Name and value of the label of the metric, or null. */
+    final String         label;
+    final String         labelValue;
+
+    /** What the metric is. */
+    final String         help;
+
+    /** A LongAdder, a Gauge or a Histogram. */
+    final Object         value;
+
+    /** Name of the attribute of the MBean. */
+    final String         attribute;
+
+    
+    
+    Metric( int kind, String family, String label, String labelValue, String help, Object value ) {
+      
+      this.kind       = kind;
+      this.family     = family;
+      this.label      = label;
+      this.labelValue = labelValue;
+      this.help       = help;
+      this.value      = value;
+      this.attribute  = toAttributeName( family, labelValue );
+    }
+
+    /**
+     * Returns the value of a counter or a gauge.
+     *
+     * @return The value.
+     */
+    long getValue() {
+      
+      if( kind == COUNTER )
+        return ( ( LongAdder ) value ).sum();
+      
+      return ( ( Gauge ) value ).getValue();
+    }
+  }
+}
+
+// MetricSet class
@@ -0,0 +1,341 @@
+/*
+ * ===========================================================================
+ *  Copyright (C) 2002-2003  Tony Tang
+ *
+ *  This program is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation; either version 2 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program; if not, write to the Free Software
+ *  Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ * ===========================================================================
+ */
+
+/**
+ *
+ * $Id$
+ * $Author$
+ * $Name$
+ * $Revision$
+ * $State$
+ *
+ */
+
+package org.hn.sleek.jmml;
+
+import java.io.*;
+import java.lang.management.*;
+import java.util.*;
+import java.util.concurrent.atomic.*;
+import javax.management.*;
+
+
+/**
+ * Metrics holds the metrics of the library: frames and bytes by command
+ * type, for the whole process, and a set of metrics for each connection,
+ * signed in user and event listener.  Every set is a platform MBean under
+ * the "org.hn.sleek.jmml" domain while its object is alive, unless
+ * jmml.metrics.jmx is false; <pre>toPrometheus()</pre> dumps all of them
+ * in the Prometheus text format, e.g. for a scraping endpoint.
+ */
+public final class Metrics {
+
+  /** Domain of the MBeans. */
+  final static String    DOMAIN         = "org.hn.sleek.jmml";
+
+  /** Prefix of the metrics in the Prometheus dump. */
+  final static String    PREFIX         = "jmml_";
+
+  /** Whether the sets are registered as platform MBeans (system property jmml.metrics.jmx). */
+  final static boolean   JMX            = !"false".equalsIgnoreCase( System.getProperty( "jmml.metrics.jmx" ) );
+
+  /** Smallest and largest bucket of the histograms in the Prometheus dump, about 1 microsecond and 1 minute. */
+  final static int       FIRST_BUCKET   = 10;
+  final static int       LAST_BUCKET    = 36;
+
+  /** The sets registered, by MBean name. */
+  final static LinkedHashMap sets       = new LinkedHashMap();
+
+  /** Metrics of the protocol, for the whole process. */
+  final static MetricSet protocol       = new MetricSet( "Protocol", null, new String[0] );
+
+  /** Frames and bytes received and sent, by command type. */
+  final static LongAdder[] framesIn     = new LongAdder[Message.ERROR + 1];
+  final static LongAdder[] bytesIn      = new LongAdder[Message.ERROR + 1];
+  final static LongAdder[] framesOut    = new LongAdder[Message.ERROR + 1];
+  final static LongAdder[] bytesOut     = new LongAdder[Message.ERROR + 1];
+
+  /** Packets that could not be parsed, and were dropped. */
+  final static LongAdder parseErrors;
+
+  static {
+    for( int type = 0; type <= Message.ERROR; type++ ) {
+      String command = ( type == 0 ) ? "NONE" : Message.commandToString( type );
+      
+      framesIn[type]  = protocol.counter( "frames_in", "command", command, "Frames received, by command." );
+      bytesIn[type]   = protocol.counter( "bytes_in", "command", command, "Bytes received, by command." );
+      framesOut[type] = protocol.counter( "frames_out", "command", command, "Frames sent, by command." );
+      bytesOut[type]  = protocol.counter( "bytes_out", "command", command, "Bytes sent, by command." );
+    }
+    
+    parseErrors = protocol.counter( "parse_errors", "Packets dropped because they could not be parsed." );
+    register( protocol );
+  }
+
+  
+  
+  /**
+   * No instances.
+   */
+  private Metrics() {
+  }
+
+  /**
+   * Counts a frame received.
+   *
+   * @param type The command type.
+   * @param length The length of the frame, in bytes.
+   */
+  static void received( int type, int length ) {
+    
+    framesIn[type].increment();
+    bytesIn[type].add( length );
+  }
+
+  /**
+   * Counts a frame sent.
+   *
+   * @param type The command type.
+   * @param length The length of the frame, in bytes.
+   */
+  static void sent( int type, int length ) {
+    
+    framesOut[type].increment();
+    bytesOut[type].add( length );
+  }
+
+  /**
+   * Adds a set, and registers it as an MBean.  A set already registered
+   * under the same name is kept.
+   *
+   * @param set The set.
+   */
+  static void register( MetricSet set ) {
+    
+    synchronized( sets ) {
+      if( sets.containsKey( set.objectName ) )
+        return;
+      
+      sets.put( set.objectName, set );
+    }
+    
+    if( !JMX )
+      return;
+    
+    try {
+      ManagementFactory.getPlatformMBeanServer().registerMBean( set, set.objectName );
+    } catch( InstanceAlreadyExistsException e ) {
+      /* Registered by another copy of the library */
+    } catch( JMException e ) {
+      System.err.println( "Metrics.register() - " + e );
+    }
+  }
+
+  /**
+   * Removes a set, and its MBean.
+   *
+   * @param set The set, or null.
+   */
+  static void unregister( MetricSet set ) {
+    
+    if( set == null )
+      return;
+    
+    synchronized( sets ) {
+      if( sets.get( set.objectName ) != set )
+        return;
+      
+      sets.remove( set.objectName );
+    }
+    
+    if( !JMX )
+      return;
+    
+    try {
+      ManagementFactory.getPlatformMBeanServer().unregisterMBean( set.objectName );
+    } catch( InstanceNotFoundException e ) {
+      /* Already gone */
+    } catch( JMException e ) {
+      System.err.println( "Metrics.unregister() - " + e );
+    }
+  }
+
+  /**
+   * Returns the sets registered.
+   *
+   * @return A copy of the sets, in the order they were registered.
+   */
+  static MetricSet[] getSets() {
+    
+    synchronized( sets ) {
+      return ( MetricSet[] ) sets.values().toArray( new MetricSet[sets.size()] );
+    }
+  }
+
+  /**
+   * Returns every metric in the Prometheus text format.
+   *
+   * @return The dump.
+   */
+  public static String toPrometheus() {
+    
+    StringWriter out = new StringWriter();
+    
+    try {
+      writePrometheus( out );
+    } catch( IOException e ) {
+      /* Not from a StringWriter */
+    }
+    
+    return out.toString();
+  }
+
+  /**
+   * Writes every metric in the Prometheus text format.  The metrics of the
+   * same name are written together, whichever set they are in; durations
+   * are in seconds.
+   *
+   * @param out Where to write.
+   * @throws IOException When writing fails.
+   */
+  public static void writePrometheus( Writer out ) throws IOException {
+    
+    MetricSet[]   sets     = getSets();
+    LinkedHashMap families = new LinkedHashMap();
+    
+    for( int i = 0; i < sets.length; i++ ) {
+      MetricSet.Metric[] metrics = sets[i].getMetrics();
+      
+      for( int j = 0; j < metrics.length; j++ ) {
+        ArrayList samples = ( ArrayList ) families.get( metrics[j].family );
+        
+        if( samples == null ) {
+          samples = new ArrayList();
+          families.put( metrics[j].family, samples );
+        }
+        
+        samples.add( new Object[] { sets[i], metrics[j] } );
+      }
+    }
+    
+    StringBuffer buffer   = new StringBuffer();
+    Iterator     iterator = families.values().iterator();
+    
+    while( iterator.hasNext() ) {
+      ArrayList        samples = ( ArrayList ) iterator.next();
+      MetricSet.Metric first   = ( MetricSet.Metric ) ( ( Object[] ) samples.get( 0 ) )[1];
+      String           name    = PREFIX + first.family + ( ( first.kind == MetricSet.COUNTER ) ? "_total" : "" );
+      
+      buffer.append( "# HELP " ).append( name ).append( ' ' ).append( first.help ).append( '\n' );
+      buffer.append( "# TYPE " ).append( name ).append( ' ' ).append( MetricSet.KIND_NAMES[first.kind] ).append( '\n' );
+      
+      for( int i = 0; i < samples.size(); i++ ) {
+        Object[]         sample = ( Object[] ) samples.get( i );
+        MetricSet        set    = ( MetricSet ) sample[0];
+        MetricSet.Metric metric = ( MetricSet.Metric ) sample[1];
+        String           labels = formatLabels( set.labels, metric.label, metric.labelValue );
+        
+        if( metric.kind != MetricSet.HISTOGRAM ) {
+          appendSample( buffer, name, labels, null, Long.toString( metric.getValue() ) );
+          continue;
+        }
+        
+        Histogram histogram  = ( Histogram ) metric.value;
+        long[]    counts     = histogram.getCounts();
+        long      cumulative = 0;
+        
+        for( int j = 0; j < counts.length; j++ ) {
+          cumulative += counts[j];
+          
+          if( j >= FIRST_BUCKET && j <= LAST_BUCKET )
+            appendSample( buffer, name + "_bucket", labels, Double.toString( Histogram.getUpperBound( j ) / 1e9 ), Long.toString( cumulative ) );
+        }
+        
+        appendSample( buffer, name + "_bucket", labels, "+Inf", Long.toString( cumulative ) );
+        appendSample( buffer, name + "_sum", labels, null, Double.toString( histogram.getSum() / 1e9 ) );
+        appendSample( buffer, name + "_count", labels, null, Long.toString( cumulative ) );
+      }
+    }
+    
+    out.write( buffer.toString() );
+    out.flush();
+  }
+
+  /**
+   * Formats the labels of a set and of a metric, without the braces.
+   */
+  private static String formatLabels( String[] setLabels, String label, String value ) {
+    
+    StringBuffer buffer = new StringBuffer();
+    
+    for( int i = 0; i + 1 < setLabels.length; i += 2 )
+      appendLabel( buffer, setLabels[i], setLabels[i + 1] );
+    
+    if( label != null )
+      appendLabel( buffer, label, value );
+    
+    return buffer.toString();
+  }
+
+  /**
+   * Appends a label, escaping its value.
+   */
+  private static void appendLabel( StringBuffer buffer, String label, String value ) {
+    
+    if( buffer.length() > 0 )
+      buffer.append( ',' );
+    
+    buffer.append( label ).append( "=\"" );
+    
+    for( int i = 0; i < value.length(); i++ ) {
+      char c = value.charAt( i );
+      
+      if( c == '\\' || c == '"' )
+        buffer.append( '\\' ).append( c );
+      else if( c == '\n' )
+        buffer.append( "\\n" );
+      else
+        buffer.append( c );
+    }
+    
+    buffer.append( '"' );
+  }
+
+  /**
+   * Appends a sample line.
+   */
+  private static void appendSample( StringBuffer buffer, String name, String labels, String le, String value ) {
+    
+    buffer.append( name );
+    
+    if( labels.length() > 0 || le != null ) {
+      buffer.append( '{' ).append( labels );
+      
+      if( le != null )
+        buffer.append( ( labels.length() > 0 ) ? "," : "" ).append( "le=\"" ).append( le ).append( '"' );
+      
+      buffer.append( '}' );
+    }
+    
+    buffer.append( ' ' ).append( value ).append( '\n' );
+  }
+}
+
+// Metrics class
@@ -0,0 +1,381 @@
+/*
+ * ===========================================================================
+ *  Copyright (C) 2002-2003  Tony Tang
+ *
+ *  This program is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation; either version 2 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program; if not, write to the Free Software
+ *  Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ * ===========================================================================
+ */
+
+/**
+ *
+ * $Id$
+ * $Author$
+ * $Name$
+ * $Revision$
+ * $State$
+ *
+ */
+
+package org.hn.sleek.jmml;
+
+import java.nio.*;
+
+/**
+ * A view over the MIME payload of an instant message (MSG).  Header lines
+ * are parsed one at a time, only as far as the header asked for, and
+ * nothing is decoded until it is asked for: <pre>Content-Type</pre> comes
+ * early, so routing a payload by its type usually reads two lines and
+ * makes no strings.  Header names are matched without regard to case, in
+ * whatever order the headers come.  The body is what follows the first
+ * empty line, line breaks included.
+ * <p>
+ * A payload is only valid during the call to the handler it is given to;
+ * the connection reuses it for the next message.
+ */
+public final class MimePayload {
+
+  /** Name of the header that holds the content type, lowercase. */
+  final static byte[]    CONTENT_TYPE  = MessageEncoder.fragment( "content-type" );
+
+  /** Headers recorded without growing the offset arrays. */
+  final static int       INITIAL_HEADERS = 8;
+
+  /** The MSG the payload came with. */
+  MessageRecord.Msg      record;
+
+  /** The bytes of the payload. */
+  ByteBuffer             bytes;
+
+  /** Start of the payload in <pre>bytes</pre>. */
+  int                    start;
+
+  /** End (exclusive) of the payload in <pre>bytes</pre>. */
+  int                    end;
+
+  /** Where the next header line starts, or the start of the body once the headers are parsed. */
+  int                    parsed;
+
+  /** Whether the empty line ending the headers was reached. */
+  boolean                headersParsed;
+
+  /** Number of headers parsed so far. */
+  int                    headerCount;
+
+  /** Start of the name of each header. */
+  int[]                  nameStart     = new int[INITIAL_HEADERS];
+
+  /** End (exclusive) of the name of each header. */
+  int[]                  nameEnd       = new int[INITIAL_HEADERS];
+
+  /** Start of the value of each header, after the colon and blanks. */
+  int[]                  valueStart    = new int[INITIAL_HEADERS];
+
+  /** End (exclusive) of the value of each header. */
+  int[]                  valueEnd      = new int[INITIAL_HEADERS];
+
+  /** The decoded body; null until asked for. */
+  String                 body;
+
+  
+  
+  /**
+   * Creates an empty payload, set with <pre>reset()</pre>.
+   */
+  MimePayload() {
+  }
+
+  /**
+   * Makes this the payload of another message.  The bytes are not copied.
+   *
+   * @param record The MSG the payload came with.
+   * @param bytes The payload, between position and limit.
+   */
+  void reset( MessageRecord.Msg record, ByteBuffer bytes ) {
+    
+    this.record   = record;
+    this.bytes    = bytes;
+    start         = bytes.position();
+    end           = bytes.limit();
+    parsed        = start;
+    headersParsed = false;
+    headerCount   = 0;
+    body          = null;
+  }
+
+  /**
+   * Returns the Passport user name of the sender.
+   *
+   * @return The user name.
+   */
+  public String getUserName() {
+    
+    return record.getUserName();
+  }
+
+  /**
+   * Returns the friendly name of the sender, still URL-encoded.
+   *
+   * @return The friendly name.
+   */
+  public String getFriendlyName() {
+    
+    return record.getFriendlyName();
+  }
+
+  /**
+   * Returns the content type, without its parameters, e.g. "text/plain".
+   *
+   * @return The content type, or null when the payload has none.
+   */
+  public String getContentType() {
+    
+    int index = findHeader( CONTENT_TYPE );
+    
+    if( index < 0 )
+      return null;
+    
+    return decode( valueStart[index], typeEnd( index ) );
+  }
+
+  /**
+   * Returns the value of a header.
+   *
+   * @param name The name of the header, in any case.
+   * @return The value, or null when the payload has no such header.
+   */
+  public String getHeader( String name ) {
+    
+    int index = findHeader( name.toLowerCase().getBytes( IncomingMessage.UTF8 ) );
+    
+    return ( index < 0 ) ? null : decode( valueStart[index], valueEnd[index] );
+  }
+
+  /**
+   * Returns the body, decoded from UTF-8.
+   *
+   * @return The text after the headers.
+   */
+  public String getBody() {
+    
+    if( body == null ) {
+      skipHeaders();
+      body = decode( parsed, end );
+    }
+    
+    return body;
+  }
+
+  /**
+   * Returns the undecoded body.
+   *
+   * @return A read-only view of the bytes after the headers.
+   */
+  public ByteBuffer getBodyBytes() {
+    
+    skipHeaders();
+    
+    ByteBuffer view = bytes.asReadOnlyBuffer();
+    
+    view.limit( end );
+    view.position( parsed );
+    
+    return view;
+  }
+
+  /**
+   * Returns whether the content type, without its parameters, is the given
+   * one, ignoring case.  Nothing is decoded.
+   *
+   * @param type The content type, lowercase and encoded.
+   * @return Whether the payload has that content type.
+   */
+  boolean isContentType( byte[] type ) {
+    
+    int index = findHeader( CONTENT_TYPE );
+    
+    return index >= 0 && equalsIgnoreCase( valueStart[index], typeEnd( index ), type );
+  }
+
+  /**
+   * Returns the end of the content type of a Content-Type header, before
+   * its parameters and trailing blanks.
+   *
+   * @param index The index of the header.
+   * @return The end (exclusive) of the type.
+   */
+  private int typeEnd( int index ) {
+    
+    int i = valueStart[index];
+    
+    while( i < valueEnd[index] && bytes.get( i ) != ';' )
+      i++;
+    
+    while( i > valueStart[index] && isBlank( bytes.get( i - 1 ) ) )
+      i--;
+    
+    return i;
+  }
+
+  /**
+   * Returns the index of a header, parsing header lines until it is found.
+   *
+   * @param name The name of the header, lowercase and encoded.
+   * @return The index of the header, or -1.
+   */
+  private int findHeader( byte[] name ) {
+    
+    for( int i = 0; ; i++ ) {
+      if( i == headerCount && !parseHeader() )
+        return -1;
+      
+      if( equalsIgnoreCase( nameStart[i], nameEnd[i], name ) )
+        return i;
+    }
+  }
+
+  /**
+   * Parses every header line that is left, up to the body.
+   */
+  private void skipHeaders() {
+    
+    while( parseHeader() )
+      ;
+  }
+
+  /**
+   * Parses the next header line.  Lines without a colon are skipped.
+   *
+   * @return Whether a header was added; false once the headers are over.
+   */
+  private boolean parseHeader() {
+    
+    while( !headersParsed ) {
+      int lineStart = parsed;
+      int lineEnd   = lineStart;
+      
+      while( lineEnd < end && bytes.get( lineEnd ) != '\n' )
+        lineEnd++;
+      
+      parsed = ( lineEnd < end ) ? lineEnd + 1 : end;
+      
+      if( lineEnd > lineStart && bytes.get( lineEnd - 1 ) == '\r' )
+        lineEnd--;
+      
+      /* The empty line before the body, or a payload that is all headers */
+      if( lineEnd == lineStart || parsed == end && lineEnd == end ) {
+        headersParsed = true;
+        
+        if( lineEnd == lineStart )
+          return false;
+      }
+      
+      int colon = lineStart;
+      
+      while( colon < lineEnd && bytes.get( colon ) != ':' )
+        colon++;
+      
+      if( colon == lineEnd )
+        continue;
+      
+      int value = colon + 1;
+      
+      while( value < lineEnd && isBlank( bytes.get( value ) ) )
+        value++;
+      
+      addHeader( lineStart, colon, value, lineEnd );
+      return true;
+    }
+    
+    return false;
+  }
+
+  /**
+   * Records the position of a header.
+   */
+  private void addHeader( int name, int nameEnd, int value, int valueEnd ) {
+    
+    if( headerCount == nameStart.length ) {
+      nameStart       = grow( nameStart );
+      this.nameEnd    = grow( this.nameEnd );
+      valueStart      = grow( valueStart );
+      this.valueEnd   = grow( this.valueEnd );
+    }
+    
+    nameStart[headerCount]       = name;
+    this.nameEnd[headerCount]    = nameEnd;
+    valueStart[headerCount]      = value;
+    this.valueEnd[headerCount]   = valueEnd;
+    headerCount++;
+  }
+
+  /**
+   * Returns a copy of an array, twice as long.
+   */
+  private static int[] grow( int[] array ) {
+    
+    int[] larger = new int[array.length * 2];
+    
+    System.arraycopy( array, 0, larger, 0, array.length );
+    
+    return larger;
+  }
+
+  /**
+   * Compares bytes of the payload with lowercase ASCII bytes, ignoring case.
+   */
+  private boolean equalsIgnoreCase( int from, int to, byte[] lowercase ) {
+    
+    if( to - from != lowercase.length )
+      return false;
+    
+    for( int i = 0; i < lowercase.length; i++ ) {
+      byte b = bytes.get( from + i );
+      
+      if( b >= 'A' && b <= 'Z' )
+        b += 'a' - 'A';
+      
+      if( b != lowercase[i] )
+        return false;
+    }
+    
+    return true;
+  }
+
+  /**
+   * Decodes bytes of the payload from UTF-8.
+   */
+  private String decode( int from, int to ) {
+    
+    if( bytes.hasArray() )
+      return new String( bytes.array(), bytes.arrayOffset() + from, to - from, IncomingMessage.UTF8 );
+    
+    byte[] copy = new byte[to - from];
+    
+    for( int i = 0; i < copy.length; i++ )
+      copy[i] = bytes.get( from + i );
+    
+    return new String( copy, IncomingMessage.UTF8 );
+  }
+
+  /**
+   * Returns whether a byte is a space or a tab.
+   */
+  private static boolean isBlank( byte b ) {
+    
+    return b == ' ' || b == '\t';
+  }
+}
+
+// MimePayload class
@@ -0,0 +1,216 @@
+/*
+ * ===========================================================================
+ *  Copyright (C) 2002-2003  Tony Tang
+ *
+ *  This program is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation; either version 2 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program; if not, write to the Free Software
+ *  Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ * ===========================================================================
+ */
+
+/**
+ *
+ * $Id$
+ * $Author$
+ * $Name$
+ * $Revision$
+ * $State$
+ *
+ */
+
+package org.hn.sleek.jmml;
+
+import java.io.*;
+import java.nio.channels.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+
+/**
+ * NIOEventLoop is a selector thread shared by many non-blocking server
+ * connections.  A small, fixed group of loops serves every Notification
+ * Server and Switchboard connection when the NIO transport is used, so the
+ * number of threads does not grow with the number of open sessions.
+ * <p>
+ * All channel operations of a connection happen on the loop it was assigned
+ * to.  Other threads hand work to the loop through <pre>execute()</pre>.
+ */
+class NIOEventLoop implements Runnable {
+
+  /** Number of loops in the shared group (system property jmml.nio.threads). */
+  final static int             LOOP_COUNT = Math.max( 1, Integer.getInteger( "jmml.nio.threads", Math.min( 2, Runtime.getRuntime().availableProcessors() ) ).intValue() );
+
+  /** The shared group of loops, created on first use. */
+  static NIOEventLoop[]        loops;
+
+  /** Index of the loop that gets the next connection. */
+  static int                   nextLoop = 0;
+
+  /** Selector multiplexing the channels of this loop. */
+  Selector                     selector;
+
+  /** The thread running this loop. */
+  Thread                       thread;
+
+  /** Work handed over by other threads, run by the loop between selects. */
+  ConcurrentLinkedQueue        tasks = new ConcurrentLinkedQueue();
+
+  
+  
+  /**
+   * Opens the selector and starts the loop thread.
+   *
+   * @param index Position of the loop in the group; used to name the thread.
+   * @throws IOException When the selector can not be opened.
+   */
+  NIOEventLoop( int index ) throws IOException {
+    
+    selector = Selector.open();
+    thread   = new Thread( this, "jmml-nio-" + index );
+    thread.setDaemon( true );
+    thread.start();
+  }
+
+  /**
+   * Returns the loop that should serve the next connection.  Connections
+   * are spread round-robin over the group.
+   *
+   * @return An event loop of the shared group.
+   * @throws IOException When the group can not be created.
+   */
+  static synchronized NIOEventLoop next() throws IOException {
+    
+    if( loops == null ) {
+      NIOEventLoop[] group = new NIOEventLoop[LOOP_COUNT];
+      
+      for( int i = 0; i < group.length; i++ )
+        group[i] = new NIOEventLoop( i );
+      
+      loops = group;
+    }
+    
+    NIOEventLoop loop = loops[nextLoop];
+    
+    nextLoop = ( nextLoop + 1 ) % loops.length;
+    return loop;
+  }
+
+  /**
+   * Runs the task on the loop thread.  When called from the loop thread
+   * itself, the task is run after the current batch of ready keys.
+   *
+   * @param task The work to run on the loop.
+   */
+  void execute( Runnable task ) {
+    
+    tasks.add( task );
+    
+    if( Thread.currentThread() != thread )
+      selector.wakeup();
+  }
+
+  /**
+   * Registers the channel of a connection with this loop, or changes what
+   * it is registered for.  The connection is the attachment of the key, and
+   * is called back when its channel is connectable, readable or writable.
+   *
+   * @param connection The connection whose channel is registered.
+   * @param ops The operations the loop waits for.
+   */
+  void register( final NIOServerConnection connection, final int ops ) {
+    
+    execute( new Runnable() {
+      
+      public void run() {
+        
+        /* A connection that failed meanwhile has been dealt with */
+        if( connection.channel == null || !connection.channel.isOpen() )
+          return;
+        
+        try {
+          if( connection.key == null )
+            connection.key = connection.channel.register( selector, ops, connection );
+          else
+            connection.key.interestOps( ops | ( connection.outbound.isEmpty() ? 0 : SelectionKey.OP_WRITE ) );
+        } catch( IOException e ) {
+          connection.disconnect();
+        } catch( CancelledKeyException e ) {
+          connection.disconnect();
+        }
+      }
+    } );
+  }
+
+  /**
+   * Selects ready channels and dispatches them to their connections, and
+   * runs the tasks handed over by other threads.  Exceptions raised while
+   * serving one connection do not stop the loop.
+   */
+  public void run() {
+    
+    while( true ) {
+      try {
+        /* Tasks queued by this thread itself did not wake the selector up */
+        if( tasks.isEmpty() )
+          selector.select();
+        else
+          selector.selectNow();
+        
+        runTasks();
+        
+        Iterator keys = selector.selectedKeys().iterator();
+        
+        while( keys.hasNext() ) {
+          SelectionKey        key        = ( SelectionKey ) keys.next();
+          NIOServerConnection connection = ( NIOServerConnection ) key.attachment();
+          
+          keys.remove();
+          
+          try {
+            if( key.isValid() && key.isConnectable() )
+              connection.handleConnect();
+            
+            if( key.isValid() && key.isReadable() )
+              connection.handleRead();
+            
+            if( key.isValid() && key.isWritable() )
+              connection.handleWrite();
+          } catch( CancelledKeyException e ) {
+            connection.disconnect();
+          } catch( RuntimeException e ) {
+            System.err.println( "NIOEventLoop.run() - " + e );
+          }
+        }
+      } catch( IOException e ) {
+        System.err.println( "NIOEventLoop.run() - " + e );
+      }
+    }
+  }
+
+  /**
+   * Runs all the pending tasks.
+   */
+  private void runTasks() {
+    
+    Runnable task;
+    
+    while( ( task = ( Runnable ) tasks.poll() ) != null ) {
+      try {
+        task.run();
+      } catch( RuntimeException e ) {
+        System.err.println( "NIOEventLoop.runTasks() - " + e );
+      }
+    }
+  }
+}
+// NIOEventLoop class
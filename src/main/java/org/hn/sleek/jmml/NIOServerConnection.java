@@ -0,0 +1,313 @@
+/*
+ * ===========================================================================
+ *  Copyright (C) 2002-2003  Tony Tang
+ *
+ *  This program is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation; either version 2 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program; if not, write to the Free Software
+ *  Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ * ===========================================================================
+ */
+
+/**
+ *
+ * $Id$
+ * $Author$
+ * $Name$
+ * $Revision$
+ * $State$
+ *
+ */
+
+package org.hn.sleek.jmml;
+
+import java.io.*;
+import java.net.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.text.ParseException;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+
+/**
+ * NIOServerConnection is a ServerConnection over a non-blocking socket
+ * channel.  Instead of owning a reading thread, the connection is served by
+ * one of the shared NIOEventLoop threads, which reads the channel when data
+ * arrives and writes out the queued packets when the socket can take them,
+ * several packets per gathering write.  The connection itself is made by
+ * the loop too: the constructor only starts it, and <pre>connecting</pre>
+ * completes once it is made or has failed, so no thread waits for it.
+ * The listener is called back through the MSNPListener interface exactly as
+ * with the blocking transport, but never on the loop thread, so a slow
+ * listener does not hold up the other connections of the loop.
+ */
+class NIOServerConnection extends ServerConnection {
+
+  /** Time allowed for connecting, in milliseconds (system property jmml.nio.connect.timeout). */
+  final static long CONNECT_TIMEOUT = Long.getLong( "jmml.nio.connect.timeout", 30000L ).longValue();
+
+  /** The loop serving this connection. */
+  NIOEventLoop      loop;
+
+  /** Key of the channel in the loop's selector; set by the loop on registration. */
+  SelectionKey      key;
+
+  /** Splits the bytes read from the channel into packets. */
+  FrameDecoder      decoder = new FrameDecoder();
+
+  /** Whether a write of the queued packets is scheduled on the loop. */
+  AtomicBoolean     flushScheduled = new AtomicBoolean( false );
+
+  /** Completed with TRUE once the connection is set up, or with FALSE once it has failed. */
+  CompletableFuture connecting     = new CompletableFuture();
+
+  /** Whether the connect has succeeded or failed; whichever comes first wins. */
+  AtomicBoolean     settled        = new AtomicBoolean( false );
+
+  /** Writes the queued packets on the loop. */
+  Runnable          flushTask      = new Runnable() {
+    
+    public void run() {
+      flushScheduled.set( false );
+      handleWrite();
+    }
+  };
+
+  
+  
+  /**
+   * Starts connecting to the server, and hands the channel over to an event
+   * loop, which finishes the connection.  The call does not wait for it:
+   * <pre>connecting</pre> tells when the connection is made, or has failed,
+   * in which case the listener is notified.
+   *
+   * @param serverAddress The IP address of the server.
+   * @param port The port on the server to connect to.
+   * @param listener The caller that listens for MSNP packets.
+   */
+  NIOServerConnection( String serverAddress, int port, MSNPListener listener ) {
+    
+    super( listener );
+    this.address    = serverAddress + ":" + port;
+    this.dispatcher = new InboundDispatcher( this, ExecutionSupport.newThreadExecutor( virtual ) );
+    
+    try {
+      SocketChannel channel = SocketChannel.open();
+      
+      channel.configureBlocking( false );
+      this.channel = channel;
+      this.loop    = NIOEventLoop.next();
+      
+      if( channel.connect( new InetSocketAddress( serverAddress, port ) ) ) {
+        established();
+        return;
+      }
+    } catch( IOException e ) {
+      connectFailed();
+      return;
+    } catch( UnresolvedAddressException e ) {
+      connectFailed();
+      return;
+    }
+    
+    /* The loop finishes the connection when the channel is connectable */
+    loop.register( this, SelectionKey.OP_CONNECT );
+    
+    ExecutionSupport.getScheduler().schedule( new Runnable() {
+      
+      public void run() {
+        connectFailed();
+      }
+    }, CONNECT_TIMEOUT, TimeUnit.MILLISECONDS );
+  }
+
+  /**
+   * Sets up a connection that has just been made, and starts reading it.
+   */
+  private void established() {
+    
+    synchronized( this ) {
+      if( !settled.compareAndSet( false, true ) )
+        return;
+      
+      this.connection = channel.socket();
+      this.connected  = true;
+      opened();
+    }
+    
+    if( isLogged( WireLog.INFO ) )
+      WireLog.log( WireLog.INFO, getLogName(), "Connecting... " + address );
+    
+    loop.register( this, SelectionKey.OP_READ );
+    connecting.complete( Boolean.TRUE );
+  }
+
+  /**
+   * Closes the channel of a connection that could not be made, or not in
+   * time, and lets the listener know.
+   */
+  private void connectFailed() {
+    
+    synchronized( this ) {
+      if( !settled.compareAndSet( false, true ) )
+        return;
+      
+      try {
+        if( channel != null )
+          channel.close();
+      } catch( IOException e ) {
+        System.err.println( "NIOServerConnection.connectFailed() - " + e );
+      }
+      
+      channel = null;
+      disconnect();
+    }
+    
+    connecting.complete( Boolean.FALSE );
+  }
+
+  /**
+   * Called by the loop when the channel is connectable.  Finishes the
+   * connection, and sets it up.
+   */
+  void handleConnect() {
+    
+    SocketChannel channel = this.channel;
+    
+    /* The connect timed out meanwhile */
+    if( channel == null )
+      return;
+    
+    try {
+      if( !channel.finishConnect() )
+        return;
+      
+      key.interestOps( 0 );
+    } catch( IOException e ) {
+      connectFailed();
+      return;
+    }
+    
+    established();
+  }
+
+  /**
+   * Disconnects the channel and removes it from its loop.  The listener is
+   * notified once.  A connection still being made fails.
+   */
+  synchronized void disconnect() {
+    
+    if( !settled.get() ) {
+      connectFailed();
+      return;
+    }
+    
+    boolean wasConnected = connected;
+    
+    connected = false;
+    
+    if( wasConnected )
+      closed();
+    
+    if( key != null )
+      key.cancel();
+    
+    try {
+      if( channel != null )
+        channel.close();
+    } catch( IOException e ) {
+      System.err.println( "NIOServerConnection.disconnect() - " + e );
+    }
+    
+    if( wasConnected || channel == null )
+      fireServerDisconnected();
+  }
+
+  /**
+   * Asks the loop to write out the queued packets.  Packets queued before
+   * the loop gets to it go out in the same gathering write.
+   */
+  void flush() throws IOException {
+    
+    if( loop == null )
+      throw new IOException( "Not connected" );
+    
+    if( flushScheduled.compareAndSet( false, true ) )
+      loop.execute( flushTask );
+  }
+
+  /**
+   * Called by the loop when the channel is readable.  Reads what is
+   * available, and queues every complete packet for the listener, which
+   * is called back on a dispatch thread.
+   */
+  void handleRead() {
+    
+    int count;
+    
+    try {
+      count = decoder.receive( channel );
+    } catch( IOException e ) {
+      count = -1;
+    }
+    
+    /* A connection that has been dropped returns -1 */
+    if( count < 0 ) {
+      disconnect();
+      return;
+    }
+    
+    while( connected ) {
+      IncomingMessage msg;
+      
+      try {
+        msg = decoder.decode();
+      } catch( ParseException e ) {
+        /* If the message was malformed, we count it, drop it and continue. */
+        parseFailed( e );
+        continue;
+      } catch( IOException e ) {
+        /* The stream can not be followed any further */
+        if( isLogged( WireLog.INFO ) )
+          WireLog.log( WireLog.INFO, getLogName(), "Read failed: " + e );
+        disconnect();
+        return;
+      }
+      
+      if( msg == null )
+        break;
+      
+      dispatch( msg );
+    }
+  }
+
+  /**
+   * Called by the loop when the channel is writable, or when packets were
+   * queued.  Writes as much as the socket takes, and keeps listening for
+   * writability only while there is something left.
+   */
+  void handleWrite() {
+    
+    if( key == null || !key.isValid() )
+      return;
+    
+    try {
+      boolean written = outbound.flush( channel );
+      
+      key.interestOps( written ? SelectionKey.OP_READ : SelectionKey.OP_READ | SelectionKey.OP_WRITE );
+    } catch( IOException e ) {
+      disconnect();
+    }
+  }
+}
+// NIOServerConnection class
@@ -0,0 +1,265 @@
+/*
+ * ===========================================================================
+ *  Copyright (C) 2002-2003  Tony Tang
+ *
+ *  This program is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation; either version 2 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program; if not, write to the Free Software
+ *  Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ * ===========================================================================
+ */
+
+/**
+ *
+ * $Id$
+ * $Author$
+ * $Name$
+ * $Revision$
+ * $State$
+ *
+ */
+
+package org.hn.sleek.jmml;
+
+import java.io.*;
+import java.util.*;
+
+
+/**
+ * Remembers, for each account, the Notification Server the Dispatch Server
+ * last referred it to, so that signing in again soon after can skip the
+ * Dispatch Server round trip.  Entries expire after a time to live, and can
+ * be kept in a properties file so that they survive a restart of the
+ * application.  The file holds one line per account:
+ * <pre>account=serverIP:port:expiryMillis</pre>
+ */
+class NotificationServerCache {
+
+  /** Default time to live of an entry, in milliseconds (system property jmml.nscache.ttl). */
+  final static long DEFAULT_TTL = Long.getLong( "jmml.nscache.ttl", 10 * 60 * 1000L ).longValue();
+
+  /** Time to live of new entries; zero or less disables the cache. */
+  long      ttl     = DEFAULT_TTL;
+
+  /** Properties file the entries are kept in, or null to keep them in memory only. */
+  File      store;
+
+  /** Whether the store has been read. */
+  boolean   loaded  = false;
+
+  /** Cached addresses by account, as [(String) serverIP, (Integer) port, (Long) expiry]. */
+  Hashtable entries = new Hashtable();
+
+  
+  
+  /**
+   * Creates a cache that uses the store named by the system property
+   * jmml.nscache.file, if any.
+   */
+  NotificationServerCache() {
+    
+    String fileName = System.getProperty( "jmml.nscache.file" );
+    
+    if( fileName != null )
+      store = new File( fileName );
+  }
+
+  /**
+   * Returns the cached Notification Server of an account.
+   *
+   * @param userName The account's Passport ID.
+   * @return [(String) serverIP, (Integer) port], or null if there is no live entry.
+   */
+  synchronized ArrayList get( String userName ) {
+    
+    if( ttl <= 0 )
+      return null;
+    
+    load();
+    
+    ArrayList entry = ( ArrayList ) entries.get( userName.toLowerCase() );
+    
+    if( entry == null )
+      return null;
+    
+    if( ( ( Long ) entry.get( 2 ) ).longValue() < System.currentTimeMillis() ) {
+      remove( userName );
+      return null;
+    }
+    
+    ArrayList serverInfo = new ArrayList();
+    
+    serverInfo.add( entry.get( 0 ) );
+    serverInfo.add( entry.get( 1 ) );
+    
+    return serverInfo;
+  }
+
+  /**
+   * Remembers the Notification Server of an account.
+   *
+   * @param userName The account's Passport ID.
+   * @param serverInfo [(String) serverIP, (Integer) port], as returned by the Dispatch Server.
+   */
+  synchronized void put( String userName, ArrayList serverInfo ) {
+    
+    if( ttl <= 0 )
+      return;
+    
+    load();
+    
+    ArrayList entry = new ArrayList();
+    
+    entry.add( serverInfo.get( 0 ) );
+    entry.add( serverInfo.get( 1 ) );
+    entry.add( Long.valueOf( System.currentTimeMillis() + ttl ) );
+    
+    entries.put( userName.toLowerCase(), entry );
+    save();
+  }
+
+  /**
+   * Forgets the Notification Server of an account, e.g. when it refused the
+   * connection.
+   *
+   * @param userName The account's Passport ID.
+   */
+  synchronized void remove( String userName ) {
+    
+    load();
+    
+    if( entries.remove( userName.toLowerCase() ) != null )
+      save();
+  }
+
+  /**
+   * Sets the time to live of new entries.
+   *
+   * @param ttl Milliseconds; zero or less disables the cache.
+   */
+  synchronized void setTTL( long ttl ) {
+    
+    this.ttl = ttl;
+  }
+
+  /**
+   * Sets the properties file the entries are kept in.  Entries already in
+   * memory are kept, and the file is read on next use.
+   *
+   * @param store The file, or null to keep the entries in memory only.
+   */
+  synchronized void setStore( File store ) {
+    
+    this.store  = store;
+    this.loaded = false;
+  }
+
+  /**
+   * Reads the live entries of the store, once.
+   */
+  private void load() {
+    
+    if( loaded )
+      return;
+    
+    loaded = true;
+    
+    if( store == null || !store.exists() )
+      return;
+    
+    Properties  properties = new Properties();
+    InputStream in         = null;
+    
+    try {
+      in = new FileInputStream( store );
+      properties.load( in );
+    } catch( IOException e ) {
+      System.err.println( "NotificationServerCache.load() - " + e );
+      return;
+    } finally {
+      try {
+        if( in != null )
+          in.close();
+      } catch( IOException e ) { }
+    }
+    
+    long        now   = System.currentTimeMillis();
+    Enumeration names = properties.propertyNames();
+    
+    while( names.hasMoreElements() ) {
+      String name  = ( String ) names.nextElement();
+      String value = properties.getProperty( name );
+      
+      try {
+        int  expiryPos = value.lastIndexOf( ':' );
+        int  portPos   = value.lastIndexOf( ':', expiryPos - 1 );
+        long expiry    = Long.parseLong( value.substring( expiryPos + 1 ) );
+        
+        if( expiry < now || entries.containsKey( name ) )
+          continue;
+        
+        ArrayList entry = new ArrayList();
+        
+        entry.add( value.substring( 0, portPos ) );
+        entry.add( Integer.valueOf( value.substring( portPos + 1, expiryPos ) ) );
+        entry.add( Long.valueOf( expiry ) );
+        
+        entries.put( name, entry );
+      } catch( RuntimeException e ) {
+        /* Skip malformed lines */
+      }
+    }
+  }
+
+  /**
+   * Writes the entries to the store, through a temporary file so that a
+   * crash never leaves it half written.
+   */
+  private void save() {
+    
+    if( store == null )
+      return;
+    
+    Properties   properties = new Properties();
+    Enumeration  names      = entries.keys();
+    
+    while( names.hasMoreElements() ) {
+      String    name  = ( String ) names.nextElement();
+      ArrayList entry = ( ArrayList ) entries.get( name );
+      
+      properties.setProperty( name, entry.get( 0 ) + ":" + entry.get( 1 ) + ":" + entry.get( 2 ) );
+    }
+    
+    File         temp = new File( store.getPath() + ".tmp" );
+    OutputStream out  = null;
+    
+    try {
+      out = new FileOutputStream( temp );
+      properties.store( out, "jmml Notification Server cache" );
+      out.close();
+      out = null;
+      
+      if( !temp.renameTo( store ) ) {
+        store.delete();
+        temp.renameTo( store );
+      }
+    } catch( IOException e ) {
+      System.err.println( "NotificationServerCache.save() - " + e );
+    } finally {
+      try {
+        if( out != null )
+          out.close();
+      } catch( IOException e ) { }
+    }
+  }
+}
+// NotificationServerCache class
@@ -34,6 +34,9 @@ package org.hn.sleek.jmml;
 import java.security.*;
 import java.net.*;
 import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import java.util.function.*;
 
 /**
  * Manages the connection against the Notification Server.  Handles authentication,
@@ -48,6 +51,18 @@ public class NotificationServerConnector implements MSNPListener {
   final static String MESSENGER_CHALLENGE_STRING = "VT6PX?UQTM4WM%YR";
   final static String SDC_STRING                 = "0x0409 MSMSGS JMML X X";
 
+  /** Product ID answering challenges, encoded once. */
+  final static byte[] QRY_PRODUCT_ID             = MessageEncoder.fragment( "PROD0038W!61ZTF9" );
+
+  /** Default deadline for connecting and the VER, CVR and USR handshake (system property jmml.timeout.handshake). */
+  final static long   HANDSHAKE_TIMEOUT          = Long.getLong( "jmml.timeout.handshake", 15000L ).longValue();
+
+  /** Default deadline for getting the Passport ticket (system property jmml.timeout.passport). */
+  final static long   PASSPORT_TIMEOUT           = Long.getLong( "jmml.timeout.passport", 30000L ).longValue();
+
+  /** Default deadline for the server to accept the ticket (system property jmml.timeout.authentication). */
+  final static long   AUTHENTICATION_TIMEOUT     = Long.getLong( "jmml.timeout.authentication", 15000L ).longValue();
+
   
   /** Notification Server IP address. */
   String           serverIP;
@@ -61,7 +76,8 @@ public class NotificationServerConnector implements MSNPListener {
   /** Password of the person who is logged in. */
   String           password;
 
-  int              transactionID = 0;
+  /** Transaction IDs and pending requests on the NS connection. */
+  TransactionTable transactions = new TransactionTable();
 
   ServerConnection sc;
 
@@ -71,7 +87,55 @@ public class NotificationServerConnector implements MSNPListener {
   ContactList      contactList;
 
   /** Maps between buddyNames (Passports) and switchboard sessions */
-  HashMap          switchboardSessions;
+  SwitchboardRegistry switchboardSessions = new SwitchboardRegistry();
+
+  /** Transport used for the notification and switchboard connections. */
+  int              transport = ServerConnection.getDefaultTransport();
+
+  /** Version of the contact list held here, as last reported by the server. */
+  int              listVersion = 0;
+
+  /** Contacts and groups still expected by the synchronization in progress, or -1. */
+  int              syncContacts = -1;
+  int              syncGroups   = -1;
+
+  /** Contacts and groups reported by the synchronization in progress. */
+  HashSet          syncSeenContacts = new HashSet();
+  HashSet          syncSeenGroups   = new HashSet();
+
+  /** Whether a dropped connection is brought back automatically (system property jmml.reconnect). */
+  boolean          autoReconnect = Boolean.getBoolean( "jmml.reconnect" );
+
+  /** Brings the connection back when it drops. */
+  ReconnectSupervisor supervisor = new ReconnectSupervisor( this );
+
+  /** Whether the user asked to sign out. */
+  boolean          signingOut = false;
+
+  /** Whether the sign in in progress resumes a session that dropped. */
+  volatile boolean resuming = false;
+
+  /** Contacts online when the connection dropped and not reported again since; null when not resuming. */
+  volatile HashSet resumePresence;
+
+  /** TrID of the SYN sent on resuming; the contacts not reported again by its reply are offline. */
+  int              resumeSyncID = OutgoingMessage.NO_TRANSACTION_ID;
+
+  /** Switchboard sessions waiting for the server to answer their XFR SB. */
+  HashSet          switchboardRequests = new HashSet();
+
+  /** Switchboard sessions authenticated ahead of time. */
+  SwitchboardPool  pool = new SwitchboardPool( this );
+
+  /** Reconnect attempts made, and those that succeeded. */
+  LongAdder        reconnectAttempts = new LongAdder();
+  LongAdder        reconnects        = new LongAdder();
+
+  /** Metrics of the signed in user; registered while signed in. */
+  MetricSet        metrics;
+
+  /** Whether this user keeps the JVM alive. */
+  boolean          keptAlive = false;
 
   
   /**
@@ -86,7 +150,6 @@ public class NotificationServerConnector implements MSNPListener {
     
     this.serverIP            = serverIP;
     this.serverPort          = serverPort;
-    this.switchboardSessions = new HashMap();
     this.contactList         = new ContactList();
     this.hGroups             = new Hashtable();
   }
@@ -96,41 +159,191 @@ public class NotificationServerConnector implements MSNPListener {
    * username (Passport) and password pair.  The method
    * is actually a misnomer since it does not handle the entire sign in process;
    * instead, it only initates it (sign in is actually a five or six message exchange).
-   * The call can block by choice.
+   * The call can block by choice, until the sign in is over or its
+   * deadlines have passed.
    *
    * @param userName - User name to sign in with
    * @param password - The password for the user
    * @param strStatus - The initial user status
    * @param blocking - Whether to block or not
    */
-  public synchronized void signIn( String userName, String password, String strStatus, boolean blocking ) {
+  public void signIn( String userName, String password, String strStatus, boolean blocking ) {
      
-    OutgoingMessage msg;
+    CompletableFuture signIn = signInAsync( userName, password, strStatus, HANDSHAKE_TIMEOUT, PASSPORT_TIMEOUT, AUTHENTICATION_TIMEOUT );
+
+    if( blocking == true ) {
+      try {
+        signIn.get();
+      } catch( InterruptedException e ) {
+        
+      } catch( ExecutionException e ) {
+        /* Already reported through fireLoginError() */
+      }
+    }
+  }
+
+  /**
+   * Signs in to the Notification Server without blocking the caller.  Each
+   * phase of the sign in has its own deadline: the VER, CVR and USR
+   * handshake, the Passport ticket request, and the final USR carrying the
+   * ticket.  The outcome is also reported to the client listeners through
+   * loginAccepted or loginError.
+   *
+   * @param userName - User name to sign in with
+   * @param password - The password for the user
+   * @param strStatus - The initial user status
+   * @param handshakeTimeout - Milliseconds for connecting and the handshake
+   * @param passportTimeout - Milliseconds for getting the Passport ticket
+   * @param authenticationTimeout - Milliseconds for the server to accept the ticket
+   * @return A future completed once the server has accepted the user.
+   */
+  public CompletableFuture signInAsync( final String userName, final String password, final String strStatus,
+                                        final long handshakeTimeout, final long passportTimeout, final long authenticationTimeout ) {
+    
+    final long started = System.currentTimeMillis();
+    
+    CompletableFuture signIn = connectAsync( handshakeTimeout ).thenCompose( new Function() {
+      
+      public Object apply( Object result ) {
+        
+        /* Connecting counts against the handshake deadline */
+        long remaining = Math.max( 1, handshakeTimeout - ( System.currentTimeMillis() - started ) );
+        
+        return authenticateAsync( userName, password, strStatus, remaining, passportTimeout, authenticationTimeout );
+      }
+    } );
+    
+    return signIn.whenComplete( new BiConsumer() {
+      
+      public void accept( Object result, Object error ) {
+        if( error == null )
+          return;
+        
+        System.err.println( "NotificationServerConnector.signInAsync() - " + error );
+        MessengerServerManager.getInstance().fireLoginError();
+      }
+    } );
+  }
 
+  /**
+   * Opens the connection to the Notification Server without blocking the
+   * caller.
+   *
+   * @param timeout - Milliseconds the connection may take.
+   * @return A future completed once connected, or failed with an MSNException.
+   */
+  CompletableFuture connectAsync( long timeout ) {
+    
+    CompletableFuture       connecting = connect();
+    final CompletableFuture connected  = ExecutionSupport.within( connecting, timeout );
+    
+    /* A connection that comes up after the deadline is not used */
+    connecting.thenAccept( new Consumer() {
+      
+      public void accept( Object result ) {
+        if( connected.isCompletedExceptionally() )
+          ( ( ServerConnection ) result ).disconnect();
+      }
+    } );
+    
+    return connected;
+  }
+
+  /**
+   * Authenticates the user on a connected Notification Server: the VER,
+   * CVR and USR handshake, the Passport ticket request, and the final USR
+   * carrying the ticket, each within its own deadline.  The connection is
+   * closed if authentication fails; reporting the failure is left to the
+   * caller.
+   *
+   * @param userName - User name to sign in with
+   * @param password - The password for the user
+   * @param strStatus - The initial user status
+   * @param handshakeTimeout - Milliseconds for the handshake
+   * @param passportTimeout - Milliseconds for getting the Passport ticket
+   * @param authenticationTimeout - Milliseconds for the server to accept the ticket
+   * @return A future completed once the server has accepted the user.
+   */
+  CompletableFuture authenticateAsync( String userName, String password, String strStatus,
+                                       long handshakeTimeout, final long passportTimeout, final long authenticationTimeout ) {
+    
     this.strUserStatus = strStatus;
     this.userName      = userName;
     this.password      = password;
+    this.signingOut    = false;
 
-    /* Creates the server connection. */
-    sc = new ServerConnection( serverIP, serverPort.intValue(), this );
-    
     // >>> VER 0 MSNP8 only
-    msg = new OutgoingMessage( Message.VER, getTransactionID() );
-    msg.addArgument ( "MSNP8" );
-    msg.addArgument ( "CVR0" );
-    sc.sendMSNPMessage( msg );
-
-    if( blocking == true ) {
-      if( isConnected() )  {
-        try {
-          synchronized( this ) {
-            wait();
-          }
-        } catch( InterruptedException e ) {
+    OutgoingMessage version = new OutgoingMessage( Message.VER, getTransactionID() );
+    
+    version.addArgument ( "MSNP8" );
+    version.addArgument ( "CVR0" );
+    
+    CompletableFuture handshake = sc.sendMSNPMessageAsync( version ).thenCompose( new Function() {
+      
+      public Object apply( Object result ) {
+        
+        /* >>> CVR 2 */
+        // New MSNP8 support
+        OutgoingMessage msg = new OutgoingMessage( Message.CVR, getTransactionID() ); 
+        
+        msg.addArgument( Message.CVR_STRING + NotificationServerConnector.this.userName );
+        return sc.sendMSNPMessageAsync( msg );
+      }
+    } ).thenCompose( new Function() {
+      
+      public Object apply( Object result ) {
+        
+        /* >>> USR [number] TWN I [userName] */
+        OutgoingMessage msg = new OutgoingMessage( Message.USR, getTransactionID() );
+        
+        msg.addArgument( "TWN" );
+        msg.addArgument( "I" );
+        msg.addArgument( NotificationServerConnector.this.userName );
+        return sc.sendMSNPMessageAsync( msg );
+      }
+    } );
+    
+    CompletableFuture signIn = ExecutionSupport.within( handshake, handshakeTimeout ).thenCompose( new Function() {
+      
+      public Object apply( Object result ) {
+        
+        final IncomingMessage challenge = ( IncomingMessage ) result;
+        
+        return ExecutionSupport.within( CompletableFuture.supplyAsync( new Supplier() {
           
-        }
+          public Object get() {
+            return requestTicket( challenge );
+          }
+        }, ExecutionSupport.getConnectExecutor() ), passportTimeout );
       }
-    }
+    } ).thenCompose( new Function() {
+      
+      public Object apply( Object result ) {
+        
+        // >>> USR nn TICKET
+        OutgoingMessage msg = new OutgoingMessage( Message.USR, getTransactionID() );
+        
+        msg.addArgument( Message.commandToString( Message.TWN ) );
+        msg.addArgument( "S" );
+        msg.addArgument( ( String ) result );
+        return ExecutionSupport.within( sc.sendMSNPMessageAsync( msg ), authenticationTimeout );
+      }
+    } ).thenApply( new Function() {
+      
+      public Object apply( Object result ) {
+        
+        receivedUSR( ( IncomingMessage ) result );
+        return result;
+      }
+    } );
+    
+    return signIn.whenComplete( new BiConsumer() {
+      
+      public void accept( Object result, Object error ) {
+        if( error != null && sc != null && sc.isConnected() )
+          sc.disconnect();
+      }
+    } );
   }
 
   /**
@@ -145,23 +358,102 @@ public class NotificationServerConnector implements MSNPListener {
    */
   public void sendMessage( String buddyName, String message ) {
     
-    Object o = switchboardSessions.get( buddyName );
-    SwitchboardSessionConnector ssc;
+    SwitchboardSessionConnector ssc = getSession( buddyName );
 
-    /* If the buddy hasn't been sent a message before, create a new Switchboard
-       session for him/her. */
-    if( o == null ) {
-      ssc = new SwitchboardSessionConnector( userName, buddyName, this );
-      switchboardSessions.put( buddyName, ssc );
-    }
-    else {
-      ssc = ( SwitchboardSessionConnector ) o;
-    }
+    pool.messageSent( buddyName );
 
     /* Send the message via the Switchboard Session. */
     ssc.sendMessage( message );
   }
 
+  /**
+   * Returns the switchboard session connector of a buddy.  When the buddy has
+   * neither a session nor a session request on its way, a ready session is
+   * taken from the pool, if there is one.  If a session has not been created
+   * for that buddy, then a new one is created.
+   *
+   * @param buddyName The buddy.
+   * @return The buddy's switchboard session connector.
+   */
+  private SwitchboardSessionConnector getSession( String buddyName ) {
+    
+    SwitchboardSessionConnector pooled = null;
+    
+    synchronized( switchboardSessions ) {
+      SwitchboardSessionConnector ssc = switchboardSessions.get( buddyName );
+
+      if( ssc == null || ssc.isIdle() ) {
+        pooled = pool.take();
+        
+        if( pooled != null ) {
+          pooled.attach( buddyName, ssc );
+          switchboardSessions.put( buddyName, pooled );
+        }
+      }
+
+      /* If the buddy hasn't been sent a message before, create a new Switchboard
+         session for him/her. */
+      if( pooled == null && ssc == null ) {
+        ssc = new SwitchboardSessionConnector( userName, buddyName, this );
+        switchboardSessions.put( buddyName, ssc );
+      }
+      
+      if( pooled == null )
+        return ssc;
+    }
+    
+    /* The pooled session now counts against the limit of connected sessions */
+    switchboardSessions.sessionOpened( pooled );
+    return pooled;
+  }
+
+  /**
+   * Keeps switchboard sessions connected and authenticated ahead of time, so
+   * that the first message to a buddy only has to call the buddy.  Contacts
+   * messaged often also get a session as soon as they come online.
+   *
+   * @param size Number of sessions kept ready; 0 disables the pool.
+   * @param idleTimeout Milliseconds a ready session may stay unused before it is closed.
+   */
+  public void setSwitchboardPool( int size, long idleTimeout ) {
+    
+    pool.configure( size, idleTimeout );
+  }
+
+  /**
+   * Sets how long a switchboard session may stay unused before it is closed,
+   * and how many sessions may stay connected at once.  When another session
+   * connects, the least recently used one is closed.
+   *
+   * @param maxOpen Number of connected sessions; 0 means no limit.
+   * @param idleTimeout Milliseconds a session may stay unused.
+   */
+  public void setSwitchboardLimits( int maxOpen, long idleTimeout ) {
+    
+    switchboardSessions.configure( maxOpen, idleTimeout );
+  }
+
+  /**
+   * Returns the number of switchboard sessions in each state, and the
+   * sockets and threads in use.
+   *
+   * @return The counters.
+   */
+  public String getSwitchboardStatistics() {
+    
+    return switchboardSessions.getStatistics();
+  }
+
+  /**
+   * Returns the counters of the switchboard session pool.
+   *
+   * @return Ready and opening sessions, hits, misses, expired and speculative sessions.
+   */
+  public String getSwitchboardPoolStatistics() {
+    
+    return pool.getStatistics();
+  }
+
   /**
    * Fastrack method for sending MSNP packets directly to the Notification Server.
    * Most uses of this library will use the <pre>sendMessage(String,String)</pre>
@@ -175,6 +467,24 @@ public class NotificationServerConnector implements MSNPListener {
     sc.sendMSNPMessage( msg );
   }
 
+  /**
+   * Sends an MSNP packet to the Notification Server, and returns a future for
+   * the server's reply.  A packet without a transaction ID is given the next
+   * one of this connection.  The future fails with an MSNException when the
+   * server answers with an error code, does not answer in time, or the
+   * connection is lost.
+   *
+   * @param msg The MSNP packet to send to the Notification Server.
+   * @return A future completed with the reply.
+   */
+  public CompletableFuture sendMessageAsync( OutgoingMessage msg ) {
+    
+    if( msg.getTransactionID() == OutgoingMessage.NO_TRANSACTION_ID )
+      msg.transactionID = getTransactionID();
+    
+    return sc.sendMSNPMessageAsync( msg );
+  }
+
   /**
    * Signs the user out of the MSN Messenger service by sending an OUT packet to
    * the service.
@@ -183,9 +493,16 @@ public class NotificationServerConnector implements MSNPListener {
     
     /* >>> OUT */
     OutgoingMessage msg = new OutgoingMessage( Message.OUT, OutgoingMessage.NO_TRANSACTION_ID );
+    
+    signingOut = true;
+    supervisor.cancel();
+    cancelSwitchboardRequests();
+    pool.stop();
+    switchboardSessions.stop();
           
     sc.sendMSNPMessage( msg );
     contactList.removeAll();
+    sessionEnded();
   }
         
   /**
@@ -211,7 +528,7 @@ public class NotificationServerConnector implements MSNPListener {
       strUserStatus = strNewStatus;
           
       /* >>> CHG 23 NLN */
-      outgoingMsg.addArgument( strUserStatus );
+      outgoingMsg.addArgument( MessageEncoder.fragment( strUserStatus ) );
       sc.sendMSNPMessage( outgoingMsg );
     }
   }
@@ -345,7 +662,7 @@ public class NotificationServerConnector implements MSNPListener {
    */
   boolean isConnected()  {
           
-    return sc.isConnected();
+    return sc != null && sc.isConnected();
   }
   
   /**
@@ -367,46 +684,251 @@ public class NotificationServerConnector implements MSNPListener {
     sc.sendMSNPMessage( outgoingMsg );
   }
 
+  /**
+   * Brings the connection back after it dropped, keeping the contact list,
+   * groups, status and switchboard queues.  Connects to the same
+   * Notification Server, or to the one the Dispatch Server names if that
+   * fails, signs in again, restores the user's status, and then only asks
+   * the server for the contact list changes made since the version held here.
+   *
+   * @return A future completed once signed in again.
+   */
+  CompletableFuture reconnectAsync() {
+    
+    resuming = true;
+    rememberPresence();
+    
+    CompletableFuture connected = connectAsync( HANDSHAKE_TIMEOUT ).handle( new BiFunction() {
+      
+      public Object apply( Object result, Object error ) {
+        
+        if( error == null )
+          return CompletableFuture.completedFuture( result );
+        
+        DispatchServerConnector ds = new DispatchServerConnector();
+        
+        return ds.getNSServerAsync( userName, DispatchServerConnector.DEFAULT_TIMEOUT ).thenCompose( new Function() {
+          
+          public Object apply( Object result ) {
+            
+            ArrayList serverInfo = ( ArrayList ) result;
+            
+            serverIP   = ( String ) serverInfo.get( 0 );
+            serverPort = ( Integer ) serverInfo.get( 1 );
+            return connectAsync( HANDSHAKE_TIMEOUT );
+          }
+        } );
+      }
+    } ).thenCompose( new Function() {
+      
+      public Object apply( Object result ) {
+        return result;
+      }
+    } );
+    
+    return connected.thenCompose( new Function() {
+      
+      public Object apply( Object result ) {
+        return authenticateAsync( userName, password, strUserStatus, HANDSHAKE_TIMEOUT, PASSPORT_TIMEOUT, AUTHENTICATION_TIMEOUT );
+      }
+    } ).thenApply( new Function() {
+      
+      public Object apply( Object result ) {
+        
+        /* The pool was emptied when the connection dropped */
+        pool.start();
+        resynchronizeContactList();
+        resumeSwitchboardRequests();
+        return result;
+      }
+    } ).whenComplete( new BiConsumer() {
+      
+      public void accept( Object result, Object error ) {
+        resuming = false;
+      }
+    } );
+  }
+
+  /**
+   * Brings the connection back automatically when it drops without the user
+   * signing out.  Listeners are told the server disconnected only if the
+   * supervisor gives up.
+   *
+   * @param autoReconnect Whether to reconnect automatically.
+   */
+  public void setAutoReconnect( boolean autoReconnect ) {
+    
+    this.autoReconnect = autoReconnect;
+    
+    if( !autoReconnect )
+      supervisor.cancel();
+  }
+
+  /**
+   * Asks the server for the contact list changes made since the version held
+   * here.  Unlike <pre>synchronizeContactList()</pre>, the list is kept, and
+   * listeners only hear about contacts that were added, changed or removed.
+   */
+  void resynchronizeContactList() {
+    
+    if( isConnected() )  {
+      OutgoingMessage outgoingMsg = new OutgoingMessage( Message.SYN, getTransactionID() );
+      
+      // >>> SYN nTID listVersion
+      outgoingMsg.addArgument( Integer.toString( listVersion ) );
+      
+      if( resumePresence != null )
+        resumeSyncID = outgoingMsg.getTransactionID();
+      
+      sc.sendMSNPMessage( outgoingMsg );
+    }
+  }
+
+  /**
+   * Remembers which contacts are online, before resuming a session.  The
+   * server only lists the contacts online now, so those that went offline
+   * while the connection was down are never reported.
+   */
+  private void rememberPresence() {
+    
+    HashSet  online   = new HashSet();
+    Iterator contacts = new ArrayList( contactList.hContacts.values() ).iterator();
+    
+    while( contacts.hasNext() ) {
+      Contact contact = ( Contact ) contacts.next();
+      String  status  = contact.getStatus().toString();
+      
+      if( !ContactStatus.OFFLINE.equals( status ) && !ContactStatus.UNKNOWN.equals( status ) )
+        online.add( contact.getUserName() );
+    }
+    
+    resumePresence = online;
+  }
+
+  /**
+   * Marks the contacts that were online when the connection dropped, and
+   * that the resumed session did not report again, as offline; listeners
+   * get one status change for each.
+   */
+  private void expireResumedPresence() {
+    
+    HashSet stale = resumePresence;
+    
+    resumePresence = null;
+    resumeSyncID   = OutgoingMessage.NO_TRANSACTION_ID;
+    
+    if( stale == null )
+      return;
+    
+    Object[] names;
+    
+    synchronized( stale ) {
+      names = stale.toArray();
+    }
+    
+    for( int i = 0; i < names.length; i++ ) {
+      String  userName = ( String ) names[i];
+      Contact contact  = contactList.getContact( userName );
+      
+      if( contact == null || ContactStatus.OFFLINE.equals( contact.getStatus().toString() ) )
+        continue;
+      
+      contact.setStatus( ContactStatus.OFFLINE );
+      MessengerServerManager.getInstance().fireContactChangeEvent( userName, Contact.STATUS, ContactStatus.OFFLINE, "FLN " + userName );
+    }
+  }
+
+  /**
+   * Asks again for the switchboard sessions requested on a connection that
+   * dropped before the server answered.
+   */
+  private void resumeSwitchboardRequests() {
+    
+    Object[] waiting;
+    
+    synchronized( switchboardRequests ) {
+      waiting = switchboardRequests.toArray();
+    }
+    
+    for( int i = 0; i < waiting.length; i++ )
+      requestSwitchboardSession( ( SwitchboardSessionConnector ) waiting[i] );
+  }
+
+  /**
+   * Gives up the switchboard session requests still waiting, e.g. when the
+   * connection is gone for good.  The sessions go back to idle, and ask
+   * again with the next message.
+   */
+  void cancelSwitchboardRequests() {
+    
+    Object[] waiting;
+    
+    synchronized( switchboardRequests ) {
+      waiting = switchboardRequests.toArray();
+      switchboardRequests.clear();
+    }
+    
+    for( int i = 0; i < waiting.length; i++ )
+      ( ( SwitchboardSessionConnector ) waiting[i] ).requestFailed();
+  }
+
+  /**
+   * Selects the transport used for the connection to the Notification Server and
+   * to the switchboard servers.
+   * Takes effect on the next connection.
+   *
+   * @param transport ServerConnection.TRANSPORT_BLOCKING or ServerConnection.TRANSPORT_NIO.
+   */
+  public void setTransport( int transport ) {
+    
+    this.transport = transport;
+  }
+
   /**
    * Returns the current transaction ID to the
    * connected NS session.
    */
   private int getTransactionID() {
     
-    transactionID++;
-    return transactionID;
+    return transactions.nextTransactionID();
   }
 	
   /**
    * Receives incoming MSNP messages from the server connection, and delegates
    * the responsibility of handling the message to the appropriate function.
+   * Commands with fields are handed over as their record; a line that lacks
+   * a field its command requires is dropped here.
    *
    * @param incomingMessage The MSNP message that is to be processed.
    */
   public void incomingMSNPMessage( IncomingMessage incomingMessage ) {
+    
+    MessageRecord record = incomingMessage.getRecord();
+    
+    if( record == null && MessageRecord.hasRecord( incomingMessage.getType() ) ) {
+      System.err.println( "NotificationServerConnector.incomingMSNPMessage() - Malformed " + incomingMessage.getLine() );
+      return;
+    }
           
     switch( incomingMessage.getType() ) {
                   
-      case Message.VER: receivedVER( incomingMessage );  break;
-      case Message.CVR: receivedCVR( incomingMessage );  break;
-      // Not needed in MSNP8
-      //case Message.INF: receivedINF ( incomingMessage ); break;
-      case Message.USR: receivedUSR( incomingMessage );  break;
+      /* Replies to VER, CVR and USR complete the requests of signInAsync() */
       case Message.CHG: receivedCHG( incomingMessage );  break;
-      case Message.CHL: receivedCHL( incomingMessage );  break;
+      case Message.CHL: receivedCHL( ( MessageRecord.Chl ) record );  break;
       case Message.QRY: receivedQRY( incomingMessage );  break;
-      case Message.XFR: receivedXFR( incomingMessage );  break;
-      case Message.RNG: receivedRNG( incomingMessage );  break;
-      case Message.REA: receivedREA( incomingMessage );  break;
-      case Message.ILN: receivedILN( incomingMessage );  break;
-      case Message.BPR: receivedBPR( incomingMessage );  break;
-      case Message.NLN: receivedNLN( incomingMessage );  break;
-      case Message.FLN: receivedFLN( incomingMessage );  break;
-      case Message.LST: receivedLST( incomingMessage );  break;
-      case Message.LSG: receivedLSG( incomingMessage );  break;
-      case Message.ADD: receivedADD( incomingMessage );  break;
-      case Message.REM: receivedREM( incomingMessage );  break;
+      case Message.XFR: receivedXFR( ( MessageRecord.Xfr ) record );  break;
+      case Message.RNG: receivedRNG( ( MessageRecord.Rng ) record );  break;
+      case Message.REA: receivedREA( ( MessageRecord.Rea ) record );  break;
+      case Message.ILN: receivedILN( ( MessageRecord.Iln ) record );  break;
+      case Message.BPR: receivedBPR( ( MessageRecord.Bpr ) record );  break;
+      case Message.NLN: receivedNLN( ( MessageRecord.Nln ) record );  break;
+      case Message.FLN: receivedFLN( ( MessageRecord.Fln ) record );  break;
+      case Message.LST: receivedLST( ( MessageRecord.Lst ) record );  break;
+      case Message.LSG: receivedLSG( ( MessageRecord.Lsg ) record );  break;
+      case Message.ADD: receivedADD( ( MessageRecord.Add ) record );  break;
+      case Message.REM: receivedREM( ( MessageRecord.Rem ) record );  break;
       case Message.SDC: receivedSDC( incomingMessage );  break;
+      case Message.SYN: receivedSYN( ( MessageRecord.Syn ) record );  break;
     }
   }
 
@@ -415,122 +937,182 @@ public class NotificationServerConnector implements MSNPListener {
    */
   public void serverDisconnected() {
     
-    System.out.println( "NotificationServerConnector.serverDisconnected() - Notification server disconnected..." );
+    if( WireLog.isEnabled( WireLog.INFO ) )
+      WireLog.log( WireLog.INFO, "ns", "NotificationServerConnector.serverDisconnected() - Notification server disconnected..." );
     
-    synchronized( this ) {
-      notifyAll();
+    boolean wasLoggedIn = bLoggedIn;
+    
+    /* A sign in that is still going on fails on its own, and reports the login error */
+    bLoggedIn = false;
+    pool.stop();
+    
+    /* While the connection is being brought back, the client is not told it dropped */
+    if( supervisor.isActive() )
+      return;
+    
+    if( wasLoggedIn && autoReconnect && !signingOut ) {
+      supervisor.connectionLost();
+      return;
     }
-                
-    if( !bLoggedIn )
-      MessengerServerManager.getInstance().fireLoginError();
     
-      bLoggedIn = false;
+    cancelSwitchboardRequests();
+    sessionEnded();
                 
-      // Fire the client listener
-      MessengerServerManager.getInstance().fireServerDisconnected();
+    // Fire the client listener
+    MessengerServerManager.getInstance().fireServerDisconnected();
   }
   
   /**
-   * Responds to the VER response from the server.  Sends the INF request
-   * without verifying the content of the VER response.
+   * Opens the connection to the Notification Server without blocking the
+   * caller.
    *
-   * @param incomingMessage The incoming MSNP message.
+   * @return A future for the connection, failed with an MSNException when
+   *         it could not be made.
    */
-  private void receivedVER( IncomingMessage incomingMessage ) {
-    /* >>> CVR 2 */
-    // New MSNP8 support
-    OutgoingMessage outgoingMsg = new OutgoingMessage( Message.CVR, getTransactionID() ); 
-    String          strArgument = Message.CVR_STRING + userName;
-                
-    outgoingMsg.addArgument( strArgument );
-    sc.sendMSNPMessage( outgoingMsg );
-  }
+  private CompletableFuture connect() {
+    
+    /* Creates the server connection. */
+    return ServerConnection.openConnection( serverIP, serverPort.intValue(), this, transport, ExecutionSupport.getBlockingExecutor() ).thenApply( new Function() {
+      
+      public Object apply( Object result ) {
         
-  /**
-   * Called when an CVR message is
-   * received.  The implementation does not check the form of the
-   * message; instead, the message is used as a notification to send
-   * the USR command.
-   *
-   * @param incomingMessage The message that was received.
-   */
-  private void receivedCVR( IncomingMessage incomingMessage ) {
-          
-    /* >>> USR [number] TWN I [userName] */
-    OutgoingMessage outgoingMsg = new OutgoingMessage( Message.USR, getTransactionID() );
-                
-    outgoingMsg.addArgument( "TWN" );
-    outgoingMsg.addArgument( "I" );
-    outgoingMsg.addArgument( userName );
-    sc.sendMSNPMessage( outgoingMsg );
+        sc = ( ServerConnection ) result;
+        sc.setTransactionTable( transactions );
+        return sc;
+      }
+    } );
   }
 
-  // This package is not needed in the MSNP8 and now was changed by CVR response
   /**
-   * Responds to the INF response from the server by sending and a USR
-   * request.  This requests a hash value for the user given the hash
-   * method specified by the server's response to INF.  (This is
-   * hardcoded as MD5.)
+   * Asks Passport for the ticket that answers the challenge the server sent
+   * in reply to USR TWN I.  Blocks on the HTTPS requests, so it must run off
+   * the connection's threads.
    *
-   * @param incomingMessage The incoming MSNP message.
+   * @param incomingMessage The USR TWN S challenge.
+   * @return The authorization ticket.
    */
-  //private void receivedINF (IncomingMessage incomingMessage) {
-  /* >>> USR 23 MD5 I passport@msn.com */
-  //	OutgoingMessage msg = new OutgoingMessage (Message.USR, getTransactionID());
-  //	msg.addArgument ("MD5"); msg.addArgument ("I"); msg.addArgument (userName);
-  //	sc.sendMSNPMessage (msg);
-  //}
+  private String requestTicket( IncomingMessage incomingMessage ) {
+    
+    MessageRecord record = incomingMessage.getRecord();
+    
+    if( !( record instanceof MessageRecord.Usr ) || ( ( MessageRecord.Usr ) record ).getChallenge() == null )
+      throw new CompletionException( new MSNException( MSNException.MSN_EX_LOGIN_FAIL ) );
+    
+    try {
+      SSLServerConnection sslConn     = new SSLServerConnection( SSLServerConnection.getPassportNexus() );
+      String              strLoginSvr = sslConn.getPassportLoginServer();
+      String              strTicket   = sslConn.requestAuthorizationTicket( strLoginSvr, userName, password, ( ( MessageRecord.Usr ) record ).getChallenge() );
+      
+      if( strTicket != null )
+        return strTicket;
+    } catch( Exception e ) {
+      System.err.println( "NotificationServerConnector.requestTicket() - " + e ); 
+    }
+    
+    throw new CompletionException( new MSNException( MSNException.MSN_EX_LOGIN_FAIL ) );
+  }
 
   /**
-   * Responds to the USR messages from the server.  The first time, it sends back
-   * the MD5 hash for authentication.  The second time the server sends a USR
-   * message is to ACK the authentication; the client then sends a "set my status
+   * Handles the server's reply to the USR that carries the Passport ticket.
+   * An OK means the user is signed in; the client then sends a "set my status
    * as online" message.
    *
    * @param incomingMessage The incoming MSNP message.
    */
   private void receivedUSR( IncomingMessage incomingMessage ) {
     
-    /* MD5 requires response; OK is an ACK */
-    try {
-      /* "SecurityProtocol" is something of a hack here. */
-      String securityProtocol = incomingMessage.getSecurityProtocol();
-                        
-      if( securityProtocol.equals( Message.commandToString( Message.TWN ) ) )  {
-                                
-        SSLServerConnection sslConn     = new SSLServerConnection( SSLServerConnection.PASSPORT_LIST_SERVER_ADDRESS );
-        String              strLoginSvr = sslConn.getPassportLoginServer();
-        String              strTicket   = sslConn.requestAuthorizationTicket( strLoginSvr, userName, password, incomingMessage.getChallengeHash() );
-                                  
-        if( strTicket == null )  {
-          sc.disconnect();
-          return;
+    MessageRecord record = incomingMessage.getRecord();
+    
+    if( !( record instanceof MessageRecord.Usr ) || !( ( MessageRecord.Usr ) record ).isOK() )
+      throw new CompletionException( new MSNException( MSNException.MSN_EX_LOGIN_FAIL ) );
+    
+    bLoggedIn = true;
+    
+    /* Listeners already know a resumed session is signed in, and it is already set up */
+    if( resuming ) {
+      setStatus( strUserStatus );
+      return;
+    }
+    
+    MessengerServerManager.getInstance().fireLoginAccepted();
+    setStatus( strUserStatus );
+    switchboardSessions.start();
+    pool.start();
+    sessionStarted();
+  }
+
+  /**
+   * Registers the metrics of the signed in user, and keeps the JVM alive
+   * until the session ends.  Reconnects do not start it again.
+   */
+  private synchronized void sessionStarted() {
+    
+    registerMetrics();
+    
+    if( !keptAlive ) {
+      keptAlive = true;
+      ExecutionSupport.keepAlive( true );
+    }
+  }
+
+  /**
+   * Ends the session, once signed out or once the connection is gone for
+   * good: the metrics are unregistered, and the JVM no longer kept alive.
+   */
+  synchronized void sessionEnded() {
+    
+    Metrics.unregister( metrics );
+    
+    if( keptAlive ) {
+      keptAlive = false;
+      ExecutionSupport.keepAlive( false );
+    }
+  }
+
+  /**
+   * Registers the metrics of the signed in user, the first time it signs
+   * in.  They stay registered across reconnects.
+   */
+  private void registerMetrics() {
+    
+    if( metrics == null ) {
+      metrics = new MetricSet( "NotificationServer", userName, new String[] { "user", userName } );
+      
+      metrics.gauge( "open_switchboards", "Switchboard sessions connected.", new MetricSet.Gauge() {
+        
+        public long getValue() {
+          return switchboardSessions.getOpenCount();
         }
-        else  {
-	  // >>> USR nn TICKET
-          OutgoingMessage outgoingMsg = new OutgoingMessage( Message.USR, getTransactionID() );
-                                    
-          outgoingMsg.addArgument( Message.commandToString( Message.TWN ) );
-          outgoingMsg.addArgument( "S" );
-          outgoingMsg.addArgument( strTicket );
-          sc.sendMSNPMessage( outgoingMsg );
+      } );
+      metrics.gauge( "queued_messages", "Messages waiting for their buddy to join, over all buddies.", new MetricSet.Gauge() {
+        
+        public long getValue() {
+          return switchboardSessions.getQueuedMessageCount( false );
         }
-      }
-      else 
-        if( securityProtocol.equals( "OK" ) ) {
-          
-          synchronized( this ) {
-            notifyAll();
-          }
-                            
-          MessengerServerManager.getInstance().fireLoginAccepted();
-          setStatus( strUserStatus );
-          bLoggedIn = true;
+      } );
+      metrics.gauge( "queued_messages_max", "Messages waiting for the buddy with the most.", new MetricSet.Gauge() {
+        
+        public long getValue() {
+          return switchboardSessions.getQueuedMessageCount( true );
         }
-    } catch( Exception e ) {
-      System.err.println( "NotificationServerConnector.receivedUSR() - " + e ); 
-      sc.disconnect();
+      } );
+      metrics.gauge( "pending_transactions", "Requests waiting for their reply, on the notification and switchboard connections.", new MetricSet.Gauge() {
+        
+        public long getValue() {
+          return transactions.size() + switchboardSessions.getPendingTransactionCount();
+        }
+      } );
+      metrics.gauge( "reconnecting", "Whether the connection is being brought back.", new MetricSet.Gauge() {
+        
+        public long getValue() {
+          return supervisor.isActive() ? 1 : 0;
+        }
+      } );
+      metrics.counter( "reconnect_attempts", "Attempts made to bring the connection back.", reconnectAttempts );
+      metrics.counter( "reconnects", "Times the connection was brought back.", reconnects );
     }
+    
+    Metrics.register( metrics );
   }
 
   /**
@@ -548,22 +1130,18 @@ public class NotificationServerConnector implements MSNPListener {
    * client.  This is symmetric key crypto; the passphrase to return is
    * the MD5 hash on the challenge + the key.
    *
-   * @param incomingMessage The incoming MSNP message.
+   * @param chl The challenge.
    */
-  private void receivedCHL( IncomingMessage incomingMessage ) {
+  private void receivedCHL( MessageRecord.Chl chl ) {
     
-    try {
-      /* >>> QRY 42 PROD0038W!61ZTF9 32 098c9d8ef890ab8 */
-      
-      OutgoingMessage msg = new OutgoingMessage( Message.QRY, getTransactionID() );
-     
-      msg.addArgument( "PROD0038W!61ZTF9" );
-      msg.addArgument( "32" ); 
-      msg.addArgument( "\r\n" );
-      msg.addArgument( MD5sum( incomingMessage.getChallengeHash() + MESSENGER_CHALLENGE_STRING ) );
-      sc.sendMSNPMessage( msg );
-    } catch( NoSuchFieldException e ) { /* Shouldn't ever get here */ 
-    }
+    /* >>> QRY 42 PROD0038W!61ZTF9 32 098c9d8ef890ab8 */
+    
+    OutgoingMessage msg = new OutgoingMessage( Message.QRY, getTransactionID() );
+   
+    /* The length of the hash is added by the encoder */
+    msg.addArgument( QRY_PRODUCT_ID );
+    msg.setBody( MD5sum( chl.getChallengeHash() + MESSENGER_CHALLENGE_STRING ) );
+    sc.sendMSNPMessage( msg );
   }
 
   /**
@@ -580,49 +1158,18 @@ public class NotificationServerConnector implements MSNPListener {
    * The Notification Server sends XFR messages to the client in two
    * different cases: (1) a Switchboard Session is requested, and
    * (2) when the user is asked to change notification servers.
-   * In the first case, the next waiting switchboard session request
-   * (by the client) is honoured.  In the second case, nothing happens
-   * (right now).
+   * In the first case, the reply has already been matched to the session
+   * that requested it, by its TrID (see <pre>requestSwitchboardSession()</pre>).
+   * In the second case, nothing happens (right now).
    *
-   * @param incomingMessage The incoming MSNP message.
+   * @param xfr The referral.
    */
-  private void receivedXFR (IncomingMessage incomingMessage) {
-    try {
-      String referralType = incomingMessage.getReferralType();
-
-      if( referralType.equals( "SB" ) ) {
-        Object o;
-
-        /* Get the next session request from the queue. */
-        synchronized( SwitchboardSessionConnector.queuedSessions ) {
-          o = SwitchboardSessionConnector.queuedSessions.removeLast();
-        }
-
-        /* If it's no longer there, then return. */
-        if( o == null ) 
-          return;
-        
-        SwitchboardSessionConnector ssc = ( SwitchboardSessionConnector ) o;
-        String serverIP      = incomingMessage.getServerIP();
-        int    serverPort    = incomingMessage.getServerPort();
-        String challengeHash = incomingMessage.getChallengeHash();
-        String sessionID     = "None";
-
-        /* Otherwise, tell the switchboard session to connect. */
-        ssc.setSessionInfo( serverIP, serverPort, sessionID, challengeHash );
-
-	/* Ensure that it knows that we are the calling party. */
-	ssc.setCalling( true );
-        ssc.connectSession();
-      }
-      else { 
-        /* TODO: it's a "This server is going down XFR", so 
-           flush the sc, and close it down.  make a new SC.
-         */
-      }
-    }
-    catch( NoSuchFieldException e ) { 
-      /* Shouldn't ever get here */ 
+  private void receivedXFR( MessageRecord.Xfr xfr ) {
+    
+    if( !xfr.isSwitchboard() ) { 
+      /* TODO: it's a "This server is going down XFR", so 
+         flush the sc, and close it down.  make a new SC.
+       */
     }
   }
 
@@ -633,182 +1180,238 @@ public class NotificationServerConnector implements MSNPListener {
    * Upon receipt of the message, a new switchboard session object is
    * created for the buddy, and the switchboard session is initiated.
    *
-   * @param incomingMessage The incoming MSNP message.
+   * @param rng The call.
    */
-  private void receivedRNG( IncomingMessage incomingMessage ) {
-    try {
-      String sessionID     = incomingMessage.getSessionID();
-      String buddyName     = incomingMessage.getUserName();
-      String challengeHash = incomingMessage.getChallengeHash();
-      String serverIP      = incomingMessage.getServerIP();
-      int serverPort       = incomingMessage.getServerPort();
+  private void receivedRNG( MessageRecord.Rng rng ) {
+    
+    String buddyName = rng.getUserName();
 
+    SwitchboardSessionConnector ssc;
+    
+    synchronized( switchboardSessions ) {
       /* If the buddy has a switchboard session connector, then use that
          since it will contain a queue of messages. */
-      SwitchboardSessionConnector ssc = ( SwitchboardSessionConnector ) switchboardSessions.get( buddyName );
-     
+      ssc = switchboardSessions.get( buddyName );
+      
       if( ssc == null ) {
         /* If one does not exist, then create one. */
         ssc = new SwitchboardSessionConnector( userName, buddyName, this );
         switchboardSessions.put( buddyName, ssc );
       }
-
-      ssc.setSessionInfo( serverIP, serverPort, sessionID, challengeHash );
-
-      /* Tell the switchboard session connector that it is answering a call */
-      ssc.setCalling( false );
-
-      /* Connect to the switchboard session server. */
-      ssc.connectSession();
-    } catch( NoSuchFieldException e ) { 
-      /* Should never get here. */
     }
+
+    /* Connect to the switchboard session server, off the reading thread,
+       answering the call. */
+    ssc.connectSessionAsync( rng.getServerIP(), rng.getServerPort(), rng.getSessionID(), rng.getChallengeHash(), false );
   }
   
-  private void receivedREA( IncomingMessage incomingMessage ) {
+  /**
+   * Returns the packet of a record, detached, for the contact change events
+   * it fires; they format it only if a listener asks for the source command.
+   *
+   * @param record The record of an REA, ILN, NLN, FLN or BPR.
+   * @return The packet.
+   */
+  private static IncomingMessage sourceOf( MessageRecord record ) {
     
-    try {
-      MessengerServerManager.getInstance().fireContactChangeEvent( incomingMessage.getUserName(), Contact.FRIENDLY_NAME, incomingMessage.getFriendlyName(), incomingMessage.toString() );
-    } catch( NoSuchFieldException e ) { 
-      /* Should never get here. */
-    }
+    record.message.detach();
+    return record.message;
   }
 
-  private void receivedILN( IncomingMessage incomingMessage ) {
+  private void receivedREA( MessageRecord.Rea rea ) {
     
-    try {
-      /* Friendly Name */
-      MessengerServerManager.getInstance().fireContactChangeEvent( incomingMessage.getUserName(), Contact.FRIENDLY_NAME, incomingMessage.getFriendlyName(), incomingMessage.toString() );
-
-      /* Status */
-      MessengerServerManager.getInstance().fireContactChangeEvent( incomingMessage.getUserName(), Contact.STATUS, incomingMessage.getStatus(), incomingMessage.toString() );
-    } catch( NoSuchFieldException e ) { 
-      /* Should never get here. */
-    }
+    MessengerServerManager.getInstance().fireContactChangeEvent( rea.getUserName(), Contact.FRIENDLY_NAME, rea.getFriendlyName(), sourceOf( rea ) );
   }
 
-  private void receivedFLN( IncomingMessage incomingMessage ) {
+  private void receivedILN( MessageRecord.Iln iln ) {
     
-    try {
-      MessengerServerManager.getInstance().fireContactChangeEvent (incomingMessage.getUserName(), Contact.STATUS, incomingMessage.getStatus(), incomingMessage.toString());
-    } catch( NoSuchFieldException e ) { 
-      /* Should never get here. */
-    }
+    /* After a reconnect, contacts whose presence did not change are not reported again */
+    if( !updatePresence( iln ) )
+      return;
+    
+    /* Friendly Name */
+    MessengerServerManager.getInstance().fireContactChangeEvent( iln.getUserName(), Contact.FRIENDLY_NAME, iln.getFriendlyName(), sourceOf( iln ) );
+
+    /* Status */
+    MessengerServerManager.getInstance().fireContactChangeEvent( iln.getUserName(), Contact.STATUS, iln.getStatus(), sourceOf( iln ) );
   }
 
-  private void receivedNLN( IncomingMessage incomingMessage ) {
+  private void receivedFLN( MessageRecord.Fln fln ) {
     
-    try {
-      /* Friendly Name */
-      MessengerServerManager.getInstance().fireContactChangeEvent( incomingMessage.getUserName(), Contact.FRIENDLY_NAME, incomingMessage.getFriendlyName(), incomingMessage.toString() );
+    updatePresence( fln );
+    MessengerServerManager.getInstance().fireContactChangeEvent( fln.getUserName(), Contact.STATUS, fln.getStatus(), sourceOf( fln ) );
+  }
 
-      /* Status */
-      MessengerServerManager.getInstance().fireContactChangeEvent (incomingMessage.getUserName(), Contact.STATUS, incomingMessage.getStatus(), incomingMessage.toString());
-    } catch( NoSuchFieldException e ) { 
-      /* Should never get here. */
+  private void receivedNLN( MessageRecord.Nln nln ) {
+    
+    updatePresence( nln );
+    
+    /* Contacts messaged often get a session as soon as they come online */
+    if( pool.isHot( nln.getUserName() ) ) {
+      SwitchboardSessionConnector existing = switchboardSessions.get( nln.getUserName() );
+      
+      if( existing == null || existing.isIdle() ) {
+        /* Either calls with a pooled session, or requests a new one */
+        getSession( nln.getUserName() ).open();
+        pool.countSpeculative();
+      }
     }
+
+    /* Friendly Name */
+    MessengerServerManager.getInstance().fireContactChangeEvent( nln.getUserName(), Contact.FRIENDLY_NAME, nln.getFriendlyName(), sourceOf( nln ) );
+
+    /* Status */
+    MessengerServerManager.getInstance().fireContactChangeEvent( nln.getUserName(), Contact.STATUS, nln.getStatus(), sourceOf( nln ) );
   }
 
-  private void receivedBPR( IncomingMessage incomingMessage ) {
+  /**
+   * Records the status and friendly name of a contact on the list.
+   *
+   * @param presence An ILN, NLN or FLN.
+   * @return Whether anything changed, or the contact is not on the list.
+   */
+  private boolean updatePresence( MessageRecord.Presence presence ) {
     
-    String newValue;
-    String property;
+    HashSet stale   = resumePresence;
+    Contact contact = contactList.getContact( presence.getUserName() );
     
+    /* Reported by the resumed session */
+    if( stale != null ) {
+      synchronized( stale ) {
+        stale.remove( presence.getUserName() );
+      }
+    }
     
-    try {
-      newValue = incomingMessage.getValue();
+    if( contact == null )
+      return true;
+    
+    String  status       = ContactStatus.parseStatus( presence.getStatus() );
+    String  friendlyName = ( presence.getDecodedFriendlyName() == null ) ? contact.getFriendlyName() : presence.getDecodedFriendlyName();
+    boolean changed      = !status.equals( contact.getStatus().toString() ) || !friendlyName.equals( contact.getFriendlyName() );
+    
+    contact.setStatus( status );
+    contact.setFriendlyName( friendlyName );
+    
+    return changed;
+  }
+
+  private void receivedBPR( MessageRecord.Bpr bpr ) {
+    
+    String newValue = bpr.getValue();
+    String property = bpr.getProperty();
 
-      if( newValue == null ) 
-        return;
-			
-      /* Property Name */
-      property = incomingMessage.getProperty();
+    if( newValue == null ) 
+      return;
 
-      if( property.equals( "PHH" ) ) {
-        MessengerServerManager.getInstance().fireContactChangeEvent( incomingMessage.getUserName(), Contact.HOME_PHONE_NUMBER, newValue, incomingMessage.toString() );
+    if( property.equals( "PHH" ) ) {
+      MessengerServerManager.getInstance().fireContactChangeEvent( bpr.getUserName(), Contact.HOME_PHONE_NUMBER, newValue, sourceOf( bpr ) );
+    }
+    else 
+      if( property.equals( "PHW" ) ) {
+        MessengerServerManager.getInstance().fireContactChangeEvent( bpr.getUserName(), Contact.WORK_PHONE_NUMBER, newValue, sourceOf( bpr ) );
       }
       else 
-        if( property.equals( "PHW" ) ) {
-	  MessengerServerManager.getInstance().fireContactChangeEvent( incomingMessage.getUserName(), Contact.WORK_PHONE_NUMBER, newValue, incomingMessage.toString() );
+        if( property.equals( "PHM" ) ) {
+          MessengerServerManager.getInstance().fireContactChangeEvent( bpr.getUserName(), Contact.MOBILE_PHONE_NUMBER, newValue, sourceOf( bpr ) );
         }
         else 
-          if( property.equals( "PHM" ) ) {
-            MessengerServerManager.getInstance().fireContactChangeEvent( incomingMessage.getUserName(), Contact.MOBILE_PHONE_NUMBER, newValue, incomingMessage.toString() );
+          if( property.equals( "MOB" ) ) {
+            MessengerServerManager.getInstance().fireContactChangeEvent( bpr.getUserName(), Contact.MOBILE_ENABLED, newValue, sourceOf( bpr ) );
           }
-          else 
-            if( property.equals( "MOB" ) ) {
-              MessengerServerManager.getInstance().fireContactChangeEvent( incomingMessage.getUserName(), Contact.MOBILE_ENABLED, newValue, incomingMessage.toString() );
-            }
-    } catch( NoSuchFieldException e ) { 
-      /* Should never get here. */
-    }
   }
   
-  private void receivedLST( IncomingMessage incomingMessage ) {
+  private void receivedLST( MessageRecord.Lst lst ) {
           
-    try  {
-      Contact    contact = new Contact( incomingMessage.getUserName() );
-            
-      contact.setFriendlyName( incomingMessage.getFriendlyName() );
-      contact.setGroups( incomingMessage.getGroups() );
-      contact.setListType( incomingMessage.getListType() );
-      contactList.addToContactList( contact );
-      MessengerServerManager.getInstance().fireContactReceived( contact );
+    Contact    contact = new Contact( lst.getUserName() );
+    Contact    known   = contactList.getContact( contact.getUserName() );
           
-      System.out.println( "NotificationServerConnector.receivedLST() - " + contact.toString() );
-    }  catch( NoSuchFieldException e )  {
-      System.err.println( "NotificationServerConnector.receivedLST() - " + e );
+    contact.setFriendlyName( lst.getFriendlyName() );
+    contact.setGroups( lst.getGroups() );
+    contact.setListType( lst.getListType() );
+    syncSeenContacts.add( contact.getUserName() );
+    
+    /* After a reconnect, contacts that did not change are not reported again */
+    if( known != null && 
+        known.getFriendlyName().equals( contact.getFriendlyName() ) &&
+        known.getListType().equals( contact.getListType() ) &&
+        ( known.getGroups() == null ? contact.getGroups() == null : known.getGroups().equals( contact.getGroups() ) ) ) {
+      finishSynchronization();
+      return;
     }
+    
+    if( known != null )
+      contact.status = known.status;
+    
+    contactList.addToContactList( contact );
+    MessengerServerManager.getInstance().fireContactReceived( contact );
+        
+    if( WireLog.isEnabled( WireLog.DEBUG ) )
+      WireLog.log( WireLog.DEBUG, "ns", "NotificationServerConnector.receivedLST() - " + contact.toString() );
+    
+    finishSynchronization();
   }
         
   /**
    * When SYN event is sent, some configurations are retrieved
    * as LSG (List Groups)
    */
-  private void receivedLSG( IncomingMessage incomingMessage ) {
-          
-    ArrayList         aGroups  = incomingMessage.getGroups();
-    int               nGroupID = -1;
+  private void receivedLSG( MessageRecord.Lsg lsg ) {
           
-    if( aGroups != null )  {
-      Integer      iGroupID = ( Integer ) aGroups.get( 0 );
-      
-      nGroupID = iGroupID.intValue();
-      hGroups.put( iGroupID, incomingMessage.getGroupName() );
-      MessengerServerManager.getInstance().fireGroupReceived( incomingMessage.getGroupName() );
-    }
+    Integer      iGroupID  = Integer.valueOf( lsg.getGroupID() );
+    String       groupName = lsg.getGroupName();
+    Object       previous  = hGroups.put( iGroupID, groupName );
+    
+    syncSeenGroups.add( iGroupID );
+    
+    /* After a reconnect, groups that did not change are not reported again */
+    if( !groupName.equals( previous ) )
+      MessengerServerManager.getInstance().fireGroupReceived( groupName );
+    
+    finishSynchronization();
           
-    System.out.println( "NotificationServerConnector.receivedLSG() - " + incomingMessage.getGroupName() + " " + nGroupID );
+    if( WireLog.isEnabled( WireLog.DEBUG ) )
+      WireLog.log( WireLog.DEBUG, "ns", "NotificationServerConnector.receivedLSG() - " + groupName + " " + lsg.getGroupID() );
   }
         
-  private void receivedADD( IncomingMessage incomingMessage ) {
+  private void receivedADD( MessageRecord.Add add ) {
           
-    try  {
-      Contact      contact = new Contact( incomingMessage.getUserName() );
+    Contact      contact = new Contact( add.getUserName() );
 
-      contact.setFriendlyName( incomingMessage.getFriendlyName() );
-      contact.setListType( incomingMessage.getListType() );
-      contactList.addToContactList( contact );
-      MessengerServerManager.getInstance().fireContactAdded( contact );
-          
-      System.out.println( "NotificationServerConnector.receivedADD() - " + contact );
-    } catch( java.lang.NoSuchFieldException e )  {
-      System.err.println( "NotificationServerConnector.receivedADD() - " + e ); 
-    }
+    contact.setFriendlyName( add.getFriendlyName() );
+    contact.setListType( add.getListType() );
+    updateListVersion( add.getSerialNumber() );
+    contactList.addToContactList( contact );
+    MessengerServerManager.getInstance().fireContactAdded( contact );
+        
+    if( WireLog.isEnabled( WireLog.DEBUG ) )
+      WireLog.log( WireLog.DEBUG, "ns", "NotificationServerConnector.receivedADD() - " + contact );
   }
         
-  private void receivedREM( IncomingMessage incomingMessage ) {
+  private void receivedREM( MessageRecord.Rem rem ) {
 
-    try  {
-      Contact      contact = contactList.getContact( incomingMessage.getUserName() );
+    Contact      contact = contactList.getContact( rem.getUserName() );
 
-      contactList.removeFromContactList( contact );
-      MessengerServerManager.getInstance().fireContactRemoved( contact );
+    updateListVersion( rem.getSerialNumber() );
+    
+    if( contact == null )
+      return;
+    
+    contactList.removeFromContactList( contact );
+    MessengerServerManager.getInstance().fireContactRemoved( contact );
 
-      System.out.println( "NotificationServerConnector.receivedREM() - " + contact );
-    } catch( java.lang.NoSuchFieldException e )  {
-      System.err.println( "NotificationServerConnector.receivedREM() - " + e ); 
-    }
+    if( WireLog.isEnabled( WireLog.DEBUG ) )
+      WireLog.log( WireLog.DEBUG, "ns", "NotificationServerConnector.receivedREM() - " + contact );
+  }
+
+  /**
+   * Records the contact list version carried by an ADD or REM reply.
+   *
+   * @param version The version, or -1 when the reply had none.
+   */
+  private void updateListVersion( int version ) {
+    
+    if( version > 0 )
+      listVersion = version;
   }
 
   private void receivedPRP( IncomingMessage incomingMessage ) {
@@ -836,24 +1439,142 @@ public class NotificationServerConnector implements MSNPListener {
   }
 
   /**
-   * Acknowledgement for a SYNc.  Not interesting.
-   * @param incomingMessage The incoming MSNP message.
+   * Acknowledgement for a SYNc.  Carries the version of the server's contact
+   * list and, when it differs from the one asked for, the number of
+   * contacts and groups the server sends next.
+   * <pre>SYN TransactionID Version [Contacts Groups]</pre>
+   *
+   * @param syn The acknowledgement.
    */
-  private void receivedSYN( IncomingMessage incomingMessage ) {
+  private void receivedSYN( MessageRecord.Syn syn ) {
+    
+    /* The presence the server sent after the status change is queued ahead of this reply */
+    if( resumePresence != null && syn.message.getTransactionID() == resumeSyncID ) {
+      sc.dispatcher.execute( new Runnable() {
+        
+        public void run() {
+          expireResumedPresence();
+        }
+      } );
+    }
+    
+    if( syn.getVersion() >= 0 )
+      listVersion = syn.getVersion();
+    
+    if( syn.getContactCount() < 0 )
+      return;
+    
+    syncContacts = syn.getContactCount();
+    syncGroups   = syn.getGroupCount();
+    
+    syncSeenContacts.clear();
+    syncSeenGroups.clear();
+    finishSynchronization();
+  }
+
+  /**
+   * Once every contact and group of a synchronization has arrived, drops the
+   * ones the server no longer has, telling listeners about removed contacts.
+   */
+  private void finishSynchronization() {
+    
+    if( syncContacts < 0 || syncSeenContacts.size() < syncContacts || syncSeenGroups.size() < syncGroups )
+      return;
+    
+    syncContacts = -1;
+    syncGroups   = -1;
+    
+    Iterator contacts = new ArrayList( contactList.hContacts.values() ).iterator();
+    
+    while( contacts.hasNext() ) {
+      Contact contact = ( Contact ) contacts.next();
+      
+      if( !syncSeenContacts.contains( contact.getUserName() ) ) {
+        contactList.removeFromContactList( contact );
+        MessengerServerManager.getInstance().fireContactRemoved( contact );
+      }
+    }
+    
+    hGroups.keySet().retainAll( syncSeenGroups );
   }
 
   /**
    * Sends a request to the Notification Server for a Switchboard
    * Session.  This is sent when the client wants to initiate communication
-   * with another buddy.
+   * with another buddy.  The server's XFR reply is matched to the session
+   * by its TrID, so any number of sessions may be set up at once.  When the
+   * connection drops before the reply, the request is sent again once the
+   * connection is back; other failures put the session back to idle.
+   *
+   * @param ssc The session that waits for the switchboard server.
    */
-  protected void requestSwitchboardSession() {
+  protected void requestSwitchboardSession( final SwitchboardSessionConnector ssc ) {
+    
+    synchronized( switchboardRequests ) {
+      switchboardRequests.add( ssc );
+    }
+    
+    /* Sent once the connection is back */
+    if( !isConnected() ) {
+      if( !supervisor.isActive() )
+        switchboardRequestFailed( ssc );
+      
+      return;
+    }
     
     /* >>> XFR 87 SB */
     OutgoingMessage msg = new OutgoingMessage( Message.XFR, getTransactionID() );
     
     msg.addArgument( "SB" );
-    sc.sendMSNPMessage( msg );
+    sc.sendMSNPMessageAsync( msg ).whenComplete( new BiConsumer() {
+      
+      public void accept( Object result, Object error ) {
+        
+        if( error != null ) {
+          boolean disconnected = error instanceof MSNException && ( ( MSNException ) error ).getExceptionType() == MSNException.MSN_EX_DISCONNECTED;
+          
+          /* Asked again by resumeSwitchboardRequests() */
+          if( disconnected && ( supervisor.isActive() || autoReconnect && !signingOut ) )
+            return;
+          
+          System.err.println( "NotificationServerConnector.requestSwitchboardSession() - " + error );
+          switchboardRequestFailed( ssc );
+          return;
+        }
+        
+        synchronized( switchboardRequests ) {
+          /* Cancelled meanwhile */
+          if( !switchboardRequests.remove( ssc ) )
+            return;
+        }
+        
+        MessageRecord reply = ( ( IncomingMessage ) result ).getRecord();
+        
+        if( !( reply instanceof MessageRecord.Xfr ) ) {
+          ssc.requestFailed();
+          return;
+        }
+        
+        MessageRecord.Xfr xfr = ( MessageRecord.Xfr ) reply;
+        
+        /* <<< XFR 87 SB 207.46.108.37:1863 CKI 17262740.1050826919.32308 */
+        ssc.connectSessionAsync( xfr.getServerIP(), xfr.getServerPort(), "None", xfr.getChallengeHash(), true );
+      }
+    } );
+  }
+
+  /**
+   * Forgets a switchboard session request that will not be answered.
+   *
+   * @param ssc The session that requested a switchboard server.
+   */
+  private void switchboardRequestFailed( SwitchboardSessionConnector ssc ) {
+    
+    synchronized( switchboardRequests ) {
+      switchboardRequests.remove( ssc );
+    }
+    
+    ssc.requestFailed();
   }
 
   /**
@@ -878,7 +1599,7 @@ public class NotificationServerConnector implements MSNPListener {
    * @param toHash The string that is to be checksummed.
    * @return String representation of the hexadecimal MD5 checksum of the string.
    */
-  private static String MD5sum( String toHash ) {
+  static String MD5sum( String toHash ) {
     
     try {
       MessageDigest md = MessageDigest.getInstance( "MD5" );
@@ -0,0 +1,200 @@
+/*
+ * ===========================================================================
+ *  Copyright (C) 2002-2003  Tony Tang
+ *
+ *  This program is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation; either version 2 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program; if not, write to the Free Software
+ *  Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ * ===========================================================================
+ */
+
+/**
+ *
+ * $Id$
+ * $Author$
+ * $Name$
+ * $Revision$
+ * $State$
+ *
+ */
+
+package org.hn.sleek.jmml;
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import java.util.concurrent.locks.*;
+
+
+/**
+ * OutboundQueue is the single outbound path of a connection.  Senders on
+ * any thread queue whole encoded packets; one thread at a time drains the
+ * queue with gathering writes, so packets never interleave on the wire and
+ * packets queued while a write is in progress go out together in the next
+ * write instead of one system call each.  Written packets are given back
+ * to the encoder's pool.
+ */
+class OutboundQueue {
+
+  /** Most packets written by one gathering write. */
+  final static int       MAX_GATHER = 64;
+
+  /** Packets waiting to be written. */
+  ConcurrentLinkedQueue  frames     = new ConcurrentLinkedQueue();
+
+  /** Number of packets queued and not completely written. */
+  AtomicInteger          size       = new AtomicInteger();
+
+  /** Held by the thread draining the queue. */
+  ReentrantLock          drainLock  = new ReentrantLock();
+
+  /** Packets of the current gathering write; the first ones may have been written already. */
+  ByteBuffer[]           batch      = new ByteBuffer[MAX_GATHER];
+
+  /** Index of the first packet of the batch that is not completely written. */
+  int                    batchStart = 0;
+
+  /** Number of packets in the batch. */
+  int                    batchEnd   = 0;
+
+  
+  
+  /**
+   * Queues an encoded packet.
+   *
+   * @param frame The bytes of the packet.
+   */
+  void add( ByteBuffer frame ) {
+    
+    size.incrementAndGet();
+    frames.add( frame );
+  }
+
+  /**
+   * Returns whether every queued packet has been written.
+   *
+   * @return Whether the queue is empty.
+   */
+  boolean isEmpty() {
+    
+    return size.get() == 0;
+  }
+
+  /**
+   * Returns the number of packets that are not completely written.
+   *
+   * @return The number of queued packets.
+   */
+  int size() {
+    
+    return size.get();
+  }
+
+  /**
+   * Writes queued packets to the channel until the queue is empty or the
+   * channel stops taking bytes (non-blocking channels).  If another thread
+   * is already draining, returns right away: that thread writes the packets
+   * queued meanwhile.
+   *
+   * @param channel The channel to write to.
+   * @return Whether the queue was completely written out.
+   * @throws IOException When writing fails.
+   */
+  boolean flush( GatheringByteChannel channel ) throws IOException {
+    
+    while( !isEmpty() ) {
+      if( !drainLock.tryLock() )
+        return false;
+      
+      try {
+        if( !drain( channel ) )
+          return false;
+      } finally {
+        drainLock.unlock();
+      }
+      
+      /* Packets queued after the last poll, while we still held the lock,
+         are written by looping again. */
+    }
+    
+    return true;
+  }
+
+  /**
+   * Drops every queued packet.
+   */
+  void clear() {
+    
+    drainLock.lock();
+    
+    try {
+      ByteBuffer frame;
+      
+      while( ( frame = ( ByteBuffer ) frames.poll() ) != null )
+        MessageEncoder.release( frame );
+      
+      for( int i = 0; i < batchEnd; i++ ) {
+        if( batch[i] != null )
+          MessageEncoder.release( batch[i] );
+        
+        batch[i] = null;
+      }
+      
+      batchStart = 0;
+      batchEnd   = 0;
+      size.set( 0 );
+    } finally {
+      drainLock.unlock();
+    }
+  }
+
+  /**
+   * Writes batches of packets while there are any.  Called with the drain
+   * lock held.
+   *
+   * @return Whether everything was written.
+   */
+  private boolean drain( GatheringByteChannel channel ) throws IOException {
+    
+    while( true ) {
+      /* Top the batch up with queued packets */
+      if( batchStart == batchEnd ) {
+        batchStart = 0;
+        batchEnd   = 0;
+      }
+      
+      ByteBuffer frame;
+      
+      while( batchEnd < MAX_GATHER && ( frame = ( ByteBuffer ) frames.poll() ) != null )
+        batch[batchEnd++] = frame;
+      
+      if( batchStart == batchEnd )
+        return true;
+      
+      channel.write( batch, batchStart, batchEnd - batchStart );
+      
+      while( batchStart < batchEnd && !batch[batchStart].hasRemaining() ) {
+        MessageEncoder.release( batch[batchStart] );
+        batch[batchStart++] = null;
+        size.decrementAndGet();
+      }
+      
+      /* The socket buffer is full */
+      if( batchStart < batchEnd )
+        return false;
+    }
+  }
+}
+// OutboundQueue class
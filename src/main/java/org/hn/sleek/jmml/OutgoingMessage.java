@@ -30,19 +30,27 @@
 
 package org.hn.sleek.jmml;
 
+import java.util.ArrayList;
+
 /**
  * Represents an outgoing message.  Exposes a List-like interface 
  * for adding arguments, and interacting with the arguments; 
  * providing no verification of whether the message is constructed
  * properly.  The exceptions to the List metaphor are command type
  * and transaction id, which must be specified at creation, and body.
- *
+ * <p>
+ * Arguments are either text or constant fragments already encoded (see
+ * <pre>MessageEncoder.fragment()</pre>).  Payload commands (MSG and QRY)
+ * are not given their body length: the encoder writes it, in bytes.
  */
 class OutgoingMessage extends Message {
 
   /** Constant used for messages without a transaction ID */
   final static int NO_TRANSACTION_ID = -1;
 
+  /** Encoded start of the body, written before the text of the body; may be null. */
+  byte[]           bodyHeader;
+
   
   
   /**
@@ -54,8 +62,9 @@ class OutgoingMessage extends Message {
    */
   public OutgoingMessage( int type, int transactionID ) {
     
-    this.type = type;
-    this.transactionID = new Integer( transactionID );
+    this.type          = type;
+    this.transactionID = transactionID;
+    this.arguments     = new ArrayList();
   }
 
   /**
@@ -77,52 +86,44 @@ class OutgoingMessage extends Message {
    */
   public void setBody( String body ) {
     
-    this.body = body;
+    this.bodyHeader = null;
+    this.body       = body;
   }
 
   /**
-   * Returns the MSNP formatted string that represents this message.  For
-   * MSG messages, adds the body, and for QRY messages, does something
-   * special.
+   * Sets the body of the message to an encoded header followed by text.
+   * The header is written as it is, and the text is encoded when the
+   * message is.
    *
-   * @return MSNP formatted string representing this message.
+   * @param header Encoded start of the body, e.g. MIME headers.
+   * @param text The rest of the body.
    */
-  public String getMessageString() {
+  void setBody( byte[] header, String text ) {
     
-    String commandString = Message.commandToString( type ) + " ";
+    this.bodyHeader = header;
+    this.body       = text;
+  }
 
+  /**
+   * Returns whether the command carries a payload after its command line.
+   * Only MSG and QRY do.
+   *
+   * @return Whether the message has a payload.
+   */
+  boolean hasPayload() {
     
-    /* If the message has a transactionID, include it */
-    String transactionIDString = "";
-    
+    return type == Message.MSG || type == Message.QRY;
+  }
+
+  /**
+   * Returns the MSNP formatted string that represents this message.  For
+   * MSG and QRY messages, adds the length of the body and the body.
+   *
+   * @return MSNP formatted string representing this message.
+   */
+  public String getMessageString() {
     
-    if( transactionID.intValue() != NO_TRANSACTION_ID ) 
-      transactionIDString = transactionID.toString();
-		
-    String message = commandString + transactionIDString;
-
-    switch( type ) {
-      case Message.QRY:  {
-        message = message + " " + arguments.get( 0 ) + " " + arguments.get( 1 ) + arguments.get( 2 ) + arguments.get( 3 );
-	return message;
-      }
-      
-      case Message.MSG:  {
-        for( int i = 0; i < arguments.size(); i++ ) {
-          message = message + " " + ( String ) arguments.get( i );
-        }
-        
-	return message.trim() + "\r\n" + body;
-      }
-      
-      default:  {
-        for( int i = 0; i < arguments.size(); i++ ) {
-          message = message + " " + ( String ) arguments.get( i );
-        }
-        
-        return message.trim() + "\r\n";
-      }
-    }
+    return MessageEncoder.toString( this );
   }
 
   /**
@@ -136,6 +137,17 @@ class OutgoingMessage extends Message {
     arguments.add( argument );
   }
 
+  /**
+   * Adds the next argument, already encoded.  Meant for constants; see
+   * <pre>MessageEncoder.fragment()</pre>.
+   *
+   * @param argument The UTF-8 bytes of the argument.
+   */
+  void addArgument( byte[] argument ) {
+    
+    arguments.add( argument );
+  }
+
   /**
    * Returns the string representation of the message.  Calls the
    * <pre>getMessageString()</pre> method.
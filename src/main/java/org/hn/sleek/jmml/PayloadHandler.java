@@ -0,0 +1,48 @@
+/*
+ * ===========================================================================
+ *  Copyright (C) 2002-2003  Tony Tang
+ *
+ *  This program is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation; either version 2 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program; if not, write to the Free Software
+ *  Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ * ===========================================================================
+ */
+
+/**
+ *
+ * $Id$
+ * $Author$
+ * $Name$
+ * $Revision$
+ * $State$
+ *
+ */
+
+package org.hn.sleek.jmml;
+
+/**
+ * Handles the payloads of instant messages (MSG) of one content type.
+ * Handlers are registered with
+ * <pre>MessengerServerManager.setPayloadHandler()</pre>, and are called on
+ * the thread reading the switchboard connection.
+ */
+public interface PayloadHandler {
+
+  /**
+   * A payload of the handled content type arrived.  The payload is only
+   * valid until this method returns.
+   */
+  public void payloadReceived( MimePayload payload );
+}
+
+// PayloadHandler interface
@@ -0,0 +1,152 @@
+/*
+ * ===========================================================================
+ *  Copyright (C) 2002-2003  Tony Tang
+ *
+ *  This program is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation; either version 2 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program; if not, write to the Free Software
+ *  Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ * ===========================================================================
+ */
+
+/**
+ *
+ * $Id$
+ * $Author$
+ * $Name$
+ * $Revision$
+ * $State$
+ *
+ */
+
+package org.hn.sleek.jmml;
+
+import java.util.*;
+
+/**
+ * Routes the payloads of instant messages (MSG) to the handler registered
+ * for their content type.  Payloads of other types are dropped.  Routing
+ * compares the encoded type against the payload's bytes, so nothing is
+ * decoded unless the handler asks for it.
+ * <p>
+ * Routes are kept in an array replaced on every change, as it is read for
+ * every message and changed almost never.
+ */
+class PayloadRouter {
+
+  /** Content type of instant messages. */
+  final static String    TEXT_PLAIN    = "text/plain";
+
+  /** Content type of "user is typing" notifications. */
+  final static String    TYPING        = "text/x-msmsgscontrol";
+
+  /** Content type of invitations (file transfers and the like). */
+  final static String    INVITE        = "text/x-msmsgsinvite";
+
+  /** The handled content types and their handlers. */
+  volatile Route[]       routes        = new Route[0];
+
+  
+  
+  /**
+   * Creates a router that hands instant messages and typing notifications
+   * to the listeners of the manager.  Invitations have no handler until
+   * one is set.
+   *
+   * @param manager The manager firing the events.
+   */
+  PayloadRouter( final MessengerServerManager manager ) {
+    
+    setHandler( TEXT_PLAIN, new PayloadHandler() {
+        
+      public void payloadReceived( MimePayload payload ) {
+        
+        manager.fireIncomingMessageEvent( payload.getUserName(), payload.getFriendlyName(), payload.getBody() );
+      }
+    } );
+    
+    setHandler( TYPING, new PayloadHandler() {
+        
+      public void payloadReceived( MimePayload payload ) {
+        
+        manager.fireTypingNotification( payload.getUserName() );
+      }
+    } );
+  }
+
+  /**
+   * Sets the handler of a content type.
+   *
+   * @param contentType The content type, e.g. "text/x-msmsgsinvite".
+   * @param handler The handler, or null to drop payloads of that type.
+   */
+  synchronized void setHandler( String contentType, PayloadHandler handler ) {
+    
+    byte[] type   = contentType.toLowerCase().getBytes( IncomingMessage.UTF8 );
+    Vector routes = new Vector( Arrays.asList( this.routes ) );
+    
+    for( Iterator i = routes.iterator(); i.hasNext(); ) {
+      if( Arrays.equals( ( ( Route ) i.next() ).type, type ) )
+        i.remove();
+    }
+    
+    if( handler != null )
+      routes.add( new Route( type, handler ) );
+    
+    this.routes = ( Route[] ) routes.toArray( new Route[routes.size()] );
+  }
+
+  /**
+   * Hands a payload to the handler of its content type.  Exceptions thrown
+   * by the handler are reported and dropped.
+   *
+   * @param payload The payload of an instant message.
+   */
+  void route( MimePayload payload ) {
+    
+    Route[] routes = this.routes;
+    
+    for( int i = 0; i < routes.length; i++ ) {
+      if( payload.isContentType( routes[i].type ) ) {
+        try {
+          routes[i].handler.payloadReceived( payload );
+        } catch( Exception e ) {
+          System.err.println( "PayloadRouter.route() - " + e );
+        }
+        
+        return;
+      }
+    }
+  }
+
+  /**
+   * A content type and its handler.
+   */
+  final static class Route {
+
+    /** The content type, lowercase and encoded. */
+    final byte[]           type;
+
+    /** The handler of the content type. */
+    final PayloadHandler   handler;
+
+    
+    
+    Route( byte[] type, PayloadHandler handler ) {
+      
+      this.type    = type;
+      this.handler = handler;
+    }
+  }
+}
+
+// PayloadRouter class
@@ -0,0 +1,226 @@
+/*
+ * ===========================================================================
+ *  Copyright (C) 2002-2003  Tony Tang
+ *
+ *  This program is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation; either version 2 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program; if not, write to the Free Software
+ *  Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ * ===========================================================================
+ */
+
+/**
+ *
+ * $Id$
+ * $Author$
+ * $Name$
+ * $Revision$
+ * $State$
+ *
+ */
+
+package org.hn.sleek.jmml;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.function.*;
+
+
+/**
+ * Brings a Notification Server connection back after it drops.  Attempts
+ * are spaced by an exponential backoff with random jitter, so that many
+ * accounts dropped by the same outage do not come back in lockstep, and a
+ * process-wide limit on attempts in progress keeps a mass reconnect from
+ * flooding the servers and Passport.  The connector keeps its contact
+ * list, groups, status and switchboard queues while the supervisor works.
+ */
+class ReconnectSupervisor {
+
+  /** Delay before the first attempt, in milliseconds (system property jmml.reconnect.delay). */
+  final static long       BASE_DELAY   = Long.getLong( "jmml.reconnect.delay", 1000L ).longValue();
+
+  /** Longest delay between attempts, in milliseconds (system property jmml.reconnect.maxdelay). */
+  final static long       MAX_DELAY    = Long.getLong( "jmml.reconnect.maxdelay", 5 * 60 * 1000L ).longValue();
+
+  /** Attempts before giving up, or 0 to retry forever (system property jmml.reconnect.attempts). */
+  final static int        MAX_ATTEMPTS = Integer.getInteger( "jmml.reconnect.attempts", 0 ).intValue();
+
+  /** Attempts in progress at once in this process (system property jmml.reconnect.concurrency). */
+  final static Semaphore  permits      = new Semaphore( Integer.getInteger( "jmml.reconnect.concurrency", 4 ).intValue() );
+
+  final static Random     random       = new Random();
+
+  /** The connector being brought back. */
+  NotificationServerConnector notificationServer;
+
+  /** Attempts made since the connection dropped. */
+  int                     attempts     = 0;
+
+  /** Whether the supervisor is working on a dropped connection. */
+  boolean                 active       = false;
+
+  /** The next scheduled attempt. */
+  ScheduledFuture         next;
+
+  
+  
+  /**
+   * Creates the supervisor of a connector.
+   *
+   * @param notificationServer The connector to bring back when its connection drops.
+   */
+  ReconnectSupervisor( NotificationServerConnector notificationServer ) {
+    
+    this.notificationServer = notificationServer;
+  }
+
+  /**
+   * Called when the connection dropped without the user signing out.
+   * Schedules the first attempt, unless the supervisor is already busy.
+   */
+  synchronized void connectionLost() {
+    
+    if( active )
+      return;
+    
+    active   = true;
+    attempts = 0;
+    schedule( backoff( 0 ) );
+  }
+
+  /**
+   * Stops trying, e.g. when the user signs out.
+   */
+  synchronized void cancel() {
+    
+    active = false;
+    
+    if( next != null )
+      next.cancel( false );
+  }
+
+  /**
+   * Returns whether the supervisor is working on a dropped connection.
+   *
+   * @return Whether a reconnect is in progress or scheduled.
+   */
+  synchronized boolean isActive() {
+    
+    return active;
+  }
+
+  /**
+   * Returns the delay before an attempt: a random point in the upper half of
+   * an exponentially growing window, capped at MAX_DELAY.
+   *
+   * @param attempt Number of attempts already made.
+   * @return The delay, in milliseconds.
+   */
+  static long backoff( int attempt ) {
+    
+    long window = Math.min( MAX_DELAY, BASE_DELAY << Math.min( attempt, 30 ) );
+    
+    return window / 2 + ( long ) ( random.nextDouble() * ( window / 2 + 1 ) );
+  }
+
+  /**
+   * Schedules the next attempt.
+   */
+  private synchronized void schedule( long delay ) {
+    
+    if( !active )
+      return;
+    
+    next = ExecutionSupport.getScheduler().schedule( new Runnable() {
+      
+      public void run() {
+        attempt();
+      }
+    }, delay, TimeUnit.MILLISECONDS );
+  }
+
+  /**
+   * Makes one attempt, if the process-wide limit allows; otherwise waits for
+   * another round without counting it as an attempt.
+   */
+  private void attempt() {
+    
+    synchronized( this ) {
+      if( !active )
+        return;
+    }
+    
+    if( !permits.tryAcquire() ) {
+      schedule( backoff( attempts ) );
+      return;
+    }
+    
+    synchronized( this ) {
+      attempts++;
+    }
+    
+    notificationServer.reconnectAttempts.increment();
+    
+    CompletableFuture reconnect;
+    
+    try {
+      reconnect = notificationServer.reconnectAsync();
+    } catch( RuntimeException e ) {
+      reconnect = new CompletableFuture();
+      reconnect.completeExceptionally( e );
+    }
+    
+    reconnect.whenComplete( new BiConsumer() {
+      
+      public void accept( Object result, Object error ) {
+        permits.release();
+        attemptDone( ( Throwable ) error );
+      }
+    } );
+  }
+
+  /**
+   * Stops after a successful attempt; otherwise schedules the next one, or
+   * gives up and lets the client know the connection is gone.
+   */
+  private void attemptDone( Throwable error ) {
+    
+    boolean giveUp;
+    
+    synchronized( this ) {
+      if( !active )
+        return;
+      
+      if( error == null ) {
+        active = false;
+        notificationServer.reconnects.increment();
+        return;
+      }
+      
+      System.err.println( "ReconnectSupervisor.attempt() - attempt " + attempts + " failed: " + error );
+      
+      giveUp = ( MAX_ATTEMPTS > 0 && attempts >= MAX_ATTEMPTS );
+      
+      if( giveUp )
+        active = false;
+      else
+        schedule( backoff( attempts ) );
+    }
+    
+    if( giveUp ) {
+      notificationServer.cancelSwitchboardRequests();
+      notificationServer.sessionEnded();
+      MessengerServerManager.getInstance().fireServerDisconnected();
+    }
+  }
+}
+// ReconnectSupervisor class
@@ -49,6 +49,8 @@ class SSLServerConnection {
   final String               KEY_LOCATION                 = "Location";
   final String               KEY_AUTHENTICATION_INFO      = "Authentication-Info";
   static final String        PASSPORT_LIST_SERVER_ADDRESS = "https://nexus.passport.com/rdr/pprdr.asp";
+  /** Address of the Passport nexus, read at each login (system property jmml.passport.nexus). */
+  static final String        PASSPORT_NEXUS_PROPERTY      = "jmml.passport.nexus";
 
   HttpURLConnection          httpsConn   = null;
   
@@ -66,7 +68,8 @@ class SSLServerConnection {
     try  {
       URL         url = new URL( strServerAddress );
       
-      System.out.println( ">>> Negotiating challenge with " + PASSPORT_LIST_SERVER_ADDRESS );
+      if( WireLog.isEnabled( WireLog.INFO ) )
+        WireLog.log( WireLog.INFO, "passport", ">>> Negotiating challenge with " + strServerAddress );
       httpsConn = ( HttpURLConnection ) url.openConnection();
       
     } catch( UnknownHostException ue )  {
@@ -105,6 +108,16 @@ class SSLServerConnection {
     }
   }
   
+  /**
+   * Returns the address of the Passport nexus, which names the login server.
+   *
+   * @return The address.
+   */
+  static String getPassportNexus()  {
+    
+    return System.getProperty( PASSPORT_NEXUS_PROPERTY, PASSPORT_LIST_SERVER_ADDRESS );
+  }
+
   /**
    * Return the Passport Login server
    */
@@ -114,8 +127,14 @@ class SSLServerConnection {
       String    strPassportServer;
       String    strPassportURL = httpsConn.getHeaderField( KEY_PASSPORT_URLS );
 
-      strPassportServer = "https://" + getField( DALOGIN, strPassportURL );
-      System.out.println( "<<< Retrieving passport login server " + strPassportServer );
+      strPassportServer = getField( DALOGIN, strPassportURL );
+      
+      /* The real nexus leaves the scheme out; a stand-in may name plain http */
+      if( strPassportServer.indexOf( "://" ) < 0 )
+        strPassportServer = "https://" + strPassportServer;
+      
+      if( WireLog.isEnabled( WireLog.INFO ) )
+        WireLog.log( WireLog.INFO, "passport", "<<< Retrieving passport login server " + strPassportServer );
       httpsConn = null;
 
       return strPassportServer;
@@ -149,7 +168,8 @@ class SSLServerConnection {
         String      strAuthTicket;
 
       
-        System.out.println( ">>> Starting login" );
+        if( WireLog.isEnabled( WireLog.INFO ) )
+          WireLog.log( WireLog.INFO, "passport", ">>> Starting login" );
       
         httpsConn = ( HttpURLConnection ) url.openConnection();
         httpsConn.setDoOutput( true );      
@@ -159,11 +179,13 @@ class SSLServerConnection {
       
         // Server is redirecting login ???
         if( strLocation != null )  {
-          System.out.println( "<<< Server request redirecting login " );
+          if( WireLog.isEnabled( WireLog.INFO ) )
+            WireLog.log( WireLog.INFO, "passport", "<<< Server request redirecting login " );
       
           url = new URL( strLocation );
 
-          System.out.println( ">>> Redirecting login to " + strLocation );
+          if( WireLog.isEnabled( WireLog.INFO ) )
+            WireLog.log( WireLog.INFO, "passport", ">>> Redirecting login to " + strLocation );
 
           httpsConn = null;
           httpsConn = ( HttpURLConnection ) url.openConnection();
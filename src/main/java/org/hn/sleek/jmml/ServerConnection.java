@@ -32,8 +32,16 @@ package org.hn.sleek.jmml;
 
 import java.io.*;
 import java.net.*;
+import java.nio.*;
+import java.nio.channels.*;
 import java.text.ParseException;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.*;
 
 
 /**
@@ -45,15 +53,88 @@ import java.util.*;
  */
 public class ServerConnection {
 
+  /** Classic transport: one blocking socket and one reading thread per connection. */
+  public final static int TRANSPORT_BLOCKING = 0;
+
+  /** Non-blocking transport: connections are multiplexed over a few selector threads. */
+  public final static int TRANSPORT_NIO      = 1;
+
+  /** Transport used by connectors that were not told otherwise. */
+  static int   defaultTransport = "nio".equalsIgnoreCase( System.getProperty( "jmml.transport" ) ) ? TRANSPORT_NIO : TRANSPORT_BLOCKING;
+
+  /** Reading threads are platform threads, and listeners are called back on them. */
+  public final static int EXECUTION_PLATFORM = 0;
+
+  /** Reading threads and listener callbacks run on virtual threads, when the JVM has them. */
+  public final static int EXECUTION_VIRTUAL  = 1;
+
+  /** Execution mode of new connections. */
+  static int   defaultExecution = "virtual".equalsIgnoreCase( System.getProperty( "jmml.execution" ) ) ? EXECUTION_VIRTUAL : EXECUTION_PLATFORM;
+
+  /** Sockets currently connected, over all connections and transports. */
+  static AtomicInteger openSockets   = new AtomicInteger();
+
+  /** Reading threads currently running for blocking connections. */
+  static AtomicInteger readerThreads = new AtomicInteger();
+
   /** Actual socket between server and client. */
   Socket       connection;
 
+  /** Channel of the socket. */
+  SocketChannel channel;
+
+  /** Encoded packets waiting to be written to the socket. */
+  OutboundQueue outbound = new OutboundQueue();
+
   /** Reference to the caller; caller is implicitly implied to be the listener. */
   MSNPListener listener;
 
   /** Whether the connection is live. */
   boolean      connected = false;
 
+  /** Whether this connection uses virtual threads. */
+  boolean      virtual   = ( defaultExecution == EXECUTION_VIRTUAL );
+
+  /** 
+   * Calls the listener back, chat and control before presence; off the
+   * reading thread in the virtual execution mode, and on it otherwise.
+   */
+  InboundDispatcher dispatcher = new InboundDispatcher( this, virtual ? ExecutionSupport.newThreadExecutor( true ) : null );
+
+  /** Number of the connection, in the wire log. */
+  int          id        = WireLog.nextConnectionID();
+
+  /** Whether this connection is one of those sampled for the wire log. */
+  boolean      sampled   = WireLog.isSampled( id );
+
+  /** Address and port of the server, in the wire log. */
+  String       address;
+
+  /** Requests waiting for their reply; null when the owner does not track them. */
+  TransactionTable transactions;
+
+  /** Frames and bytes received and sent on this connection. */
+  final LongAdder  framesIn    = new LongAdder();
+  final LongAdder  bytesIn     = new LongAdder();
+  final LongAdder  framesOut   = new LongAdder();
+  final LongAdder  bytesOut    = new LongAdder();
+
+  /** Packets received on this connection that could not be parsed. */
+  final LongAdder  parseErrors = new LongAdder();
+
+  /** Metrics of this connection, while it is connected. */
+  MetricSet        metrics;
+
+  /** Stands in for the listener of a released connection. */
+  final static MSNPListener NO_LISTENER = new MSNPListener() {
+    
+    public void incomingMSNPMessage( IncomingMessage incomingMessage ) {
+    }
+    
+    public void serverDisconnected() {
+    }
+  };
+
   
   
   /** 
@@ -67,19 +148,133 @@ public class ServerConnection {
    */
   public ServerConnection (String serverAddress, int port, MSNPListener listener) {
     this.listener = listener;
+    this.address  = serverAddress + ":" + port;
 		
     try {
-      this.connection = new Socket (serverAddress, port);
+      this.channel    = SocketChannel.open( new InetSocketAddress( serverAddress, port ) );
+      this.connection = channel.socket();
       this.connected  = true;
+      opened();
     } catch( IOException e ) {
       disconnect();
       return;
+    } catch( UnresolvedAddressException e ) {
+      disconnect();
+      return;
     }
     
-    System.out.println( "Connecting... " + serverAddress + ":" + port );
+    if( isLogged( WireLog.INFO ) )
+      WireLog.log( WireLog.INFO, getLogName(), "Connecting... " + address );
+    
     readLoop();
   }
 
+  /**
+   * Creates an unconnected server connection.  Used by transports that
+   * manage the socket themselves.
+   *
+   * @param listener The caller that listens for MSNP packets.
+   */
+  protected ServerConnection( MSNPListener listener ) {
+    
+    this.listener = listener;
+  }
+
+  /**
+   * Opens a server connection using the requested transport, without
+   * blocking the caller.  The NIO transport connects on its event loop; the
+   * blocking one connects on a thread of the given executor.  Whatever the
+   * transport, the listener is called back through the MSNPListener
+   * interface in the same way, and is told through serverDisconnected()
+   * when the connection can not be made.
+   *
+   * @param serverAddress The IP address of the server.
+   * @param port The port on the server to connect to.
+   * @param listener The caller that listens for MSNP packets.
+   * @param transport TRANSPORT_BLOCKING or TRANSPORT_NIO.
+   * @param executor Executor the blocking transport connects on.
+   * @return A future for the connected ServerConnection, failed with an
+   *         MSNException when the connection could not be made.
+   */
+  static CompletableFuture openConnection( final String serverAddress, final int port, final MSNPListener listener, int transport, Executor executor ) {
+    
+    if( transport == TRANSPORT_NIO ) {
+      final NIOServerConnection connection = new NIOServerConnection( serverAddress, port, listener );
+      
+      return connection.connecting.thenApply( new Function() {
+        
+        public Object apply( Object result ) {
+          return established( connection );
+        }
+      } );
+    }
+    
+    return CompletableFuture.supplyAsync( new Supplier() {
+      
+      public Object get() {
+        return established( new ServerConnection( serverAddress, port, listener ) );
+      }
+    }, executor );
+  }
+
+  /**
+   * Returns a connection that has just been opened, if it is connected.
+   *
+   * @param connection The connection.
+   * @return The connection.
+   * @throws CompletionException An MSNException when it is not connected.
+   */
+  private static ServerConnection established( ServerConnection connection ) {
+    
+    if( !connection.isConnected() )
+      throw new CompletionException( new MSNException( MSNException.MSN_EX_DISCONNECTED ) );
+    
+    return connection;
+  }
+
+  /**
+   * Sets the transport used by connectors that were not given one.
+   *
+   * @param transport TRANSPORT_BLOCKING or TRANSPORT_NIO.
+   */
+  static void setDefaultTransport( int transport ) {
+    
+    defaultTransport = transport;
+  }
+
+  /**
+   * Returns the transport used by connectors that were not given one.
+   *
+   * @return TRANSPORT_BLOCKING or TRANSPORT_NIO.
+   */
+  static int getDefaultTransport() {
+    
+    return defaultTransport;
+  }
+
+  /**
+   * Sets the execution mode of new connections.  With EXECUTION_VIRTUAL,
+   * reading threads are virtual and listeners are called back on virtual
+   * threads, in wire order, so a slow listener does not stall the socket.
+   * JVMs without virtual threads use platform threads instead.
+   *
+   * @param execution EXECUTION_PLATFORM or EXECUTION_VIRTUAL.
+   */
+  static void setDefaultExecutionMode( int execution ) {
+    
+    defaultExecution = execution;
+  }
+
+  /**
+   * Returns the execution mode of new connections.
+   *
+   * @return EXECUTION_PLATFORM or EXECUTION_VIRTUAL.
+   */
+  static int getDefaultExecutionMode() {
+    
+    return defaultExecution;
+  }
+
   /**
    * Returns whether the server connection object is actually connected 
    * to the Messenger server.
@@ -96,9 +291,17 @@ public class ServerConnection {
    */
   synchronized void disconnect()  {
     
+    boolean wasConnected = connected;
+    
     try  {
       connected = false;
-      listener.serverDisconnected();
+      
+      if( wasConnected )
+        closed();
+      
+      /* Notify once, whether the reader or the client closed first */
+      if( wasConnected || connection == null )
+        fireServerDisconnected();
                 
       if( connection != null )
         connection.close();
@@ -108,145 +311,411 @@ public class ServerConnection {
     }
   }
 
+  /**
+   * Counts the socket once it is connected, and registers the metrics of
+   * the connection.
+   */
+  void opened() {
+    
+    openSockets.incrementAndGet();
+    
+    metrics = new MetricSet( "Connection", getLogName(), new String[] { "connection", getLogName(), "role", getRoleName() } );
+    metrics.counter( "connection_frames_in", "Frames received on the connection.", framesIn );
+    metrics.counter( "connection_bytes_in", "Bytes received on the connection.", bytesIn );
+    metrics.counter( "connection_frames_out", "Frames sent on the connection.", framesOut );
+    metrics.counter( "connection_bytes_out", "Bytes sent on the connection.", bytesOut );
+    metrics.counter( "connection_parse_errors", "Packets dropped on the connection because they could not be parsed.", parseErrors );
+    metrics.gauge( "connection_outbound_queued", "Encoded packets waiting to be written to the socket.", new MetricSet.Gauge() {
+      
+      public long getValue() {
+        return outbound.size();
+      }
+    } );
+    
+    Metrics.register( metrics );
+  }
+
+  /**
+   * Forgets the socket once it is disconnected, and its metrics.
+   */
+  void closed() {
+    
+    openSockets.decrementAndGet();
+    Metrics.unregister( metrics );
+  }
+
+  /**
+   * Returns the role of the connection, from its listener.
+   *
+   * @return "ns", "sb" or "ds".
+   */
+  String getRoleName() {
+    
+    if( listener instanceof NotificationServerConnector )
+      return "ns";
+    
+    if( listener instanceof SwitchboardSessionConnector )
+      return "sb";
+    
+    return "ds";
+  }
+
+  /**
+   * Counts a packet that could not be parsed, and drops it.
+   *
+   * @param e Why it could not be parsed.
+   */
+  void parseFailed( ParseException e ) {
+    
+    parseErrors.increment();
+    Metrics.parseErrors.increment();
+    
+    if( isLogged( WireLog.INFO ) )
+      WireLog.log( WireLog.INFO, getLogName(), "Malformed packet dropped: " + e.getMessage() );
+  }
+
+  /**
+   * Disconnects without telling the listener, e.g. when its owner moves on
+   * to another connection.  Requests still waiting on this connection are
+   * left alone, since the owner's table now serves the new one.
+   */
+  void release() {
+    
+    synchronized( this ) {
+      transactions = null;
+      listener     = NO_LISTENER;
+    }
+    
+    disconnect();
+  }
+
+  /**
+   * Returns whether lines of a level are logged for this connection.
+   * Callers check this before building the line.
+   *
+   * @param level The level of the line.
+   * @return Whether it would be logged.
+   */
+  boolean isLogged( int level ) {
+    
+    return sampled && WireLog.isEnabled( level );
+  }
+
+  /**
+   * Returns the name of this connection in the wire log.
+   *
+   * @return The number of the connection, and the server.
+   */
+  String getLogName() {
+    
+    return "#" + id + " " + address;
+  }
+
+  /**
+   * Returns the number of sockets currently connected.
+   *
+   * @return Open sockets, over all connections.
+   */
+  static int getOpenSocketCount() {
+    
+    return openSockets.get();
+  }
+
+  /**
+   * Returns the number of threads reading blocking connections.
+   *
+   * @return Reading threads currently running.
+   */
+  static int getReaderThreadCount() {
+    
+    return readerThreads.get();
+  }
+
+  /**
+   * Queues an incoming packet for the listener.  A packet handled on
+   * another thread gets its own copy of the line and body, since the read
+   * buffer is reused; otherwise the reading thread handles it, with
+   * <pre>dispatcher.flush()</pre>, before it reads again.
+   *
+   * @param msg The MSNP packet to be handled.
+   */
+  void dispatch( IncomingMessage msg ) {
+    
+    TransactionTable table  = transactions;
+    int              length = msg.getFrameLength();
+    
+    framesIn.increment();
+    bytesIn.add( length );
+    Metrics.received( msg.getType(), length );
+    
+    if( table != null )
+      table.complete( msg );
+    
+    if( isLogged( WireLog.TRACE ) )
+      WireLog.log( WireLog.TRACE, getLogName(), "<<< " + msg.getLine() );
+    
+    WireRecorder recorder = WireRecorder.active;
+    
+    if( recorder != null )
+      recorder.recordIncoming( this, msg );
+    
+    if( dispatcher.isAsynchronous() )
+      msg.detach();
+    
+    dispatcher.dispatch( msg );
+  }
+
+  /**
+   * Lets the listener know that the connection is gone, and fails the
+   * requests still waiting for a reply.  When packets are handled off the
+   * reading thread, the notification comes after the packets already queued.
+   */
+  void fireServerDisconnected() {
+    
+    TransactionTable table = transactions;
+    
+    if( table != null )
+      table.failAll( new MSNException( MSNException.MSN_EX_DISCONNECTED ) );
+    
+    if( !dispatcher.isAsynchronous() ) {
+      listener.serverDisconnected();
+      return;
+    }
+    
+    dispatcher.execute( new Runnable() {
+      
+      public void run() {
+        listener.serverDisconnected();
+      }
+    } );
+  }
+
   /**
    * Sends the specified MSNP packet to the server.  If sending fails for some
-   * reason, the client is not notified.
+   * reason, the client is not notified.  The packet is queued on the
+   * connection's outbound path, and written together with any packets other
+   * threads queued meanwhile.
    *
    * @param msg The message that is to be sent.
    */
   public void sendMSNPMessage( OutgoingMessage msg ) {
     
     try {
-      PrintWriter pw = new PrintWriter( new OutputStreamWriter( connection.getOutputStream(), "UTF-8" ) );
+      outbound.add( record( encode( msg ) ) );
+      flush();
 
-      pw.write( msg.getMessageString() );
-      pw.flush();
+      if( isLogged( WireLog.TRACE ) )
+        WireLog.log( WireLog.TRACE, getLogName(), ">>> " + msg.toString().trim() );
+    }  catch( Exception e ) {
+      sendFailed( e );
+    }
+  }
 
-      System.out.println( ">>> " + msg.toString().trim() );
+  /**
+   * Sends the specified MSNP packet, and returns a future for the server's
+   * reply with the same transaction ID.  The listener still receives the
+   * reply as usual.
+   *
+   * @param msg The message that is to be sent; it must have a transaction ID.
+   * @return A future completed with the reply, or with an MSNException.
+   */
+  CompletableFuture sendMSNPMessageAsync( OutgoingMessage msg ) {
+    
+    return sendMSNPMessageAsync( msg, TransactionTable.DEFAULT_TIMEOUT );
+  }
+
+  /**
+   * Sends the specified MSNP packet, and returns a future for the server's
+   * reply with the same transaction ID.
+   *
+   * @param msg The message that is to be sent; it must have a transaction ID.
+   * @param timeout Milliseconds to wait for the reply.
+   * @return A future completed with the reply, or with an MSNException.
+   */
+  CompletableFuture sendMSNPMessageAsync( OutgoingMessage msg, long timeout ) {
+    
+    if( transactions == null || msg.getTransactionID() == OutgoingMessage.NO_TRANSACTION_ID )
+      throw new IllegalArgumentException( "Message has no tracked transaction ID: " + msg );
+    
+    if( !connected ) {
+      CompletableFuture failed = new CompletableFuture();
+      
+      failed.completeExceptionally( new MSNException( MSNException.MSN_EX_DISCONNECTED ) );
+      return failed;
+    }
+    
+    /* Register first, the reply may arrive before send returns */
+    CompletableFuture future = transactions.register( msg.getTransactionID(), timeout );
+    
+    /* The connection may have dropped, and failed the pending requests, meanwhile */
+    if( !connected ) {
+      future.completeExceptionally( new MSNException( MSNException.MSN_EX_DISCONNECTED ) );
+      return future;
+    }
+    
+    sendMSNPMessage( msg );
+    return future;
+  }
+
+  /**
+   * Sets the table that matches replies to the requests waiting for them.
+   *
+   * @param transactions The owner's transaction table.
+   */
+  void setTransactionTable( TransactionTable transactions ) {
+    
+    this.transactions = transactions;
+  }
+
+  /**
+   * Sends several MSNP packets at once.  The packets go out in the given
+   * order, in as few writes as the socket allows.
+   *
+   * @param msgs The messages that are to be sent.
+   */
+  void sendMSNPMessages( OutgoingMessage[] msgs ) {
+    
+    try {
+      for( int i = 0; i < msgs.length; i++ )
+        outbound.add( record( encode( msgs[i] ) ) );
+      
+      flush();
+      
+      for( int i = 0; i < msgs.length && isLogged( WireLog.TRACE ); i++ )
+        WireLog.log( WireLog.TRACE, getLogName(), ">>> " + msgs[i].toString().trim() );
     }  catch( Exception e ) {
-      System.out.println( e );
+      sendFailed( e );
     }
   }
 
+  /**
+   * Drops the packets that could not be written, giving their buffers back
+   * to the encoder; the socket is unusable, and the reading side drops the
+   * connection.
+   *
+   * @param e Why sending failed.
+   */
+  void sendFailed( Exception e ) {
+    
+    outbound.clear();
+    
+    if( isLogged( WireLog.INFO ) )
+      WireLog.log( WireLog.INFO, getLogName(), "Send failed: " + e );
+  }
+
+  /**
+   * Records an encoded packet, when traffic is being recorded.
+   *
+   * @param frame The encoded packet; unchanged.
+   * @return The packet.
+   */
+  ByteBuffer record( ByteBuffer frame ) {
+    
+    WireRecorder recorder = WireRecorder.active;
+    
+    if( recorder != null )
+      recorder.recordOutgoing( this, frame );
+    
+    return frame;
+  }
+
+  /**
+   * Encodes the packet as it is written on the wire, and counts it, on the
+   * connection and by command type.
+   *
+   * @param msg The message to encode.
+   * @return The UTF-8 bytes of the packet, in a buffer the outbound queue
+   * gives back to the encoder once it is written.
+   */
+  ByteBuffer encode( OutgoingMessage msg ) {
+    
+    ByteBuffer frame = MessageEncoder.encode( msg );
+    
+    framesOut.increment();
+    bytesOut.add( frame.remaining() );
+    Metrics.sent( msg.getType(), frame.remaining() );
+    return frame;
+  }
+
+  /**
+   * Writes out the queued packets.  The blocking transport writes on the
+   * calling thread, unless another thread is already writing; that thread
+   * then takes the packets along.
+   */
+  void flush() throws IOException {
+    
+    if( channel == null )
+      throw new IOException( "Not connected" );
+    
+    outbound.flush( channel );
+  }
+
   /**
    * Creates a network "reading" thread that listens for MSNP packets from
-   * the server.  Each packet is encased inside an IncomingMessage object, 
-   * and then and then a new thread is created to pass the command back to
-   * the listening object. A new thread is spawned to handle the command so 
-   * that communications are not blocked.
+   * the server.  The FrameDecoder splits the stream into packets, reading
+   * exactly as many bytes as announced for message bodies.
+   * Each packet is encased inside an IncomingMessage object, 
+   * and then passed back to the listening object through the dispatcher,
+   * on the reading thread once everything read so far is decoded, or, in
+   * the virtual execution mode, on other threads so that communications
+   * are not blocked.
    * <p>
    * When the connection is dropped, the loop stops, and notifies the listener
    * via the MSNPListener interface.
    */
   private void readLoop() {
     
-    Thread readThread = new Thread() {
+    Runnable reader = new Runnable() {
                   
       public void run() {
         
-        BufferedReader br;
-
-        try {
-          br = new BufferedReader( new InputStreamReader( connection.getInputStream(), "UTF-8" ) );
-        } catch( IOException e ) {
-          disconnect();
-	  return;
-        }
-
-        String            inputLine;
-        IncomingMessage   msg;
+        ReadableByteChannel input   = channel;
+        FrameDecoder        decoder = new FrameDecoder();
+        IncomingMessage     msg;
 
+        readerThreads.incrementAndGet();
+        
         while( connected ) {
           try {
 
-            /* Read in the command */
-            inputLine = br.readLine();
-            System.out.println( "<<< " + inputLine );
+            /* Take the next complete packet; read more bytes while there is none */
+            msg = decoder.decode();
             
-            /* A connection that has been dropped returns a null */
-            if( inputLine == null ) {
-              disconnect();
-              break;
+            if( msg == null ) {
+              /* The packets read so far are handled before the buffer is reused */
+              dispatcher.flush();
+              
+              /* A connection that has been dropped returns -1 */
+              if( decoder.receive( input ) < 0 )
+                break;
+              
+              continue;
             }
-
-            /* Parse the message */
-            msg = IncomingMessage.parseMessage( inputLine );
             
           }  catch( IOException e ) {
-            /* If the message was malformed or something else goes wrong, we just
-             ignore it and continue the loop. */
-            System.out.println( e );
-            continue;
+            /* The socket is unusable; the connection is dropped below. */
+            if( connected && isLogged( WireLog.INFO ) )
+              WireLog.log( WireLog.INFO, getLogName(), "Read failed: " + e );
+            break;
           }  catch( ParseException e ) {
-            System.out.println( e );
+            /* If the message was malformed, we count it, drop it and continue
+               the loop. */
+            parseFailed( e );
             continue;
           }
 
-	  /* If the message has a body (i.e. if it is of type Message.MSG), then
-	     interpret the line to determine how many bytes to read in from the
-             stream. */
-          if( msg.hasBody() ) {
-            try {
-              int     length = msg.getBodyLength();
-              char[]  body   = new char[length];
-              
-              
-              br.read( body, 0, length );
-              msg.setBody( new String( body ) );
-            } catch( NoSuchFieldException e ) {
-              /* If we were duped somehow into thinking that it had a body, and
-		 it really didn't, or something went wrong, then don't bother
-		 doing anything. */
-              System.err.println( "ServerConnection.readLoop() - " + e );
-            } catch( IOException e ) {
-              System.err.println( "ServerConnection.readLoop() - " + e );
-            }
-          }
-          
-          /* Start a new thread and pass the message back to the listener. */
-          ( new HandleMessage( msg ) ).run();
+          /* Pass the message back to the listener. */
+          dispatch( msg );
         }
 
         // Set the status of this ServerConnection Object
         disconnect();
+        readerThreads.decrementAndGet();
       }
     };
 
-    /* Start the read thread. */
-    readThread.start();
-  }
-  
-  /**
-   * Handles contacting the listener with the MSNP packet.  This class
-   * is used so that there is an alternative, independent reference to the 
-   * MSNP packet.  If it were not created, the msg would be changed in the 
-   * next iteration of the read loop.
-   */
-  class HandleMessage extends Thread {
-
-    /** The "independent" reference to the MNSP packet. */
-    IncomingMessage msg;
-
-        
-    /**
-     * Stores a reference to the incoming message packet.
-     *
-     * @param msg The MSNP packet to be handled.
-     */
-    public HandleMessage( IncomingMessage msg ) {
-      
-      this.msg = msg;
-    }
-
-    
-    /** 
-     * Simply calls the listener through the MSNPListener interface, and
-     * passes the listener the new packet.  Once that thread has completed
-     * its execution, then this thread dies.
-     */
-    public void run() {
-      listener.incomingMSNPMessage( msg );
-    }
+    /* Start the read thread; a platform one keeps the JVM alive, as it always did */
+    ExecutionSupport.newThread( "jmml-reader-" + connection.getInetAddress().getHostAddress(), reader, virtual, false ).start();
   }
 }
 // ServerConnection class
\ No newline at end of file
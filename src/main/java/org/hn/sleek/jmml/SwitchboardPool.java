@@ -0,0 +1,342 @@
+/*
+ * ===========================================================================
+ *  Copyright (C) 2002-2003  Tony Tang
+ *
+ *  This program is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation; either version 2 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program; if not, write to the Free Software
+ *  Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ * ===========================================================================
+ */
+
+/**
+ *
+ * $Id$
+ * $Author$
+ * $Name$
+ * $Revision$
+ * $State$
+ *
+ */
+
+package org.hn.sleek.jmml;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+
+/**
+ * Keeps switchboard sessions that are already requested, connected and
+ * authenticated, but not yet calling anyone.  The first message to a buddy
+ * without a session then takes one from the pool and only has to CAL the
+ * buddy, instead of waiting for XFR SB, the connection and USR first.
+ * Sessions left unused for longer than the idle timeout are closed, and the
+ * pool is refilled when a session is taken.  Contacts messaged often get a
+ * session of their own as soon as they come online; the counts fade by one
+ * message at each sweep, so only recent messages make a contact hot.
+ */
+class SwitchboardPool {
+
+  /** Default number of sessions kept ready (system property jmml.sbpool.size); 0 disables the pool. */
+  final static int  DEFAULT_SIZE   = Integer.getInteger( "jmml.sbpool.size", 0 ).intValue();
+
+  /** Default time a ready session may stay unused, in milliseconds (system property jmml.sbpool.idle). */
+  final static long DEFAULT_IDLE   = Long.getLong( "jmml.sbpool.idle", 60000L ).longValue();
+
+  /** Messages sent to a contact before a session is opened for it when it comes online (system property jmml.sbpool.hot); 0 disables. */
+  final static int  DEFAULT_HOT    = Integer.getInteger( "jmml.sbpool.hot", 3 ).intValue();
+
+  /** The connector the sessions are requested from. */
+  NotificationServerConnector notificationServer;
+
+  /** Number of sessions kept ready. */
+  volatile int      size           = DEFAULT_SIZE;
+
+  /** Time a ready session may stay unused, in milliseconds. */
+  long              idleTimeout    = DEFAULT_IDLE;
+
+  /** Messages sent to a contact before it gets a session when it comes online. */
+  int               hotThreshold   = DEFAULT_HOT;
+
+  /** Authenticated sessions waiting for a buddy, oldest first. */
+  LinkedList        ready          = new LinkedList();
+
+  /** Sessions requested for the pool, but not authenticated yet. */
+  HashSet           opening        = new HashSet();
+
+  /** Messages sent lately, by buddy name, counted up to the hot threshold. */
+  HashMap           messageCounts  = new HashMap();
+
+  /** Periodic closing of idle sessions. */
+  ScheduledFuture   sweeper;
+
+  /** Sends that found a ready session. */
+  AtomicLong        hits           = new AtomicLong();
+
+  /** Sends that found none. */
+  AtomicLong        misses         = new AtomicLong();
+
+  /** Sessions closed unused. */
+  AtomicLong        expired        = new AtomicLong();
+
+  /** Sessions opened ahead of time for contacts coming online. */
+  AtomicLong        speculative    = new AtomicLong();
+
+  
+  
+  /**
+   * Creates the pool of a Notification Server connector.
+   *
+   * @param notificationServer The connector the sessions are requested from.
+   */
+  SwitchboardPool( NotificationServerConnector notificationServer ) {
+    
+    this.notificationServer = notificationServer;
+  }
+
+  /**
+   * Sets how many sessions are kept ready, and how long they may stay unused.
+   *
+   * @param size Number of sessions; 0 disables the pool.
+   * @param idleTimeout Milliseconds a ready session may stay unused.
+   */
+  synchronized void configure( int size, long idleTimeout ) {
+    
+    this.size        = size;
+    this.idleTimeout = idleTimeout;
+    
+    if( sweeper != null ) {
+      sweeper.cancel( false );
+      sweeper = null;
+    }
+    
+    if( size <= 0 )
+      messageCounts.clear();
+    
+    if( notificationServer.isConnected() )
+      start();
+  }
+
+  /**
+   * Fills the pool, once signed in.
+   */
+  synchronized void start() {
+    
+    if( size <= 0 )
+      return;
+    
+    if( sweeper == null ) {
+      long period = Math.max( 1000, idleTimeout / 2 );
+      
+      sweeper = ExecutionSupport.getScheduler().scheduleAtFixedRate( new Runnable() {
+        
+        public void run() {
+          sweep();
+        }
+      }, period, period, TimeUnit.MILLISECONDS );
+    }
+    
+    refill();
+  }
+
+  /**
+   * Closes every pooled session, e.g. when signing out or when the
+   * Notification Server connection drops.
+   */
+  void stop() {
+    
+    ArrayList closing;
+    
+    synchronized( this ) {
+      if( sweeper != null ) {
+        sweeper.cancel( false );
+        sweeper = null;
+      }
+      
+      closing = new ArrayList( ready );
+      ready.clear();
+      opening.clear();
+      messageCounts.clear();
+    }
+    
+    for( int i = 0; i < closing.size(); i++ )
+      ( ( SwitchboardSessionConnector ) closing.get( i ) ).close();
+  }
+
+  /**
+   * Takes a ready session, and starts opening another one in its place.
+   *
+   * @return An authenticated session not calling anyone yet, or null if there is none.
+   */
+  synchronized SwitchboardSessionConnector take() {
+    
+    if( size <= 0 )
+      return null;
+    
+    SwitchboardSessionConnector ssc = null;
+    
+    while( ssc == null && !ready.isEmpty() ) {
+      ssc = ( SwitchboardSessionConnector ) ready.removeFirst();
+      
+      if( !ssc.isConnected() )
+        ssc = null;
+    }
+    
+    if( ssc != null )
+      hits.incrementAndGet();
+    else
+      misses.incrementAndGet();
+    
+    refill();
+    return ssc;
+  }
+
+  /**
+   * Called by a pooled session once the switchboard server authenticated it.
+   *
+   * @param ssc The session.
+   */
+  synchronized void sessionReady( SwitchboardSessionConnector ssc ) {
+    
+    if( !opening.remove( ssc ) ) {
+      /* The pool was stopped meanwhile */
+      ssc.close();
+      return;
+    }
+    
+    ssc.lastUsed = System.currentTimeMillis();
+    ready.addLast( ssc );
+  }
+
+  /**
+   * Called by a pooled session when its connection is gone.
+   *
+   * @param ssc The session.
+   */
+  synchronized void sessionClosed( SwitchboardSessionConnector ssc ) {
+    
+    opening.remove( ssc );
+    ready.remove( ssc );
+  }
+
+  /**
+   * Counts a message sent to a buddy, to find the contacts messaged often.
+   * Nothing is counted while the pool is disabled.
+   *
+   * @param buddyName The buddy.
+   */
+  void messageSent( String buddyName ) {
+    
+    if( size <= 0 || hotThreshold <= 0 )
+      return;
+    
+    synchronized( this ) {
+      Integer count = ( Integer ) messageCounts.get( buddyName );
+      
+      if( count == null || count.intValue() < hotThreshold )
+        messageCounts.put( buddyName, Integer.valueOf( count == null ? 1 : count.intValue() + 1 ) );
+    }
+  }
+
+  /**
+   * Returns whether a contact is messaged often enough to get a session as
+   * soon as it comes online.
+   *
+   * @param buddyName The contact.
+   * @return Whether a session should be opened ahead of time.
+   */
+  synchronized boolean isHot( String buddyName ) {
+    
+    Integer count = ( Integer ) messageCounts.get( buddyName );
+    
+    return size > 0 && hotThreshold > 0 && count != null && count.intValue() >= hotThreshold;
+  }
+
+  /**
+   * Counts a session opened ahead of time.
+   */
+  void countSpeculative() {
+    
+    speculative.incrementAndGet();
+  }
+
+  /**
+   * Returns a one-line summary of the counters.
+   *
+   * @return The counters.
+   */
+  synchronized String getStatistics() {
+    
+    return "ready=" + ready.size() + " opening=" + opening.size() + " hits=" + hits.get() + " misses=" + misses.get() +
+           " expired=" + expired.get() + " speculative=" + speculative.get();
+  }
+
+  /**
+   * Requests sessions until enough are ready or on their way.
+   */
+  private void refill() {
+    
+    if( !notificationServer.isConnected() )
+      return;
+    
+    while( ready.size() + opening.size() < size ) {
+      SwitchboardSessionConnector ssc = new SwitchboardSessionConnector( notificationServer.userName, null, notificationServer );
+      
+      opening.add( ssc );
+      ssc.open();
+    }
+  }
+
+  /**
+   * Closes the ready sessions that stayed unused for longer than the idle
+   * timeout.  They are replaced only when the next session is taken.  The
+   * message counts fade by one, and contacts not messaged lately are
+   * forgotten.
+   */
+  private void sweep() {
+    
+    ArrayList closing = new ArrayList();
+    
+    synchronized( this ) {
+      long     now      = System.currentTimeMillis();
+      Iterator sessions = ready.iterator();
+      
+      while( sessions.hasNext() ) {
+        SwitchboardSessionConnector ssc = ( SwitchboardSessionConnector ) sessions.next();
+        
+        if( now - ssc.lastUsed > idleTimeout ) {
+          sessions.remove();
+          closing.add( ssc );
+        }
+      }
+      
+      Iterator counts = messageCounts.entrySet().iterator();
+      
+      while( counts.hasNext() ) {
+        Map.Entry entry = ( Map.Entry ) counts.next();
+        int       count = ( ( Integer ) entry.getValue() ).intValue();
+        
+        if( count <= 1 )
+          counts.remove();
+        else
+          entry.setValue( Integer.valueOf( count - 1 ) );
+      }
+    }
+    
+    for( int i = 0; i < closing.size(); i++ ) {
+      expired.incrementAndGet();
+      ( ( SwitchboardSessionConnector ) closing.get( i ) ).close();
+    }
+  }
+}
+// SwitchboardPool class
@@ -0,0 +1,336 @@
+/*
+ * ===========================================================================
+ *  Copyright (C) 2002-2003  Tony Tang
+ *
+ *  This program is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation; either version 2 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program; if not, write to the Free Software
+ *  Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ * ===========================================================================
+ */
+
+/**
+ *
+ * $Id$
+ * $Author$
+ * $Name$
+ * $Revision$
+ * $State$
+ *
+ */
+
+package org.hn.sleek.jmml;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+
+/**
+ * Holds the switchboard session of every buddy the user talks to.  The
+ * registry is shared by the Notification Server's reading thread, which
+ * answers calls (RNG), and by the application threads sending messages, so
+ * every access goes through it.
+ * Sessions left unused for longer than the idle timeout are closed, and
+ * connectors of buddies no longer talked to are forgotten.  At most a given
+ * number of sessions stay connected; when another one connects, the least
+ * recently used session is closed.
+ */
+class SwitchboardRegistry {
+
+  /** Default time a session may stay unused before it is closed, in milliseconds (system property jmml.sb.idle). */
+  final static long DEFAULT_IDLE = Long.getLong( "jmml.sb.idle", 300000L ).longValue();
+
+  /** Default number of sessions kept connected at most (system property jmml.sb.max); 0 means no limit. */
+  final static int  DEFAULT_MAX  = Integer.getInteger( "jmml.sb.max", 32 ).intValue();
+
+  /** Sessions by buddy name, least recently used first. */
+  LinkedHashMap     sessions     = new LinkedHashMap( 16, 0.75f, true );
+
+  /** Time a session may stay unused, in milliseconds. */
+  long              idleTimeout  = DEFAULT_IDLE;
+
+  /** Number of sessions kept connected at most. */
+  int               maxOpen      = DEFAULT_MAX;
+
+  /** Periodic closing of idle sessions. */
+  ScheduledFuture   sweeper;
+
+  /** Sessions closed because they stayed unused. */
+  AtomicLong        expired      = new AtomicLong();
+
+  /** Sessions closed to make room for another one. */
+  AtomicLong        evicted      = new AtomicLong();
+
+  
+  
+  /**
+   * Sets how long sessions may stay unused, and how many may stay connected.
+   *
+   * @param maxOpen Number of connected sessions; 0 means no limit.
+   * @param idleTimeout Milliseconds a session may stay unused.
+   */
+  synchronized void configure( int maxOpen, long idleTimeout ) {
+    
+    this.maxOpen     = maxOpen;
+    this.idleTimeout = idleTimeout;
+    
+    if( sweeper != null ) {
+      sweeper.cancel( false );
+      sweeper = null;
+      start();
+    }
+  }
+
+  /**
+   * Starts closing idle sessions, once signed in.
+   */
+  synchronized void start() {
+    
+    if( sweeper != null || idleTimeout <= 0 )
+      return;
+    
+    long period = Math.max( 1000, idleTimeout / 2 );
+    
+    sweeper = ExecutionSupport.getScheduler().scheduleAtFixedRate( new Runnable() {
+      
+      public void run() {
+        sweep();
+      }
+    }, period, period, TimeUnit.MILLISECONDS );
+  }
+
+  /**
+   * Closes every session and forgets them, e.g. when signing out.
+   */
+  void stop() {
+    
+    ArrayList closing;
+    
+    synchronized( this ) {
+      if( sweeper != null ) {
+        sweeper.cancel( false );
+        sweeper = null;
+      }
+      
+      closing = new ArrayList( sessions.values() );
+      sessions.clear();
+    }
+    
+    for( int i = 0; i < closing.size(); i++ )
+      ( ( SwitchboardSessionConnector ) closing.get( i ) ).close();
+  }
+
+  /**
+   * Returns the session of a buddy, and marks it as the most recently used.
+   *
+   * @param buddyName The buddy.
+   * @return The buddy's session, or null if there is none.
+   */
+  synchronized SwitchboardSessionConnector get( String buddyName ) {
+    
+    return ( SwitchboardSessionConnector ) sessions.get( buddyName );
+  }
+
+  /**
+   * Sets the session of a buddy.  A session it replaces is not closed;
+   * the caller has taken over its messages.
+   *
+   * @param buddyName The buddy.
+   * @param ssc The buddy's session.
+   */
+  synchronized void put( String buddyName, SwitchboardSessionConnector ssc ) {
+    
+    sessions.put( buddyName, ssc );
+  }
+
+  /**
+   * Returns the number of sessions known.
+   *
+   * @return Sessions, connected or not.
+   */
+  synchronized int size() {
+    
+    return sessions.size();
+  }
+
+  /**
+   * Returns the sessions known.
+   *
+   * @return A copy of the sessions, least recently used first.
+   */
+  synchronized SwitchboardSessionConnector[] getSessions() {
+    
+    return ( SwitchboardSessionConnector[] ) sessions.values().toArray( new SwitchboardSessionConnector[sessions.size()] );
+  }
+
+  /**
+   * Returns the number of sessions connected to their switchboard.
+   *
+   * @return The open sessions.
+   */
+  int getOpenCount() {
+    
+    SwitchboardSessionConnector[] sessions = getSessions();
+    int                           open     = 0;
+    
+    for( int i = 0; i < sessions.length; i++ ) {
+      if( sessions[i].isConnected() )
+        open++;
+    }
+    
+    return open;
+  }
+
+  /**
+   * Returns the number of messages waiting for their buddy, over all
+   * sessions, or for the buddy with the most.
+   *
+   * @param largest Whether to return the largest queue, rather than the total.
+   * @return The queued messages.
+   */
+  int getQueuedMessageCount( boolean largest ) {
+    
+    SwitchboardSessionConnector[] sessions = getSessions();
+    int                           count    = 0;
+    
+    for( int i = 0; i < sessions.length; i++ ) {
+      int queued = sessions[i].getQueuedMessageCount();
+      
+      count = largest ? Math.max( count, queued ) : count + queued;
+    }
+    
+    return count;
+  }
+
+  /**
+   * Returns the number of requests waiting for a reply, over all sessions.
+   *
+   * @return The pending requests.
+   */
+  int getPendingTransactionCount() {
+    
+    SwitchboardSessionConnector[] sessions = getSessions();
+    int                           pending  = 0;
+    
+    for( int i = 0; i < sessions.length; i++ )
+      pending += sessions[i].transactions.size();
+    
+    return pending;
+  }
+
+  /**
+   * Called by a session once its connection is made.  If that leaves more
+   * sessions connected than allowed, the least recently used ones are closed.
+   *
+   * @param opened The session.
+   */
+  void sessionOpened( SwitchboardSessionConnector opened ) {
+    
+    ArrayList closing = new ArrayList();
+    
+    synchronized( this ) {
+      if( maxOpen <= 0 )
+        return;
+      
+      ArrayList open     = new ArrayList();
+      Iterator  iterator = sessions.values().iterator();
+      
+      while( iterator.hasNext() ) {
+        SwitchboardSessionConnector ssc = ( SwitchboardSessionConnector ) iterator.next();
+        
+        if( ssc.isConnected() || ssc == opened )
+          open.add( ssc );
+      }
+      
+      /* Least recently used first */
+      for( int i = 0; i < open.size() && open.size() - closing.size() > maxOpen; i++ ) {
+        if( open.get( i ) != opened )
+          closing.add( open.get( i ) );
+      }
+    }
+    
+    for( int i = 0; i < closing.size(); i++ ) {
+      evicted.incrementAndGet();
+      ( ( SwitchboardSessionConnector ) closing.get( i ) ).close();
+    }
+  }
+
+  /**
+   * Returns a one-line summary of the sessions, and of the sockets and
+   * threads the library holds.
+   *
+   * @return The counters.
+   */
+  String getStatistics() {
+    
+    int[] states = new int[SwitchboardSessionConnector.STATE_NAMES.length];
+    int   known;
+    
+    synchronized( this ) {
+      Iterator iterator = sessions.values().iterator();
+      
+      known = sessions.size();
+      
+      while( iterator.hasNext() )
+        states[( ( SwitchboardSessionConnector ) iterator.next() ).getState()]++;
+    }
+    
+    StringBuffer buffer = new StringBuffer( "sessions=" + known );
+    
+    for( int i = 0; i < states.length; i++ )
+      buffer.append( ' ' ).append( SwitchboardSessionConnector.STATE_NAMES[i] ).append( '=' ).append( states[i] );
+    
+    buffer.append( " expired=" ).append( expired.get() );
+    buffer.append( " evicted=" ).append( evicted.get() );
+    buffer.append( " sockets=" ).append( ServerConnection.getOpenSocketCount() );
+    buffer.append( " readers=" ).append( ServerConnection.getReaderThreadCount() );
+    buffer.append( " threads=" ).append( Thread.activeCount() );
+    
+    return buffer.toString();
+  }
+
+  /**
+   * Closes the sessions that stayed unused for longer than the idle timeout,
+   * and forgets the idle ones that have nothing left to send.
+   */
+  private void sweep() {
+    
+    ArrayList closing = new ArrayList();
+    
+    synchronized( this ) {
+      long     now      = System.currentTimeMillis();
+      Iterator iterator = sessions.values().iterator();
+      
+      while( iterator.hasNext() ) {
+        SwitchboardSessionConnector ssc = ( SwitchboardSessionConnector ) iterator.next();
+        
+        if( now - ssc.lastUsed <= idleTimeout )
+          continue;
+        
+        if( ssc.isIdle() ) {
+          if( !ssc.hasQueuedMessages() )
+            iterator.remove();
+        }
+        else if( ssc.isConnected() ) {
+          closing.add( ssc );
+        }
+      }
+    }
+    
+    for( int i = 0; i < closing.size(); i++ ) {
+      expired.incrementAndGet();
+      ( ( SwitchboardSessionConnector ) closing.get( i ) ).close();
+    }
+  }
+}
+// SwitchboardRegistry class
@@ -31,8 +31,9 @@
 package org.hn.sleek.jmml;
 
 
-import java.io.*;
 import java.util.*;
+import java.util.concurrent.*;
+import java.util.function.*;
 
 /**
  * Maintains the connection between the client and the switchboard
@@ -56,10 +57,37 @@ class SwitchboardSessionConnector implements MSNPListener {
    */
   final static String MIME_HEADER = "MIME-Version: 1.0\r\nContent-Type: text/plain; charset=UTF-8\r\n\r\n";
 
+  /** The MIME header, encoded once. */
+  final static byte[] MIME_HEADER_BYTES = MessageEncoder.fragment( MIME_HEADER );
+
+  /** Acknowledgement mode of sent messages: none. */
+  final static byte[] ACK_NONE          = MessageEncoder.fragment( "U" );
+
+  /** No connection, and no session requested. */
+  final static int STATE_IDLE       = 0;
+
+  /** A session was requested from the Notification Server (XFR SB). */
+  final static int STATE_REQUESTED  = 1;
+
+  /** Connected to the switchboard server, and authenticating (USR or ANS). */
+  final static int STATE_CONNECTING = 2;
+
+  /** Authenticated, and waiting in the pool for a buddy to call. */
+  final static int STATE_READY      = 3;
+
+  /** The buddy was called (CAL), and has not joined yet. */
+  final static int STATE_CALLING    = 4;
+
+  /** The buddy is in the session; messages go out right away. */
+  final static int STATE_ACTIVE     = 5;
+
+  /** Names of the states, for statistics. */
+  final static String[] STATE_NAMES = { "idle", "requested", "connecting", "ready", "calling", "active" };
+
   /** The Passport name of the user who is signed in. */
   String              userName;
 
-  /** The Passport name of the buddy. */
+  /** The Passport name of the buddy; null while the session waits in the pool. */
   String              buddyName;
 
   /** The challenge has for this session. This is valid only when the session is live. */
@@ -90,20 +118,27 @@ class SwitchboardSessionConnector implements MSNPListener {
   /** Whether the user is making the call or answering the call */
   boolean             calling = false;
 
-  /** Whether the buddy has joined the session. */
-  boolean             joined  = false;
+  /** Where the session stands; one of the STATE_ constants. */
+  int                 state   = STATE_IDLE;
 
-  int                 transactionID = 0;
+  /** Transaction IDs and pending requests on the switchboard connection. */
+  TransactionTable    transactions  = new TransactionTable();
 
   /** Reference to the notification server that was used to make this connection. */
   NotificationServerConnector notificationServer;
 
-  
-  /** 
-   * Static queue of all the switchboard session objects that have requested a
-   * switchboard session and are waiting.
-   */
-  protected static LinkedList queuedSessions = new LinkedList(); 
+  /** Guards lastConnect, which serializes the connects of this session. */
+  Object              connectLock = new Object();
+
+  /** The last connect asked for; the next one starts once it is over. */
+  CompletableFuture   lastConnect = CompletableFuture.completedFuture( null );
+
+  /** When the session was last used. */
+  long                lastUsed = System.currentTimeMillis();
+
+  /** The payload of the last MSG; reused, as messages are handled one at a time. */
+  MimePayload         payload  = new MimePayload();
+
 
   
   /**
@@ -135,7 +170,6 @@ class SwitchboardSessionConnector implements MSNPListener {
     this.serverPort    = new Integer (serverPort);
     this.sessionID     = sessionID;
     this.challengeHash = challengeHash;
-    this.joined        = false;
   }
 
   /**
@@ -154,12 +188,66 @@ class SwitchboardSessionConnector implements MSNPListener {
    * and then initiates the authentication/registration process.  If
    * calling, the client sends a USR command; if answering, the client
    * sends an ANS command (along with the sessionID and hash) to be added
-   * to the conversation.
+   * to the conversation.  A connection the session still had, e.g. when
+   * the buddy calls while an earlier session is open, is closed first.
+   * Blocks until the connection is made, or has failed.
    */
   public void connectSession() {
     
+    openSession().join();
+  }
+
+  /**
+   * Starts connecting to the switchboard server, and authenticates once the
+   * connection is made.
+   *
+   * @return A future completed once the connection is made and USR or ANS
+   *         sent, or once it has failed; it never fails itself.
+   */
+  private CompletableFuture openSession() {
+    
+    ServerConnection previous;
+    
+    synchronized( this ) {
+      previous = sc;
+      sc       = null;
+      state    = STATE_CONNECTING;
+    }
+    
+    if( previous != null )
+      previous.release();
+    
     /* Create the connection to the server */
-    sc = new ServerConnection( serverIP, serverPort.intValue(), this );
+    return ServerConnection.openConnection( serverIP, serverPort.intValue(), this, notificationServer.transport, ExecutionSupport.getConnectExecutor() ).handle( new BiFunction() {
+      
+      public Object apply( Object result, Object error ) {
+        
+        /* A failed connection has already told serverDisconnected() */
+        if( error == null ) {
+          try {
+            sessionConnected( ( ServerConnection ) result );
+          } catch( RuntimeException e ) {
+            System.err.println( "SwitchboardSessionConnector.openSession() - " + e );
+            serverDisconnected();
+          }
+        }
+        
+        return null;
+      }
+    } );
+  }
+
+  /**
+   * Takes a connection that has just been made, and sends USR when calling,
+   * or ANS when answering.
+   *
+   * @param connection The connection to the switchboard server.
+   */
+  private void sessionConnected( ServerConnection connection ) {
+    
+    connection.setTransactionTable( transactions );
+    sc = connection;
+    notificationServer.switchboardSessions.sessionOpened( this );
 
     if( calling ) {
       /* >>> USR 23 username@msn.com 293898198.29823982 */
@@ -179,41 +267,231 @@ class SwitchboardSessionConnector implements MSNPListener {
     }
   }
 
+  /**
+   * Connects to the switchboard server off the calling thread, so that the
+   * Notification Server's reading thread goes on with other messages while
+   * the socket is opened.  No thread waits for the connection to be made.
+   * Connects of the same session run one at a time, in the order they were
+   * asked for.
+   *
+   * @param serverIP The IP of the switchboard server.
+   * @param serverPort The port of the switchboard server.
+   * @param sessionID The session ID, when answering a call.
+   * @param challengeHash The ticket for the session.
+   * @param calling Whether the client is making the call.
+   */
+  void connectSessionAsync( final String serverIP, final int serverPort, final String sessionID, final String challengeHash, final boolean calling ) {
+    
+    setState( STATE_CONNECTING );
+    
+    synchronized( connectLock ) {
+      lastConnect = lastConnect.thenComposeAsync( new Function() {
+        
+        public Object apply( Object result ) {
+          
+          try {
+            setSessionInfo( serverIP, serverPort, sessionID, challengeHash );
+            setCalling( calling );
+            return openSession();
+          } catch( RuntimeException e ) {
+            System.err.println( "SwitchboardSessionConnector.connectSessionAsync() - " + e );
+            serverDisconnected();
+            return CompletableFuture.completedFuture( null );
+          }
+        }
+      }, ExecutionSupport.getConnectExecutor() );
+    }
+  }
+
+  /**
+   * Requests a switchboard session from the Notification Server, unless this
+   * connector already has a connection or a request on its way.  Once the
+   * server is reached and the user authenticated, the buddy is called, or,
+   * for a pooled session, the session is handed to the pool.
+   */
+  void open() {
+    
+    synchronized( this ) {
+      if( state != STATE_IDLE )
+        return;
+      
+      state = STATE_REQUESTED;
+    }
+    
+    notificationServer.requestSwitchboardSession( this );
+  }
+
+  /**
+   * Gives a pooled, authenticated session to a buddy, and calls the buddy.
+   * Messages queued by the buddy's previous connector are sent once the
+   * buddy joins.
+   *
+   * @param buddyName The buddy the session is for.
+   * @param previous The buddy's previous connector, or null.
+   */
+  void attach( String buddyName, SwitchboardSessionConnector previous ) {
+    
+    this.buddyName = buddyName;
+    this.lastUsed  = System.currentTimeMillis();
+    setState( STATE_CALLING );
+    
+    if( previous != null ) {
+      synchronized( previous.queuedMessages ) {
+        synchronized( queuedMessages ) {
+          queuedMessages.addAll( previous.queuedMessages );
+          previous.queuedMessages.clear();
+        }
+      }
+    }
+    
+    /* >>> CAL 98 username2@msn.com */
+    OutgoingMessage msg = new OutgoingMessage( Message.CAL, getTransactionID() );
+    
+    msg.addArgument( buddyName );
+    sc.sendMSNPMessage( msg );
+  }
+
+  /**
+   * Leaves the session and closes its connection.
+   */
+  void close() {
+    
+    ServerConnection connection = sc;
+    
+    if( connection == null )
+      return;
+    
+    connection.sendMSNPMessage( new OutgoingMessage( Message.OUT, OutgoingMessage.NO_TRANSACTION_ID ) );
+    connection.disconnect();
+  }
+
+  /**
+   * Returns whether the session has a live connection to the switchboard server.
+   *
+   * @return Whether connected.
+   */
+  boolean isConnected() {
+    
+    ServerConnection connection = sc;
+    
+    return connection != null && connection.isConnected();
+  }
+
+  /**
+   * Called when the session requested will not be given, e.g. when the
+   * Notification Server answers with an error.  The session goes back to
+   * idle; queued messages stay, and ask again with the next message.
+   */
+  void requestFailed() {
+    
+    synchronized( this ) {
+      if( state == STATE_REQUESTED )
+        state = STATE_IDLE;
+    }
+    
+    if( buddyName == null )
+      notificationServer.pool.sessionClosed( this );
+  }
+
+  /**
+   * Returns whether the session has neither a connection nor a session
+   * request waiting for the Notification Server.
+   *
+   * @return Whether idle.
+   */
+  boolean isIdle() {
+    
+    return getState() == STATE_IDLE;
+  }
+
+  /**
+   * Returns where the session stands.
+   *
+   * @return One of the STATE_ constants.
+   */
+  synchronized int getState() {
+    
+    return state;
+  }
+
+  /**
+   * Moves the session to another state.
+   *
+   * @param state One of the STATE_ constants.
+   */
+  synchronized void setState( int state ) {
+    
+    this.state = state;
+  }
+
+  /**
+   * Returns whether messages are waiting for the buddy to join.
+   *
+   * @return Whether there are queued messages.
+   */
+  boolean hasQueuedMessages() {
+    
+    synchronized( queuedMessages ) {
+      return !queuedMessages.isEmpty();
+    }
+  }
+
+  /**
+   * Returns the number of messages waiting for the buddy to join.
+   *
+   * @return The number of queued messages.
+   */
+  int getQueuedMessageCount() {
+    
+    synchronized( queuedMessages ) {
+      return queuedMessages.size();
+    }
+  }
+
   /** 
    * If the server connection is made, and the buddy has joined the conversation,
    * then the message is immediately sent to the buddy.  If not, then the message
-   * is placed in the queue, and another switchboard session is requested.  Messages
-   * longer than about 1500 characters will fail (and the client will not be
-   * notified).  Further, messages are sent so that there is no acknowledgement of
+   * is placed in the queue, and a switchboard session is requested, unless one is
+   * already being set up.  Messages longer than about 1500 characters will fail
+   * (and the client will not be notified).  Further, messages are sent so that there is no acknowledgement of
    * success or failure.
    *
    * @param message The message to be sent to the buddy.
    */
   public void sendMessage( String message ) {
-    /* joined is true only when the buddy has joined a conversation with the user */
-    if( joined ) {
-      OutgoingMessage msg  = new OutgoingMessage( Message.MSG, getTransactionID() );
-      String          body = MIME_HEADER + ( String ) message;
-      
-      /* NOTE: hardcoded "don't ack received messages" with the "U" below */
-      msg.addArgument( "U" );
-      msg.addArgument( ( new Integer( body.length() ) ).toString() );
-      msg.setBody( body );
-      sc.sendMSNPMessage( msg );
-    }
-    else {
-      /* Add the message to the queue */
-      synchronized( queuedMessages ) {
-        queuedMessages.add( message );
+    
+    ServerConnection connection = null;
+    boolean          request    = false;
+    
+    lastUsed = System.currentTimeMillis();
+    
+    synchronized( this ) {
+      /* The buddy has joined a conversation with the user */
+      if( state == STATE_ACTIVE ) {
+        connection = sc;
       }
-      
-      synchronized( queuedSessions ) {
-        queuedSessions.add( this );
+      else {
+        /* Add the message to the queue; it goes out when the buddy joins */
+        synchronized( queuedMessages ) {
+          queuedMessages.add( message );
+        }
+        
+        /* Unless the session is already being set up, request one */
+        if( state == STATE_IDLE ) {
+          state   = STATE_REQUESTED;
+          request = true;
+        }
       }
-      
-      /* Request another switchboard session */
-      notificationServer.requestSwitchboardSession();
     }
+    
+    if( connection != null ) {
+      connection.sendMSNPMessage( createMessage( message ) );
+      return;
+    }
+    
+    /* Request another switchboard session */
+    if( request )
+      notificationServer.requestSwitchboardSession( this );
   }
 
   /**
@@ -222,29 +500,44 @@ class SwitchboardSessionConnector implements MSNPListener {
    */
   public void incomingMSNPMessage( IncomingMessage incomingMessage ) {
     
+    MessageRecord record = incomingMessage.getRecord();
+    
+    /* A line that lacks a field its command requires is dropped */
+    if( record == null && MessageRecord.hasRecord( incomingMessage.getType() ) ) {
+      System.err.println( "SwitchboardSessionConnector.incomingMSNPMessage() - Malformed " + incomingMessage.getLine() );
+      return;
+    }
+    
     switch( incomingMessage.getType() ) {
       case Message.BYE: receivedBYE( incomingMessage ); break;
       case Message.USR:	receivedUSR( incomingMessage ); break;
-      case Message.CAL: receivedCAL( incomingMessage ); break;
+      case Message.CAL: receivedCAL( ( MessageRecord.Cal ) record ); break;
       case Message.JOI: receivedJOI( incomingMessage ); break;
       case Message.IRO: receivedIRO( incomingMessage ); break;
       case Message.ANS: receivedANS( incomingMessage ); break;
-      case Message.MSG: receivedMSG( incomingMessage ); break;
+      case Message.MSG: receivedMSG( ( MessageRecord.Msg ) record ); break;
     }
   }
 
   /**
-   * When it is clear that the session has ended, sets the "joined" flag
-   * to be false.
+   * When it is clear that the session has ended, the session goes back to
+   * idle.
    */
   public void serverDisconnected() {
-    joined = false;
-    sc     = null;
+    
+    synchronized( this ) {
+      state        = STATE_IDLE;
+      sc           = null;
+      participants = 0;
+    }
+    
+    if( buddyName == null )
+      notificationServer.pool.sessionClosed( this );
   }
 
   /**
-   * Received when a buddy leaves a conversation.  Sets the "joined" flag
-   * to be false.
+   * Received when a buddy leaves a conversation.  Once everyone has left,
+   * the session is closed.
    *
    * @param incomingMessage The incoming MSNP message from the server.
    */
@@ -252,15 +545,11 @@ class SwitchboardSessionConnector implements MSNPListener {
     
     /* Moving forward for multi-party conversation support, this should
        should be aware of who is leaving. */
-    joined = false;
+    setState( STATE_CALLING );
     participants--;
     
-    if( participants == 0 ) {
-      OutgoingMessage msg = new OutgoingMessage( Message.OUT, OutgoingMessage.NO_TRANSACTION_ID );
-      
-      sc.sendMSNPMessage( msg );
-      sc = null;
-    }
+    if( participants <= 0 )
+      close();
   }
 
   /**
@@ -272,6 +561,15 @@ class SwitchboardSessionConnector implements MSNPListener {
    */
   private void receivedUSR( IncomingMessage incomingMessage ) {
     
+    /* A pooled session calls nobody until it is given to a buddy */
+    if( buddyName == null ) {
+      setState( STATE_READY );
+      notificationServer.pool.sessionReady( this );
+      return;
+    }
+    
+    setState( STATE_CALLING );
+    
     /* >>> CAL 98 username2@msn.com */
     OutgoingMessage msg = new OutgoingMessage( Message.CAL, getTransactionID() );
     
@@ -283,20 +581,16 @@ class SwitchboardSessionConnector implements MSNPListener {
    * When a CAL command is received, pulls out the session ID and places
    * it into the object field.
    *
-   * @param incomingMessage The incoming MSNP message from the server.
+   * @param cal The call acknowledgement from the server.
    */
-  private void receivedCAL( IncomingMessage incomingMessage ) {
+  private void receivedCAL( MessageRecord.Cal cal ) {
     
-    try {
-      sessionID = incomingMessage.getSessionID();
-    } catch( NoSuchFieldException e ) { 
-      /* Shouldn't ever get here */
-    }
+    sessionID = cal.getSessionID();
   }
 
   /**
-   * When the buddy joins the conversation, set the "joined" flag to be
-   * true, and send the queue of messages to the buddy.
+   * When the buddy joins the conversation, the session becomes active, and
+   * the queue of messages is sent to the buddy.
    *
    * @param incomingMessage The incoming MSNP message from the server.
    */
@@ -318,9 +612,8 @@ class SwitchboardSessionConnector implements MSNPListener {
 	 conversation for that one user. 
      */
 
-    joined = true;
-    sendQueuedMessages();
     participants++;
+    sendQueuedMessages();
   }
 
   /**
@@ -347,77 +640,72 @@ class SwitchboardSessionConnector implements MSNPListener {
    */
   private void receivedANS( IncomingMessage incomingMessage ) {
     
-    /* Might be good to sendQueuedMessages */
-    joined = true;
+    /* Messages queued while the call was being answered go out now */
+    sendQueuedMessages();
   }
 
   /**
    * Handles incoming messages from the switchboard session server (instant 
-   * messages and "user is typing" messages).  Instant messages are fired back
-   * to the notification server; "user is typing" messages are currently dropped
-   * on the floor.  When errrors occur, the message is dropped on the floor.
-   * Font information from the instant messages is discarded.
+   * messages, "user is typing" messages, invitations).  The payload is
+   * handed to the handler registered for its content type; payloads nobody
+   * handles are dropped on the floor.
    *
-   * @param incomingMessage The incoming MSNP message from the server.
+   * @param msg The instant message from the server.
    */
-  private void receivedMSG( IncomingMessage incomingMessage ) {
+  private void receivedMSG( MessageRecord.Msg msg ) {
     
-    try {
-      BufferedReader reader = new BufferedReader( new StringReader( incomingMessage.getBody() ) );
-      
-      /* Reads in the first MIME header "MIME-Version: 1.0" and discards it */
-      reader.readLine();
-      
-      /* Reads in the Content-Type of the MIME header */
-      String type = reader.readLine();
-      
-      /* "Content-Type: text/plain" is an instant message */
-      if( type.indexOf( "plain" ) != -1 ) {
-        StringBuffer bodyBuffer = new StringBuffer();
-        String parameters       = reader.readLine();  /* Font information; this is discarded. */
-        String line             = reader.readLine(); /* Begins reads the body of the message into the buffer */
-        
-        
-        while( line != null ) {
-          bodyBuffer.append( line );
-          line = reader.readLine();
-        }
+    lastUsed = System.currentTimeMillis();
+    
+    if( msg.message.bodyBytes == null )
+      return;
+    
+    payload.reset( msg, msg.message.bodyBytes.duplicate() );
+    MessengerServerManager.getInstance().payloadRouter.route( payload );
+  }
 
-	/* TODO: URLDecode on the friendly name? */
-        notificationServer.fireIncomingMessageEvent( buddyName, incomingMessage.getFriendlyName(), bodyBuffer.toString() );
-      }
-    } catch( IOException e ) {
-      System.out.println( e );
-    } catch( NoSuchFieldException e2 ) { 
-      /* Should never happen */	
-    }
+  /**
+   * Builds the MSG packet carrying an instant message to the buddy.
+   *
+   * @param message The text of the instant message.
+   * @return The MSG packet.
+   */
+  private OutgoingMessage createMessage( String message ) {
+    
+    OutgoingMessage msg = new OutgoingMessage( Message.MSG, getTransactionID() );
+    
+    /* NOTE: hardcoded "don't ack received messages" with the "U" below.
+       The length of the body, in bytes, is added by the encoder. */
+    msg.addArgument( ACK_NONE );
+    msg.setBody( MIME_HEADER_BYTES, message );
+    
+    return msg;
   }
 
   /**
-   * Pulls out each message from the message queue, and individually
-   * sending the messages to the buddy.  Uses the sendMessage method.
+   * Marks the session active, pulls out every message from the message queue,
+   * and sends them to the buddy together, so that they go out in as few
+   * writes as possible.
    */
   private void sendQueuedMessages() {
     
-    /* TODO: Is this absolutely necessary?  There is a possibility
-       of deadlock here.
-       1. Buddy JOIns, so sendQueuedMessages is called.
-       2. sendQueuedMessages locks queuedMessages
-       3. sendMessage is called for first message
-       4. after message is sent, buddy leaves the conversation
-       5. joined becomes false
-       6. on next loop, the next queued message is sent to sendMessage
-       7. sendMessage tries to put it in the queue; except
- 	  queuedMessages is synchronized....
-    */
+    OutgoingMessage[] msgs;
+    ServerConnection  connection;
     
-    synchronized( queuedMessages ) {
-      int messageCount = queuedMessages.size();
+    synchronized( this ) {
+      state      = STATE_ACTIVE;
+      connection = sc;
       
-      for( int i = 0; i < messageCount; i++ ) {
-        sendMessage( ( String ) queuedMessages.removeFirst() );
+      synchronized( queuedMessages ) {
+        msgs = new OutgoingMessage[queuedMessages.size()];
+        
+        for( int i = 0; i < msgs.length; i++ ) {
+          msgs[i] = createMessage( ( String ) queuedMessages.removeFirst() );
+        }
       }
     }
+    
+    if( msgs.length > 0 && connection != null )
+      connection.sendMSNPMessages( msgs );
   }
 
   /**
@@ -425,8 +713,7 @@ class SwitchboardSessionConnector implements MSNPListener {
    * transaction ID.
    */
   private int getTransactionID() {
-    transactionID++;
-    return transactionID;
+    return transactions.nextTransactionID();
   }
 }
 // SwitchboardSessionConnector class
\ No newline at end of file
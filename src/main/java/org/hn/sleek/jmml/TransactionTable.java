@@ -0,0 +1,161 @@
+/*
+ * ===========================================================================
+ *  Copyright (C) 2002-2003  Tony Tang
+ *
+ *  This program is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation; either version 2 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program; if not, write to the Free Software
+ *  Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ * ===========================================================================
+ */
+
+/**
+ *
+ * $Id$
+ * $Author$
+ * $Name$
+ * $Revision$
+ * $State$
+ *
+ */
+
+package org.hn.sleek.jmml;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+
+/**
+ * Allocates transaction IDs (TrIDs) for a connector, and matches the
+ * server's replies to the requests that are waiting for them.  A request
+ * sent through <pre>ServerConnection.sendMSNPMessageAsync()</pre> gets a
+ * future that completes with the first reply carrying its TrID, completes
+ * exceptionally with an MSNException when that reply is a numeric error,
+ * when no reply comes in time, or when the connection drops.
+ */
+class TransactionTable {
+
+  /** Default time to wait for a reply, in milliseconds (system property jmml.request.timeout). */
+  final static long          DEFAULT_TIMEOUT = Long.getLong( "jmml.request.timeout", 30000L ).longValue();
+
+  /** The last transaction ID handed out. */
+  AtomicInteger              lastID  = new AtomicInteger( 0 );
+
+  /** Requests waiting for a reply, by TrID. */
+  ConcurrentHashMap          pending = new ConcurrentHashMap();
+
+  
+  
+  /**
+   * Returns a new transaction ID.  Safe to call from any thread.
+   *
+   * @return The next transaction ID.
+   */
+  int nextTransactionID() {
+    
+    return lastID.incrementAndGet();
+  }
+
+  /**
+   * Registers a request waiting for the reply with the given TrID.
+   *
+   * @param transactionID TrID of the request.
+   * @param timeout Milliseconds to wait for the reply.
+   * @return The future completed by the reply.
+   */
+  CompletableFuture register( final int transactionID, long timeout ) {
+    
+    final CompletableFuture future = new CompletableFuture();
+    final Integer           key    = Integer.valueOf( transactionID );
+    
+    pending.put( key, future );
+    
+    final ScheduledFuture timer = ExecutionSupport.getScheduler().schedule( new Runnable() {
+      
+      public void run() {
+        if( pending.remove( key, future ) )
+          future.completeExceptionally( new MSNException( MSNException.MSN_EX_TIMEOUT ) );
+      }
+    }, timeout, TimeUnit.MILLISECONDS );
+    
+    future.whenComplete( new java.util.function.BiConsumer() {
+      
+      public void accept( Object result, Object error ) {
+        timer.cancel( false );
+        pending.remove( key, future );
+      }
+    } );
+    
+    return future;
+  }
+
+  /**
+   * Completes the request waiting for this reply, if there is one.
+   *
+   * @param msg A message received from the server.
+   * @return Whether a waiting request was completed.
+   */
+  boolean complete( IncomingMessage msg ) {
+    
+    int transactionID = msg.getTransactionID();
+    
+    if( transactionID == OutgoingMessage.NO_TRANSACTION_ID || pending.isEmpty() )
+      return false;
+    
+    CompletableFuture future = ( CompletableFuture ) pending.remove( Integer.valueOf( transactionID ) );
+    
+    if( future == null )
+      return false;
+    
+    /* The reply may be used after the connection has read further */
+    msg.detach();
+    
+    if( msg.getType() == Message.ERROR ) {
+      int errorCode = ( ( MessageRecord.ServerError ) msg.getRecord() ).getErrorCode();
+      
+      future.completeExceptionally( new MSNException( MSNException.MSN_EX_SERVER_ERROR, errorCode ) );
+    }
+    else
+      future.complete( msg );
+    
+    return true;
+  }
+
+  /**
+   * Fails every waiting request, e.g. when the connection drops.
+   *
+   * @param cause The exception the requests complete with.
+   */
+  void failAll( Throwable cause ) {
+    
+    Iterator keys = pending.keySet().iterator();
+    
+    while( keys.hasNext() ) {
+      CompletableFuture future = ( CompletableFuture ) pending.remove( keys.next() );
+      
+      if( future != null )
+        future.completeExceptionally( cause );
+    }
+  }
+
+  /**
+   * Returns the number of requests waiting for a reply.
+   *
+   * @return The number of pending requests.
+   */
+  int size() {
+    
+    return pending.size();
+  }
+}
+// TransactionTable class
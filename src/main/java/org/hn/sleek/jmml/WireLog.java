@@ -0,0 +1,184 @@
+/*
+ * ===========================================================================
+ *  Copyright (C) 2002-2003  Tony Tang
+ *
+ *  This program is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation; either version 2 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program; if not, write to the Free Software
+ *  Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ * ===========================================================================
+ */
+
+/**
+ *
+ * $Id$
+ * $Author$
+ * $Name$
+ * $Revision$
+ * $State$
+ *
+ */
+
+package org.hn.sleek.jmml;
+
+import java.util.concurrent.atomic.*;
+
+
+/**
+ * The wire log: what is sent and received on each connection, the contact
+ * list as it arrives, and the steps of Passport authentication.  It is off
+ * unless the level is set, with the system property jmml.wirelog or with
+ * <pre>setLevel()</pre>:
+ * <ul>
+ *   <li>INFO: connections opened and closed, and Passport steps.</li>
+ *   <li>DEBUG: also contacts and groups received, added and removed.</li>
+ *   <li>TRACE: also every packet sent (>>>) and received (<<<).</li>
+ * </ul>
+ * Every logging statement checks the level first, and builds nothing when
+ * the line would not be logged.  Only one connection in jmml.wirelog.sample
+ * is traced; with jmml.wirelog.async set, lines are written by a thread of
+ * their own.  Lines go to the console unless another appender is set.
+ */
+public final class WireLog {
+
+  /** Levels, from nothing logged to everything. */
+  public final static int        OFF    = 0;
+  public final static int        INFO   = 1;
+  public final static int        DEBUG  = 2;
+  public final static int        TRACE  = 3;
+
+  /** Names of the levels, as given in jmml.wirelog. */
+  final static String[]          LEVEL_NAMES = { "off", "info", "debug", "trace" };
+
+  /** One connection in this many is logged (system property jmml.wirelog.sample). */
+  final static int               SAMPLE      = Math.max( 1, Integer.getInteger( "jmml.wirelog.sample", 1 ).intValue() );
+
+  /** Writes each line to the console. */
+  final static WireLogAppender   CONSOLE     = new WireLogAppender() {
+    
+    public void append( long time, int level, String source, String text ) {
+      
+      System.out.println( source + " " + text );
+    }
+  };
+
+  /** Lines logged at this level or below are written (system property jmml.wirelog). */
+  static volatile int            level       = parseLevel( System.getProperty( "jmml.wirelog" ) );
+
+  /** Where the lines go. */
+  static volatile WireLogAppender appender   = Boolean.getBoolean( "jmml.wirelog.async" ) ? ( WireLogAppender ) new AsyncWireLogAppender( CONSOLE ) : CONSOLE;
+
+  /** Numbers the connections. */
+  static AtomicInteger           connections = new AtomicInteger();
+
+  
+  
+  /**
+   * Nothing to create.
+   */
+  private WireLog() {
+  }
+
+  /**
+   * Sets the level of the wire log.
+   *
+   * @param level OFF, INFO, DEBUG or TRACE.
+   */
+  public static void setLevel( int level ) {
+    
+    WireLog.level = level;
+  }
+
+  /**
+   * Returns the level of the wire log.
+   *
+   * @return OFF, INFO, DEBUG or TRACE.
+   */
+  public static int getLevel() {
+    
+    return level;
+  }
+
+  /**
+   * Sets where the lines of the wire log go.
+   *
+   * @param appender The appender; null for the console.
+   */
+  public static void setAppender( WireLogAppender appender ) {
+    
+    WireLog.appender = ( appender != null ) ? appender : CONSOLE;
+  }
+
+  /**
+   * Returns whether lines of a level are logged.  Callers check this
+   * before building the line.
+   *
+   * @param level The level of the line.
+   * @return Whether it would be logged.
+   */
+  static boolean isEnabled( int level ) {
+    
+    return level <= WireLog.level;
+  }
+
+  /**
+   * Numbers a new connection.
+   *
+   * @return The number of the connection.
+   */
+  static int nextConnectionID() {
+    
+    return connections.incrementAndGet();
+  }
+
+  /**
+   * Returns whether a connection is one of those sampled for logging.
+   *
+   * @param connectionID The number of the connection.
+   * @return Whether its lines are logged.
+   */
+  static boolean isSampled( int connectionID ) {
+    
+    return connectionID % SAMPLE == 0;
+  }
+
+  /**
+   * Logs a line.  An appender that fails does not disturb the caller.
+   *
+   * @param level The level of the line.
+   * @param source The connection or service the line is about.
+   * @param text The line.
+   */
+  static void log( int level, String source, String text ) {
+    
+    try {
+      appender.append( System.currentTimeMillis(), level, source, text );
+    } catch( RuntimeException e ) {
+      System.err.println( "WireLog.log() - " + e );
+    }
+  }
+
+  /**
+   * Returns the level of a name, ignoring case; OFF when unknown.
+   */
+  private static int parseLevel( String name ) {
+    
+    for( int i = 0; i < LEVEL_NAMES.length; i++ ) {
+      if( LEVEL_NAMES[i].equalsIgnoreCase( name ) )
+        return i;
+    }
+    
+    return OFF;
+  }
+}
+
+// WireLog class
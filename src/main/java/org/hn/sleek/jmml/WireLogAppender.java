@@ -0,0 +1,51 @@
+/*
+ * ===========================================================================
+ *  Copyright (C) 2002-2003  Tony Tang
+ *
+ *  This program is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation; either version 2 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program; if not, write to the Free Software
+ *  Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ * ===========================================================================
+ */
+
+/**
+ *
+ * $Id$
+ * $Author$
+ * $Name$
+ * $Revision$
+ * $State$
+ *
+ */
+
+package org.hn.sleek.jmml;
+
+/**
+ * Receives the lines of the wire log.  Set with
+ * <pre>WireLog.setAppender()</pre>; called on the thread that logged the
+ * line, unless wrapped in an AsyncWireLogAppender.
+ */
+public interface WireLogAppender {
+
+  /**
+   * A line was logged.
+   *
+   * @param time When, in milliseconds since the epoch.
+   * @param level One of the WireLog levels.
+   * @param source The connection or service the line is about.
+   * @param text The line.
+   */
+  public void append( long time, int level, String source, String text );
+}
+
+// WireLogAppender interface
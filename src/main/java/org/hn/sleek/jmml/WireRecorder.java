@@ -0,0 +1,321 @@
+/*
+ * ===========================================================================
+ *  Copyright (C) 2002-2003  Tony Tang
+ *
+ *  This program is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation; either version 2 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program; if not, write to the Free Software
+ *  Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ * ===========================================================================
+ */
+
+/**
+ *
+ * $Id$
+ * $Author$
+ * $Name$
+ * $Revision$
+ * $State$
+ *
+ */
+
+package org.hn.sleek.jmml;
+
+import java.io.*;
+import java.nio.*;
+import java.util.*;
+
+
+/**
+ * Records the traffic of every connection to a compact binary file, to be
+ * replayed by WireReplay.  Recording is off unless started, with the
+ * system property jmml.record naming the file or with <pre>start()</pre>;
+ * when it is off, connections do not touch it.
+ * <p>
+ * The file starts with "JMMLWIRE" and a version byte, followed by records:
+ * <pre>
+ *   kind        byte    OPEN, IN or OUT
+ *   connection  varint  number of the connection
+ *   time        varint  microseconds since the previous record
+ *   OPEN:  role    byte    DS, NS or SB
+ *   IN/OUT: length varint, then the bytes of one packet as on the wire
+ * </pre>
+ * A connection's OPEN record comes before its first packet.
+ */
+public final class WireRecorder {
+
+  /** First bytes of a recording. */
+  final static byte[]   MAGIC   = { 'J', 'M', 'M', 'L', 'W', 'I', 'R', 'E' };
+
+  /** Version of the format. */
+  final static int      VERSION = 1;
+
+  /** Kinds of records. */
+  final static int      OPEN    = 0;
+  final static int      IN      = 1;
+  final static int      OUT     = 2;
+
+  /** Roles of the connections. */
+  final static int      ROLE_DISPATCH     = 0;
+  final static int      ROLE_NOTIFICATION = 1;
+  final static int      ROLE_SWITCHBOARD  = 2;
+
+  /** Line end of command lines. */
+  final static byte[]   CRLF    = { '\r', '\n' };
+
+  /** The recording in progress, or null. */
+  static volatile WireRecorder active;
+
+  /** Whether the recording is closed when the JVM exits. */
+  static boolean        hooked  = false;
+
+  /** Where the records go. */
+  DataOutputStream      out;
+
+  /** Time of the previous record, from System.nanoTime(). */
+  long                  lastTime;
+
+  /** Connections with an OPEN record. */
+  HashSet               opened  = new HashSet();
+
+  static {
+    String fileName = System.getProperty( "jmml.record" );
+    
+    if( fileName != null ) {
+      try {
+        start( new File( fileName ) );
+      } catch( IOException e ) {
+        System.err.println( "WireRecorder.<clinit>() - " + e );
+      }
+    }
+  }
+
+  
+  
+  /**
+   * Creates a recorder writing to a stream, and writes the header.
+   *
+   * @param stream Where the records go.
+   * @throws IOException When the header cannot be written.
+   */
+  WireRecorder( OutputStream stream ) throws IOException {
+    
+    out      = new DataOutputStream( new BufferedOutputStream( stream, 65536 ) );
+    lastTime = System.nanoTime();
+    
+    out.write( MAGIC );
+    out.writeByte( VERSION );
+  }
+
+  /**
+   * Starts recording the traffic of every connection to a file.  A
+   * recording already in progress is stopped.
+   *
+   * @param file The file; overwritten.
+   * @throws IOException When the file cannot be written.
+   */
+  public static synchronized void start( File file ) throws IOException {
+    
+    stop();
+    active = new WireRecorder( new FileOutputStream( file ) );
+    
+    if( !hooked ) {
+      hooked = true;
+      
+      Runtime.getRuntime().addShutdownHook( new Thread( "jmml-recorder" ) {
+        
+        public void run() {
+          WireRecorder.stop();
+        }
+      } );
+    }
+  }
+
+  /**
+   * Stops recording, and closes the file.
+   */
+  public static synchronized void stop() {
+    
+    WireRecorder recorder = active;
+    
+    active = null;
+    
+    if( recorder != null )
+      recorder.close();
+  }
+
+  /**
+   * Records a packet received by a connection.
+   *
+   * @param connection The connection.
+   * @param msg The packet, not yet detached.
+   */
+  void recordIncoming( ServerConnection connection, IncomingMessage msg ) {
+    
+    ByteBuffer body   = msg.bodyBytes;
+    int        length = msg.getFrameLength();
+    
+    synchronized( this ) {
+      try {
+        writeHeader( IN, connection.id, getRole( connection ), length );
+        out.write( msg.line, msg.lineOffset, msg.lineLength );
+        out.write( CRLF );
+        
+        if( body != null )
+          write( body );
+      } catch( IOException e ) {
+        failed( e );
+      }
+    }
+  }
+
+  /**
+   * Records a packet sent by a connection.
+   *
+   * @param connection The connection.
+   * @param frame The encoded packet, between position and limit; unchanged.
+   */
+  void recordOutgoing( ServerConnection connection, ByteBuffer frame ) {
+    
+    synchronized( this ) {
+      try {
+        writeHeader( OUT, connection.id, getRole( connection ), frame.remaining() );
+        write( frame );
+      } catch( IOException e ) {
+        failed( e );
+      }
+    }
+  }
+
+  /**
+   * Records bytes, e.g. a packet of a corpus made up for replay.
+   *
+   * @param kind IN or OUT.
+   * @param connection Number of the connection.
+   * @param role Role of the connection.
+   * @param bytes The packet.
+   */
+  synchronized void record( int kind, int connection, int role, byte[] bytes ) throws IOException {
+    
+    writeHeader( kind, connection, role, bytes.length );
+    out.write( bytes );
+  }
+
+  /**
+   * Writes the records out, and closes the stream.
+   */
+  synchronized void close() {
+    
+    try {
+      out.close();
+    } catch( IOException e ) {
+      System.err.println( "WireRecorder.close() - " + e );
+    }
+  }
+
+  /**
+   * Returns the role of a connection, from its listener.
+   */
+  private static int getRole( ServerConnection connection ) {
+    
+    if( connection.listener instanceof NotificationServerConnector )
+      return ROLE_NOTIFICATION;
+    
+    if( connection.listener instanceof SwitchboardSessionConnector )
+      return ROLE_SWITCHBOARD;
+    
+    return ROLE_DISPATCH;
+  }
+
+  /**
+   * Writes the start of a record, after the OPEN record of a connection
+   * not seen yet.
+   */
+  private void writeHeader( int kind, int connection, int role, int length ) throws IOException {
+    
+    long now     = System.nanoTime();
+    long elapsed = Math.max( 0, ( now - lastTime ) / 1000 );
+    
+    lastTime = now;
+    
+    if( opened.add( Integer.valueOf( connection ) ) ) {
+      out.writeByte( OPEN );
+      writeVarLong( out, connection );
+      writeVarLong( out, elapsed );
+      out.writeByte( role );
+      elapsed = 0;
+    }
+    
+    out.writeByte( kind );
+    writeVarLong( out, connection );
+    writeVarLong( out, elapsed );
+    writeVarLong( out, length );
+  }
+
+  /**
+   * Writes the bytes of a buffer, leaving it unchanged.
+   */
+  private void write( ByteBuffer buffer ) throws IOException {
+    
+    if( buffer.hasArray() ) {
+      out.write( buffer.array(), buffer.arrayOffset() + buffer.position(), buffer.remaining() );
+      return;
+    }
+    
+    for( int i = buffer.position(); i < buffer.limit(); i++ )
+      out.write( buffer.get( i ) );
+  }
+
+  /**
+   * Stops a recording that cannot be written any more.
+   */
+  private void failed( IOException e ) {
+    
+    System.err.println( "WireRecorder.record() - " + e );
+    
+    if( active == this )
+      active = null;
+  }
+
+  /**
+   * Writes a number in seven-bit groups, low first; the high bit of a byte
+   * tells whether another follows.
+   */
+  static void writeVarLong( DataOutput out, long value ) throws IOException {
+    
+    while( ( value & ~0x7fL ) != 0 ) {
+      out.writeByte( ( int ) ( value & 0x7f ) | 0x80 );
+      value >>>= 7;
+    }
+    
+    out.writeByte( ( int ) value );
+  }
+
+  /**
+   * Reads a number written by <pre>writeVarLong()</pre>.
+   */
+  static long readVarLong( DataInput in ) throws IOException {
+    
+    long value = 0;
+    
+    for( int shift = 0; ; shift += 7 ) {
+      int b = in.readUnsignedByte();
+      
+      value |= ( long ) ( b & 0x7f ) << shift;
+      
+      if( ( b & 0x80 ) == 0 )
+        return value;
+    }
+  }
+}
+
+// WireRecorder class
@@ -0,0 +1,376 @@
+/*
+ * ===========================================================================
+ *  Copyright (C) 2002-2003  Tony Tang
+ *
+ *  This program is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation; either version 2 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program; if not, write to the Free Software
+ *  Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ * ===========================================================================
+ */
+
+/**
+ *
+ * $Id$
+ * $Author$
+ * $Name$
+ * $Revision$
+ * $State$
+ *
+ */
+
+package org.hn.sleek.jmml;
+
+import java.io.*;
+import java.nio.channels.*;
+import java.text.ParseException;
+import java.util.*;
+
+
+/**
+ * Replays recorded traffic through the library without a network: the
+ * packets each connection received go through the FrameDecoder, the
+ * parser, the inbound dispatcher, the notification and switchboard
+ * connectors, and the event bus to the client listeners, as fast as
+ * possible or at the recorded pace.  Packets the library sent are counted,
+ * and what it sends in reply goes nowhere.  RNG is parsed but not handled,
+ * since answering the call would connect to a switchboard server.
+ * <p>
+ * Usage: <pre>WireReplay [-paced] [-speed factor] [-repeat count] [recording]</pre>
+ * <br>Without a recording, the sample commands of IncomingMessage, followed
+ * by a few instant messages and typing notifications, are replayed.
+ */
+public class WireReplay {
+
+  /** Connection of the seed corpus to the Notification Server. */
+  final static int     SEED_NS      = 1;
+
+  /** Connection of the seed corpus to a switchboard server. */
+  final static int     SEED_SB      = 2;
+
+  /** Payloads of the seed corpus. */
+  final static String[] SEED_PAYLOADS = {
+    "MIME-Version: 1.0\r\nContent-Type: text/x-msmsgscontrol\r\nTypingUser: example@passport.com\r\n\r\n\r\n",
+    "MIME-Version: 1.0\r\nContent-Type: text/plain; charset=UTF-8\r\nX-MMS-IM-Format: FN=Arial; EF=; CO=0; CS=0; PF=22\r\n\r\nHello there",
+    "MIME-Version: 1.0\r\nContent-Type: text/x-msmsgscontrol\r\nTypingUser: example@passport.com\r\n\r\n\r\n",
+    "MIME-Version: 1.0\r\nContent-Type: text/plain; charset=UTF-8\r\n\r\nSee you\r\ntomorrow"
+  };
+
+  /** Connector receiving what the Notification Server connections received. */
+  NotificationServerConnector notificationServer = new NotificationServerConnector( "replay", Integer.valueOf( 1863 ) );
+
+  /** Replayed connections, by number. */
+  HashMap              connections  = new HashMap();
+
+  /** Whether packets are replayed at the recorded pace. */
+  boolean              paced        = false;
+
+  /** How much faster than recorded a paced replay runs. */
+  double               speed        = 1.0;
+
+  /** Counters. */
+  long                 records;
+  long                 bytes;
+  long                 packets;
+  long                 sent;
+  long                 skipped;
+  long                 malformed;
+
+  
+  
+  /**
+   * Replays one recording.
+   *
+   * @param in The recording.
+   * @throws IOException When the recording cannot be read, or is not one.
+   */
+  void replay( InputStream in ) throws IOException {
+    
+    DataInputStream input = new DataInputStream( new BufferedInputStream( in, 65536 ) );
+    byte[]          magic = new byte[WireRecorder.MAGIC.length];
+    
+    input.readFully( magic );
+    
+    if( !Arrays.equals( magic, WireRecorder.MAGIC ) || input.readUnsignedByte() != WireRecorder.VERSION )
+      throw new IOException( "Not a recording" );
+    
+    long started = System.nanoTime();
+    long time    = 0;
+    int  kind;
+    
+    while( ( kind = input.read() ) >= 0 ) {
+      Integer connection = Integer.valueOf( ( int ) WireRecorder.readVarLong( input ) );
+      
+      time += WireRecorder.readVarLong( input );
+      records++;
+      
+      if( kind == WireRecorder.OPEN ) {
+        open( connection, input.readUnsignedByte() );
+        continue;
+      }
+      
+      byte[] packet = new byte[( int ) WireRecorder.readVarLong( input )];
+      
+      input.readFully( packet );
+      bytes += packet.length;
+      
+      if( kind == WireRecorder.OUT ) {
+        sent++;
+        continue;
+      }
+      
+      if( paced ) {
+        long wait = ( long ) ( time * 1000 / speed ) - ( System.nanoTime() - started );
+        
+        if( wait > 0 ) {
+          try {
+            Thread.sleep( wait / 1000000, ( int ) ( wait % 1000000 ) );
+          } catch( InterruptedException e ) {
+            return;
+          }
+        }
+      }
+      
+      receive( ( Replayed ) connections.get( connection ), packet );
+    }
+  }
+
+  /**
+   * Sets up a replayed connection, handing what it receives to a connector
+   * of its role.
+   */
+  private void open( Integer connection, int role ) {
+    
+    if( connections.containsKey( connection ) )
+      return;
+    
+    MSNPListener listener = ServerConnection.NO_LISTENER;
+    
+    if( role == WireRecorder.ROLE_NOTIFICATION ) {
+      listener = notificationServer;
+    } else if( role == WireRecorder.ROLE_SWITCHBOARD ) {
+      SwitchboardSessionConnector ssc = new SwitchboardSessionConnector( "replay@localhost", "buddy" + connection + "@localhost", notificationServer );
+      
+      ssc.state = SwitchboardSessionConnector.STATE_ACTIVE;
+      listener  = ssc;
+    }
+    
+    Replayed replayed = new Replayed( listener );
+    
+    if( role == WireRecorder.ROLE_NOTIFICATION )
+      notificationServer.sc = replayed.connection;
+    else if( role == WireRecorder.ROLE_SWITCHBOARD )
+      ( ( SwitchboardSessionConnector ) listener ).sc = replayed.connection;
+    
+    connections.put( connection, replayed );
+  }
+
+  /**
+   * Feeds a packet to a connection, and dispatches what it decodes.
+   */
+  private void receive( Replayed replayed, byte[] packet ) throws IOException {
+    
+    if( replayed == null ) {
+      skipped++;
+      return;
+    }
+    
+    ReadableByteChannel input = Channels.newChannel( new ByteArrayInputStream( packet ) );
+    
+    do {
+      while( true ) {
+        IncomingMessage msg;
+        
+        try {
+          msg = replayed.decoder.decode();
+        } catch( ParseException e ) {
+          malformed++;
+          continue;
+        }
+        
+        if( msg == null )
+          break;
+        
+        packets++;
+        
+        if( msg.getType() == Message.RNG ) {
+          msg.getRecord();
+          skipped++;
+          continue;
+        }
+        
+        replayed.connection.dispatch( msg );
+      }
+      
+      replayed.connection.dispatcher.flush();
+    } while( replayed.decoder.receive( input ) >= 0 );
+  }
+
+  /**
+   * Returns the seed corpus: the sample commands of IncomingMessage on a
+   * Notification Server connection, then instant messages and typing
+   * notifications on a switchboard connection, repeated.
+   *
+   * @param repeat How many times the corpus is repeated.
+   * @return The corpus, as a recording.
+   */
+  static byte[] seedCorpus( int repeat ) throws IOException {
+    
+    ByteArrayOutputStream bytes    = new ByteArrayOutputStream();
+    WireRecorder          recorder = new WireRecorder( bytes );
+    
+    for( int n = 0; n < repeat; n++ ) {
+      for( int i = 0; i < IncomingMessage.SAMPLE_COMMANDS.length; i++ )
+        recorder.record( WireRecorder.IN, SEED_NS, WireRecorder.ROLE_NOTIFICATION, ( IncomingMessage.SAMPLE_COMMANDS[i] + "\r\n" ).getBytes( IncomingMessage.UTF8 ) );
+      
+      for( int i = 0; i < SEED_PAYLOADS.length; i++ ) {
+        byte[] payload = SEED_PAYLOADS[i].getBytes( IncomingMessage.UTF8 );
+        byte[] line    = ( "MSG example@passport.com Mike " + payload.length + "\r\n" ).getBytes( IncomingMessage.UTF8 );
+        byte[] packet  = new byte[line.length + payload.length];
+        
+        System.arraycopy( line, 0, packet, 0, line.length );
+        System.arraycopy( payload, 0, packet, line.length, payload.length );
+        recorder.record( WireRecorder.IN, SEED_SB, WireRecorder.ROLE_SWITCHBOARD, packet );
+      }
+    }
+    
+    recorder.close();
+    
+    return bytes.toByteArray();
+  }
+
+  /**
+   * Replays a recording, or the seed corpus, and prints the throughput and
+   * what reached the listeners.
+   */
+  public static void main( String[] args ) throws Exception {
+    
+    WireReplay replay   = new WireReplay();
+    int        repeat   = 1;
+    String     fileName = null;
+    
+    for( int i = 0; i < args.length; i++ ) {
+      if( args[i].equals( "-paced" ) )
+        replay.paced = true;
+      else if( args[i].equals( "-speed" ) )
+        replay.speed = Double.parseDouble( args[++i] );
+      else if( args[i].equals( "-repeat" ) )
+        repeat = Integer.parseInt( args[++i] );
+      else
+        fileName = args[i];
+    }
+    
+    final long[] events = new long[3];
+    
+    MessengerServerManager manager = MessengerServerManager.getInstance();
+    
+    manager.addMessengerClientListener( new MessengerClientAdapter() {
+      
+      public void incomingMessage( IncomingMessageEvent event ) {
+        
+        events[0]++;
+      }
+      
+      public void contactPropertyChanged( ContactChangeEvent event ) {
+        
+        events[1]++;
+      }
+    } );
+    
+    manager.addTypingListener( new TypingListener() {
+      
+      public void typingNotification( String userName ) {
+        
+        events[2]++;
+      }
+    } );
+    
+    byte[] seed    = ( fileName == null ) ? seedCorpus( repeat ) : null;
+    long   started = System.nanoTime();
+    
+    for( int n = 0; n < ( ( seed == null ) ? repeat : 1 ); n++ ) {
+      InputStream in = ( seed == null ) ? ( InputStream ) new FileInputStream( fileName ) : new ByteArrayInputStream( seed );
+      
+      try {
+        replay.replay( in );
+      } finally {
+        in.close();
+      }
+    }
+    
+    long replayed = System.nanoTime() - started;
+    
+    /* The listeners run on threads of their own */
+    while( manager.eventBus.getBacklog() > 0 && System.nanoTime() - started < 60000000000L )
+      Thread.sleep( 10 );
+    
+    long delivered = System.nanoTime() - started;
+    
+    System.out.println( "records=" + replay.records + " bytes=" + replay.bytes + " packets=" + replay.packets + " sent=" + replay.sent
+                        + " skipped=" + replay.skipped + " malformed=" + replay.malformed );
+    System.out.println( "replayed in " + ( replayed / 1000000 ) + " ms: " + ( replay.packets * 1000000000L / Math.max( 1, replayed ) ) + " packets/s, "
+                        + ( replay.bytes * 1000L / Math.max( 1, replayed ) ) + " MB/s" );
+    System.out.println( "delivered in " + ( delivered / 1000000 ) + " ms: messages=" + events[0] + " contact-changes=" + events[1] + " typing=" + events[2] );
+    System.out.println( manager.getDispatchStatistics() );
+    System.exit( 0 );
+  }
+
+  /**
+   * A connection being replayed: its decoder, and a connection that
+   * dispatches like a real one and sends nowhere.
+   */
+  static class Replayed {
+
+    FrameDecoder           decoder    = new FrameDecoder();
+    ReplayConnection       connection;
+
+    
+    
+    Replayed( MSNPListener listener ) {
+      
+      connection = new ReplayConnection( listener );
+    }
+  }
+
+  /**
+   * A connection without a socket.  Packets sent are dropped.
+   */
+  static class ReplayConnection extends ServerConnection {
+
+    ReplayConnection( MSNPListener listener ) {
+      
+      super( listener );
+      address   = "replay";
+      connected = true;
+    }
+
+    public void sendMSNPMessage( OutgoingMessage msg ) {
+      
+      /* Nowhere to send to */
+    }
+
+    void sendMSNPMessages( OutgoingMessage[] msgs ) {
+      
+      /* Nowhere to send to */
+    }
+
+    synchronized void disconnect() {
+      
+      if( connected ) {
+        connected = false;
+        fireServerDisconnected();
+      }
+    }
+  }
+}
+
+// WireReplay class
@@ -0,0 +1,212 @@
+/*
+ * ===========================================================================
+ *  Copyright (C) 2002-2003  Tony Tang
+ *
+ *  This program is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation; either version 2 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program; if not, write to the Free Software
+ *  Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ * ===========================================================================
+ */
+
+/**
+ *
+ * $Id$
+ * $Author$
+ * $Name$
+ * $Revision$
+ * $State$
+ *
+ */
+
+package org.hn.sleek.jmml;
+
+import java.lang.management.*;
+import java.nio.*;
+
+import org.junit.jupiter.api.*;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.junit.jupiter.api.Assumptions.*;
+
+
+/**
+ * Checks that the hot paths allocate no more than their budget, in bytes per
+ * operation, as counted by the JVM for the calling thread.  Each path runs
+ * long enough to be compiled first, so the count is the steady state.  A
+ * budget is lowered when a path gets lighter, so that any regression fails
+ * the build.
+ * <p>
+ * Measured on Temurin 8u392 at 360, 112 and 1032 bytes per operation, and
+ * on Temurin 11.0.21 at 216, 112 and 752 (parsing and encoding measure the
+ * same on 17.0.9 and 21.0.1); each budget leaves room for a small object
+ * or two more.  From Java 9 on, strings hold Latin-1 text in one byte per
+ * character, so the decoded fields of an NLN cost less, and the paths that
+ * decode them have a budget for each.
+ */
+class AllocationBudgetTest {
+
+  /** Runs before counting, for the JIT to compile the path. */
+  final static int    WARMUP     = 50000;
+
+  /** Runs counted, per round. */
+  final static int    OPERATIONS = 20000;
+
+  /** Rounds counted; the lightest is kept, as a round may overlap a compilation. */
+  final static int    ROUNDS     = 5;
+
+  /** Whether strings take one byte per Latin-1 character (Java 9 and later). */
+  final static boolean COMPACT_STRINGS    = !System.getProperty( "java.specification.version" ).startsWith( "1." );
+
+  /** Parsing an NLN line and reading its record: the token offsets are reused, the fields decoded once. */
+  final static long   PARSE_NLN_BUDGET    = COMPACT_STRINGS ? 240 : 384;
+
+  /** Building an MSG and encoding it into a pooled buffer. */
+  final static long   ENCODE_MSG_BUDGET   = 128;
+
+  /** Receiving an NLN for a contact on the list: parsing, the presence update, the two contact change events; the source command is not formatted. */
+  final static long   RECEIVE_NLN_BUDGET  = COMPACT_STRINGS ? 800 : 1056;
+
+  final static String NLN_LINE = "NLN AWY example@passport.com Mike%20Jones";
+
+  static com.sun.management.ThreadMXBean threads;
+
+  
+
+  @BeforeAll
+  static void setUp() {
+    
+    ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+    
+    assumeTrue( bean instanceof com.sun.management.ThreadMXBean, "no com.sun.management.ThreadMXBean" );
+    threads = ( com.sun.management.ThreadMXBean ) bean;
+    assumeTrue( threads.isThreadAllocatedMemorySupported(), "thread allocation counting unsupported" );
+    threads.setThreadAllocatedMemoryEnabled( true );
+  }
+
+  /**
+   * Returns the bytes an operation allocates, on average, once it is
+   * compiled.
+   */
+  static long allocatedPerOperation( Runnable operation ) {
+    
+    for( int i = 0; i < WARMUP; i++ )
+      operation.run();
+    
+    long id     = Thread.currentThread().getId();
+    long lowest = Long.MAX_VALUE;
+    
+    for( int round = 0; round < ROUNDS; round++ ) {
+      long before = threads.getThreadAllocatedBytes( id );
+      
+      for( int i = 0; i < OPERATIONS; i++ )
+        operation.run();
+      
+      lowest = Math.min( lowest, ( threads.getThreadAllocatedBytes( id ) - before ) / OPERATIONS );
+    }
+    
+    return lowest;
+  }
+
+  static void assertWithinBudget( String path, long budget, long allocated ) {
+    
+    assertTrue( allocated <= budget, path + " allocates " + allocated + " bytes/op, over its budget of " + budget );
+  }
+
+  @Test
+  void parseNLN() {
+    
+    final byte[]          line    = NLN_LINE.getBytes( IncomingMessage.UTF8 );
+    final IncomingMessage message = new IncomingMessage();
+    final long[]          sink    = new long[1];
+    
+    long allocated = allocatedPerOperation( new Runnable() {
+      
+      public void run() {
+        
+        try {
+          message.parse( line, 0, line.length );
+        } catch( Exception e ) {
+          throw new IllegalStateException( e.toString() );
+        }
+        
+        MessageRecord.Nln nln = ( MessageRecord.Nln ) message.getRecord();
+        
+        sink[0] += nln.getStatus().length() + nln.getUserName().length() + nln.getFriendlyName().length();
+      }
+    } );
+    
+    assertWithinBudget( "parse NLN", PARSE_NLN_BUDGET, allocated );
+  }
+
+  @Test
+  void encodeMSG() {
+    
+    final String text = "Hello there, how are you doing?";
+    final long[] sink = new long[1];
+    
+    long allocated = allocatedPerOperation( new Runnable() {
+      
+      public void run() {
+        
+        OutgoingMessage msg = new OutgoingMessage( Message.MSG, 42 );
+        
+        msg.addArgument( SwitchboardSessionConnector.ACK_NONE );
+        msg.setBody( SwitchboardSessionConnector.MIME_HEADER_BYTES, text );
+        
+        ByteBuffer buffer = MessageEncoder.encode( msg );
+        
+        sink[0] += buffer.remaining();
+        MessageEncoder.release( buffer );
+      }
+    } );
+    
+    assertWithinBudget( "encode MSG", ENCODE_MSG_BUDGET, allocated );
+  }
+
+  @Test
+  void receiveNLN() {
+    
+    final byte[]                      line     = NLN_LINE.getBytes( IncomingMessage.UTF8 );
+    final NotificationServerConnector ns       = new NotificationServerConnector( "budget", Integer.valueOf( 1863 ) );
+    final MessengerServerManager      manager  = MessengerServerManager.getInstance();
+    final MessengerClientListener     listener = new MessengerClientAdapter();
+    
+    ns.contactList.addToContactList( new Contact( "example@passport.com" ) );
+    manager.addMessengerClientListener( listener );
+    
+    try {
+      long allocated = allocatedPerOperation( new Runnable() {
+        
+        public void run() {
+          
+          /* A packet as the decoder hands it over: parsed in place, then dispatched */
+          IncomingMessage message = new IncomingMessage();
+          
+          try {
+            message.parse( line, 0, line.length );
+          } catch( Exception e ) {
+            throw new IllegalStateException( e.toString() );
+          }
+          
+          ns.incomingMSNPMessage( message );
+        }
+      } );
+      
+      assertWithinBudget( "receive NLN", RECEIVE_NLN_BUDGET, allocated );
+    } finally {
+      manager.removeMessengerClientListener( listener );
+    }
+  }
+}
+
+// AllocationBudgetTest class
@@ -0,0 +1,147 @@
+/*
+ * ===========================================================================
+ *  Copyright (C) 2002-2003  Tony Tang
+ *
+ *  This program is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation; either version 2 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program; if not, write to the Free Software
+ *  Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ * ===========================================================================
+ */
+
+/**
+ *
+ * $Id$
+ * $Author$
+ * $Name$
+ * $Revision$
+ * $State$
+ *
+ */
+
+package org.hn.sleek.jmml;
+
+import java.io.*;
+import java.nio.channels.*;
+
+import org.junit.jupiter.api.*;
+import org.junit.jupiter.api.function.*;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+
+/**
+ * Feeds a FrameDecoder the stream a server would send, cut into reads at
+ * awkward places, and checks the packets that come out whole.
+ */
+class FrameDecoderTest {
+
+  final static String BODY = "MIME-Version: 1.0\r\nContent-Type: text/plain; charset=UTF-8\r\n\r\nhello";
+
+  FrameDecoder decoder = new FrameDecoder();
+
+  
+
+  /**
+   * Has the decoder read a chunk of the stream.
+   */
+  void receive( String chunk ) throws IOException {
+    
+    decoder.receive( Channels.newChannel( new ByteArrayInputStream( chunk.getBytes( IncomingMessage.UTF8 ) ) ) );
+  }
+
+  static String msg( String body ) {
+    
+    return "MSG sender@mock.jmml Sender%20Name " + body.getBytes( IncomingMessage.UTF8 ).length + "\r\n" + body;
+  }
+
+  @Test
+  void lineSplitAcrossReads() throws Exception {
+    
+    receive( "NLN AWY a@mock.jmml A\r\nNLN BSY b@mo" );
+    
+    assertEquals( "NLN AWY a@mock.jmml A", decoder.decode().getLine() );
+    assertNull( decoder.decode() );
+    
+    receive( "ck.jmml B\r\n" );
+    
+    assertEquals( "NLN BSY b@mock.jmml B", decoder.decode().getLine() );
+    assertNull( decoder.decode() );
+  }
+
+  @Test
+  void bodySplitAcrossReadsKeepsItsCommandLine() throws Exception {
+    
+    String stream = "CHL 0 1234\r\n" + msg( BODY ) + "FLN a@mock.jmml\r\n";
+    int    cut    = stream.indexOf( "xt/plain" );
+    
+    receive( stream.substring( 0, cut ) );
+    
+    assertEquals( "CHL 0 1234", decoder.decode().getLine() );
+    assertNull( decoder.decode(), "the body is not complete" );
+    
+    /* The buffer is compacted here, moving the bytes the first read left */
+    receive( stream.substring( cut ) );
+    
+    IncomingMessage   msg    = decoder.decode();
+    MessageRecord.Msg record = ( MessageRecord.Msg ) msg.getRecord();
+    
+    assertEquals( "sender@mock.jmml", record.getUserName() );
+    assertEquals( "Sender%20Name", record.getFriendlyName() );
+    assertEquals( BODY, msg.getBody() );
+    assertEquals( "FLN a@mock.jmml", decoder.decode().getLine() );
+  }
+
+  @Test
+  void bodyLargerThanTheBuffer() throws Exception {
+    
+    StringBuffer body = new StringBuffer( BODY );
+    
+    while( body.length() <= FrameDecoder.INITIAL_CAPACITY * 2 )
+      body.append( "0123456789abcdef" );
+    
+    String stream = msg( body.toString() );
+    
+    /* The buffer grows twice, with the message pending */
+    for( int i = 0; i < stream.length(); i += 1000 ) {
+      assertNull( decoder.decode() );
+      receive( stream.substring( i, Math.min( stream.length(), i + 1000 ) ) );
+    }
+    
+    IncomingMessage msg = decoder.decode();
+    
+    assertEquals( "sender@mock.jmml", ( ( MessageRecord.Msg ) msg.getRecord() ).getUserName() );
+    assertEquals( body.toString(), msg.getBody() );
+  }
+
+  @Test
+  void payloadWithoutLengthGivesUpTheStream() throws Exception {
+    
+    String[] lines = { "MSG sender@mock.jmml Sender%20Name\r\n", "MSG sender@mock.jmml Sender%20Name five\r\n" };
+    
+    for( int i = 0; i < lines.length; i++ ) {
+      final FrameDecoder decoder = new FrameDecoder();
+      
+      decoder.receive( Channels.newChannel( new ByteArrayInputStream( ( lines[i] + BODY ).getBytes( IncomingMessage.UTF8 ) ) ) );
+      
+      /* Its body would be read as command lines */
+      assertThrows( IOException.class, new Executable() {
+        
+        public void execute() throws Throwable {
+          decoder.decode();
+        }
+      } );
+    }
+  }
+}
+
+// FrameDecoderTest class
@@ -0,0 +1,132 @@
+/*
+ * ===========================================================================
+ *  Copyright (C) 2002-2003  Tony Tang
+ *
+ *  This program is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation; either version 2 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program; if not, write to the Free Software
+ *  Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ * ===========================================================================
+ */
+
+/**
+ *
+ * $Id$
+ * $Author$
+ * $Name$
+ * $Revision$
+ * $State$
+ *
+ */
+
+package org.hn.sleek.jmml;
+
+import java.util.*;
+
+import org.junit.jupiter.api.*;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+
+/**
+ * Checks the lanes of the dispatcher: urgent packets go first, a queued
+ * presence update is replaced by the next one for the same contact, and
+ * when too many are queued the oldest is shed, never the newest nor a
+ * task.  The dispatchers have no executor, so nothing is handled until
+ * <pre>flush()</pre>.
+ */
+class InboundDispatcherTest {
+
+  /**
+   * Records the packets handled, as their command lines.
+   */
+  static class Recorder implements MSNPListener {
+
+    ArrayList handled = new ArrayList();
+
+    public void incomingMSNPMessage( IncomingMessage incomingMessage ) {
+      
+      handled.add( incomingMessage.getLine() );
+    }
+
+    public void serverDisconnected() {
+      
+    }
+  }
+
+  Recorder          recorder   = new Recorder();
+  InboundDispatcher dispatcher = new InboundDispatcher( new ServerConnection( recorder ), null );
+
+  
+
+  void dispatch( String line ) throws Exception {
+    
+    dispatcher.dispatch( IncomingMessage.parseMessage( line ) );
+  }
+
+  @Test
+  void urgentPacketsGoFirst() throws Exception {
+    
+    dispatch( "NLN AWY a@mock.jmml A" );
+    dispatch( "MSG b@mock.jmml B 5" );
+    dispatch( "FLN c@mock.jmml" );
+    dispatch( "CHL 0 1234" );
+    dispatcher.flush();
+    
+    assertEquals( Arrays.asList( new Object[] { "MSG b@mock.jmml B 5", "CHL 0 1234", "NLN AWY a@mock.jmml A", "FLN c@mock.jmml" } ), recorder.handled );
+  }
+
+  @Test
+  void laterPresenceSupersedesQueuedPresence() throws Exception {
+    
+    long superseded = InboundDispatcher.supersededCount.get();
+    
+    dispatch( "NLN AWY a@mock.jmml A" );
+    dispatch( "NLN NLN b@mock.jmml B" );
+    dispatch( "NLN BSY a@mock.jmml A" );
+    dispatch( "BPR 12 a@mock.jmml PHH 555" );
+    dispatch( "BPR 13 a@mock.jmml PHH 556" );
+    dispatcher.flush();
+    
+    /* The contact keeps its place in the lane, with its latest state */
+    assertEquals( Arrays.asList( new Object[] { "NLN BSY a@mock.jmml A", "NLN NLN b@mock.jmml B", "BPR 13 a@mock.jmml PHH 556" } ), recorder.handled );
+    assertEquals( 2, InboundDispatcher.supersededCount.get() - superseded );
+  }
+
+  @Test
+  void fullLaneShedsTheOldestUpdate() throws Exception {
+    
+    final boolean[] ran  = new boolean[1];
+    long            shed = InboundDispatcher.shedCount.get();
+    
+    dispatcher.execute( new Runnable() {
+      
+      public void run() {
+        ran[0] = true;
+      }
+    } );
+    
+    /* One more than fits, with the task */
+    for( int i = 0; i < InboundDispatcher.MAX_DEFERRED; i++ )
+      dispatch( "FLN user" + i + "@mock.jmml" );
+    
+    dispatcher.flush();
+    
+    assertTrue( ran[0], "the task is never shed" );
+    assertEquals( 1, InboundDispatcher.shedCount.get() - shed );
+    assertEquals( InboundDispatcher.MAX_DEFERRED - 1, recorder.handled.size() );
+    assertEquals( "FLN user1@mock.jmml", recorder.handled.get( 0 ), "the oldest update is shed" );
+    assertEquals( "FLN user" + ( InboundDispatcher.MAX_DEFERRED - 1 ) + "@mock.jmml", recorder.handled.get( recorder.handled.size() - 1 ), "the newest update is kept" );
+  }
+}
+
+// InboundDispatcherTest class
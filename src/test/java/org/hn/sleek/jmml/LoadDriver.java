@@ -0,0 +1,448 @@
+/*
+ * ===========================================================================
+ *  Copyright (C) 2002-2003  Tony Tang
+ *
+ *  This program is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation; either version 2 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program; if not, write to the Free Software
+ *  Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ * ===========================================================================
+ */
+
+/**
+ *
+ * $Id$
+ * $Author$
+ * $Name$
+ * $Revision$
+ * $State$
+ *
+ */
+
+package org.hn.sleek.jmml;
+
+import java.lang.management.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import java.util.function.*;
+
+import org.hn.sleek.jmml.mock.*;
+
+
+/**
+ * Signs in many accounts against an in-process MockMessengerServer, sends
+ * instant messages at a steady rate, and reports latency percentiles:
+ * <ul>
+ * <li>sign-in: from the Dispatch Server lookup to the accepted USR;
+ * <li>first-message: from <pre>sendMessage()</pre> to the MSG arriving at the
+ * switchboard, for the first message to each buddy, switchboard set up
+ * included;
+ * <li>message: the same, for the later messages;
+ * <li>inbound: from a MSG being written to the client to its
+ * <pre>incomingMessage()</pre> callback.
+ * </ul>
+ * and, per account once the load has run, the client threads, sockets and
+ * heap.  Buddies are
+ * synthetic contacts of the stand-in, which send each message back, or with
+ * <pre>-peers</pre> the other accounts of the run.
+ * <p>
+ * <pre>LoadDriver [-accounts n] [-rate msgs/s] [-fanout n] [-churn changes/s]
+ *            [-contacts n] [-duration s] [-parallel n] [-transport 0|1] [-peers]</pre>
+ * Rates are per account.  The heap figure includes the stand-in's share, as
+ * it runs in the same JVM.
+ */
+public class LoadDriver implements MockMessageListener {
+
+  /** Prefix of the body of the messages sent; an ID follows it. */
+  final static String         BODY_PREFIX = "load ";
+
+  /** Milliseconds between two rounds of sending. */
+  final static long           TICK        = 10;
+
+  int                         accounts    = 10;
+  double                      rate        = 1;
+  int                         fanout      = 1;
+  double                      churn       = 0;
+  int                         contacts    = 50;
+  int                         duration    = 10;
+  int                         parallel    = 32;
+  int                         transport   = ServerConnection.getDefaultTransport();
+  boolean                     peers;
+
+  MockMessengerServer         server      = new MockMessengerServer();
+  NotificationServerConnector[] clients;
+
+  Latencies                   signIn       = new Latencies();
+  Latencies                   firstMessage = new Latencies();
+  Latencies                   message      = new Latencies();
+  Latencies                   inbound      = new Latencies();
+
+  /** When each message in flight was sent, by ID. */
+  ConcurrentHashMap           sent        = new ConcurrentHashMap();
+
+  /** IDs of the messages that were the first to their buddy. */
+  Set                         first       = Collections.newSetFromMap( new ConcurrentHashMap() );
+
+  /** When each message began to be written to its recipient, by ID. */
+  ConcurrentHashMap           delivered   = new ConcurrentHashMap();
+
+  AtomicLong                  sentCount      = new AtomicLong();
+  AtomicLong                  arrivedCount   = new AtomicLong();
+  AtomicLong                  receivedCount  = new AtomicLong();
+  AtomicInteger               failedSignIns  = new AtomicInteger();
+
+  
+
+  /**
+   * Returns the name of an account of the run.
+   */
+  static String getAccountName( int index ) {
+    
+    return "load" + index + "@" + MockMessengerServer.CONTACT_DOMAIN;
+  }
+
+  /**
+   * Signs an account in, as MessengerServerManager does, but with a
+   * connector of its own.
+   *
+   * @param index The account.
+   * @return A future completed when the account is signed in.
+   */
+  CompletableFuture signIn( final int index ) {
+    
+    final String                  userName = getAccountName( index );
+    final long                    started  = System.nanoTime();
+    final DispatchServerConnector ds       = new DispatchServerConnector();
+    
+    ds.setTransport( transport );
+    
+    return ds.getNSServerAsync( userName, DispatchServerConnector.DEFAULT_TIMEOUT ).thenCompose( new Function() {
+      
+      public Object apply( Object result ) {
+        
+        ArrayList                         serverInfo = ( ArrayList ) result;
+        final NotificationServerConnector ns         = new NotificationServerConnector( ( String ) serverInfo.get( 0 ), ( Integer ) serverInfo.get( 1 ) );
+        
+        ns.setTransport( transport );
+        clients[index] = ns;
+        
+        return ns.connectAsync( NotificationServerConnector.HANDSHAKE_TIMEOUT ).thenCompose( new Function() {
+          
+          public Object apply( Object result ) {
+            
+            return ns.authenticateAsync( userName, "load", ContactStatus.ONLINE,
+                                         NotificationServerConnector.HANDSHAKE_TIMEOUT,
+                                         NotificationServerConnector.PASSPORT_TIMEOUT,
+                                         NotificationServerConnector.AUTHENTICATION_TIMEOUT );
+          }
+        } );
+      }
+    } ).whenComplete( new BiConsumer() {
+      
+      public void accept( Object result, Object error ) {
+        
+        if( error == null )
+          signIn.add( System.nanoTime() - started );
+        else {
+          failedSignIns.incrementAndGet();
+          System.err.println( "LoadDriver.signIn() - " + userName + ": " + error );
+        }
+      }
+    } );
+  }
+
+  /**
+   * Signs every account in, at most <pre>parallel</pre> at a time.
+   */
+  void signInAll() throws InterruptedException {
+    
+    final Semaphore permits = new Semaphore( parallel );
+    
+    clients = new NotificationServerConnector[accounts];
+    
+    for( int i = 0; i < accounts; i++ ) {
+      permits.acquire();
+      signIn( i ).whenComplete( new BiConsumer() {
+        
+        public void accept( Object result, Object error ) {
+          permits.release();
+        }
+      } );
+    }
+    
+    permits.acquire( parallel );
+    permits.release( parallel );
+  }
+
+  /**
+   * Sends messages from every account, at the rate, for the duration.
+   */
+  void drive() throws InterruptedException {
+    
+    long   started = System.nanoTime();
+    long   last    = started;
+    long   end     = started + duration * 1000000000L;
+    double due     = 0;
+    long[] seq     = new long[accounts];
+    
+    while( System.nanoTime() < end ) {
+      Thread.sleep( TICK );
+      
+      long now = System.nanoTime();
+      
+      due += rate * ( now - last ) / 1e9;
+      last = now;
+      
+      for( ; due >= 1; due-- ) {
+        for( int i = 0; i < accounts; i++ ) {
+          if( clients[i] != null && clients[i].bLoggedIn )
+            send( i, seq[i]++ );
+        }
+      }
+    }
+  }
+
+  /**
+   * Sends a message from an account to the next of its buddies.
+   */
+  void send( int index, long seq ) {
+    
+    int    buddy = ( int ) ( seq % fanout );
+    String id    = index + ":" + seq;
+    String to    = peers ? getAccountName( ( index + 1 + buddy ) % accounts ) :
+                           server.getContactName( ( index * fanout + buddy ) % contacts );
+    
+    if( seq < fanout )
+      first.add( id );
+    
+    sentCount.incrementAndGet();
+    sent.put( id, new Long( System.nanoTime() ) );
+    clients[index].sendMessage( to, BODY_PREFIX + id );
+  }
+
+  public void messageReceived( String userName, byte[] payload ) {
+    
+    long   now  = System.nanoTime();
+    String id   = getID( payload );
+    Long   time = ( id == null ) ? null : ( Long ) sent.remove( id );
+    
+    if( time == null )
+      return;
+    
+    arrivedCount.incrementAndGet();
+    ( first.remove( id ) ? firstMessage : message ).add( now - time.longValue() );
+  }
+
+  public void messageSent( String userName, byte[] payload ) {
+    
+    String id = getID( payload );
+    
+    if( id != null )
+      delivered.put( id, new Long( System.nanoTime() ) );
+  }
+
+  /**
+   * Times a message that reached the listeners.
+   */
+  void messageCallback( String body ) {
+    
+    long now = System.nanoTime();
+    
+    if( !body.startsWith( BODY_PREFIX ) )
+      return;
+    
+    Long time = ( Long ) delivered.remove( body.substring( BODY_PREFIX.length() ).trim() );
+    
+    if( time != null ) {
+      receivedCount.incrementAndGet();
+      inbound.add( now - time.longValue() );
+    }
+  }
+
+  /**
+   * Returns the ID of a message sent by the driver, from its MIME payload.
+   */
+  static String getID( byte[] payload ) {
+    
+    String text = new String( payload, IncomingMessage.UTF8 );
+    int    body = text.indexOf( "\r\n\r\n" );
+    
+    if( body < 0 || !text.startsWith( BODY_PREFIX, body + 4 ) )
+      return null;
+    
+    return text.substring( body + 4 + BODY_PREFIX.length() ).trim();
+  }
+
+  /**
+   * Counts the live threads that are not the stand-in's.
+   */
+  static int countClientThreads() {
+    
+    Iterator threads = Thread.getAllStackTraces().keySet().iterator();
+    int      count   = 0;
+    
+    while( threads.hasNext() ) {
+      if( !( ( Thread ) threads.next() ).getName().startsWith( "jmml-mock" ) )
+        count++;
+    }
+    
+    return count;
+  }
+
+  static long usedHeap() throws InterruptedException {
+    
+    for( int i = 0; i < 3; i++ ) {
+      System.gc();
+      Thread.sleep( 50 );
+    }
+    
+    return ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed();
+  }
+
+  /**
+   * Runs the load and prints the report.
+   */
+  public static void main( String[] args ) throws Exception {
+    
+    final LoadDriver driver = new LoadDriver();
+    
+    for( int i = 0; i < args.length; i++ ) {
+      if( args[i].equals( "-accounts" ) )
+        driver.accounts = Integer.parseInt( args[++i] );
+      else if( args[i].equals( "-rate" ) )
+        driver.rate = Double.parseDouble( args[++i] );
+      else if( args[i].equals( "-fanout" ) )
+        driver.fanout = Math.max( 1, Integer.parseInt( args[++i] ) );
+      else if( args[i].equals( "-churn" ) )
+        driver.churn = Double.parseDouble( args[++i] );
+      else if( args[i].equals( "-contacts" ) )
+        driver.contacts = Math.max( 1, Integer.parseInt( args[++i] ) );
+      else if( args[i].equals( "-duration" ) )
+        driver.duration = Integer.parseInt( args[++i] );
+      else if( args[i].equals( "-parallel" ) )
+        driver.parallel = Math.max( 1, Integer.parseInt( args[++i] ) );
+      else if( args[i].equals( "-transport" ) )
+        driver.transport = Integer.parseInt( args[++i] );
+      else if( args[i].equals( "-peers" ) )
+        driver.peers = true;
+    }
+    
+    MockMessengerServer server = driver.server;
+    
+    server.setContactCount( driver.contacts );
+    server.setChurnRate( driver.churn );
+    server.setEcho( !driver.peers );
+    server.setMessageListener( driver );
+    server.start();
+    server.install();
+    
+    MessengerServerManager.getInstance().addMessengerClientListener( new MessengerClientAdapter() {
+      
+      public void incomingMessage( IncomingMessageEvent event ) {
+        
+        driver.messageCallback( event.getMessage() );
+      }
+    } );
+    
+    int  threads = countClientThreads();
+    long heap    = usedHeap();
+    
+    driver.signInAll();
+    
+    int  signedIn = driver.accounts - driver.failedSignIns.get();
+    long started  = System.nanoTime();
+    
+    driver.drive();
+    
+    /* Let the messages in flight arrive */
+    for( int i = 0; i < 200 && ( !driver.sent.isEmpty() || driver.receivedCount.get() < driver.arrivedCount.get() ); i++ )
+      Thread.sleep( 10 );
+    
+    long elapsed    = System.nanoTime() - started;
+    int  perAccount = Math.max( 1, signedIn );
+    
+    String footprint = "per account: threads=" + ( ( countClientThreads() - threads ) / ( double ) perAccount ) +
+                       " sockets=" + ( server.getConnectionCount() / ( double ) perAccount ) +
+                       " heap=" + ( ( usedHeap() - heap ) / perAccount / 1024 ) + " KB";
+    
+    System.out.println( "accounts=" + driver.accounts + " signed-in=" + signedIn + " rate=" + driver.rate + " fanout=" + driver.fanout +
+                        " churn=" + driver.churn + " contacts=" + driver.contacts + " peers=" + driver.peers + " transport=" + driver.transport );
+    System.out.println( "sign-in        " + driver.signIn );
+    System.out.println( "first-message  " + driver.firstMessage );
+    System.out.println( "message        " + driver.message );
+    System.out.println( "inbound        " + driver.inbound );
+    System.out.println( "sent=" + driver.sentCount + " arrived=" + driver.arrivedCount + " received=" + driver.receivedCount +
+                        " throughput=" + ( driver.arrivedCount.get() * 1000000000L / Math.max( 1, elapsed ) ) + " msg/s" );
+    System.out.println( footprint );
+    System.out.println( server.getStatistics() );
+    System.out.println( MessengerServerManager.getInstance().getDispatchStatistics() );
+    
+    for( int i = 0; i < driver.accounts; i++ ) {
+      if( driver.clients[i] != null && driver.clients[i].bLoggedIn )
+        driver.clients[i].signOut();
+    }
+    
+    server.stop();
+    System.exit( 0 );
+  }
+
+  /**
+   * Latencies of one kind, kept whole so that the percentiles are exact.
+   */
+  static class Latencies {
+
+    long[] samples = new long[1024];
+    int    count;
+
+    synchronized void add( long nanos ) {
+      
+      if( count == samples.length )
+        samples = Arrays.copyOf( samples, count * 2 );
+      
+      samples[count++] = nanos;
+    }
+
+    /**
+     * Returns a percentile, by the nearest rank.
+     *
+     * @param sorted The samples, sorted.
+     * @param percent The percentile, e.g. 99.9.
+     */
+    static long percentile( long[] sorted, double percent ) {
+      
+      int rank = ( int ) Math.ceil( percent / 100 * sorted.length );
+      
+      return sorted[Math.max( 0, Math.min( sorted.length, rank ) - 1 )];
+    }
+
+    static String millis( long nanos ) {
+      
+      return String.valueOf( ( nanos / 1000 ) / 1000.0 );
+    }
+
+    public synchronized String toString() {
+      
+      if( count == 0 )
+        return "n=0";
+      
+      long[] sorted = Arrays.copyOf( samples, count );
+      
+      Arrays.sort( sorted );
+      
+      return "n=" + count + " p50=" + millis( percentile( sorted, 50 ) ) + " p99=" + millis( percentile( sorted, 99 ) ) +
+             " p999=" + millis( percentile( sorted, 99.9 ) ) + " max=" + millis( sorted[count - 1] ) + " ms";
+    }
+  }
+}
+
+// LoadDriver class
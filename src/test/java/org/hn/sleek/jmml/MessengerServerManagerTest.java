@@ -0,0 +1,153 @@
+/*
+ * ===========================================================================
+ *  Copyright (C) 2002-2003  Tony Tang
+ *
+ *  This program is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation; either version 2 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program; if not, write to the Free Software
+ *  Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ * ===========================================================================
+ */
+
+/**
+ *
+ * $Id$
+ * $Author$
+ * $Name$
+ * $Revision$
+ * $State$
+ *
+ */
+
+package org.hn.sleek.jmml;
+
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+import org.hn.sleek.jmml.mock.*;
+
+import org.junit.jupiter.api.*;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+
+/**
+ * Signs in to a MockMessengerServer through the public API, sends a message
+ * to a contact, which echoes it back, and signs out, once per transport.
+ */
+class MessengerServerManagerTest {
+
+  /** Seconds to wait for the echo, and for the server to close the connection. */
+  final static int           TIMEOUT = 10;
+
+  static MockMessengerServer server;
+
+  MessengerServerManager     manager  = MessengerServerManager.getInstance();
+  BlockingQueue              received = new LinkedBlockingQueue();
+  AtomicInteger              logins   = new AtomicInteger();
+
+  MessengerClientListener    listener = new MessengerClientAdapter() {
+    
+    public void incomingMessage( IncomingMessageEvent event ) {
+      
+      received.add( event );
+    }
+    
+    public void loginAccepted() {
+      
+      logins.incrementAndGet();
+    }
+  };
+
+  
+
+  @BeforeAll
+  static void startServer() throws Exception {
+    
+    server = new MockMessengerServer();
+    server.setContactCount( 5 );
+    server.start();
+    server.install();
+  }
+
+  @AfterAll
+  static void stopServer() {
+    
+    server.stop();
+  }
+
+  @BeforeEach
+  void addListener() {
+    
+    manager.addMessengerClientListener( listener );
+  }
+
+  @AfterEach
+  void removeListener() {
+    
+    manager.removeMessengerClientListener( listener );
+    manager.setTransport( ServerConnection.TRANSPORT_BLOCKING );
+  }
+
+  /**
+   * Signs in, has a message echoed, and signs out.
+   */
+  void roundTrip( String userName ) throws Exception {
+    
+    String contact = server.getContactName( 0 );
+    
+    manager.signIn( userName, "secret", ContactStatus.ONLINE );
+    
+    try {
+      assertTrue( manager.isConnected(), "signed in" );
+      assertEquals( userName, manager.getUserName() );
+      
+      /* Listeners may be called back after signIn() returns */
+      for( int i = 0; i < TIMEOUT * 100 && logins.get() == 0; i++ )
+        Thread.sleep( 10 );
+      
+      assertEquals( 1, logins.get(), "loginAccepted fired once" );
+      
+      manager.sendMessage( contact, "ping" );
+      
+      IncomingMessageEvent echo = ( IncomingMessageEvent ) received.poll( TIMEOUT, TimeUnit.SECONDS );
+      
+      assertNotNull( echo, "the contact echoed the message" );
+      assertEquals( contact, echo.getUserName() );
+      assertEquals( "ping", echo.getMessage() );
+    } finally {
+      manager.signOut();
+    }
+    
+    /* The server closes the connection once it has read OUT */
+    for( int i = 0; i < TIMEOUT * 100 && manager.isConnected(); i++ )
+      Thread.sleep( 10 );
+    
+    assertFalse( manager.isConnected(), "signed out" );
+  }
+
+  @Test
+  void roundTripBlocking() throws Exception {
+    
+    manager.setTransport( ServerConnection.TRANSPORT_BLOCKING );
+    roundTrip( "blocking@mock.jmml" );
+  }
+
+  @Test
+  void roundTripNIO() throws Exception {
+    
+    manager.setTransport( ServerConnection.TRANSPORT_NIO );
+    roundTrip( "nio@mock.jmml" );
+  }
+}
+
+// MessengerServerManagerTest class
@@ -0,0 +1,139 @@
+/*
+ * ===========================================================================
+ *  Copyright (C) 2002-2003  Tony Tang
+ *
+ *  This program is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation; either version 2 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program; if not, write to the Free Software
+ *  Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ * ===========================================================================
+ */
+
+/**
+ *
+ * $Id$
+ * $Author$
+ * $Name$
+ * $Revision$
+ * $State$
+ *
+ */
+
+package org.hn.sleek.jmml;
+
+import java.util.concurrent.*;
+
+import org.junit.jupiter.api.*;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+
+/**
+ * Checks that replies are matched to their requests by TrID, that a
+ * numeric error or a missing reply fails the request, and that dropping
+ * the connection fails every request still waiting.
+ */
+class TransactionTableTest {
+
+  /** Long enough never to expire during a test. */
+  final static long LONG_TIMEOUT = 60000;
+
+  
+
+  /**
+   * Returns the exception a failed future completed with.
+   */
+  static Throwable failure( CompletableFuture future ) throws InterruptedException {
+    
+    try {
+      future.get( 5, TimeUnit.SECONDS );
+    } catch( ExecutionException e ) {
+      return e.getCause();
+    } catch( TimeoutException e ) {
+      fail( "the request did not complete" );
+    }
+    
+    fail( "the request did not fail" );
+    return null;
+  }
+
+  @Test
+  void replyCompletesItsRequest() throws Exception {
+    
+    TransactionTable  table  = new TransactionTable();
+    int               first  = table.nextTransactionID();
+    int               second = table.nextTransactionID();
+    CompletableFuture one    = table.register( first, LONG_TIMEOUT );
+    CompletableFuture two    = table.register( second, LONG_TIMEOUT );
+    IncomingMessage   reply  = IncomingMessage.parseMessage( "CHG " + second + " NLN 0" );
+    
+    assertTrue( table.complete( reply ), "the reply matches a request" );
+    assertSame( reply, two.get( 5, TimeUnit.SECONDS ) );
+    assertFalse( one.isDone(), "the other request still waits" );
+    assertEquals( 1, table.size() );
+  }
+
+  @Test
+  void unmatchedReplyIsLeftToTheListener() throws Exception {
+    
+    TransactionTable table = new TransactionTable();
+    
+    table.register( table.nextTransactionID(), LONG_TIMEOUT );
+    
+    assertFalse( table.complete( IncomingMessage.parseMessage( "CHG 99 NLN 0" ) ), "no request has TrID 99" );
+    assertFalse( table.complete( IncomingMessage.parseMessage( "NLN AWY example@passport.com Mike" ) ), "NLN has no TrID" );
+    assertEquals( 1, table.size() );
+  }
+
+  @Test
+  void errorReplyFailsItsRequest() throws Exception {
+    
+    TransactionTable  table   = new TransactionTable();
+    int               id      = table.nextTransactionID();
+    CompletableFuture request = table.register( id, LONG_TIMEOUT );
+    
+    assertTrue( table.complete( IncomingMessage.parseMessage( "201 " + id ) ), "the error matches the request" );
+    
+    MSNException error = ( MSNException ) failure( request );
+    
+    assertEquals( MSNException.MSN_EX_SERVER_ERROR, error.getExceptionType() );
+    assertEquals( 201, error.getErrorCode() );
+    assertEquals( 0, table.size() );
+  }
+
+  @Test
+  void missingReplyTimesOut() throws Exception {
+    
+    TransactionTable  table   = new TransactionTable();
+    CompletableFuture request = table.register( table.nextTransactionID(), 50 );
+    
+    assertEquals( MSNException.MSN_EX_TIMEOUT, ( ( MSNException ) failure( request ) ).getExceptionType() );
+    assertEquals( 0, table.size() );
+  }
+
+  @Test
+  void failAllFailsEveryRequest() throws Exception {
+    
+    TransactionTable  table = new TransactionTable();
+    CompletableFuture one   = table.register( table.nextTransactionID(), LONG_TIMEOUT );
+    CompletableFuture two   = table.register( table.nextTransactionID(), LONG_TIMEOUT );
+    MSNException      cause = new MSNException( MSNException.MSN_EX_DISCONNECTED );
+    
+    table.failAll( cause );
+    
+    assertSame( cause, failure( one ) );
+    assertSame( cause, failure( two ) );
+    assertEquals( 0, table.size() );
+  }
+}
+
+// TransactionTableTest class
@@ -0,0 +1,242 @@
+/*
+ * ===========================================================================
+ *  Copyright (C) 2002-2003  Tony Tang
+ *
+ *  This program is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation; either version 2 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program; if not, write to the Free Software
+ *  Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ * ===========================================================================
+ */
+
+/**
+ *
+ * $Id$
+ * $Author$
+ * $Name$
+ * $Revision$
+ * $State$
+ *
+ */
+
+package org.hn.sleek.jmml.mock;
+
+import java.io.*;
+import java.net.*;
+
+
+/**
+ * A client's connection to one of the servers of the stand-in.  Each
+ * connection has a thread that reads its commands; a command line and, for
+ * the commands that carry one, the payload that follows it are handed to
+ * <pre>received()</pre>.  Replies may be sent from any thread.
+ */
+abstract class MockConnection implements Runnable {
+
+  /** Commands followed by a payload whose length is their last argument. */
+  final static String[]     PAYLOAD_COMMANDS = { "MSG", "QRY", "UUX" };
+
+  final MockMessengerServer server;
+  final Socket              socket;
+  final InputStream         in;
+  final OutputStream        out;
+
+  /** The signed in user, or null until the USR is accepted. */
+  volatile String           userName;
+  volatile boolean          closed;
+
+  
+
+  /**
+   * Creates the connection of an accepted socket.
+   *
+   * @param server The stand-in the socket was accepted by.
+   * @param socket The socket.
+   */
+  MockConnection( MockMessengerServer server, Socket socket ) throws IOException {
+    
+    this.server = server;
+    this.socket = socket;
+    socket.setTcpNoDelay( true );
+    in          = new BufferedInputStream( socket.getInputStream() );
+    out         = new BufferedOutputStream( socket.getOutputStream() );
+  }
+
+  /**
+   * Reads commands until the client hangs up.
+   */
+  public void run() {
+    
+    try {
+      String line;
+      
+      while( ( line = readLine() ) != null ) {
+        String[] tokens  = split( line );
+        byte[]   payload = null;
+        
+        if( tokens.length == 0 )
+          continue;
+        
+        if( tokens.length > 1 && hasPayload( tokens[0] ) )
+          payload = readPayload( Integer.parseInt( tokens[tokens.length - 1] ) );
+        
+        server.commands.incrementAndGet();
+        received( tokens, payload );
+      }
+    } catch( IOException e ) {
+      /* The client hung up, or the stand-in was stopped */
+    } catch( RuntimeException e ) {
+      System.err.println( "MockConnection.run() - " + e );
+    } finally {
+      close();
+    }
+  }
+
+  /**
+   * Handles a command from the client.
+   *
+   * @param tokens The command and its arguments.
+   * @param payload The payload, for MSG and QRY; null otherwise.
+   */
+  abstract void received( String[] tokens, byte[] payload ) throws IOException;
+
+  /**
+   * Called once, when the connection is closed.
+   */
+  void disconnected() {
+    
+  }
+
+  /**
+   * Sends a command line.
+   *
+   * @param line The line, without the CRLF.
+   */
+  void send( String line ) {
+    
+    send( line, null );
+  }
+
+  /**
+   * Sends a command line followed by a payload; the length of the payload is
+   * appended to the line.
+   *
+   * @param line The line, without the length and the CRLF.
+   * @param payload The payload, or null for a line alone.
+   */
+  synchronized void send( String line, byte[] payload ) {
+    
+    if( closed )
+      return;
+    
+    try {
+      if( payload != null )
+        line = line + " " + payload.length;
+      
+      out.write( line.getBytes( "ISO-8859-1" ) );
+      out.write( '\r' );
+      out.write( '\n' );
+      
+      if( payload != null )
+        out.write( payload );
+      
+      out.flush();
+    } catch( IOException e ) {
+      close();
+    }
+  }
+
+  /**
+   * Closes the connection.
+   */
+  void close() {
+    
+    synchronized( this ) {
+      if( closed )
+        return;
+      
+      closed = true;
+    }
+    
+    try {
+      socket.close();
+    } catch( IOException e ) {
+    }
+    
+    server.connections.remove( this );
+    disconnected();
+  }
+
+  /**
+   * Reads a CRLF terminated line.
+   *
+   * @return The line, or null when the client has hung up.
+   */
+  private String readLine() throws IOException {
+    
+    ByteArrayOutputStream line = new ByteArrayOutputStream( 128 );
+    int                   b;
+    
+    while( ( b = in.read() ) >= 0 && b != '\n' ) {
+      if( b != '\r' )
+        line.write( b );
+    }
+    
+    if( b < 0 && line.size() == 0 )
+      return null;
+    
+    return line.toString( "ISO-8859-1" );
+  }
+
+  /**
+   * Reads the payload of a command.
+   *
+   * @param length The number of bytes.
+   * @return The payload.
+   */
+  private byte[] readPayload( int length ) throws IOException {
+    
+    byte[] payload = new byte[length];
+    int    read    = 0;
+    
+    while( read < length ) {
+      int n = in.read( payload, read, length - read );
+      
+      if( n < 0 )
+        throw new EOFException();
+      
+      read += n;
+    }
+    
+    return payload;
+  }
+
+  /**
+   * Splits a command line at its spaces.
+   */
+  private static String[] split( String line ) {
+    
+    return line.trim().length() == 0 ? new String[0] : line.trim().split( " +" );
+  }
+
+  private static boolean hasPayload( String command ) {
+    
+    for( int i = 0; i < PAYLOAD_COMMANDS.length; i++ ) {
+      if( PAYLOAD_COMMANDS[i].equals( command ) )
+        return true;
+    }
+    
+    return false;
+  }
+}
+
+// MockConnection class
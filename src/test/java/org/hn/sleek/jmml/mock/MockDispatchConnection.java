@@ -0,0 +1,71 @@
+/*
+ * ===========================================================================
+ *  Copyright (C) 2002-2003  Tony Tang
+ *
+ *  This program is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation; either version 2 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program; if not, write to the Free Software
+ *  Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ * ===========================================================================
+ */
+
+/**
+ *
+ * $Id$
+ * $Author$
+ * $Name$
+ * $Revision$
+ * $State$
+ *
+ */
+
+package org.hn.sleek.jmml.mock;
+
+import java.io.*;
+import java.net.*;
+
+
+/**
+ * A connection to the Dispatch Server of the stand-in.  It answers the
+ * version and client checks, refers the user to the Notification Server with
+ * an XFR, and hangs up, as the real server does.
+ */
+class MockDispatchConnection extends MockConnection {
+
+  MockDispatchConnection( MockMessengerServer server, Socket socket ) throws IOException {
+    
+    super( server, socket );
+  }
+
+  void received( String[] tokens, byte[] payload ) {
+    
+    String command = tokens[0];
+    String trid    = tokens.length > 1 ? tokens[1] : "0";
+    
+    if( command.equals( "VER" ) )
+      send( "VER " + trid + " " + MockMessengerServer.PROTOCOL + " CVR0" );
+    else if( command.equals( "CVR" ) )
+      send( "CVR " + trid + " " + MockMessengerServer.CLIENT_VERSION );
+    else if( command.equals( "USR" ) ) {
+      /* <<< XFR 3 NS 207.46.106.145:1863 0 207.46.104.20:1863 */
+      send( "XFR " + trid + " NS " + server.getAddress( MockMessengerServer.NOTIFICATION ) + " 0 " +
+            server.getAddress( MockMessengerServer.DISPATCH ) );
+      close();
+    }
+    else if( command.equals( "OUT" ) )
+      close();
+    else
+      send( "500 " + trid );
+  }
+}
+
+// MockDispatchConnection class
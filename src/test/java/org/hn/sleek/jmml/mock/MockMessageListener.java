@@ -0,0 +1,58 @@
+/*
+ * ===========================================================================
+ *  Copyright (C) 2002-2003  Tony Tang
+ *
+ *  This program is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation; either version 2 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program; if not, write to the Free Software
+ *  Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ * ===========================================================================
+ */
+
+/**
+ *
+ * $Id$
+ * $Author$
+ * $Name$
+ * $Revision$
+ * $State$
+ *
+ */
+
+package org.hn.sleek.jmml.mock;
+
+
+/**
+ * Told about the instant messages passing through the switchboard sessions
+ * of the stand-in, on the threads of its connections.  Load tests use it to
+ * time messages on the wire.
+ */
+public interface MockMessageListener {
+
+  /**
+   * A MSG has arrived from a client.
+   *
+   * @param userName The sender.
+   * @param payload The MIME payload.
+   */
+  void messageReceived( String userName, byte[] payload );
+
+  /**
+   * A MSG is about to be written to a client.
+   *
+   * @param userName The recipient.
+   * @param payload The MIME payload.
+   */
+  void messageSent( String userName, byte[] payload );
+}
+
+// MockMessageListener interface
@@ -0,0 +1,575 @@
+/*
+ * ===========================================================================
+ *  Copyright (C) 2002-2003  Tony Tang
+ *
+ *  This program is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation; either version 2 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program; if not, write to the Free Software
+ *  Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ * ===========================================================================
+ */
+
+/**
+ *
+ * $Id$
+ * $Author$
+ * $Name$
+ * $Revision$
+ * $State$
+ *
+ */
+
+package org.hn.sleek.jmml.mock;
+
+import java.io.*;
+import java.net.*;
+import java.security.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+
+/**
+ * An embeddable stand-in for the MSN Messenger service, speaking the part of
+ * MSNP8 this library uses: the Dispatch Server's referral, the Notification
+ * Server's sign in (VER, CVR, USR TWN with a Passport HTTP stub), SYN with
+ * LSG and LST, CHG, CHL and QRY, XFR and RNG, and the Switchboard Server's
+ * USR, CAL, ANS, JOI, IRO, MSG, OUT and BYE.  Everything listens on the
+ * loopback interface, on ports of its own choosing.
+ * <p>
+ * Each account signs in with any password, unless one is set, and gets a
+ * synthetic contact list of <pre>contact<i>n</i>@mock.jmml</pre> users, some
+ * of them online.  While it is signed in, the presence of its contacts
+ * changes at the churn rate.  Calls to users signed in to the stand-in ring
+ * them through their Notification Server connection; any other user answers
+ * the call itself and, unless echo is off, sends every text message back.
+ * <p>
+ * <pre>
+ *   MockMessengerServer server = new MockMessengerServer();
+ *   server.start();
+ *   server.install();
+ *   MessengerServerManager.getInstance().signIn( "alice@mock.jmml", "secret", ContactStatus.ONLINE );
+ * </pre>
+ */
+public class MockMessengerServer {
+
+  /** Roles of the listening sockets. */
+  final static int           DISPATCH       = 0;
+  final static int           NOTIFICATION   = 1;
+  final static int           SWITCHBOARD    = 2;
+  final static String[]      ROLE_NAMES     = { "ds", "ns", "sb" };
+
+  final static String        HOST           = "127.0.0.1";
+  final static String        PROTOCOL       = "MSNP8";
+  final static String        CLIENT_VERSION = "6.0.0602 6.0.0602 1.0.0000 http://download.microsoft.com/download/msnmessenger/install/6.0/W98NT42KMeXP/EN-US/SetupDl.exe http://messenger.msn.com";
+
+  /** Key the client hashes the CHL challenge with. */
+  final static String        CHALLENGE_KEY  = "VT6PX?UQTM4WM%YR";
+
+  /** Domain of the synthetic contacts. */
+  public final static String CONTACT_DOMAIN = "mock.jmml";
+
+  /** Milliseconds between two rounds of presence churn. */
+  final static long          CHURN_TICK     = 10;
+
+  /** Synthetic contacts on each account's list (system property jmml.mock.contacts). */
+  int                        contactCount      = Integer.getInteger( "jmml.mock.contacts", 50 ).intValue();
+
+  /** Groups the contacts are spread over (system property jmml.mock.groups). */
+  int                        groupCount        = Integer.getInteger( "jmml.mock.groups", 4 ).intValue();
+
+  /** Percentage of the contacts online at sign in (system property jmml.mock.online). */
+  int                        onlinePercent     = Integer.getInteger( "jmml.mock.online", 30 ).intValue();
+
+  /** Presence changes per second for each signed in account (system property jmml.mock.churn). */
+  double                     churnRate         = Double.parseDouble( System.getProperty( "jmml.mock.churn", "0" ) );
+
+  /** Milliseconds between CHL challenges; 0 sends one, at sign in (system property jmml.mock.challenge). */
+  long                       challengeInterval = Long.getLong( "jmml.mock.challenge", 0L ).longValue();
+
+  /** Whether contacts not signed in send text messages back (system property jmml.mock.echo). */
+  boolean                    echo              = !"false".equals( System.getProperty( "jmml.mock.echo" ) );
+
+  /** The only password accepted, or null for any (system property jmml.mock.password). */
+  String                     password          = System.getProperty( "jmml.mock.password" );
+
+  /** Port of the Dispatch Server; 0 for any (system property jmml.mock.port). */
+  int                        dispatchPort      = Integer.getInteger( "jmml.mock.port", 0 ).intValue();
+
+  ServerSocket[]             listeners = new ServerSocket[ROLE_NAMES.length];
+  MockPassportServer         passport;
+  Thread                     churn;
+  volatile boolean           running;
+
+  /** Signed in accounts: user name to Notification Server connection. */
+  ConcurrentHashMap          accounts  = new ConcurrentHashMap();
+
+  /** Passport tickets not yet redeemed, to the user they were issued to. */
+  ConcurrentHashMap          tickets   = new ConcurrentHashMap();
+
+  /** Switchboard cookies not yet redeemed, to the user they were issued to. */
+  ConcurrentHashMap          cookies   = new ConcurrentHashMap();
+
+  /** Open switchboard sessions, by session ID. */
+  ConcurrentHashMap          sessions  = new ConcurrentHashMap();
+
+  /** Every open connection, closed by <pre>stop()</pre>. */
+  Set                        connections = Collections.newSetFromMap( new ConcurrentHashMap() );
+
+  Random                     random    = new Random();
+
+  /** Told about the messages relayed, or null. */
+  volatile MockMessageListener messageListener;
+
+  AtomicLong                 commands         = new AtomicLong();
+  AtomicLong                 relayed          = new AtomicLong();
+  AtomicLong                 presenceChanges  = new AtomicLong();
+  AtomicLong                 challenges       = new AtomicLong();
+  AtomicLong                 failedChallenges = new AtomicLong();
+  AtomicLong                 lastSessionID    = new AtomicLong( 10000 );
+  AtomicInteger              lastConnection   = new AtomicInteger();
+
+  
+
+  /**
+   * Sets the number of synthetic contacts on each account's list.
+   */
+  public void setContactCount( int contactCount ) {
+    
+    this.contactCount = contactCount;
+  }
+
+  /**
+   * Sets the number of groups the contacts are spread over.
+   */
+  public void setGroupCount( int groupCount ) {
+    
+    this.groupCount = Math.max( 1, groupCount );
+  }
+
+  /**
+   * Sets the percentage of the contacts that are online at sign in.
+   */
+  public void setOnlinePercent( int onlinePercent ) {
+    
+    this.onlinePercent = onlinePercent;
+  }
+
+  /**
+   * Sets the rate of presence changes (NLN and FLN) sent to each signed in
+   * account.  Takes effect at <pre>start()</pre>.
+   *
+   * @param churnRate Changes per second per account; 0 for none.
+   */
+  public void setChurnRate( double churnRate ) {
+    
+    this.churnRate = churnRate;
+  }
+
+  /**
+   * Sets how often signed in accounts are sent a CHL challenge.
+   *
+   * @param challengeInterval Milliseconds between challenges; 0 sends one, at sign in.
+   */
+  public void setChallengeInterval( long challengeInterval ) {
+    
+    this.challengeInterval = challengeInterval;
+  }
+
+  /**
+   * Sets whether contacts that are not signed in to the stand-in send text
+   * messages back to their sender.
+   */
+  public void setEcho( boolean echo ) {
+    
+    this.echo = echo;
+  }
+
+  /**
+   * Sets the only password the Passport stub accepts.
+   *
+   * @param password The password, or null to accept any.
+   */
+  public void setPassword( String password ) {
+    
+    this.password = password;
+  }
+
+  /**
+   * Sets the port of the Dispatch Server.  Takes effect at <pre>start()</pre>.
+   *
+   * @param dispatchPort The port, or 0 for any free one.
+   */
+  public void setDispatchPort( int dispatchPort ) {
+    
+    this.dispatchPort = dispatchPort;
+  }
+
+  /**
+   * Sets the listener told about the instant messages the switchboard
+   * sessions receive and deliver.
+   *
+   * @param messageListener The listener, or null for none.
+   */
+  public void setMessageListener( MockMessageListener messageListener ) {
+    
+    this.messageListener = messageListener;
+  }
+
+  /**
+   * Opens the servers' sockets and the Passport stub, and starts the
+   * presence churn.
+   */
+  public synchronized void start() throws IOException {
+    
+    if( running )
+      return;
+    
+    running = true;
+    
+    for( int role = 0; role < listeners.length; role++ ) {
+      listeners[role] = new ServerSocket( role == DISPATCH ? dispatchPort : 0, 512, InetAddress.getByName( HOST ) );
+      startThread( new Acceptor( role ), "jmml-mock-" + ROLE_NAMES[role] );
+    }
+    
+    passport = new MockPassportServer( this );
+    
+    if( churnRate > 0 ) {
+      churn = startThread( new Runnable() {
+      
+        public void run() {
+          churn();
+        }
+      }, "jmml-mock-churn" );
+    }
+  }
+
+  /**
+   * Closes every socket of the stand-in, and the connections of the
+   * clients.
+   */
+  public synchronized void stop() {
+    
+    if( !running )
+      return;
+    
+    running = false;
+    
+    for( int role = 0; role < listeners.length; role++ ) {
+      try {
+        listeners[role].close();
+      } catch( IOException e ) {
+      }
+    }
+    
+    passport.stop();
+    
+    if( churn != null )
+      churn.interrupt();
+    
+    Object[] open = connections.toArray();
+    
+    for( int i = 0; i < open.length; i++ ) {
+      ( ( MockConnection ) open[i] ).close();
+    }
+  }
+
+  /**
+   * Points the library at the stand-in, by setting the system properties
+   * that name the Dispatch Server and the Passport nexus.
+   */
+  public void install() {
+    
+    System.setProperty( "jmml.ds.host", HOST );
+    System.setProperty( "jmml.ds.port", String.valueOf( getDispatchPort() ) );
+    System.setProperty( "jmml.passport.nexus", passport.getNexusAddress() );
+  }
+
+  /**
+   * @return The port of the Dispatch Server.
+   */
+  public int getDispatchPort() {
+    
+    return listeners[DISPATCH].getLocalPort();
+  }
+
+  /**
+   * @return The address of the Passport nexus.
+   */
+  public String getPassportNexus() {
+    
+    return passport.getNexusAddress();
+  }
+
+  /**
+   * @return The number of accounts signed in.
+   */
+  public int getSignedInCount() {
+    
+    return accounts.size();
+  }
+
+  /**
+   * @return The number of client connections open, to any of the servers.
+   */
+  public int getConnectionCount() {
+    
+    return connections.size();
+  }
+
+  /**
+   * @return Counters of the stand-in, for logs.
+   */
+  public String getStatistics() {
+    
+    return "accounts=" + accounts.size() + " sessions=" + sessions.size() + " connections=" + connections.size() +
+           " commands=" + commands.get() + " relayed=" + relayed.get() + " presence=" + presenceChanges.get() +
+           " challenges=" + challenges.get() + " failed-challenges=" + failedChallenges.get();
+  }
+
+  /**
+   * Returns the address clients connect to for a role.
+   */
+  String getAddress( int role ) {
+    
+    return HOST + ":" + listeners[role].getLocalPort();
+  }
+
+  /**
+   * Returns the name of a synthetic contact.
+   *
+   * @param index The contact, from 0 to the contact count.
+   */
+  public String getContactName( int index ) {
+    
+    return "contact" + index + "@" + CONTACT_DOMAIN;
+  }
+
+  /**
+   * Returns the URL-encoded friendly name of a user, as sent on the wire.
+   */
+  String getFriendlyName( String user ) {
+    
+    MockNotificationConnection account = ( MockNotificationConnection ) accounts.get( user );
+    
+    if( account != null )
+      return account.friendlyName;
+    
+    return encode( user.indexOf( '@' ) > 0 ? user.substring( 0, user.indexOf( '@' ) ) : user );
+  }
+
+  /**
+   * Issues a Passport ticket, if the password is accepted.
+   *
+   * @return The ticket, or null.
+   */
+  String issueTicket( String user, String pwd ) {
+    
+    if( user == null || user.length() == 0 || ( password != null && !password.equals( pwd ) ) )
+      return null;
+    
+    String ticket = "t=" + Long.toHexString( random.nextLong() ) + "&p=" + Long.toHexString( random.nextLong() );
+    
+    tickets.put( ticket, user );
+    return ticket;
+  }
+
+  /**
+   * Redeems a Passport ticket.
+   *
+   * @return The user the ticket was issued to, or null.
+   */
+  String redeemTicket( String ticket ) {
+    
+    return ( String ) tickets.remove( ticket );
+  }
+
+  /**
+   * Issues a cookie that signs a user in to the Switchboard Server.
+   */
+  String issueCookie( String user ) {
+    
+    String cookie = ( random.nextInt( Integer.MAX_VALUE ) ) + "." + ( random.nextInt( Integer.MAX_VALUE ) );
+    
+    cookies.put( cookie, user );
+    return cookie;
+  }
+
+  /**
+   * Redeems a Switchboard Server cookie.
+   *
+   * @return The user the cookie was issued to, or null.
+   */
+  String redeemCookie( String cookie ) {
+    
+    return ( String ) cookies.remove( cookie );
+  }
+
+  /**
+   * Opens a switchboard session.
+   */
+  MockSwitchboardSession openSession() {
+    
+    MockSwitchboardSession session = new MockSwitchboardSession( this, String.valueOf( lastSessionID.incrementAndGet() ) );
+    
+    sessions.put( session.id, session );
+    return session;
+  }
+
+  /**
+   * Records the sign in of an account; an earlier connection of the same
+   * account is signed out, as the real server does.
+   */
+  void signedIn( MockNotificationConnection connection ) {
+    
+    MockNotificationConnection previous = ( MockNotificationConnection ) accounts.put( connection.userName, connection );
+    
+    if( previous != null && previous != connection ) {
+      previous.send( "OUT OTH" );
+      previous.close();
+    }
+  }
+
+  /**
+   * Records the sign out of an account.
+   */
+  void signedOut( MockNotificationConnection connection ) {
+    
+    if( connection.userName != null )
+      accounts.remove( connection.userName, connection );
+  }
+
+  /**
+   * Sends presence changes to the signed in accounts, at the churn rate.
+   */
+  private void churn() {
+    
+    long   last = System.nanoTime();
+    double due  = 0;
+    
+    while( running ) {
+      try {
+        Thread.sleep( CHURN_TICK );
+      } catch( InterruptedException e ) {
+        return;
+      }
+      
+      long     now    = System.nanoTime();
+      Object[] online = accounts.values().toArray();
+      
+      due  = ( online.length == 0 ) ? 0 : due + churnRate * online.length * ( now - last ) / 1e9;
+      last = now;
+      
+      for( ; due >= 1; due-- ) {
+        if( ( ( MockNotificationConnection ) online[random.nextInt( online.length )] ).churn( random ) )
+          presenceChanges.incrementAndGet();
+      }
+    }
+  }
+
+  private Thread startThread( Runnable task, String name ) {
+    
+    Thread thread = new Thread( task, name );
+    
+    thread.setDaemon( true );
+    thread.start();
+    return thread;
+  }
+
+  /**
+   * Returns the MD5 hash of a string, in lower case hex.
+   */
+  static String md5( String text ) {
+    
+    try {
+      byte[]       digest = MessageDigest.getInstance( "MD5" ).digest( text.getBytes( "ISO-8859-1" ) );
+      StringBuffer hex    = new StringBuffer( 32 );
+      
+      for( int i = 0; i < digest.length; i++ ) {
+        hex.append( Character.forDigit( ( digest[i] >> 4 ) & 0xf, 16 ) );
+        hex.append( Character.forDigit( digest[i] & 0xf, 16 ) );
+      }
+      
+      return hex.toString();
+    } catch( Exception e ) {
+      throw new IllegalStateException( e.toString() );
+    }
+  }
+
+  /**
+   * URL-encodes a friendly name, with %20 for spaces as the real server does.
+   */
+  static String encode( String text ) {
+    
+    try {
+      return URLEncoder.encode( text, "UTF-8" ).replaceAll( "\\+", "%20" );
+    } catch( UnsupportedEncodingException e ) {
+      return text;
+    }
+  }
+
+  /**
+   * Accepts the connections of one of the servers.
+   */
+  private class Acceptor implements Runnable {
+
+    final int role;
+
+    Acceptor( int role ) {
+      
+      this.role = role;
+    }
+
+    public void run() {
+      
+      while( running ) {
+        try {
+          Socket         socket = listeners[role].accept();
+          MockConnection connection;
+          
+          switch( role ) {
+            case DISPATCH:     connection = new MockDispatchConnection( MockMessengerServer.this, socket ); break;
+            case NOTIFICATION: connection = new MockNotificationConnection( MockMessengerServer.this, socket ); break;
+            default:           connection = new MockSwitchboardConnection( MockMessengerServer.this, socket ); break;
+          }
+          
+          connections.add( connection );
+          startThread( connection, "jmml-mock-" + ROLE_NAMES[role] + "-" + lastConnection.incrementAndGet() );
+        } catch( IOException e ) {
+          if( running )
+            System.err.println( "MockMessengerServer.Acceptor.run() - " + e );
+        }
+      }
+    }
+  }
+
+  /**
+   * Runs the stand-in until it is killed.  It is configured by the
+   * jmml.mock.* system properties; the Dispatch Server port to give the
+   * library (jmml.ds.port) and the nexus (jmml.passport.nexus) are printed.
+   */
+  public static void main( String[] args ) throws Exception {
+    
+    MockMessengerServer server = new MockMessengerServer();
+    
+    server.start();
+    System.out.println( "-Djmml.ds.host=" + HOST + " -Djmml.ds.port=" + server.getDispatchPort() +
+                        " -Djmml.passport.nexus=" + server.getPassportNexus() );
+    
+    while( true ) {
+      Thread.sleep( 10000 );
+      System.out.println( server.getStatistics() );
+    }
+  }
+}
+
+// MockMessengerServer class
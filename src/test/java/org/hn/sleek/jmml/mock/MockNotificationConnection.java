@@ -0,0 +1,322 @@
+/*
+ * ===========================================================================
+ *  Copyright (C) 2002-2003  Tony Tang
+ *
+ *  This program is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation; either version 2 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program; if not, write to the Free Software
+ *  Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ * ===========================================================================
+ */
+
+/**
+ *
+ * $Id$
+ * $Author$
+ * $Name$
+ * $Revision$
+ * $State$
+ *
+ */
+
+package org.hn.sleek.jmml.mock;
+
+import java.io.*;
+import java.net.*;
+import java.util.*;
+
+
+/**
+ * A connection to the Notification Server of the stand-in.  It signs the
+ * user in with a Passport ticket, sends the synthetic contact list, the
+ * presence of the contacts and their changes, challenges the client with
+ * CHL, refers it to the Switchboard Server, and rings it when another
+ * account calls.
+ */
+class MockNotificationConnection extends MockConnection {
+
+  /** Statuses an online contact may have. */
+  final static String[] ONLINE_STATUSES = { "NLN", "AWY", "BSY", "IDL", "BRB", "PHN", "LUN" };
+
+  /** Sent in the USR reply, for the client to hand to the Passport login server. */
+  final static String   TWEENER_CHALLENGE = "lc=1033,id=507,tw=40,fs=1,ru=http%3A%2F%2Fmessenger%2Emsn%2Ecom,ct=1062764229,kpp=1,kv=5,ver=2.1.0173.1,tpf=43f8a4c8ed940c04e3740be46c4d1619";
+
+  /** Lists of the synthetic contacts: forward, allow and reverse. */
+  final static int      CONTACT_LISTS = 1 | 2 | 8;
+
+  /** The user's friendly name, URL-encoded. */
+  volatile String       friendlyName;
+
+  /** The user's status; null until the first CHG. */
+  String                status;
+
+  /** Version of the contact list; changed by ADD, REM and REA. */
+  int                   listVersion = 1;
+
+  /** Status of each synthetic contact, as an index in ONLINE_STATUSES, or -1 when offline. */
+  int[]                 presence;
+
+  /** The CHL challenge waiting for a QRY, or null. */
+  String                challenge;
+  Timer                 challenger;
+
+
+
+  MockNotificationConnection( MockMessengerServer server, Socket socket ) throws IOException {
+    
+    super( server, socket );
+  }
+
+  void received( String[] tokens, byte[] payload ) {
+    
+    String command = tokens[0];
+    String trid    = tokens.length > 1 ? tokens[1] : "0";
+    
+    if( command.equals( "VER" ) )
+      send( "VER " + trid + " " + MockMessengerServer.PROTOCOL + " CVR0" );
+    else if( command.equals( "CVR" ) )
+      send( "CVR " + trid + " " + MockMessengerServer.CLIENT_VERSION );
+    else if( command.equals( "USR" ) && tokens.length > 4 )
+      receivedUSR( trid, tokens[3], tokens[4] );
+    else if( userName == null )
+      /* Not signed in */
+      send( "715 " + trid );
+    else if( command.equals( "SYN" ) )
+      receivedSYN( trid, tokens.length > 2 ? tokens[2] : "0" );
+    else if( command.equals( "CHG" ) && tokens.length > 2 )
+      receivedCHG( trid, tokens[2] );
+    else if( command.equals( "QRY" ) )
+      receivedQRY( trid, payload );
+    else if( command.equals( "XFR" ) ) {
+      /* <<< XFR 10 SB 207.46.108.37:1863 CKI 17262740.1050826919.32308 */
+      send( "XFR " + trid + " SB " + server.getAddress( MockMessengerServer.SWITCHBOARD ) + " CKI " + server.issueCookie( userName ) );
+    }
+    else if( command.equals( "REA" ) && tokens.length > 3 ) {
+      friendlyName = tokens[3];
+      send( "REA " + trid + " " + nextListVersion() + " " + userName + " " + friendlyName );
+    }
+    else if( command.equals( "ADD" ) && tokens.length > 3 ) {
+      String friendly = tokens.length > 4 ? tokens[4] : tokens[3];
+      send( "ADD " + trid + " " + tokens[2] + " " + nextListVersion() + " " + tokens[3] + " " + friendly );
+    }
+    else if( command.equals( "REM" ) && tokens.length > 3 )
+      send( "REM " + trid + " " + tokens[2] + " " + nextListVersion() + " " + tokens[3] );
+    else if( command.equals( "PNG" ) )
+      send( "QNG 50" );
+    else if( command.equals( "OUT" ) )
+      close();
+    else {
+      /* BLP, GTC, PRP and the like are acknowledged as they are */
+      StringBuffer line = new StringBuffer( command );
+      
+      for( int i = 1; i < tokens.length; i++ ) {
+        line.append( ' ' ).append( tokens[i] );
+      }
+      
+      send( line.toString() );
+    }
+  }
+
+  /**
+   * Signs the user in, in two steps: the first USR names the user and is
+   * answered with the challenge for the Passport login server, the second
+   * carries the ticket the login server issued.
+   */
+  private void receivedUSR( String trid, String step, String value ) {
+    
+    if( step.equals( "I" ) ) {
+      userName = value;
+      send( "USR " + trid + " TWN S " + TWEENER_CHALLENGE );
+      return;
+    }
+    
+    String user = server.redeemTicket( value );
+    
+    if( user == null || !user.equals( userName ) ) {
+      send( "911 " + trid );
+      close();
+      return;
+    }
+    
+    friendlyName = MockMessengerServer.encode( userName );
+    presence     = new int[server.contactCount];
+    
+    for( int i = 0; i < presence.length; i++ ) {
+      presence[i] = ( server.random.nextInt( 100 ) < server.onlinePercent ) ?
+                    server.random.nextInt( ONLINE_STATUSES.length ) : -1;
+    }
+    
+    server.signedIn( this );
+    send( "USR " + trid + " OK " + userName + " " + friendlyName + " 1 0" );
+  }
+
+  /**
+   * Sends the contact list, unless the client's copy is up to date.
+   */
+  private void receivedSYN( String trid, String version ) {
+    
+    if( String.valueOf( listVersion ).equals( version ) ) {
+      send( "SYN " + trid + " " + listVersion );
+      return;
+    }
+    
+    int groups = server.groupCount;
+    
+    send( "SYN " + trid + " " + listVersion + " " + presence.length + " " + groups );
+    
+    for( int i = 0; i < groups; i++ ) {
+      send( "LSG " + i + " Group%20" + i + " 0" );
+    }
+    
+    for( int i = 0; i < presence.length; i++ ) {
+      send( "LST " + server.getContactName( i ) + " Contact%20" + i + " " + CONTACT_LISTS + " " + ( i % groups ) );
+    }
+  }
+
+  /**
+   * Acknowledges a status change.  The first one completes the sign in: the
+   * contacts that are online are listed with ILN, and the client is
+   * challenged.
+   */
+  private void receivedCHG( String trid, String newStatus ) {
+    
+    boolean first;
+    
+    synchronized( this ) {
+      first  = ( status == null );
+      status = newStatus;
+      send( "CHG " + trid + " " + newStatus + " 0" );
+      
+      if( first ) {
+        for( int i = 0; i < presence.length; i++ ) {
+          if( presence[i] >= 0 )
+            send( "ILN " + trid + " " + ONLINE_STATUSES[presence[i]] + " " + server.getContactName( i ) + " Contact%20" + i );
+        }
+      }
+    }
+    
+    if( !first )
+      return;
+    
+    challenge();
+    
+    if( server.challengeInterval > 0 ) {
+      challenger = new Timer( true );
+      challenger.schedule( new TimerTask() {
+        
+        public void run() {
+          challenge();
+        }
+      }, server.challengeInterval, server.challengeInterval );
+    }
+  }
+
+  /**
+   * Checks the client's answer to the last challenge; a wrong one ends the
+   * connection, as the real server does.
+   */
+  private void receivedQRY( String trid, byte[] payload ) {
+    
+    String expected;
+    
+    synchronized( this ) {
+      expected  = ( challenge == null ) ? null : MockMessengerServer.md5( challenge + MockMessengerServer.CHALLENGE_KEY );
+      challenge = null;
+    }
+    
+    String answer = ( payload == null ) ? null : new String( payload ).trim();
+    
+    if( expected != null && expected.equals( answer ) )
+      send( "QRY " + trid );
+    else {
+      server.failedChallenges.incrementAndGet();
+      send( "540 " + trid );
+      close();
+    }
+  }
+
+  /**
+   * Sends a CHL challenge.
+   */
+  private void challenge() {
+    
+    String hash = String.valueOf( 10000000000L + ( server.random.nextLong() & Long.MAX_VALUE ) % 89999999999L );
+    
+    synchronized( this ) {
+      challenge = hash;
+    }
+    
+    server.challenges.incrementAndGet();
+    send( "CHL 0 " + hash );
+  }
+
+  /**
+   * Changes the presence of a random contact, and tells the client.
+   *
+   * @return Whether the client was told; not before the first CHG.
+   */
+  synchronized boolean churn( Random random ) {
+    
+    if( status == null || presence.length == 0 )
+      return false;
+    
+    int contact = random.nextInt( presence.length );
+    int old     = presence[contact];
+    
+    /* Online contacts go offline now and then, and otherwise change their status */
+    if( old >= 0 && random.nextInt( 4 ) == 0 ) {
+      presence[contact] = -1;
+      send( "FLN " + server.getContactName( contact ) );
+    }
+    else {
+      int next = random.nextInt( ONLINE_STATUSES.length );
+      
+      presence[contact] = ( next == old ) ? ( next + 1 ) % ONLINE_STATUSES.length : next;
+      send( "NLN " + ONLINE_STATUSES[presence[contact]] + " " + server.getContactName( contact ) + " Contact%20" + contact );
+    }
+    
+    return true;
+  }
+
+  /**
+   * Invites the user to a switchboard session.
+   * <pre>RNG SessionID Address:Port CKI Hash UserName FriendlyName</pre>
+   */
+  void ring( String sessionID, String caller, String callerFriendlyName ) {
+    
+    send( "RNG " + sessionID + " " + server.getAddress( MockMessengerServer.SWITCHBOARD ) + " CKI " +
+          server.issueCookie( userName ) + " " + caller + " " + callerFriendlyName );
+  }
+
+  /**
+   * @return Whether the user has completed the sign in.
+   */
+  synchronized boolean isOnline() {
+    
+    return status != null && !closed;
+  }
+
+  void disconnected() {
+    
+    if( challenger != null )
+      challenger.cancel();
+    
+    server.signedOut( this );
+  }
+
+  private synchronized int nextListVersion() {
+    
+    return ++listVersion;
+  }
+}
+
+// MockNotificationConnection class
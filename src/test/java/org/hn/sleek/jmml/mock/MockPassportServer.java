@@ -0,0 +1,150 @@
+/*
+ * ===========================================================================
+ *  Copyright (C) 2002-2003  Tony Tang
+ *
+ *  This program is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation; either version 2 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program; if not, write to the Free Software
+ *  Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ * ===========================================================================
+ */
+
+/**
+ *
+ * $Id$
+ * $Author$
+ * $Name$
+ * $Revision$
+ * $State$
+ *
+ */
+
+package org.hn.sleek.jmml.mock;
+
+import java.io.*;
+import java.net.*;
+import java.util.concurrent.*;
+
+import com.sun.net.httpserver.*;
+
+
+/**
+ * A stand-in for the Passport nexus and login server, over plain HTTP.  The
+ * nexus names the login server in its PassportURLs header; the login server
+ * reads the user and password from the Authorization header, and answers
+ * with a ticket the Notification Server of the stand-in accepts.
+ */
+class MockPassportServer implements HttpHandler {
+
+  final static String       NEXUS_PATH = "/rdr/pprdr.asp";
+  final static String       LOGIN_PATH = "/login2.srf";
+
+  final MockMessengerServer server;
+  final HttpServer          http;
+  final ExecutorService     executor;
+
+
+
+  MockPassportServer( MockMessengerServer server ) throws IOException {
+    
+    this.server = server;
+    
+    executor = Executors.newCachedThreadPool( new ThreadFactory() {
+      
+      public Thread newThread( Runnable task ) {
+        
+        Thread thread = new Thread( task, "jmml-mock-passport" );
+        
+        thread.setDaemon( true );
+        return thread;
+      }
+    } );
+    
+    http = HttpServer.create( new InetSocketAddress( InetAddress.getByName( MockMessengerServer.HOST ), 0 ), 512 );
+    http.createContext( NEXUS_PATH, this );
+    http.createContext( LOGIN_PATH, this );
+    http.setExecutor( executor );
+    http.start();
+  }
+
+  /**
+   * @return The address of the nexus.
+   */
+  String getNexusAddress() {
+    
+    return getBaseAddress() + NEXUS_PATH;
+  }
+
+  void stop() {
+    
+    http.stop( 0 );
+    executor.shutdownNow();
+  }
+
+  public void handle( HttpExchange exchange ) throws IOException {
+    
+    try {
+      InputStream body = exchange.getRequestBody();
+      
+      while( body.read() >= 0 )
+        ;
+      
+      if( exchange.getRequestURI().getPath().equals( NEXUS_PATH ) ) {
+        exchange.getResponseHeaders().set( "PassportURLs", "DARealm=Passport.Net,DALogin=" + getBaseAddress() + LOGIN_PATH +
+                                           ",DAReg=" + getBaseAddress() + "/reg,Properties=,GeneralRedir=,Help=,ConfigVersion=11" );
+        exchange.sendResponseHeaders( 200, -1 );
+        return;
+      }
+      
+      /* Authorization: Passport1.4 OrgVerb=GET,OrgURL=...,sign-in=user,pwd=password,lc=1033,... */
+      String authorization = exchange.getRequestHeaders().getFirst( "Authorization" );
+      String ticket        = server.issueTicket( getField( "sign-in=", authorization ), getField( "pwd=", authorization ) );
+      
+      if( ticket != null ) {
+        exchange.getResponseHeaders().set( "Authentication-Info", "Passport1.4 da-status=success,tname=MSPAuth,tname=MSPProf,tname=MSPSec," +
+                                           "from-PP='" + ticket + "',ru=http://messenger.msn.com" );
+        exchange.sendResponseHeaders( 200, -1 );
+      }
+      else {
+        exchange.getResponseHeaders().set( "WWW-Authenticate", "Passport1.4 da-status=failed,srealm=Passport.NET,ts=-3,prompt" );
+        exchange.sendResponseHeaders( 401, -1 );
+      }
+    } finally {
+      exchange.close();
+    }
+  }
+
+  private String getBaseAddress() {
+    
+    return "http://" + MockMessengerServer.HOST + ":" + http.getAddress().getPort();
+  }
+
+  /**
+   * Returns the value of a field of the Authorization header, which runs
+   * to the next comma.
+   */
+  private static String getField( String key, String header ) {
+    
+    int start = ( header == null ) ? -1 : header.indexOf( key );
+    
+    if( start < 0 )
+      return null;
+    
+    start += key.length();
+    
+    int end = header.indexOf( ',', start );
+    
+    return ( end < 0 ) ? header.substring( start ) : header.substring( start, end );
+  }
+}
+
+// MockPassportServer class
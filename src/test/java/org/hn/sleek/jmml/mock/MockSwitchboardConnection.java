@@ -0,0 +1,170 @@
+/*
+ * ===========================================================================
+ *  Copyright (C) 2002-2003  Tony Tang
+ *
+ *  This program is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation; either version 2 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program; if not, write to the Free Software
+ *  Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ * ===========================================================================
+ */
+
+/**
+ *
+ * $Id$
+ * $Author$
+ * $Name$
+ * $Revision$
+ * $State$
+ *
+ */
+
+package org.hn.sleek.jmml.mock;
+
+import java.io.*;
+import java.net.*;
+
+
+/**
+ * A connection to the Switchboard Server of the stand-in.  The caller signs
+ * in with the cookie of an XFR, and calls users into its session; the user
+ * called answers with the cookie of its RNG.  Messages are relayed to the
+ * other participants of the session.
+ */
+class MockSwitchboardConnection extends MockConnection {
+
+  /** The user's friendly name, URL-encoded. */
+  String                 friendlyName;
+
+  /** The session the user takes part in, or null. */
+  MockSwitchboardSession session;
+
+
+
+  MockSwitchboardConnection( MockMessengerServer server, Socket socket ) throws IOException {
+    
+    super( server, socket );
+  }
+
+  void received( String[] tokens, byte[] payload ) {
+    
+    String command = tokens[0];
+    String trid    = tokens.length > 1 ? tokens[1] : "0";
+    
+    if( command.equals( "USR" ) && tokens.length > 3 ) {
+      /* >>> USR 1 example@passport.com 17262740.1050826919.32308 */
+      if( !authenticate( tokens[2], tokens[3], trid ) )
+        return;
+      
+      send( "USR " + trid + " OK " + userName + " " + friendlyName );
+    }
+    else if( command.equals( "ANS" ) && tokens.length > 4 )
+      receivedANS( trid, tokens[2], tokens[3], tokens[4] );
+    else if( userName == null )
+      send( "911 " + trid );
+    else if( command.equals( "CAL" ) && tokens.length > 2 )
+      receivedCAL( trid, tokens[2] );
+    else if( command.equals( "MSG" ) && tokens.length > 3 && session != null ) {
+      MockMessageListener listener = server.messageListener;
+      
+      if( listener != null )
+        listener.messageReceived( userName, payload );
+      
+      session.relay( this, payload );
+      
+      /* U asks for no acknowledgement, N for one when the message fails */
+      if( tokens[2].equals( "A" ) || tokens[2].equals( "D" ) )
+        send( "ACK " + trid );
+    }
+    else if( command.equals( "OUT" ) )
+      close();
+    else
+      send( "500 " + trid );
+  }
+
+  /**
+   * Calls a user into the session, which is opened by the first call.  A
+   * user signed in to the stand-in is rung; anybody else joins at once.
+   */
+  private void receivedCAL( String trid, String buddy ) {
+    
+    if( session == null ) {
+      session = server.openSession();
+      session.join( this );
+    }
+    
+    send( "CAL " + trid + " RINGING " + session.id );
+    
+    MockNotificationConnection callee = ( MockNotificationConnection ) server.accounts.get( buddy );
+    
+    if( callee != null && callee.isOnline() )
+      callee.ring( session.id, userName, friendlyName );
+    else
+      session.joinContact( buddy );
+  }
+
+  /**
+   * Joins the session the user was rung for: the participants are listed
+   * with IRO, and then told about the user with JOI.
+   */
+  private void receivedANS( String trid, String user, String cookie, String sessionID ) {
+    
+    if( !authenticate( user, cookie, trid ) )
+      return;
+    
+    MockSwitchboardSession joined = ( MockSwitchboardSession ) server.sessions.get( sessionID );
+    
+    if( joined == null ) {
+      send( "911 " + trid );
+      close();
+      return;
+    }
+    
+    /* <<< IRO 1 1 2 example@passport.com Mike */
+    String[] participants = joined.getParticipants();
+    
+    for( int i = 0; i < participants.length; i++ ) {
+      send( "IRO " + trid + " " + ( i + 1 ) + " " + participants.length + " " + participants[i] );
+    }
+    
+    send( "ANS " + trid + " OK" );
+    session = joined;
+    joined.join( this );
+  }
+
+  /**
+   * Checks the cookie a user signs in with.
+   *
+   * @return Whether the cookie was issued to the user; otherwise the
+   * connection is closed.
+   */
+  private boolean authenticate( String user, String cookie, String trid ) {
+    
+    if( !user.equals( server.redeemCookie( cookie ) ) ) {
+      send( "911 " + trid );
+      close();
+      return false;
+    }
+    
+    userName     = user;
+    friendlyName = server.getFriendlyName( user );
+    return true;
+  }
+
+  void disconnected() {
+    
+    if( session != null )
+      session.leave( this );
+  }
+}
+
+// MockSwitchboardConnection class
@@ -0,0 +1,192 @@
+/*
+ * ===========================================================================
+ *  Copyright (C) 2002-2003  Tony Tang
+ *
+ *  This program is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation; either version 2 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program; if not, write to the Free Software
+ *  Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ * ===========================================================================
+ */
+
+/**
+ *
+ * $Id$
+ * $Author$
+ * $Name$
+ * $Revision$
+ * $State$
+ *
+ */
+
+package org.hn.sleek.jmml.mock;
+
+import java.util.*;
+
+
+/**
+ * A switchboard session of the stand-in: the connections of the users in
+ * the conversation, and the contacts that joined it without a connection.
+ * Such a contact sends every text message it is sent back to its sender,
+ * when echo is on.
+ */
+class MockSwitchboardSession {
+
+  final MockMessengerServer server;
+  final String              id;
+
+  /** Connections of the users in the session. */
+  ArrayList                 connections = new ArrayList();
+
+  /** Names of the contacts in the session that have no connection. */
+  ArrayList                 contacts    = new ArrayList();
+
+
+
+  MockSwitchboardSession( MockMessengerServer server, String id ) {
+    
+    this.server = server;
+    this.id     = id;
+  }
+
+  /**
+   * Adds a user's connection to the session; the others are sent a JOI.
+   */
+  void join( MockSwitchboardConnection connection ) {
+    
+    Object[] others;
+    
+    synchronized( this ) {
+      others = connections.toArray();
+      connections.add( connection );
+    }
+    
+    for( int i = 0; i < others.length; i++ ) {
+      ( ( MockSwitchboardConnection ) others[i] ).send( "JOI " + connection.userName + " " + connection.friendlyName );
+    }
+  }
+
+  /**
+   * Adds a contact without a connection; the users are sent a JOI.
+   */
+  void joinContact( String contact ) {
+    
+    Object[] others;
+    
+    synchronized( this ) {
+      others = connections.toArray();
+      contacts.add( contact );
+    }
+    
+    for( int i = 0; i < others.length; i++ ) {
+      ( ( MockSwitchboardConnection ) others[i] ).send( "JOI " + contact + " " + server.getFriendlyName( contact ) );
+    }
+  }
+
+  /**
+   * Removes a user's connection; the others are sent a BYE.  The session is
+   * closed when no connection is left.
+   */
+  void leave( MockSwitchboardConnection connection ) {
+    
+    Object[] others;
+    
+    synchronized( this ) {
+      connections.remove( connection );
+      others = connections.toArray();
+    }
+    
+    for( int i = 0; i < others.length; i++ ) {
+      ( ( MockSwitchboardConnection ) others[i] ).send( "BYE " + connection.userName );
+    }
+    
+    if( others.length == 0 )
+      server.sessions.remove( id );
+  }
+
+  /**
+   * Returns the participants, as the <pre>UserName FriendlyName</pre> of an IRO.
+   */
+  synchronized String[] getParticipants() {
+    
+    String[] participants = new String[connections.size() + contacts.size()];
+    int      n            = 0;
+    
+    for( int i = 0; i < connections.size(); i++ ) {
+      MockSwitchboardConnection connection = ( MockSwitchboardConnection ) connections.get( i );
+      
+      participants[n++] = connection.userName + " " + connection.friendlyName;
+    }
+    
+    for( int i = 0; i < contacts.size(); i++ ) {
+      participants[n++] = contacts.get( i ) + " " + server.getFriendlyName( ( String ) contacts.get( i ) );
+    }
+    
+    return participants;
+  }
+
+  /**
+   * Relays a message to the other users of the session, and echoes text
+   * messages from the contacts without a connection.
+   *
+   * @param from The sender.
+   * @param payload The MIME payload of the MSG.
+   */
+  void relay( MockSwitchboardConnection from, byte[] payload ) {
+    
+    MockMessageListener listener = server.messageListener;
+    Object[]            others;
+    Object[]            echoes;
+    
+    synchronized( this ) {
+      others = connections.toArray();
+      echoes = ( server.echo && isText( payload ) ) ? contacts.toArray() : new Object[0];
+    }
+    
+    for( int i = 0; i < others.length; i++ ) {
+      if( others[i] != from ) {
+        MockSwitchboardConnection to = ( MockSwitchboardConnection ) others[i];
+        
+        if( listener != null )
+          listener.messageSent( to.userName, payload );
+        
+        to.send( "MSG " + from.userName + " " + from.friendlyName, payload );
+        server.relayed.incrementAndGet();
+      }
+    }
+    
+    for( int i = 0; i < echoes.length; i++ ) {
+      if( listener != null )
+        listener.messageSent( from.userName, payload );
+      
+      from.send( "MSG " + echoes[i] + " " + server.getFriendlyName( ( String ) echoes[i] ), payload );
+      server.relayed.incrementAndGet();
+    }
+  }
+
+  /**
+   * Returns whether a payload is a text message, rather than a typing
+   * notification or an invitation.
+   */
+  private static boolean isText( byte[] payload ) {
+    
+    try {
+      String head = new String( payload, 0, Math.min( payload.length, 256 ), "ISO-8859-1" ).toLowerCase();
+      
+      return head.indexOf( "content-type: text/plain" ) >= 0;
+    } catch( java.io.UnsupportedEncodingException e ) {
+      return false;
+    }
+  }
+}
+
+// MockSwitchboardSession class